@@ -0,0 +1,48 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, accepting the same command line options as {@link org.openjdk.jmh.Main}. Unless specified
+ * otherwise, results are written in JSON format to {@value #RESULT_FILE_DEFAULT}, so that they can be compared across
+ * commits, for example using <a href="https://jmh.morethan.io/">JMH Visualizer</a>. On Java 9+, the packages
+ * accessed by the library via reflection are opened in the forked JVMs.
+ * @author Mattias Jiderhamn
+ */
+public class BenchmarkRunner {
+
+  /** Default file to write results to */
+  public static final String RESULT_FILE_DEFAULT = "jmh-result.json";
+
+  /** Packages accessed via reflection by the benchmarked code */
+  private static final String[] OPENED_PACKAGES = {"java.base/java.lang", "java.base/java.security", "java.base/java.util"};
+
+  public static void main(String[] args) throws Exception {
+    final CommandLineOptions commandLine = new CommandLineOptions(args);
+    final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    if(! commandLine.getResultFormat().hasValue())
+      options.resultFormat(ResultFormatType.JSON);
+    if(! commandLine.getResult().hasValue())
+      options.result(RESULT_FILE_DEFAULT);
+
+    if(! System.getProperty("java.specification.version").startsWith("1.")) { // Java 9+
+      final List<String> jvmArgs = new ArrayList<String>();
+      if(commandLine.getJvmArgsAppend().hasValue())
+        jvmArgs.addAll(commandLine.getJvmArgsAppend().get());
+      for(String openedPackage : OPENED_PACKAGES) {
+        jvmArgs.addAll(Arrays.asList("--add-opens", openedPackage + "=ALL-UNNAMED"));
+      }
+      options.jvmArgsAppend(jvmArgs.toArray(new String[jvmArgs.size()]));
+    }
+
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,73 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventorFactory;
+import se.jiderhamn.classloader.leak.prevention.Logger;
+
+/**
+ * Utilities for setting up the benchmarks
+ * @author Mattias Jiderhamn
+ */
+class BenchmarkSupport {
+
+  /** {@link Logger} that discards everything, so that logging does not affect the results */
+  static final Logger NO_OP_LOGGER = new Logger() {
+    @Override
+    public void debug(String msg) { }
+
+    @Override
+    public void info(String msg) { }
+
+    @Override
+    public void warn(String msg) { }
+
+    @Override
+    public void warn(Throwable t) { }
+
+    @Override
+    public void error(String msg) { }
+
+    @Override
+    public void error(Throwable t) { }
+  };
+
+  private BenchmarkSupport() {
+  }
+
+  /** Create {@link ClassLoaderLeakPreventor} with the default configuration for the provided "web app" classloader */
+  static ClassLoaderLeakPreventor newLeakPreventor(ClassLoader classLoader) {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    factory.setLogger(NO_OP_LOGGER);
+    return factory.newLeakPreventor(classLoader);
+  }
+
+  /** Create "web app" classloader that does not see the benchmark classes, i.e. with the same parent as the system classloader */
+  static URLClassLoader newWebAppClassLoader() {
+    return new URLClassLoader(new URL[0], ClassLoader.getSystemClassLoader().getParent());
+  }
+
+  /**
+   * Create a chain of {@code depth} classloaders below {@code parent}, where the last one defines its own
+   * {@link AppObject} class. Returns the last classloader.
+   */
+  static URLClassLoader newClassLoaderChain(ClassLoader parent, int depth) {
+    ClassLoader classLoader = parent;
+    for(int i = 1; i < depth; i++) {
+      classLoader = new URLClassLoader(new URL[0], classLoader);
+    }
+    final URL codeSource = AppObject.class.getProtectionDomain().getCodeSource().getLocation();
+    return new URLClassLoader(new URL[] {codeSource}, classLoader);
+  }
+
+  /** Create an instance of {@link AppObject} as defined by the provided classloader */
+  static Object newAppObject(ClassLoader classLoader) throws Exception {
+    return Class.forName(AppObject.class.getName(), true, classLoader).newInstance();
+  }
+
+  /** Class to be loaded by "web app" classloaders */
+  public static class AppObject {
+  }
+}
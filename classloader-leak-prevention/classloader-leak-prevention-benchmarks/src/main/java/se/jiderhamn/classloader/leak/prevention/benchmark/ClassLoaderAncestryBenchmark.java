@@ -0,0 +1,99 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+
+/**
+ * Benchmarks {@link ClassLoaderLeakPreventor#isClassLoaderOrChild(ClassLoader)} and
+ * {@link ClassLoaderLeakPreventor#isLoadedInClassLoader(Object)}, for classloaders and objects that are either
+ * {@code depth} levels below the "web app" classloader, or in an unrelated hierarchy of the same depth.
+ * @author Mattias Jiderhamn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoaderAncestryBenchmark {
+
+  /** Depth of the hierarchies; 1 means direct child */
+  @Param({"1", "5", "50"})
+  public int depth;
+
+  @Param({"true", "false"})
+  public boolean ancestryCache;
+
+  private URLClassLoader webAppClassLoader;
+
+  private URLClassLoader childClassLoader;
+
+  private URLClassLoader unrelatedClassLoader;
+
+  private Object childObject;
+
+  private Object unrelatedObject;
+
+  private Object jdkObject;
+
+  private ClassLoaderLeakPreventor preventor;
+
+  @Setup
+  public void setUp() throws Exception {
+    webAppClassLoader = BenchmarkSupport.newWebAppClassLoader();
+    childClassLoader = BenchmarkSupport.newClassLoaderChain(webAppClassLoader, depth);
+    unrelatedClassLoader = BenchmarkSupport.newClassLoaderChain(BenchmarkSupport.newWebAppClassLoader(), depth);
+    childObject = BenchmarkSupport.newAppObject(childClassLoader);
+    unrelatedObject = BenchmarkSupport.newAppObject(unrelatedClassLoader);
+    jdkObject = new StringBuilder();
+
+    preventor = BenchmarkSupport.newLeakPreventor(webAppClassLoader);
+    preventor.setAncestryCacheEnabled(ancestryCache);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    childClassLoader.close();
+    unrelatedClassLoader.close();
+  }
+
+  @Benchmark
+  public boolean isClassLoaderOrChild_child() {
+    return preventor.isClassLoaderOrChild(childClassLoader);
+  }
+
+  @Benchmark
+  public boolean isClassLoaderOrChild_unrelated() {
+    return preventor.isClassLoaderOrChild(unrelatedClassLoader);
+  }
+
+  @Benchmark
+  public boolean isLoadedInClassLoader_child() {
+    return preventor.isLoadedInClassLoader(childObject);
+  }
+
+  @Benchmark
+  public boolean isLoadedInClassLoader_unrelated() {
+    return preventor.isLoadedInClassLoader(unrelatedObject);
+  }
+
+  @Benchmark
+  public boolean isLoadedInClassLoader_jdk() {
+    return preventor.isLoadedInClassLoader(jdkObject);
+  }
+}
@@ -0,0 +1,130 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.jiderhamn.classloader.leak.LeakyAppGenerator;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventorFactory;
+import se.jiderhamn.classloader.leak.prevention.TimingStatistics;
+
+/**
+ * Measures how the time of each {@link se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp} scales
+ * with the size of the leaks, using {@link LeakyAppGenerator} to create a synthetic application with N leaks of one
+ * {@link LeakyAppGenerator.Dimension} at a time. Each measurement is repeated {@value #REPETITIONS} times with a new
+ * application, and the fastest is used. For each dimension, the slowest cleanups at the largest N are listed with their
+ * growth from the smallest N, and flagged when the growth is more than twice that of N, i.e. when the cleanup scales
+ * worse than linearly.
+ *
+ * Usage: {@code java CleanUpScalingDriver [N,N,...]}, where N defaults to {@value #DEFAULT_SCALES}. On Java 9+, use
+ * {@code --add-opens java.base/java.lang=ALL-UNNAMED} (and so on) the same way as {@link BenchmarkRunner}.
+ * @author Mattias Jiderhamn
+ */
+public class CleanUpScalingDriver {
+
+  private static final String DEFAULT_SCALES = "10,100,1000";
+
+  /** Number of times to repeat each measurement */
+  private static final int REPETITIONS = 3;
+
+  /** Number of cleanups to list per dimension */
+  private static final int TOP = 5;
+
+  /** Cleanups faster than this at the largest N are not flagged, since the growth would mostly be noise */
+  private static final long NOISE_NANOS = 1000000;
+
+  public static void main(String[] args) throws Exception {
+    final String[] scaleStrings = ((args.length > 0) ? args[0] : DEFAULT_SCALES).split(",");
+    final int[] scales = new int[scaleStrings.length];
+    for(int i = 0; i < scales.length; i++) {
+      scales[i] = Integer.parseInt(scaleStrings[i].trim());
+    }
+
+    // Warm up, so that the first dimension is not penalized
+    for(LeakyAppGenerator.Dimension dimension : LeakyAppGenerator.Dimension.values()) {
+      measure(dimension, scales[0]);
+    }
+
+    for(LeakyAppGenerator.Dimension dimension : LeakyAppGenerator.Dimension.values()) {
+      final List<Map<String, Long>> results = new ArrayList<Map<String, Long>>();
+      for(int scale : scales) {
+        final Map<String, Long> fastest = measure(dimension, scale);
+        for(int i = 1; i < REPETITIONS; i++) {
+          for(Map.Entry<String, Long> entry : measure(dimension, scale).entrySet()) {
+            final Long previous = fastest.get(entry.getKey());
+            if(previous == null || entry.getValue() < previous)
+              fastest.put(entry.getKey(), entry.getValue());
+          }
+        }
+        results.add(fastest);
+      }
+      print(dimension, scales, results);
+    }
+  }
+
+  /**
+   * Generate an application with {@code count} leaks of the provided {@link LeakyAppGenerator.Dimension} and run all
+   * cleanups for it. Returns the nanoseconds spent per cleanup class name.
+   */
+  static Map<String, Long> measure(LeakyAppGenerator.Dimension dimension, int count) throws Exception {
+    final LeakyAppGenerator generator = new LeakyAppGenerator();
+    try {
+      generator.setCount(dimension, count);
+      final ClassLoader classLoader = generator.generate(dimension.name().toLowerCase() + "-" + count);
+
+      final TimingStatistics timingStatistics = new TimingStatistics();
+      final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+      factory.setLogger(BenchmarkSupport.NO_OP_LOGGER);
+      factory.addListener(timingStatistics);
+      factory.newLeakPreventor(classLoader).runCleanUps();
+
+      final Map<String, Long> output = new LinkedHashMap<String, Long>();
+      for(Map.Entry<String, TimingStatistics.Timing> entry : timingStatistics.getTimings().entrySet()) {
+        output.put(entry.getKey(), entry.getValue().getTotalNanos());
+      }
+      return output;
+    }
+    finally {
+      generator.close();
+    }
+  }
+
+  private static void print(LeakyAppGenerator.Dimension dimension, int[] scales, List<Map<String, Long>> results) {
+    final Map<String, Long> first = results.get(0);
+    final Map<String, Long> last = results.get(results.size() - 1);
+    final double scaleGrowth = (double) scales[scales.length - 1] / scales[0];
+
+    final List<String> cleanUps = new ArrayList<String>(last.keySet());
+    Collections.sort(cleanUps, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return last.get(b).compareTo(last.get(a));
+      }
+    });
+
+    final StringBuilder output = new StringBuilder(dimension.name()).append('\n');
+    output.append(String.format("  %-40s", "Clean up"));
+    for(int scale : scales) {
+      output.append(String.format(" %12s", "N=" + scale));
+    }
+    output.append(String.format(" %10s%n", "growth"));
+
+    for(String cleanUp : cleanUps.subList(0, Math.min(TOP, cleanUps.size()))) {
+      output.append(String.format("  %-40s", cleanUp.substring(cleanUp.lastIndexOf('.') + 1)));
+      for(Map<String, Long> result : results) {
+        final Long nanos = result.get(cleanUp);
+        output.append(String.format(" %9.3f ms", (nanos != null) ? nanos / 1e6 : 0d));
+      }
+      final Long firstNanos = first.get(cleanUp);
+      final double growth = (firstNanos != null && firstNanos > 0) ? (double) last.get(cleanUp) / firstNanos : 0;
+      output.append(String.format(" %9.1fx", growth));
+      if(growth > 2 * scaleGrowth && last.get(cleanUp) >= NOISE_NANOS)
+        output.append(" (superlinear)");
+      output.append('\n');
+    }
+    System.out.println(output);
+  }
+}
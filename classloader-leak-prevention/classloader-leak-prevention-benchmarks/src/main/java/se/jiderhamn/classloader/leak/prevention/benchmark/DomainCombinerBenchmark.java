@@ -0,0 +1,85 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.DomainCombiner;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+
+/**
+ * Benchmarks {@link DomainCombiner#combine} of the custom {@link DomainCombiner} of
+ * {@link ClassLoaderLeakPreventor#createAccessControlContext()}, with {@code domains} {@link ProtectionDomain}s of
+ * which the last one is optionally loaded by the "web app" classloader, and thus filtered, with and without the
+ * classloader ancestry cache. Run with {@code -prof gc} to see the allocations per call.
+ * @author Mattias Jiderhamn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class DomainCombinerBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int domains;
+
+  @Param({"true", "false"})
+  public boolean filtered;
+
+  @Param({"true", "false"})
+  public boolean ancestryCache;
+
+  private URLClassLoader webAppClassLoader;
+
+  private URLClassLoader otherClassLoader;
+
+  private ProtectionDomain[] currentDomains;
+
+  private DomainCombiner domainCombiner;
+
+  @Setup
+  public void setUp() throws Exception {
+    webAppClassLoader = BenchmarkSupport.newWebAppClassLoader();
+    otherClassLoader = BenchmarkSupport.newWebAppClassLoader();
+    final ClassLoaderLeakPreventor preventor = BenchmarkSupport.newLeakPreventor(webAppClassLoader);
+    preventor.setAncestryCacheEnabled(ancestryCache);
+    domainCombiner = preventor.createAccessControlContext().getDomainCombiner();
+
+    currentDomains = new ProtectionDomain[domains];
+    for(int i = 0; i < domains; i++) {
+      final ClassLoader classLoader = (filtered && i == domains - 1) ? webAppClassLoader : otherClassLoader;
+      currentDomains[i] = new ProtectionDomain(
+          new CodeSource(new URL("file:/benchmark/" + i + ".jar"), (Certificate[]) null), null, classLoader, null);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    webAppClassLoader.close();
+    otherClassLoader.close();
+  }
+
+  @Benchmark
+  public ProtectionDomain[] combine() {
+    return domainCombiner.combine(currentDomains, null);
+  }
+}
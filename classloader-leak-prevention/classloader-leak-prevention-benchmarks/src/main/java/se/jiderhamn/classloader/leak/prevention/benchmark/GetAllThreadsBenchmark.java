@@ -0,0 +1,85 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+
+/**
+ * Benchmarks {@link ClassLoaderLeakPreventor#getAllThreads()} with {@code threads} additional threads alive
+ * @author Mattias Jiderhamn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetAllThreadsBenchmark {
+
+  /** Stack size of the waiting threads, to allow for many of them */
+  private static final long STACK_SIZE = 64 * 1024;
+
+  @Param({"100", "1000", "10000"})
+  public int threads;
+
+  private final List<Thread> waitingThreads = new ArrayList<Thread>();
+
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private ClassLoaderLeakPreventor preventor;
+
+  @Setup
+  public void setUp() throws InterruptedException {
+    preventor = BenchmarkSupport.newLeakPreventor(BenchmarkSupport.newWebAppClassLoader());
+
+    final CountDownLatch started = new CountDownLatch(threads);
+    final Runnable waiter = new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          done.await();
+        }
+        catch (InterruptedException e) {
+          // Exit
+        }
+      }
+    };
+    for(int i = 0; i < threads; i++) {
+      final Thread thread = new Thread(null, waiter, "benchmark-" + i, STACK_SIZE);
+      thread.setDaemon(true);
+      thread.start();
+      waitingThreads.add(thread);
+    }
+    started.await();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    done.countDown();
+    for(Thread thread : waitingThreads) {
+      thread.join();
+    }
+  }
+
+  @Benchmark
+  public Collection<Thread> getAllThreads() {
+    return preventor.getAllThreads();
+  }
+}
@@ -0,0 +1,82 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+import se.jiderhamn.classloader.leak.RedeploySoak;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventorFactory;
+
+/**
+ * Runs a {@link RedeploySoak} where each cycle leaks the classloader via a {@link ThreadLocal}, a shutdown hook and
+ * an MBean, and the leaks are prevented by {@link ClassLoaderLeakPreventorFactory#newLeakPreventor()} and
+ * {@link se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor#runCleanUps()}. Prints the result and exits
+ * with status 1 if any limit of {@link RedeploySoak} was exceeded, for example if the cleanups get slower with every
+ * redeploy.
+ *
+ * Usage: {@code java RedeploySoakDriver [cycles]}, where cycles defaults to {@value #DEFAULT_CYCLES}. On Java 9+, use
+ * {@code --add-opens java.base/java.lang=ALL-UNNAMED} (and so on) the same way as {@link BenchmarkRunner}.
+ * @author Mattias Jiderhamn
+ */
+public class RedeploySoakDriver {
+
+  private static final int DEFAULT_CYCLES = 500;
+
+  public static void main(String[] args) throws Exception {
+    // Initialize JVM wide resources outside of the redeployed classloaders, just like at server startup
+    BenchmarkSupport.newLeakPreventor(BenchmarkSupport.newWebAppClassLoader()).runPreClassLoaderInitiators();
+
+    final RedeploySoak soak = new RedeploySoak(Workload.class, LeakPreventorCleanUp.class);
+    soak.setCycles((args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_CYCLES);
+    final RedeploySoak.Result result = soak.run();
+    System.out.println(result);
+    if(! result.getViolations().isEmpty()) {
+      System.out.println("Violations: " + result.getViolations());
+      System.exit(1);
+    }
+  }
+
+  /** Leaks the classloader it is loaded by via a {@link ThreadLocal}, a shutdown hook and an MBean */
+  public static class Workload implements Runnable {
+
+    private static final ThreadLocal<Object> threadLocal = new ThreadLocal<Object>();
+
+    @Override
+    public void run() {
+      threadLocal.set(this);
+      Runtime.getRuntime().addShutdownHook(new Thread("redeploy-soak-hook") { });
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Leak(),
+            new ObjectName("se.jiderhamn.classloader.leak.prevention.benchmark:type=Leak,id=" +
+                Integer.toHexString(System.identityHashCode(this))));
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public interface LeakMBean {
+  }
+
+  public static class Leak implements LeakMBean {
+  }
+
+  /**
+   * Runs all the cleanups of the ClassLoader Leak Prevention library for the context classloader. The factory is
+   * created up front, so that loading the library classes is not included in the cleanup latency.
+   */
+  public static class LeakPreventorCleanUp implements Runnable {
+
+    private final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+
+    public LeakPreventorCleanUp() {
+      factory.setLogger(BenchmarkSupport.NO_OP_LOGGER);
+    }
+
+    @Override
+    public void run() {
+      factory.newLeakPreventor().runCleanUps();
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.security.AccessControlContext;
+import java.security.DomainCombiner;
+import java.security.ProtectionDomain;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.FieldAccessor;
+
+/**
+ * Benchmarks {@link ClassLoaderLeakPreventor#removeDomainCombiner(String, AccessControlContext)} on a chain of
+ * {@code depth} nested {@link AccessControlContext}s, linked alternately by {@code parent} and
+ * {@code privilegedContext}. If {@code combinerSet}, the custom {@link DomainCombiner} is set on every
+ * {@link AccessControlContext} before each invocation, otherwise the chain is just traversed, as for most threads.
+ * @author Mattias Jiderhamn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class RemoveDomainCombinerBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int depth;
+
+  @Param({"true", "false"})
+  public boolean combinerSet;
+
+  private ClassLoaderLeakPreventor preventor;
+
+  private DomainCombiner domainCombiner;
+
+  private FieldAccessor combiner;
+
+  private AccessControlContext[] contexts;
+
+  @Setup
+  public void setUp() {
+    preventor = BenchmarkSupport.newLeakPreventor(BenchmarkSupport.newWebAppClassLoader());
+    domainCombiner = preventor.createAccessControlContext().getDomainCombiner();
+    combiner = preventor.findFieldAccessor(AccessControlContext.class, "combiner");
+    final FieldAccessor parent = preventor.findFieldAccessor(AccessControlContext.class, "parent");
+    final FieldAccessor privilegedContext = preventor.findFieldAccessor(AccessControlContext.class, "privilegedContext");
+
+    contexts = new AccessControlContext[depth];
+    for(int i = depth - 1; i >= 0; i--) {
+      contexts[i] = new AccessControlContext(new ProtectionDomain[0]);
+      if(i < depth - 1)
+        ((i % 2 == 0) ? parent : privilegedContext).set(contexts[i], contexts[i + 1]);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setCombiner() {
+    if(combinerSet) {
+      for(AccessControlContext context : contexts) {
+        combiner.set(context, domainCombiner);
+      }
+    }
+  }
+
+  @Benchmark
+  public void removeDomainCombiner() {
+    preventor.removeDomainCombiner("benchmark", contexts[0]);
+  }
+}
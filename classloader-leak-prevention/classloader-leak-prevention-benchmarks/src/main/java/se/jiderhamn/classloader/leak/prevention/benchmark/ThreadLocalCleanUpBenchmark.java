@@ -0,0 +1,182 @@
+package se.jiderhamn.classloader.leak.prevention.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp;
+
+/**
+ * Benchmarks of {@link ThreadLocalCleanUp}, none of which find any leaks so that the {@link ThreadLocal}s are left
+ * unchanged.
+ * <ul>
+ *   <li>{@link #processThreadLocalMap} benchmarks {@link ThreadLocalCleanUp#processThreadLocalMap} of a single thread 
+ *     with {@code threadLocals} entries. The size of the table of the map is the next power of two that is at least 
+ *     1.5 times the no of entries.</li>
+ *   <li>{@link #scanThreads} benchmarks the whole {@link ThreadLocalCleanUp} with {@code threads} threads having 
+ *     {@code threadLocalsPerThread} entries each, scanned with the provided {@link ThreadLocalCleanUp#setParallelism}
+ *     so that sequential and parallel scanning can be compared.</li>
+ * </ul>
+ * @author Mattias Jiderhamn
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadLocalCleanUpBenchmark {
+
+  @Benchmark
+  public void processThreadLocalMap(SingleThread state) throws IllegalAccessException {
+    state.cleanUp.processThreadLocalMap(state.preventor, state.thread, state.threadLocalMap);
+  }
+
+  @Benchmark
+  public void scanThreads(ManyThreads state) {
+    state.preventor.runCleanUps();
+  }
+
+  /** A single thread with many {@link ThreadLocal}s */
+  @State(Scope.Benchmark)
+  public static class SingleThread {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int threadLocals;
+
+    /** Keep the {@link ThreadLocal}s strongly reachable so that entries are not stale */
+    private final List<ThreadLocal<Object>> keys = new ArrayList<ThreadLocal<Object>>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Thread thread;
+
+    private Object threadLocalMap;
+
+    private ClassLoaderLeakPreventor preventor;
+
+    private BenchmarkThreadLocalCleanUp cleanUp;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+      preventor = BenchmarkSupport.newLeakPreventor(BenchmarkSupport.newWebAppClassLoader());
+      cleanUp = new BenchmarkThreadLocalCleanUp(preventor);
+
+      for(int i = 0; i < threadLocals; i++) {
+        keys.add(new ThreadLocal<Object>());
+      }
+      thread = startThread("benchmark-thread-locals", keys, done);
+      threadLocalMap = preventor.findFieldAccessor(Thread.class, "threadLocals").get(thread);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+      done.countDown();
+      thread.join();
+    }
+  }
+
+  /** Many threads with a few {@link ThreadLocal}s each */
+  @State(Scope.Benchmark)
+  public static class ManyThreads {
+
+    @Param({"10", "100", "1000"})
+    public int threads;
+
+    @Param({"16"})
+    public int threadLocalsPerThread;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    /** Keep the {@link ThreadLocal}s strongly reachable so that entries are not stale */
+    private final List<ThreadLocal<Object>> keys = new ArrayList<ThreadLocal<Object>>();
+
+    private final List<Thread> startedThreads = new ArrayList<Thread>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private ClassLoaderLeakPreventor preventor;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+      final ThreadLocalCleanUp cleanUp = new ThreadLocalCleanUp();
+      cleanUp.setParallelism(parallelism);
+      // Run only ThreadLocalCleanUp, so that the other cleanups do not affect the results
+      preventor = new ClassLoaderLeakPreventor(ThreadLocalCleanUpBenchmark.class.getClassLoader(), 
+          BenchmarkSupport.newWebAppClassLoader(), BenchmarkSupport.NO_OP_LOGGER, 
+          Collections.<PreClassLoaderInitiator>emptyList(), 
+          Collections.<ClassLoaderPreMortemCleanUp>singletonList(cleanUp));
+
+      for(int i = 0; i < threadLocalsPerThread; i++) {
+        keys.add(new ThreadLocal<Object>());
+      }
+      for(int i = 0; i < threads; i++) {
+        startedThreads.add(startThread("benchmark-thread-locals-" + i, keys, done));
+      }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+      done.countDown();
+      for(Thread thread : startedThreads) {
+        thread.join();
+      }
+    }
+  }
+
+  /** Start a thread setting a value of every {@link ThreadLocal}, that stays alive until {@code done} */
+  private static Thread startThread(String name, final List<ThreadLocal<Object>> keys, final CountDownLatch done) 
+      throws InterruptedException {
+    final CountDownLatch populated = new CountDownLatch(1);
+    final Thread thread = new Thread(name) {
+      @Override
+      public void run() {
+        for(int i = 0; i < keys.size(); i++) {
+          keys.get(i).set((i % 2 == 0) ? Integer.valueOf(i) : new StringBuilder("value " + i));
+        }
+        populated.countDown();
+        try {
+          done.await();
+        }
+        catch (InterruptedException e) {
+          // Exit
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    populated.await();
+    return thread;
+  }
+
+  /** Subclass giving access to {@link #processThreadLocalMap} */
+  private static class BenchmarkThreadLocalCleanUp extends ThreadLocalCleanUp {
+
+    BenchmarkThreadLocalCleanUp(ClassLoaderLeakPreventor preventor) {
+      java_lang_ThreadLocal$ThreadLocalMap_table = preventor.findFieldAccessorOfClass("java.lang.ThreadLocal$ThreadLocalMap", "table");
+    }
+
+    @Override
+    protected void processThreadLocalMap(ClassLoaderLeakPreventor preventor, Thread thread, Object threadLocalMap)
+        throws IllegalAccessException {
+      super.processThreadLocalMap(preventor, thread, threadLocalMap);
+    }
+  }
+}
@@ -0,0 +1,399 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Watchdog that tells whether protected classloaders are actually garbage collected after
+ * {@link ClassLoaderLeakPreventor#runCleanUps()}, so that leaks are noticed before the Metaspace / PermGen fills up.
+ *
+ * A {@link PhantomReference} to each watched classloader is registered on a {@link ReferenceQueue} that is polled by
+ * a single shared daemon thread. The watchdog never forces garbage collection. Instead it counts the full (i.e. old
+ * generation or concurrent cycle) collections reported by the {@link GarbageCollectorMXBean}s, and if the classloader
+ * has survived {@link #setMaxFullGcs(int) N full collections} or {@link #setMaxAgeMs(long) T milliseconds} it is
+ * reported as leaked. The number of classes unloaded JVM wide, as per
+ * {@link java.lang.management.ClassLoadingMXBean#getUnloadedClassCount()}, is included as an additional signal.
+ *
+ * Events are logged on a single line with {@code key=value} pairs, starting with {@code event=}, so that they can
+ * easily be picked up by log monitoring, and counted; see {@link #getLeakedCount()} etc.
+ *
+ * The watchdog does not reference the classloaders strongly, and nothing is done between garbage collections, except
+ * for waking up when {@link #setMaxAgeMs(long) the max age} of a classloader has passed.
+ * Optionally, a {@link ReferencePathFinder} can be run in the background for classloaders reported as leaked, to log
+ * what is keeping them from being collected; see {@link #setFindPathsWhenLeaked(boolean)}.
+ * Note that if this library is loaded by the watched classloader, as when it is included in a web application, the
+ * watchdog itself would keep the classloader from being garbage collected, so such classloaders will not be watched.
+ * @author Mattias Jiderhamn
+ */
+public class ClassLoaderCollectionWatchdog {
+
+  /** Default no of full garbage collections a classloader may survive before being reported as leaked */
+  public static final int MAX_FULL_GCS_DEFAULT = 3;
+
+  /** Default no of milliseconds after which a classloader is reported as leaked, if not collected */
+  public static final long MAX_AGE_MS_DEFAULT = 30 * 60 * 1000; // 30 minutes
+
+  /** Type of {@link Notification} sent by {@link GarbageCollectorMXBean}s, as per com.sun.management.GarbageCollectionNotificationInfo */
+  private static final String GARBAGE_COLLECTION_NOTIFICATION = "com.sun.management.gc.notification";
+
+  /** The JVM wide instance */
+  private static final ClassLoaderCollectionWatchdog DEFAULT = new ClassLoaderCollectionWatchdog(new StdLogger());
+
+  private final Logger logger;
+
+  private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+  /** Classloaders currently watched, i.e. neither collected nor reported as leaked */
+  private final Set<Watch> pending = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+
+  /** Classloaders reported as leaked, but not yet collected */
+  private final Set<Watch> leaked = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+
+  private final AtomicLong fullGcCount = new AtomicLong();
+
+  private final AtomicLong watchedCount = new AtomicLong();
+
+  private final AtomicLong collectedCount = new AtomicLong();
+
+  private final AtomicLong leakedCount = new AtomicLong();
+
+  private final AtomicLong collectedAfterLeakedCount = new AtomicLong();
+
+  private volatile int maxFullGcs = MAX_FULL_GCS_DEFAULT;
+
+  private volatile long maxAgeMs = MAX_AGE_MS_DEFAULT;
+
+  private volatile boolean findPathsWhenLeaked = false;
+
+  private final AtomicBoolean started = new AtomicBoolean();
+
+  private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+  private volatile Thread thread;
+
+  private final NotificationListener gcListener = new NotificationListener() {
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if(GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()) &&
+          notification.getUserData() instanceof CompositeData) {
+        final CompositeData info = (CompositeData) notification.getUserData();
+        if(isFullCollection((String) info.get("gcName"), (String) info.get("gcAction"))) {
+          fullGcCount.incrementAndGet();
+          checkPending();
+        }
+      }
+    }
+  };
+
+  public ClassLoaderCollectionWatchdog(Logger logger) {
+    this.logger = logger;
+  }
+
+  /** Get the JVM wide instance */
+  public static ClassLoaderCollectionWatchdog getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Watch the protected classloader of the {@link ClassLoaderLeakPreventor}, which should have been cleaned up using
+   * {@link ClassLoaderLeakPreventor#runCleanUps()}. The {@link ClassLoaderLeakPreventor} itself is not retained.
+   * @param name Name to identify the classloader in the log, such as the context path of a web application, or
+   *   {@code null} to use the class name and identity hash code of the classloader
+   * @return {@code true} if the classloader is being watched, {@code false} if it cannot be
+   */
+  public boolean watch(ClassLoaderLeakPreventor preventor, String name) {
+    if(preventor.isLoadedByClassLoader(ClassLoaderCollectionWatchdog.class)) {
+      preventor.info(ClassLoaderCollectionWatchdog.class.getSimpleName() + " is loaded by the protected classloader, " +
+          "and would keep it from being garbage collected. Not watching " + preventor.getClassLoader());
+      return false;
+    }
+
+    watch(preventor.getClassLoader(), name);
+    return true;
+  }
+
+  /**
+   * Watch the classloader, which is expected to be garbage collected.
+   * @param name Name to identify the classloader in the log, or {@code null} to use the class name and identity hash
+   *   code of the classloader
+   */
+  public void watch(ClassLoader classLoader, String name) {
+    startIfNeeded();
+
+    final Watch watch = new Watch(classLoader, queue,
+        (name != null) ? name : classLoader.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(classLoader)),
+        fullGcCount.get(), getUnloadedClassCount(), findPathsWhenLeaked);
+    pending.add(watch);
+    watchedCount.incrementAndGet();
+    logger.info(event("watching", watch));
+
+    final Thread thread = this.thread;
+    if(thread != null && maxAgeMs > 0)
+      thread.interrupt(); // Recalculate when to wake up
+  }
+
+  /** Register {@link GarbageCollectorMXBean} listener and start reference queue thread, unless already done */
+  private void startIfNeeded() {
+    if(! started.compareAndSet(false, true))
+      return;
+
+    synchronized (emitters) {
+      for(GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+        if(gcBean instanceof NotificationEmitter) {
+          ((NotificationEmitter) gcBean).addNotificationListener(gcListener, null, null);
+          emitters.add((NotificationEmitter) gcBean);
+        }
+      }
+      if(emitters.isEmpty())
+        logger.warn(ClassLoaderCollectionWatchdog.class.getSimpleName() + ": garbage collection notifications not " +
+            "supported by the JVM; classloaders will only be reported as leaked after max age");
+    }
+
+    // Use doPrivileged() so that the thread does not inherit the ProtectionDomains of the caller
+    AccessController.doPrivileged(new PrivilegedAction<Object>() {
+      @Override
+      public Object run() {
+        final Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            pollQueue();
+          }
+        }, ClassLoaderCollectionWatchdog.class.getSimpleName());
+        thread.setContextClassLoader(ClassLoaderCollectionWatchdog.class.getClassLoader());
+        thread.setDaemon(true);
+        ClassLoaderCollectionWatchdog.this.thread = thread;
+        thread.start();
+        return null;
+      }
+    });
+  }
+
+  /** Stop watching; remove {@link GarbageCollectorMXBean} listeners and stop the reference queue thread */
+  public void stop() {
+    synchronized (emitters) {
+      for(NotificationEmitter emitter : emitters) {
+        try {
+          emitter.removeNotificationListener(gcListener);
+        }
+        catch (ListenerNotFoundException e) {
+          // Should not happen
+        }
+      }
+      emitters.clear();
+      started.set(false);
+    }
+
+    final Thread thread = this.thread;
+    this.thread = null;
+    if(thread != null)
+      thread.interrupt();
+  }
+
+  /** Loop of the reference queue thread, that sleeps until a classloader is collected or the max age has passed */
+  private void pollQueue() {
+    while(thread == Thread.currentThread()) {
+      try {
+        final Reference<? extends ClassLoader> reference = queue.remove(getMsUntilNextMaxAge());
+        if(reference != null)
+          collected((Watch) reference);
+        else
+          checkPending();
+      }
+      catch (InterruptedException e) {
+        // Stopped, or new classloader watched
+      }
+      catch (RuntimeException e) {
+        logger.error(e);
+      }
+    }
+  }
+
+  /** Get no of milliseconds until the max age of any pending classloader passes, or 0 for no limit */
+  private long getMsUntilNextMaxAge() {
+    final long maxAgeMs = this.maxAgeMs;
+    if(maxAgeMs <= 0)
+      return 0;
+
+    long next = Long.MAX_VALUE;
+    for(Watch watch : pending) {
+      next = Math.min(next, watch.watchedAtMs + maxAgeMs);
+    }
+    return (next == Long.MAX_VALUE) ? 0 : Math.max(1, next - System.currentTimeMillis());
+  }
+
+  private void collected(Watch watch) {
+    watch.clear();
+    if(pending.remove(watch)) {
+      collectedCount.incrementAndGet();
+      logger.info(event("collected", watch));
+    }
+    else if(leaked.remove(watch)) {
+      collectedAfterLeakedCount.incrementAndGet();
+      logger.info(event("collectedAfterLeaked", watch));
+    }
+  }
+
+  /** Report pending classloaders that have survived too many full garbage collections, or for too long, as leaked */
+  private void checkPending() {
+    final long fullGcs = fullGcCount.get();
+    final long now = System.currentTimeMillis();
+    final long maxAgeMs = this.maxAgeMs;
+    for(Watch watch : pending) {
+      // The current GC is not counted, since the classloader may have been collected but not yet enqueued
+      final boolean tooManyGcs = maxFullGcs > 0 && fullGcs - 1 - watch.fullGcCountWhenWatched >= maxFullGcs;
+      final boolean tooOld = maxAgeMs > 0 && now - watch.watchedAtMs >= maxAgeMs;
+      if((tooManyGcs || tooOld) && pending.remove(watch)) {
+        leaked.add(watch);
+        leakedCount.incrementAndGet();
+        final long unloadedClasses = getUnloadedClassCount() - watch.unloadedClassCountWhenWatched;
+        logger.warn(event("leaked", watch) + " reason=" + (tooManyGcs ? "maxFullGcs" : "maxAge") +
+            ((unloadedClasses == 0) ? " hint=noClassesUnloadedInJvm" : ""));
+        findPaths(watch);
+      }
+    }
+  }
+
+  /** Find and log reference paths to the leaked classloader in the background, if enabled */
+  private void findPaths(Watch watch) {
+    final ClassLoader classLoader = (watch.weakReference != null) ? watch.weakReference.get() : null;
+    if(classLoader != null) {
+      final ReferencePathFinder finder = new ReferencePathFinder(classLoader, logger);
+      finder.setName(watch.name);
+      finder.findPathsInBackground(); // Result is logged
+    }
+  }
+
+  /** Create log message for event */
+  private String event(String event, Watch watch) {
+    final long fullGcs = Math.max(0, fullGcCount.get() - watch.fullGcCountWhenWatched);
+    return "event=" + event + " classLoader=" + watch.name +
+        " ageMs=" + (System.currentTimeMillis() - watch.watchedAtMs) + " fullGcs=" + fullGcs +
+        " unloadedClasses=" + (getUnloadedClassCount() - watch.unloadedClassCountWhenWatched);
+  }
+
+  /**
+   * Does the garbage collection, as per com.sun.management.GarbageCollectionNotificationInfo, collect the old
+   * generation, so that classes may be unloaded?
+   */
+  protected static boolean isFullCollection(String gcName, String gcAction) {
+    return (gcAction != null && gcAction.contains("major")) || // "end of major GC"
+        "ZGC Cycles".equals(gcName) || "ZGC Major Cycles".equals(gcName) || // Not generational ZGC "Minor Cycles"
+        "Shenandoah Cycles".equals(gcName) || "G1 Concurrent GC".equals(gcName);
+  }
+
+  private static long getUnloadedClassCount() {
+    return ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount();
+  }
+
+  /** Set no of full garbage collections a classloader may survive before being reported as leaked; 0 means no limit */
+  public void setMaxFullGcs(int maxFullGcs) {
+    if(maxFullGcs < 0)
+      throw new IllegalArgumentException("maxFullGcs must not be negative");
+    this.maxFullGcs = maxFullGcs;
+  }
+
+  public int getMaxFullGcs() {
+    return maxFullGcs;
+  }
+
+  /** Set no of milliseconds after which a classloader is reported as leaked, if not collected; 0 means no limit */
+  public void setMaxAgeMs(long maxAgeMs) {
+    if(maxAgeMs < 0)
+      throw new IllegalArgumentException("maxAgeMs must not be negative");
+    this.maxAgeMs = maxAgeMs;
+
+    final Thread thread = this.thread;
+    if(thread != null)
+      thread.interrupt(); // Recalculate when to wake up
+  }
+
+  public long getMaxAgeMs() {
+    return maxAgeMs;
+  }
+
+  /**
+   * Should a {@link ReferencePathFinder} be run in the background for classloaders reported as leaked? Applies to
+   * classloaders watched after the setting is changed. A {@link WeakReference} to the classloader is then kept.
+   */
+  public void setFindPathsWhenLeaked(boolean findPathsWhenLeaked) {
+    this.findPathsWhenLeaked = findPathsWhenLeaked;
+  }
+
+  public boolean isFindPathsWhenLeaked() {
+    return findPathsWhenLeaked;
+  }
+
+  /** Get no of full garbage collections since watching started */
+  public long getFullGcCount() {
+    return fullGcCount.get();
+  }
+
+  /** Get total no of classloaders watched */
+  public long getWatchedCount() {
+    return watchedCount.get();
+  }
+
+  /** Get no of classloaders currently watched, that have neither been collected nor reported as leaked */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /** Get no of classloaders collected before being reported as leaked */
+  public long getCollectedCount() {
+    return collectedCount.get();
+  }
+
+  /** Get no of classloaders reported as leaked */
+  public long getLeakedCount() {
+    return leakedCount.get();
+  }
+
+  /** Get no of classloaders reported as leaked, that were later collected after all */
+  public long getCollectedAfterLeakedCount() {
+    return collectedAfterLeakedCount.get();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** {@link PhantomReference} to a watched classloader, holding what is needed to report on it */
+  private static class Watch extends PhantomReference<ClassLoader> {
+
+    private final String name;
+
+    private final long watchedAtMs = System.currentTimeMillis();
+
+    private final long fullGcCountWhenWatched;
+
+    private final long unloadedClassCountWhenWatched;
+
+    /** Reference to use for finding reference paths if leaked, or {@code null} */
+    private final WeakReference<ClassLoader> weakReference;
+
+    Watch(ClassLoader classLoader, ReferenceQueue<ClassLoader> queue, String name, long fullGcCountWhenWatched,
+          long unloadedClassCountWhenWatched, boolean findPaths) {
+      super(classLoader, queue);
+      this.name = name;
+      this.fullGcCountWhenWatched = fullGcCountWhenWatched;
+      this.unloadedClassCountWhenWatched = unloadedClassCountWhenWatched;
+      this.weakReference = findPaths ? new WeakReference<ClassLoader>(classLoader) : null;
+    }
+  }
+}
@@ -1,16 +1,17 @@
 package se.jiderhamn.classloader.leak.prevention;
 
-import java.lang.management.ManagementFactory;
-import java.lang.management.RuntimeMXBean;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.security.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationTracker;
 
 /**
  * This class helps prevent classloader leaks.
@@ -21,6 +22,9 @@ public class ClassLoaderLeakPreventor {
 
   /** Default no of milliseconds to wait for threads to finish execution */
   public static final int THREAD_WAIT_MS_DEFAULT = 5 * 1000; // 5 seconds
+
+  /** Default no of milliseconds to wait for garbage collection in {@link #awaitGc()} */
+  public static final long GC_TIMEOUT_MS_DEFAULT = 10 * 1000; // 10 seconds
   
   private static final ProtectionDomain[] NO_DOMAINS = new ProtectionDomain[0];
 
@@ -32,11 +36,11 @@ public class ClassLoaderLeakPreventor {
   /** {@link ClassLoader#isAncestorOf(ClassLoader)} of IBM JRE */
   private final Method java_lang_ClassLoader_isAncestorOf;
   
-  private final Field java_security_AccessControlContext$combiner;
+  private final FieldAccessor java_security_AccessControlContext$combiner;
   
-  private final Field java_security_AccessControlContext$parent;
+  private final FieldAccessor java_security_AccessControlContext$parent;
   
-  private final Field java_security_AccessControlContext$privilegedContext;
+  private final FieldAccessor java_security_AccessControlContext$privilegedContext;
 
   /** 
    * {@link ClassLoader} to be used when invoking the {@link PreClassLoaderInitiator}s.
@@ -57,9 +61,81 @@ public class ClassLoaderLeakPreventor {
   /** {@link DomainCombiner} that filters any {@link ProtectionDomain}s loaded by our classloader */
   private final DomainCombiner domainCombiner;
 
+  /** {@link CleanUpContext} of the currently executing {@link #runCleanUps()}, if any */
+  private volatile CleanUpContext cleanUpContext;
+
+  /** 
+   * Threads spawned by each {@link PreClassLoaderInitiator} that had {@link #domainCombiner} in their inherited 
+   * {@link AccessControlContext}, which has been detached. Weakly referenced, so that dead threads can be GC:ed.
+   */
+  private final Map<PreClassLoaderInitiator, List<WeakReference<Thread>>> initiatorThreads = 
+      new LinkedHashMap<PreClassLoaderInitiator, List<WeakReference<Thread>>>();
+
+  /** 
+   * Has {@link #domainCombiner} been handed out other than when invoking the {@link PreClassLoaderInitiator}s? 
+   * If so, we cannot know which threads may have inherited it, and need to look at all threads on cleanup.
+   */
+  private volatile boolean domainCombinerUntracked;
+
+  /** 
+   * Should the results of {@link #isClassLoaderOrChild(ClassLoader)} and {@link #isLoadedByClassLoader(Class)} be
+   * cached in {@link #classLoaderVerdicts} and {@link #classVerdicts} respectively?
+   */
+  private volatile boolean ancestryCacheEnabled = true;
+
+  /** Cache of whether {@link ClassLoader}s are {@link #classLoader} or a child thereof */
+  private final WeakIdentityCache<ClassLoader, Boolean> classLoaderVerdicts = new WeakIdentityCache<ClassLoader, Boolean>();
+
+  /** Cache of whether {@link Class}es are loaded by {@link #classLoader} or a child thereof */
+  private final WeakIdentityCache<Class<?>, Boolean> classVerdicts = new WeakIdentityCache<Class<?>, Boolean>();
+
+  /** Cache of whether {@link ProtectionDomain}s should be kept by {@link #domainCombiner} */
+  private final WeakIdentityCache<ProtectionDomain, Boolean> protectionDomainVerdicts = 
+      new WeakIdentityCache<ProtectionDomain, Boolean>();
+
+  /** No of lookups answered by {@link #classLoaderVerdicts} or {@link #classVerdicts} */
+  private final AtomicLong ancestryCacheHits = new AtomicLong();
+
+  /** No of lookups not answered by {@link #classLoaderVerdicts} or {@link #classVerdicts} */
+  private final AtomicLong ancestryCacheMisses = new AtomicLong();
+
+  /** How to make sure garbage collection is performed when needed by {@link ClassLoaderPreMortemCleanUp}s */
+  private volatile GcStrategy gcStrategy = GcStrategy.NON_FORCING;
+
+  /** Max no of milliseconds to wait for garbage collection in {@link #awaitGc()} */
+  private volatile long gcTimeoutMs = GC_TIMEOUT_MS_DEFAULT;
+
+  /** Max number of {@link IndependentCleanUp}s to run in parallel; 1 means sequential execution */
+  private volatile int cleanUpParallelism = 1;
+
+  /** Should {@link JvmGlobalInitiator}s be skipped if already run in this JVM, as per {@link JvmGlobalInitiatorRegistry}? */
+  private volatile boolean runJvmGlobalInitiatorsOnce = false;
+
+  /** Cache of reflection lookups, normally shared with other {@link ClassLoaderLeakPreventor}s */
+  private final ReflectionCache reflectionCache;
+
+  /** {@link LeakPreventionListener}s to be notified before and after each {@link PreClassLoaderInitiator} and {@link ClassLoaderPreMortemCleanUp} */
+  private final CopyOnWriteArrayList<LeakPreventionListener> listeners = new CopyOnWriteArrayList<LeakPreventionListener>();
+
+  /** 
+   * Total no of milliseconds {@link #runCleanUps()} may take before non-{@link CleanUpPriority#ESSENTIAL} cleanups are
+   * skipped; 0 means no limit
+   */
+  private volatile long cleanUpTimeBudgetMs = 0;
+
+  /** Map from {@link ClassLoaderPreMortemCleanUp} class name to {@link CleanUpPriority}, unless {@link CleanUpPriority#NORMAL} */
+  private final Map<String, CleanUpPriority> cleanUpPriorities = new ConcurrentHashMap<String, CleanUpPriority>();
+
   public ClassLoaderLeakPreventor(ClassLoader leakSafeClassLoader, ClassLoader classLoader, Logger logger,
                            Collection<PreClassLoaderInitiator> preClassLoaderInitiators,
                            Collection<ClassLoaderPreMortemCleanUp> cleanUps) {
+    this(leakSafeClassLoader, classLoader, logger, preClassLoaderInitiators, cleanUps, ReflectionCache.getDefault());
+  }
+
+  public ClassLoaderLeakPreventor(ClassLoader leakSafeClassLoader, ClassLoader classLoader, Logger logger,
+                           Collection<PreClassLoaderInitiator> preClassLoaderInitiators,
+                           Collection<ClassLoaderPreMortemCleanUp> cleanUps, ReflectionCache reflectionCache) {
+    this.reflectionCache = (reflectionCache != null) ? reflectionCache : new ReflectionCache();
     this.leakSafeClassLoader = leakSafeClassLoader;
     this.classLoader = classLoader;
     this.logger = logger;
@@ -76,13 +152,14 @@ public class ClassLoaderLeakPreventor {
       java_lang_ClassLoader_isAncestorOf = null;
     }
     NestedProtectionDomainCombinerException.class.getName(); // Should be loaded before switching to leak safe classloader
+    classLoaderVerdicts.put(classLoader, Boolean.TRUE); // Make sure cache classes are loaded before switching to leak safe classloader
     
     this.domainCombiner = createDomainCombiner();
 
     // Reflection inits
-    java_security_AccessControlContext$combiner = findField(AccessControlContext.class, "combiner");
-    java_security_AccessControlContext$parent = findField(AccessControlContext.class, "parent");
-    java_security_AccessControlContext$privilegedContext = findField(AccessControlContext.class, "privilegedContext");
+    java_security_AccessControlContext$combiner = findFieldAccessor(AccessControlContext.class, "combiner");
+    java_security_AccessControlContext$parent = findFieldAccessor(AccessControlContext.class, "parent");
+    java_security_AccessControlContext$privilegedContext = findFieldAccessor(AccessControlContext.class, "privilegedContext");
 
   }
   
@@ -90,16 +167,135 @@ public class ClassLoaderLeakPreventor {
   public void runPreClassLoaderInitiators() {
     info("Initializing by loading some known offenders with leak safe classloader"); 
     
-    doInLeakSafeClassLoader(new Runnable() {
+    runInLeakSafeClassLoader(new Runnable() {
       @Override
       public void run() {
-        for(PreClassLoaderInitiator preClassLoaderInitiator : preClassLoaderInitiators) {
-          preClassLoaderInitiator.doOutsideClassLoader(ClassLoaderLeakPreventor.this);
+        final FieldAccessor inheritedAccessControlContext = findFieldAccessor(Thread.class, "inheritedAccessControlContext");
+        for(final PreClassLoaderInitiator preClassLoaderInitiator : preClassLoaderInitiators) {
+          if(runJvmGlobalInitiatorsOnce && preClassLoaderInitiator instanceof JvmGlobalInitiator) {
+            final boolean invoked = JvmGlobalInitiatorRegistry.getDefault().runOnce(
+                (JvmGlobalInitiator) preClassLoaderInitiator, classLoader, new JvmGlobalInitiatorRegistry.Invocation() {
+                  @Override
+                  public boolean run() {
+                    return runPreClassLoaderInitiator(preClassLoaderInitiator, inheritedAccessControlContext);
+                  }
+                });
+            if(! invoked) {
+              debug("Skipping " + preClassLoaderInitiator.getClass().getName() + ", since already run in this JVM: " + 
+                  JvmGlobalInitiatorRegistry.getDefault().getRecord(preClassLoaderInitiator.getClass()));
+              notifyAfterPreClassLoaderInitiator(preClassLoaderInitiator, ExecutionResult.skipped(preClassLoaderInitiator));
+            }
+          }
+          else
+            runPreClassLoaderInitiator(preClassLoaderInitiator, inheritedAccessControlContext);
         }
       }
     });
   }
   
+  /** 
+   * Invoke {@link PreClassLoaderInitiator}, and detach {@link #domainCombiner} from any threads it spawns, if 
+   * {@code inheritedAccessControlContext} is available. Returns {@code false} if a {@link JvmGlobalInitiator} reported
+   * that it did not succeed.
+   */
+  private boolean runPreClassLoaderInitiator(PreClassLoaderInitiator preClassLoaderInitiator, 
+                                             FieldAccessor inheritedAccessControlContext) {
+    final Set<Thread> threadsBefore = (inheritedAccessControlContext != null) ? 
+        newIdentitySet(getAllThreads()) : null;
+    
+    final boolean succeeded = invokePreClassLoaderInitiator(preClassLoaderInitiator);
+    
+    if(threadsBefore != null)
+      detachDomainCombiner(preClassLoaderInitiator, threadsBefore, inheritedAccessControlContext);
+    return succeeded;
+  }
+  
+  /** 
+   * Detach {@link #domainCombiner} from the {@link AccessControlContext} of threads spawned by the 
+   * {@link PreClassLoaderInitiator}, so that they will not be slowed down by it for the rest of their lives, and 
+   * record them so that only they need to be looked at in {@link #runCleanUps()}. Since a spawned thread may itself 
+   * spawn threads inheriting the combiner before it is detached, new threads are looked for until there are no more 
+   * having the combiner.
+   */
+  private void detachDomainCombiner(PreClassLoaderInitiator preClassLoaderInitiator, Set<Thread> threadsBefore, 
+                                    FieldAccessor inheritedAccessControlContext) {
+    if(java_security_AccessControlContext$combiner == null) { // We cannot tell which threads have the combiner
+      domainCombinerUntracked = true;
+      return;
+    }
+    
+    final Set<Thread> seen = newIdentitySet(threadsBefore);
+    boolean foundCombiner;
+    do {
+      foundCombiner = false;
+      for(Thread thread : getAllThreads()) {
+        if(seen.add(thread)) { // New thread
+          final AccessControlContext accessControlContext = 
+              (AccessControlContext) getFieldValue(inheritedAccessControlContext, thread);
+          if(accessControlContext == null) { // Unable to tell; record thread so that it is retried in runCleanUps()
+            foundCombiner = true;
+            recordInitiatorThread(preClassLoaderInitiator, thread);
+          }
+          // Spawned inside leak safe classloader. Recorded even if unsetting failed, so that it is retried on cleanup. 
+          else if(removeDomainCombiner("thread " + thread, accessControlContext, false)) {
+            info("Thread " + thread + " was spawned by " + preClassLoaderInitiator.getClass().getName() + 
+                "; custom combiner detached");
+            foundCombiner = true;
+            recordInitiatorThread(preClassLoaderInitiator, thread);
+          }
+        }
+      }
+    } while(foundCombiner); // Threads spawned by the ones just found may have inherited the combiner
+  }
+  
+  /** Record thread spawned by {@link PreClassLoaderInitiator} in {@link #initiatorThreads} */
+  private void recordInitiatorThread(PreClassLoaderInitiator preClassLoaderInitiator, Thread thread) {
+    synchronized (initiatorThreads) {
+      List<WeakReference<Thread>> threads = initiatorThreads.get(preClassLoaderInitiator);
+      if(threads == null) {
+        threads = new ArrayList<WeakReference<Thread>>();
+        initiatorThreads.put(preClassLoaderInitiator, threads);
+      }
+      threads.add(new WeakReference<Thread>(thread));
+    }
+  }
+  
+  /** 
+   * Get the threads spawned by each {@link PreClassLoaderInitiator} in {@link #runPreClassLoaderInitiators()} that 
+   * are still alive, and had the custom {@link DomainCombiner} detached. 
+   */
+  public Map<PreClassLoaderInitiator, List<Thread>> getThreadsSpawnedByInitiators() {
+    final Map<PreClassLoaderInitiator, List<Thread>> output = new LinkedHashMap<PreClassLoaderInitiator, List<Thread>>();
+    synchronized (initiatorThreads) {
+      for(Map.Entry<PreClassLoaderInitiator, List<WeakReference<Thread>>> entry : initiatorThreads.entrySet()) {
+        final List<Thread> threads = new ArrayList<Thread>();
+        for(WeakReference<Thread> reference : entry.getValue()) {
+          final Thread thread = reference.get();
+          if(thread != null && thread.isAlive())
+            threads.add(thread);
+        }
+        if(! threads.isEmpty())
+          output.put(entry.getKey(), threads);
+      }
+    }
+    return output;
+  }
+  
+  /** Get all the threads in {@link #getThreadsSpawnedByInitiators()} */
+  private Collection<Thread> getInitiatorThreads() {
+    final List<Thread> output = new ArrayList<Thread>();
+    for(List<Thread> threads : getThreadsSpawnedByInitiators().values()) {
+      output.addAll(threads);
+    }
+    return output;
+  }
+  
+  private static <T> Set<T> newIdentitySet(Collection<T> elements) {
+    final Set<T> output = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>(elements.size() * 2));
+    output.addAll(elements);
+    return output;
+  }
+  
   /**
    * Perform action in the provided ClassLoader (normally system ClassLoader, that may retain references to the 
    * {@link Thread#contextClassLoader}. 
@@ -109,6 +305,15 @@ public class ClassLoaderLeakPreventor {
    * classloader, which will be taken care of in {@link #runCleanUps()}.
    */
    protected void doInLeakSafeClassLoader(final Runnable runnable) {
+     domainCombinerUntracked = true; // Threads spawned here will not be known
+     runInLeakSafeClassLoader(runnable);
+   }
+   
+   /** 
+    * Implementation of {@link #doInLeakSafeClassLoader(Runnable)}, for use when any threads spawned by the 
+    * {@link Runnable} are taken care of.
+    */
+   private void runInLeakSafeClassLoader(final Runnable runnable) {
      final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
      
      try {
@@ -123,7 +328,7 @@ public class ClassLoaderLeakPreventor {
            runnable.run();
            return null; // Nothing to return
          }
-       }, createAccessControlContext());
+       }, createAccessControlContextInternal());
      }
      finally {
        // Reset original classloader
@@ -137,6 +342,11 @@ public class ClassLoaderLeakPreventor {
     * running code, since that will include the web app classloader.
     */
    public AccessControlContext createAccessControlContext() {
+     domainCombinerUntracked = true; // We cannot know what the context will be used for
+     return createAccessControlContextInternal();
+   }
+
+   private AccessControlContext createAccessControlContextInternal() {
      try { // Try the normal way
        return new AccessControlContext(NO_DOMAINS_ACCESS_CONTROL_CONTEXT, domainCombiner);
      }
@@ -154,7 +364,12 @@ public class ClassLoaderLeakPreventor {
      }
    } 
    
-   /** {@link DomainCombiner} that filters any {@link ProtectionDomain}s loaded by our classloader */
+   /** 
+    * {@link DomainCombiner} that filters any {@link ProtectionDomain}s loaded by our classloader. Since this will be
+    * invoked for every {@link AccessController#getContext()} and {@link AccessController#doPrivileged} for the rest of
+    * the life of threads spawned in {@link #doInLeakSafeClassLoader(Runnable)}, the common case - where every
+    * {@link ProtectionDomain} has been seen before and nothing needs to be filtered - does not allocate anything.
+    */
    private DomainCombiner createDomainCombiner() {
      return new DomainCombiner() {
        
@@ -166,26 +381,60 @@ public class ClassLoaderLeakPreventor {
          if(assignedDomains != null && assignedDomains.length > 0) {
            logger.error("Unexpected assignedDomains - please report to developer of this library!");
          }
+         
+         if(currentDomains == null)
+           return null;
  
+         // Keep all ProtectionDomain not involving the web app classloader 
+         ProtectionDomain[] output = null; // Only created if anything needs to be filtered
+         int outputSize = 0;
+         for(int i = 0; i < currentDomains.length; i++) {
+           final boolean keep = isKept(currentDomains[i]);
+           if(output != null) {
+             if(keep)
+               output[outputSize++] = currentDomains[i];
+           }
+           else if(! keep) { // First ProtectionDomain to filter
+             output = new ProtectionDomain[currentDomains.length - 1];
+             System.arraycopy(currentDomains, 0, output, 0, i);
+             outputSize = i;
+           }
+         }
+         
+         if(output == null) // Nothing filtered
+           return currentDomains;
+         return (outputSize == output.length) ? output : Arrays.copyOf(output, outputSize);
+       }
+       
+       /** Should the {@link ProtectionDomain} be kept, i.e. not involve the web app classloader? */
+       private boolean isKept(ProtectionDomain protectionDomain) {
+         if(protectionDomain == null)
+           return true;
+         
+         final boolean cacheEnabled = ancestryCacheEnabled;
+         if(cacheEnabled) {
+           final Boolean cached = protectionDomainVerdicts.get(protectionDomain);
+           if(cached != null)
+             return cached;
+         }
+
          if(isExecuting.get() == Boolean.TRUE)
            throw new NestedProtectionDomainCombinerException();
            
+         final Boolean verdict;
          try {
            isExecuting.set(Boolean.TRUE); // Throw NestedProtectionDomainCombinerException on nested calls
-
-           // Keep all ProtectionDomain not involving the web app classloader 
-           final List<ProtectionDomain> output = new ArrayList<ProtectionDomain>();
-           for(ProtectionDomain protectionDomain : currentDomains) {
-             if(protectionDomain.getClassLoader() == null ||
-                 ! isClassLoaderOrChild(protectionDomain.getClassLoader())) {
-               output.add(protectionDomain);
-             }
-           }
-           return output.toArray(new ProtectionDomain[output.size()]);
+           verdict = getClassLoaderVerdict(protectionDomain.getClassLoader());
          }
          finally {
            isExecuting.remove();
          }
+
+         if(verdict == null) // Could not be determined; keep but do not cache
+           return true;
+         if(cacheEnabled)
+           protectionDomainVerdicts.put(protectionDomain, ! verdict);
+         return ! verdict;
        }
      };
    }  
@@ -204,9 +453,20 @@ public class ClassLoaderLeakPreventor {
    * and any parents or privilegedContext thereof.
    */
   public void removeDomainCombiner(String owner, AccessControlContext accessControlContext) {
+    removeDomainCombiner(owner, accessControlContext, true);
+  }
+  
+  /** 
+   * Recursively unset our custom {@link DomainCombiner} from the {@link AccessControlContext} and any parents or 
+   * privilegedContext thereof, optionally logging a warning. Returns {@code true} if the combiner was found.
+   */
+  private boolean removeDomainCombiner(String owner, AccessControlContext accessControlContext, boolean warn) {
+    boolean found = false;
     if(accessControlContext != null && java_security_AccessControlContext$combiner != null) {
       if(getFieldValue(java_security_AccessControlContext$combiner, accessControlContext) == this.domainCombiner) {
-        warn(AccessControlContext.class.getSimpleName() + " of " + owner + " used custom combiner - unsetting");
+        found = true;
+        if(warn)
+          warn(AccessControlContext.class.getSimpleName() + " of " + owner + " used custom combiner - unsetting");
         try {
           java_security_AccessControlContext$combiner.set(accessControlContext, null);
         }
@@ -217,37 +477,588 @@ public class ClassLoaderLeakPreventor {
       
       // Recurse
       if(java_security_AccessControlContext$parent != null) {
-        removeDomainCombiner(owner, (AccessControlContext) getFieldValue(java_security_AccessControlContext$parent, accessControlContext));
+        found |= removeDomainCombiner(owner, 
+            (AccessControlContext) getFieldValue(java_security_AccessControlContext$parent, accessControlContext), warn);
       }
       if(java_security_AccessControlContext$privilegedContext != null) {
-        removeDomainCombiner(owner, (AccessControlContext) getFieldValue(java_security_AccessControlContext$privilegedContext, accessControlContext));
+        found |= removeDomainCombiner(owner, 
+            (AccessControlContext) getFieldValue(java_security_AccessControlContext$privilegedContext, accessControlContext), warn);
       }
     }
+    return found;
   }
   
   
-  /** Invoke all the registered {@link ClassLoaderPreMortemCleanUp}s */
+  /** 
+   * Invoke all the registered {@link ClassLoaderPreMortemCleanUp}s, except any skipped due to the 
+   * {@link #setCleanUpTimeBudgetMs(long) time budget} 
+   */
   public void runCleanUps() {
+    try {
+      if(isJvmShuttingDown()) {
+        info("JVM is shutting down - skip cleanup");
+        // Don't do anything more
+      }
+      else {
+        runCleanUps(cleanUps, createCleanUpBudget(cleanUps), null, null);
+      }
+    }
+    finally {
+      stopMBeanTracking();
+    }
+  }
+  
+  /** 
+   * Make sure any {@link MBeanRegistrationTracker} listener is unregistered, even if 
+   * {@link se.jiderhamn.classloader.leak.prevention.cleanup.MBeanCleanUp} was skipped or removed, since it references
+   * this preventor and thereby the protected classloader.
+   */
+  private void stopMBeanTracking() {
+    if(MBeanRegistrationTracker.stopTracking(this) != null)
+      debug("MBean registrations were still tracked after cleanup; tracking stopped");
+  }
+  
+  /**
+   * Invoke the registered {@link ClassLoaderPreMortemCleanUp}s in two phases. The {@link CleanUpPhase#SYNCHRONOUS}
+   * phase, where the cleanups are run in order, except for the waiting of the {@link DeferrableCleanUp}s, is run
+   * by the calling thread before this method returns. The {@link CleanUpPhase#DEFERRED} phase, where the 
+   * {@link DeferrableCleanUp#cleanUpWithoutWaiting waiting parts} are run in the same order, is run by a new daemon 
+   * thread. Cleanups that {@link MustBeAfter} a cleanup whose waiting was deferred - directly or transitively - are 
+   * deferred as a whole, and run after that waiting in the {@link CleanUpPhase#DEFERRED} phase. That way, for example
+   * waiting for threads to finish will not block the caller, such as the deployer thread of an application server.
+   * 
+   * Note that the {@link CleanUpPhase#DEFERRED} phase may run after the container has stopped the protected 
+   * classloader. Threads that are stopped by then may run code of the application, such as {@code finally} blocks and
+   * uncaught exception handlers, that fails to load classes. Use {@link #runCleanUps()} if that is a problem.
+   * 
+   * The {@link #setCleanUpTimeBudgetMs(long) time budget}, if any, only applies to the synchronous phase. 
+   * {@link LeakPreventionListener}s are notified, and an {@link ExecutionResult} is reported, for each phase of a 
+   * {@link DeferrableCleanUp} separately.
+   * Failures are logged and reported in the {@link CleanUpPhaseResult}, rather than thrown.
+   * @param callback Callback to be notified when each phase has finished, or {@code null}. The callback for the
+   *   {@link CleanUpPhase#DEFERRED} phase will be invoked by the background thread.
+   * @return {@link Future} that completes when the {@link CleanUpPhase#DEFERRED} phase has finished
+   */
+  public Future<CleanUpPhaseResult> runCleanUpsAsync(final CleanUpCallback callback) {
     if(isJvmShuttingDown()) {
       info("JVM is shutting down - skip cleanup");
-      // Don't do anything more
+      stopMBeanTracking();
+      final FutureTask<CleanUpPhaseResult> skipped = new FutureTask<CleanUpPhaseResult>(new Callable<CleanUpPhaseResult>() {
+        @Override
+        public CleanUpPhaseResult call() {
+          return new CleanUpPhaseResult(CleanUpPhase.DEFERRED, Collections.<ExecutionResult>emptyList(), 0, null);
+        }
+      });
+      skipped.run();
+      return skipped;
+    }
+    
+    // Waiting parts of the DeferrableCleanUps, in the order the cleanups were run 
+    final Map<ClassLoaderPreMortemCleanUp, Runnable> waits = 
+        Collections.synchronizedMap(new LinkedHashMap<ClassLoaderPreMortemCleanUp, Runnable>());
+    runCleanUpPhase(CleanUpPhase.SYNCHRONOUS, waits, callback);
+    
+    final FutureTask<CleanUpPhaseResult> future = new FutureTask<CleanUpPhaseResult>(new Callable<CleanUpPhaseResult>() {
+      @Override
+      public CleanUpPhaseResult call() {
+        try {
+          return runCleanUpPhase(CleanUpPhase.DEFERRED, waits, callback);
+        }
+        finally {
+          stopMBeanTracking();
+        }
+      }
+    });
+    runInLeakSafeClassLoader(new Runnable() { // Make sure the thread does not inherit ProtectionDomains of the caller (finite thread of our own)
+      @Override
+      public void run() {
+        final Thread thread = new Thread(future, ClassLoaderLeakPreventor.class.getSimpleName() + "-deferred-cleanup");
+        thread.setContextClassLoader(leakSafeClassLoader);
+        thread.setDaemon(true);
+        thread.start();
+      }
+    });
+    return future;
+  }
+  
+  /** 
+   * Run one phase of {@link #runCleanUpsAsync(CleanUpCallback)} and notify callback
+   * @param waits Map to put the waiting parts of the {@link DeferrableCleanUp}s into in the 
+   *   {@link CleanUpPhase#SYNCHRONOUS} phase, and to run them from in the {@link CleanUpPhase#DEFERRED} phase
+   */
+  private CleanUpPhaseResult runCleanUpPhase(CleanUpPhase phase, Map<ClassLoaderPreMortemCleanUp, Runnable> waits, 
+                                             CleanUpCallback callback) {
+    final List<ExecutionResult> results = Collections.synchronizedList(new ArrayList<ExecutionResult>());
+    final long startNanos = System.nanoTime();
+    Throwable failure = null;
+    try {
+      if(phase == CleanUpPhase.SYNCHRONOUS)
+        runCleanUps(cleanUps, createCleanUpBudget(cleanUps), results, waits);
+      else
+        runWaits(waits, results);
     }
-    else {
-      final Field inheritedAccessControlContext = this.findField(Thread.class, "inheritedAccessControlContext");
+    catch (Throwable t) {
+      error(t);
+      failure = t;
+    }
+    
+    final CleanUpPhaseResult phaseResult = new CleanUpPhaseResult(phase, new ArrayList<ExecutionResult>(results), 
+        System.nanoTime() - startNanos, failure);
+    info(phaseResult.toString());
+    if(callback != null) {
+      try {
+        callback.phaseFinished(this, phaseResult);
+      }
+      catch (Throwable t) {
+        warn(t);
+      }
+    }
+    return phaseResult;
+  }
+  
+  /** 
+   * Invoke the provided {@link ClassLoaderPreMortemCleanUp}s, with a shared {@link CleanUpContext}
+   * @param budget Time budget, or {@code null} if unlimited
+   * @param results List to add the {@link ExecutionResult} of each {@link ClassLoaderPreMortemCleanUp} to, or 
+   *   {@code null}. Must be thread safe.
+   * @param waits Map to put the waiting parts of {@link DeferrableCleanUp}s into, rather than waiting, or {@code null}
+   *   to wait. Must be thread safe.
+   */
+  private void runCleanUps(Collection<ClassLoaderPreMortemCleanUp> cleanUps, CleanUpBudget budget, 
+                           List<ExecutionResult> results, Map<ClassLoaderPreMortemCleanUp, Runnable> waits) {
+    final CleanUpContext context = new CleanUpContext(this, getGcDeadlineNanos(budget));
+    this.cleanUpContext = context;
+    try {
+      final FieldAccessor inheritedAccessControlContext = this.findFieldAccessor(Thread.class, "inheritedAccessControlContext");
       if(inheritedAccessControlContext != null) {
-        // Check if threads have been started in doInLeakSafeClassLoader() and need fixed ACC
-        for(Thread thread : getAllThreads()) { // (We actually only need to do this for threads not running in web app, as per StopThreadsCleanUp) 
-          final AccessControlContext accessControlContext = getFieldValue(inheritedAccessControlContext, thread);
+        // Check if threads have been started in doInLeakSafeClassLoader() and need fixed ACC. Unless the combiner may 
+        // have been used elsewhere, only the threads spawned by PreClassLoaderInitiators need to be checked.
+        final Collection<Thread> threads = domainCombinerUntracked ? context.getAllThreads() : getInitiatorThreads();
+        for(Thread thread : threads) { // (We actually only need to do this for threads not running in web app, as per StopThreadsCleanUp) 
+          final AccessControlContext accessControlContext = (AccessControlContext) getFieldValue(inheritedAccessControlContext, thread);
           removeDomainCombiner("thread " + thread , accessControlContext);
         }
       }
       
-      for(ClassLoaderPreMortemCleanUp cleanUp : cleanUps) {
-        cleanUp.cleanUp(this);
+      if(cleanUpParallelism > 1) {
+        runCleanUpsInParallel(cleanUps, budget, results, waits);
+      }
+      else {
+        int index = 0;
+        for(ClassLoaderPreMortemCleanUp cleanUp : cleanUps) {
+          if(! deferIfAfterDeferred(cleanUp, waits) && isWithinBudget(budget, index, cleanUp, results))
+            invokeCleanUp(cleanUp, null, results, waits);
+          index++;
+        }
+      }
+    }
+    finally {
+      this.cleanUpContext = null; // Do not keep references to threads etc after cleanup
+    }
+  }
+  
+  /** 
+   * Run consecutive {@link IndependentCleanUp}s in parallel, respecting any {@link MustBeAfter} between them, while
+   * other {@link ClassLoaderPreMortemCleanUp}s act as barriers and are run by the current thread. The threads of the
+   * pool only live for the duration of this method. The budget of an {@link IndependentCleanUp} is checked when it is
+   * about to run, after waiting for its prerequisites, rather than when submitted.
+   */
+  private void runCleanUpsInParallel(Collection<ClassLoaderPreMortemCleanUp> cleanUps, final CleanUpBudget budget, 
+                                     final List<ExecutionResult> results, 
+                                     final Map<ClassLoaderPreMortemCleanUp, Runnable> waits) {
+    ExecutorService executor = null;
+    try {
+      // Running/finished IndependentCleanUps since last barrier
+      final Map<ClassLoaderPreMortemCleanUp, Future<?>> started = new LinkedHashMap<ClassLoaderPreMortemCleanUp, Future<?>>();
+      int index = 0;
+      for(final ClassLoaderPreMortemCleanUp cleanUp : cleanUps) {
+        final int cleanUpIndex = index++;
+        if(cleanUp instanceof IndependentCleanUp) {
+          if(executor == null)
+            executor = createCleanUpExecutor();
+
+          // Futures of any IndependentCleanUps that this one must be after, since barriers are already finished
+          final List<Future<?>> prerequisites = new ArrayList<Future<?>>();
+          if(cleanUp instanceof MustBeAfter) {
+            final Class<?>[] mustBeBeforeMe = ((MustBeAfter<?>) cleanUp).mustBeBeforeMe();
+            if(mustBeBeforeMe != null) {
+              for(Map.Entry<ClassLoaderPreMortemCleanUp, Future<?>> entry : started.entrySet()) {
+                if(ClassLoaderLeakPreventorFactory.isInstanceOfAny(entry.getKey(), mustBeBeforeMe))
+                  prerequisites.add(entry.getValue());
+              }
+            }
+          }
+          
+          // Prerequisites were submitted earlier, so they will not be queued behind this task
+          started.put(cleanUp, executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              for(Future<?> prerequisite : prerequisites) {
+                prerequisite.get();
+              }
+              if(! deferIfAfterDeferred(cleanUp, waits) && 
+                  isWithinBudget(budget, cleanUpIndex, cleanUp, results)) // Consider time spent waiting
+                invokeCleanUp(cleanUp, null, results, waits);
+              return null;
+            }
+          }));
+        }
+        else { // Barrier
+          awaitCleanUps(started.values());
+          started.clear();
+          if(! deferIfAfterDeferred(cleanUp, waits) && 
+              isWithinBudget(budget, cleanUpIndex, cleanUp, results)) // Consider time spent waiting
+            invokeCleanUp(cleanUp, null, results, waits);
+        }
+      }
+      awaitCleanUps(started.values());
+    }
+    finally {
+      if(executor != null) {
+        executor.shutdownNow(); // Only interrupts anything if aborted due to exception
+        try {
+          if(! executor.awaitTermination(THREAD_WAIT_MS_DEFAULT, TimeUnit.MILLISECONDS))
+            warn("Threads running cleanups in parallel did not terminate");
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // Restore status for the caller
+        }
+      }
+    }
+  }
+  
+  /** 
+   * If the {@link ClassLoaderPreMortemCleanUp} {@link MustBeAfter} any cleanup that has been deferred to the 
+   * {@link CleanUpPhase#DEFERRED} phase - either the waiting part of a {@link DeferrableCleanUp} or, transitively, 
+   * another cleanup deferred by this method - defer all of it, so that it is run after that cleanup in the 
+   * {@link CleanUpPhase#DEFERRED} phase. For example, {@link ThreadLocal}s must not be cleared until the threads have
+   * been waited for and stopped, since they may add new {@link ThreadLocal}s while shutting down.
+   * @param waits Map of deferred cleanups, or {@code null} if not running asynchronously
+   * @return {@code true} if the cleanup was deferred
+   */
+  private boolean deferIfAfterDeferred(final ClassLoaderPreMortemCleanUp cleanUp, 
+                                       Map<ClassLoaderPreMortemCleanUp, Runnable> waits) {
+    if(waits == null || ! (cleanUp instanceof MustBeAfter))
+      return false;
+    
+    final Class<?>[] mustBeBeforeMe = ((MustBeAfter<?>) cleanUp).mustBeBeforeMe();
+    if(mustBeBeforeMe == null)
+      return false;
+    
+    synchronized (waits) {
+      for(ClassLoaderPreMortemCleanUp deferred : waits.keySet()) {
+        if(ClassLoaderLeakPreventorFactory.isInstanceOfAny(deferred, mustBeBeforeMe)) {
+          debug("Deferring " + cleanUp.getClass().getName() + " until after " + deferred.getClass().getName());
+          waits.put(cleanUp, new Runnable() {
+            @Override
+            public void run() {
+              cleanUp.cleanUp(ClassLoaderLeakPreventor.this);
+            }
+          });
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  /** 
+   * Create {@link CleanUpBudget} for the provided {@link ClassLoaderPreMortemCleanUp}s with expected costs as per 
+   * {@link #getExpectedCostNanos}, or {@code null} if there is no {@link #cleanUpTimeBudgetMs}.
+   */
+  private CleanUpBudget createCleanUpBudget(Collection<ClassLoaderPreMortemCleanUp> cleanUps) {
+    final long budgetMs = this.cleanUpTimeBudgetMs;
+    if(budgetMs <= 0)
+      return null;
+    
+    final long startNanos = System.nanoTime();
+    final CleanUpPriority[] priorities = new CleanUpPriority[cleanUps.size()];
+    final long[] expectedNanos = new long[cleanUps.size()];
+    int index = 0;
+    for(ClassLoaderPreMortemCleanUp cleanUp : cleanUps) {
+      priorities[index] = getCleanUpPriority(cleanUp);
+      expectedNanos[index] = getExpectedCostNanos(cleanUp);
+      index++;
+    }
+    return new CleanUpBudget(TimeUnit.MILLISECONDS.toNanos(budgetMs), startNanos, priorities, expectedNanos);
+  }
+  
+  /** 
+   * Is there time left to run the {@link ClassLoaderPreMortemCleanUp} at the provided index? If not, the skip is 
+   * logged and reported to {@link LeakPreventionListener}s.
+   */
+  private boolean isWithinBudget(CleanUpBudget budget, int index, ClassLoaderPreMortemCleanUp cleanUp, 
+                                 List<ExecutionResult> results) {
+    if(budget == null)
+      return true;
+    
+    final long nowNanos = System.nanoTime();
+    if(budget.shouldRun(index, nowNanos))
+      return true;
+
+    warn("Skipping " + budget.getPriority(index) + " cleanup " + cleanUp.getClass().getName() + 
+        " expected to take " + TimeUnit.NANOSECONDS.toMillis(budget.getExpectedNanos(index)) + " ms, since " + 
+        TimeUnit.NANOSECONDS.toMillis(budget.getRemainingNanos(nowNanos)) + " ms of the " + cleanUpTimeBudgetMs + 
+        " ms cleanup time budget remains");
+    final ExecutionResult skipped = ExecutionResult.skipped(cleanUp);
+    if(results != null)
+      results.add(skipped);
+    notifyAfterCleanUp(cleanUp, skipped);
+    return false;
+  }
+  
+  /** 
+   * Get the expected time, in nanoseconds, for the {@link ClassLoaderPreMortemCleanUp} to run, as per the mean of
+   * any {@link CleanUpCostRegistry} among the {@link #listeners}, which survives redeploys even if this library is 
+   * loaded by the protected classloader, or else any {@link TimingStatistics} among them. Returns 0 if unknown.
+   */
+  protected long getExpectedCostNanos(ClassLoaderPreMortemCleanUp cleanUp) {
+    for(LeakPreventionListener listener : listeners) {
+      if(listener instanceof CleanUpCostRegistry) {
+        final long meanNanos = ((CleanUpCostRegistry) listener).getMeanNanos(cleanUp.getClass());
+        if(meanNanos > 0)
+          return meanNanos;
+      }
+    }
+    for(LeakPreventionListener listener : listeners) {
+      if(listener instanceof TimingStatistics) {
+        final TimingStatistics.Timing timing = ((TimingStatistics) listener).getTiming(cleanUp.getClass());
+        if(timing != null)
+          return timing.getMeanNanos();
+      }
+    }
+    return 0;
+  }
+  
+  /** 
+   * Invoke {@link PreClassLoaderInitiator}, notifying any {@link LeakPreventionListener}s. Returns {@code false} if a
+   * {@link JvmGlobalInitiator} reported that it did not succeed.
+   */
+  private boolean invokePreClassLoaderInitiator(PreClassLoaderInitiator preClassLoaderInitiator) {
+    if(listeners.isEmpty())
+      return doOutsideClassLoader(preClassLoaderInitiator);
+    
+    for(LeakPreventionListener listener : listeners) {
+      try {
+        listener.beforePreClassLoaderInitiator(this, preClassLoaderInitiator);
+      }
+      catch (Throwable t) {
+        warn(t);
+      }
+    }
+    
+    final long startTimeMillis = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    Throwable failure = null;
+    boolean succeeded = false;
+    try {
+      succeeded = doOutsideClassLoader(preClassLoaderInitiator);
+      return succeeded;
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    catch (Error e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      final ExecutionResult result = new ExecutionResult(preClassLoaderInitiator, startTimeMillis, 
+          System.nanoTime() - startNanos, 
+          succeeded ? ExecutionResult.Outcome.SUCCESS : ExecutionResult.Outcome.FAILURE, failure);
+      notifyAfterPreClassLoaderInitiator(preClassLoaderInitiator, result);
+    }
+  }
+  
+  /** 
+   * Invoke {@link PreClassLoaderInitiator}, via {@link JvmGlobalInitiator#initialize(ClassLoaderLeakPreventor)} if
+   * applicable, and return whether it succeeded
+   */
+  private boolean doOutsideClassLoader(PreClassLoaderInitiator preClassLoaderInitiator) {
+    if(preClassLoaderInitiator instanceof JvmGlobalInitiator)
+      return ((JvmGlobalInitiator) preClassLoaderInitiator).initialize(this);
+    
+    preClassLoaderInitiator.doOutsideClassLoader(this);
+    return true;
+  }
+  
+  /** Notify {@link LeakPreventionListener}s that {@link PreClassLoaderInitiator} has been invoked or skipped */
+  private void notifyAfterPreClassLoaderInitiator(PreClassLoaderInitiator preClassLoaderInitiator, 
+                                                  ExecutionResult result) {
+    for(LeakPreventionListener listener : listeners) {
+      try {
+        listener.afterPreClassLoaderInitiator(this, preClassLoaderInitiator, result);
+      }
+      catch (Throwable t) {
+        warn(t);
+      }
+    }
+  }
+  
+  /** 
+   * Get the point in time, as per {@link System#nanoTime()}, after which {@link #awaitGc()} should not wait during a 
+   * cleanup run starting now; that is when {@link #gcTimeoutMs} has passed, or the budget is exhausted if earlier.
+   * @param budget Time budget, or {@code null} if unlimited
+   */
+  private long getGcDeadlineNanos(CleanUpBudget budget) {
+    final long nowNanos = System.nanoTime();
+    long gcNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(gcTimeoutMs), Long.MAX_VALUE / 2); // Avoid overflow
+    if(budget != null)
+      gcNanos = Math.min(gcNanos, Math.max(0, budget.getRemainingNanos(nowNanos)));
+    return nowNanos + gcNanos;
+  }
+  
+  /** 
+   * Run the waiting parts of {@link DeferrableCleanUp}s collected by 
+   * {@link #runCleanUps(Collection, CleanUpBudget, List, Map)}, with a shared {@link CleanUpContext} 
+   */
+  private void runWaits(Map<ClassLoaderPreMortemCleanUp, Runnable> waits, List<ExecutionResult> results) {
+    this.cleanUpContext = new CleanUpContext(this, getGcDeadlineNanos(null));
+    try {
+      synchronized (waits) {
+        for(Map.Entry<ClassLoaderPreMortemCleanUp, Runnable> wait : waits.entrySet()) {
+          invokeCleanUp(wait.getKey(), wait.getValue(), results, null);
+        }
+      }
+    }
+    finally {
+      this.cleanUpContext = null; // Do not keep references to threads etc after cleanup
+    }
+  }
+  
+  /** 
+   * Invoke {@link ClassLoaderPreMortemCleanUp}, notifying any {@link LeakPreventionListener}s and adding the 
+   * {@link ExecutionResult} to {@code results}, unless {@code null}
+   * @param wait Waiting part of a {@link DeferrableCleanUp} to run instead of the cleanup, or {@code null}
+   * @param waits Map to put the waiting part of a {@link DeferrableCleanUp} into, rather than waiting, or {@code null}
+   */
+  private void invokeCleanUp(ClassLoaderPreMortemCleanUp cleanUp, Runnable wait, List<ExecutionResult> results, 
+                             Map<ClassLoaderPreMortemCleanUp, Runnable> waits) {
+    if(listeners.isEmpty() && results == null) {
+      doCleanUp(cleanUp, wait, waits);
+      return;
+    }
+    
+    for(LeakPreventionListener listener : listeners) {
+      try {
+        listener.beforeCleanUp(this, cleanUp);
+      }
+      catch (Throwable t) {
+        warn(t);
+      }
+    }
+    
+    final long startTimeMillis = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    Throwable failure = null;
+    try {
+      doCleanUp(cleanUp, wait, waits);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    catch (Error e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      final ExecutionResult result = new ExecutionResult(cleanUp, startTimeMillis, System.nanoTime() - startNanos, 
+          (failure == null) ? ExecutionResult.Outcome.SUCCESS : ExecutionResult.Outcome.FAILURE, failure);
+      if(results != null)
+        results.add(result);
+      notifyAfterCleanUp(cleanUp, result);
+    }
+  }
+  
+  /** Implementation of {@link #invokeCleanUp(ClassLoaderPreMortemCleanUp, Runnable, List, Map)} */
+  private void doCleanUp(ClassLoaderPreMortemCleanUp cleanUp, Runnable wait, Map<ClassLoaderPreMortemCleanUp, Runnable> waits) {
+    if(wait != null)
+      wait.run();
+    else if(waits != null && cleanUp instanceof DeferrableCleanUp) {
+      final Runnable deferred = ((DeferrableCleanUp) cleanUp).cleanUpWithoutWaiting(this);
+      if(deferred != null)
+        waits.put(cleanUp, deferred);
+    }
+    else
+      cleanUp.cleanUp(this);
+  }
+  
+  /** Notify {@link LeakPreventionListener}s that {@link ClassLoaderPreMortemCleanUp} has been invoked or skipped */
+  private void notifyAfterCleanUp(ClassLoaderPreMortemCleanUp cleanUp, ExecutionResult result) {
+    for(LeakPreventionListener listener : listeners) {
+      try {
+        listener.afterCleanUp(this, cleanUp, result);
+      }
+      catch (Throwable t) {
+        warn(t);
       }
     }
   }
   
+  /** 
+   * Wait for all the provided cleanups to finish, then rethrow the first failure, if any. Checked exceptions are 
+   * wrapped in {@link RuntimeException}. If the current thread is interrupted while waiting, the cleanups not yet 
+   * finished are cancelled, and the interrupted status is restored.
+   */
+  private void awaitCleanUps(Collection<Future<?>> futures) {
+    Throwable failure = null;
+    for(Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (ExecutionException e) {
+        if(failure == null)
+          failure = e.getCause();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for(Future<?> outstanding : futures) {
+          outstanding.cancel(true);
+        }
+        if(failure == null)
+          failure = e;
+        break;
+      }
+    }
+    
+    if(failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    else if(failure instanceof Error)
+      throw (Error) failure;
+    else if(failure != null)
+      throw new RuntimeException(failure);
+  }
+  
+  /** 
+   * Create bounded thread pool for running {@link IndependentCleanUp}s. The threads use {@link #leakSafeClassLoader}
+   * as context classloader, and are daemon threads in case something goes wrong.
+   */
+  protected ExecutorService createCleanUpExecutor() {
+    final AtomicInteger threadNo = new AtomicInteger();
+    return Executors.newFixedThreadPool(cleanUpParallelism, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, ClassLoaderLeakPreventor.class.getSimpleName() + "-cleanup-" + 
+            threadNo.incrementAndGet());
+        thread.setContextClassLoader(leakSafeClassLoader);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+  
+  /**
+   * Get the {@link CleanUpContext} shared by all {@link ClassLoaderPreMortemCleanUp}s invoked by the currently
+   * executing {@link #runCleanUps()}. If called outside of {@link #runCleanUps()}, for example when a 
+   * {@link ClassLoaderPreMortemCleanUp} is invoked directly, a new {@link CleanUpContext} is returned.
+   */
+  public CleanUpContext getCleanUpContext() {
+    final CleanUpContext context = this.cleanUpContext;
+    return (context != null) ? context : new CleanUpContext(this);
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   // Utility methods
 
@@ -272,50 +1083,243 @@ public class ClassLoaderLeakPreventor {
 
   /** Test if provided class is loaded wby {@link #classLoader} */
   public boolean isLoadedByClassLoader(Class<?> clazz) {
-    return clazz != null && isClassLoaderOrChild(clazz.getClassLoader());
+    if(clazz == null)
+      return false;
+    else if(! ancestryCacheEnabled)
+      return isClassLoaderOrChild(clazz.getClassLoader());
+    
+    final Boolean cached = classVerdicts.get(clazz);
+    if(cached != null) {
+      ancestryCacheHits.incrementAndGet();
+      return cached;
+    }
+
+    ancestryCacheMisses.incrementAndGet();
+    final Boolean verdict = getClassLoaderVerdict(clazz.getClassLoader());
+    if(verdict != null)
+      classVerdicts.put(clazz, verdict);
+    return verdict != null && verdict;
   }
 
   /** Test if provided ClassLoader is the {@link #classLoader}, or a child thereof */
   public boolean isClassLoaderOrChild(ClassLoader cl) {
+    final Boolean verdict = getClassLoaderVerdict(cl);
+    return verdict != null && verdict;
+  }
+
+  /** 
+   * Test if provided ClassLoader is the {@link #classLoader}, or a child thereof, using {@link #classLoaderVerdicts}
+   * if enabled. Returns {@code null} if this could not be determined, in which case the result should not be cached.
+   */
+  private Boolean getClassLoaderVerdict(ClassLoader cl) {
     if(cl == null) {
       return false;
     }
     else if(cl == classLoader) {
       return true;
     }
-    else { // It could be a child of the webapp classloader
-      if(java_lang_ClassLoader_isAncestor != null) { // Primarily use ClassLoader.isAncestor()
-        try {
-          return (Boolean) java_lang_ClassLoader_isAncestor.invoke(cl, classLoader);
-        }
-        catch (Exception e) {
-          error(e);
-        }
+    else if(ancestryCacheEnabled) {
+      final Boolean cached = classLoaderVerdicts.get(cl);
+      if(cached != null) {
+        ancestryCacheHits.incrementAndGet();
+        return cached;
       }
+      
+      ancestryCacheMisses.incrementAndGet();
+      final Boolean verdict = isChildOfClassLoader(cl);
+      if(verdict != null)
+        classLoaderVerdicts.put(cl, verdict);
+      return verdict;
+    }
+    else
+      return isChildOfClassLoader(cl);
+  }
 
-      if(java_lang_ClassLoader_isAncestorOf != null) { // Secondarily use IBM ClassLoader.isAncestorOf()
-        try {
-          return (Boolean) java_lang_ClassLoader_isAncestorOf.invoke(classLoader, cl);
-        }
-        catch (Exception e) {
-          error(e);
-        }
+  /** 
+   * Test if provided ClassLoader is a child of {@link #classLoader} without using any cache. 
+   * Returns {@code null} if this could not be determined.
+   */
+  private Boolean isChildOfClassLoader(ClassLoader cl) {
+    // It could be a child of the webapp classloader
+    if(java_lang_ClassLoader_isAncestor != null) { // Primarily use ClassLoader.isAncestor()
+      try {
+        return (Boolean) java_lang_ClassLoader_isAncestor.invoke(cl, classLoader);
       }
+      catch (Exception e) {
+        error(e);
+      }
+    }
 
-      // We were unable to use ClassLoader.isAncestor() or isAncestorOf()
+    if(java_lang_ClassLoader_isAncestorOf != null) { // Secondarily use IBM ClassLoader.isAncestorOf()
       try {
-        while(cl != null) {
-          if(cl == classLoader)
-            return true;
+        return (Boolean) java_lang_ClassLoader_isAncestorOf.invoke(classLoader, cl);
+      }
+      catch (Exception e) {
+        error(e);
+      }
+    }
 
-          cl = cl.getParent();
-        }
+    // We were unable to use ClassLoader.isAncestor() or isAncestorOf()
+    try {
+      while(cl != null) {
+        if(cl == classLoader)
+          return true;
+
+        cl = cl.getParent();
       }
-      catch (NestedProtectionDomainCombinerException e) {
-        return false; // Since we needed permission to call getParent(), it is unlikely it is a descendant
+    }
+    catch (NestedProtectionDomainCombinerException e) {
+      // We needed permission to call getParent(), so the ancestry is unknown. Callers treat that as not a descendant,
+      // which is likely since the protected classloader would not have needed permission, but do not cache it
+      return null;
+    }
+    return false;
+  }
+  
+  /** 
+   * Enable or disable caching of the results of {@link #isClassLoaderOrChild(ClassLoader)} and 
+   * {@link #isLoadedByClassLoader(Class)}, and of which {@link ProtectionDomain}s to filter in the {@link DomainCombiner}
+   * of {@link #createAccessControlContext()}. Enabled by default. Disabling the cache also clears it.
+   */
+  public void setAncestryCacheEnabled(boolean ancestryCacheEnabled) {
+    this.ancestryCacheEnabled = ancestryCacheEnabled;
+    if(! ancestryCacheEnabled) {
+      classLoaderVerdicts.clear();
+      protectionDomainVerdicts.clear();
+      classVerdicts.clear();
+    }
+  }
+
+  public boolean isAncestryCacheEnabled() {
+    return ancestryCacheEnabled;
+  }
+
+  /** Get the no of {@link ClassLoader} and {@link Class} ancestry lookups that were answered by the cache */
+  public long getAncestryCacheHits() {
+    return ancestryCacheHits.get();
+  }
+
+  /** Get the no of {@link ClassLoader} and {@link Class} ancestry lookups that were not answered by the cache */
+  public long getAncestryCacheMisses() {
+    return ancestryCacheMisses.get();
+  }
+
+  /** 
+   * Set the max number of {@link IndependentCleanUp}s to run in parallel by {@link #runCleanUps()}. 
+   * 1, which is the default, means all {@link ClassLoaderPreMortemCleanUp}s are run sequentially by the calling thread.
+   */
+  public void setCleanUpParallelism(int cleanUpParallelism) {
+    if(cleanUpParallelism < 1)
+      throw new IllegalArgumentException("cleanUpParallelism must be at least 1");
+    this.cleanUpParallelism = cleanUpParallelism;
+  }
+
+  public int getCleanUpParallelism() {
+    return cleanUpParallelism;
+  }
+
+  /** 
+   * Should {@link #runPreClassLoaderInitiators()} skip {@link JvmGlobalInitiator}s that have already succeeded in this
+   * JVM, for this or any other classloader, as per {@link JvmGlobalInitiatorRegistry}? Defaults to {@code false}.
+   */
+  public void setRunJvmGlobalInitiatorsOnce(boolean runJvmGlobalInitiatorsOnce) {
+    this.runJvmGlobalInitiatorsOnce = runJvmGlobalInitiatorsOnce;
+  }
+
+  public boolean isRunJvmGlobalInitiatorsOnce() {
+    return runJvmGlobalInitiatorsOnce;
+  }
+
+  /** 
+   * Set how to make sure garbage collection has been performed, when needed by {@link ClassLoaderPreMortemCleanUp}s. 
+   * Defaults to {@link GcStrategy#NON_FORCING}.
+   */
+  public void setGcStrategy(GcStrategy gcStrategy) {
+    if(gcStrategy == null)
+      throw new IllegalArgumentException("gcStrategy must not be null");
+    this.gcStrategy = gcStrategy;
+  }
+
+  public GcStrategy getGcStrategy() {
+    return gcStrategy;
+  }
+
+  /** 
+   * Set max no of milliseconds to wait for garbage collection in {@link #awaitGc()}. During {@link #runCleanUps()} 
+   * this is the max in total, for all calls by the {@link ClassLoaderPreMortemCleanUp}s.
+   */
+  public void setGcTimeoutMs(long gcTimeoutMs) {
+    if(gcTimeoutMs < 0)
+      throw new IllegalArgumentException("gcTimeoutMs must not be negative");
+    this.gcTimeoutMs = gcTimeoutMs;
+  }
+
+  public long getGcTimeoutMs() {
+    return gcTimeoutMs;
+  }
+
+  /** 
+   * Set the total no of milliseconds {@link #runCleanUps()} may take. When there is not enough time left to run
+   * a {@link ClassLoaderPreMortemCleanUp} and the remaining ones of higher {@link CleanUpPriority}, as per their 
+   * historical timings, it will be skipped, unless it is {@link CleanUpPriority#ESSENTIAL}. 0, which is the default, 
+   * means no limit. The historical timings are those of any {@link CleanUpCostRegistry} or {@link TimingStatistics}
+   * among the {@link #addListener(LeakPreventionListener) listeners}; see {@link #getExpectedCostNanos}.
+   */
+  public void setCleanUpTimeBudgetMs(long cleanUpTimeBudgetMs) {
+    if(cleanUpTimeBudgetMs < 0)
+      throw new IllegalArgumentException("cleanUpTimeBudgetMs must not be negative");
+    this.cleanUpTimeBudgetMs = cleanUpTimeBudgetMs;
+  }
+
+  public long getCleanUpTimeBudgetMs() {
+    return cleanUpTimeBudgetMs;
+  }
+
+  /** Set the {@link CleanUpPriority} of the {@link ClassLoaderPreMortemCleanUp} class, including subclasses */
+  public void setCleanUpPriority(Class<? extends ClassLoaderPreMortemCleanUp> cleanUpClass, CleanUpPriority priority) {
+    setCleanUpPriority(cleanUpClass.getName(), priority);
+  }
+
+  /** Set the {@link CleanUpPriority} of the {@link ClassLoaderPreMortemCleanUp} class name, including subclasses */
+  public void setCleanUpPriority(String cleanUpClassName, CleanUpPriority priority) {
+    if(priority == null)
+      throw new IllegalArgumentException("priority must not be null");
+    cleanUpPriorities.put(cleanUpClassName, priority);
+  }
+
+  /** 
+   * Get the {@link CleanUpPriority} of the {@link ClassLoaderPreMortemCleanUp}, as configured for its class or the
+   * closest superclass. Defaults to {@link CleanUpPriority#NORMAL}.
+   */
+  public CleanUpPriority getCleanUpPriority(ClassLoaderPreMortemCleanUp cleanUp) {
+    if(! cleanUpPriorities.isEmpty()) {
+      for(Class<?> clazz = cleanUp.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+        final CleanUpPriority priority = cleanUpPriorities.get(clazz.getName());
+        if(priority != null)
+          return priority;
       }
-      return false;
     }
+    return CleanUpPriority.NORMAL;
+  }
+
+  /** 
+   * Add {@link LeakPreventionListener} to be notified before and after each {@link PreClassLoaderInitiator} and 
+   * {@link ClassLoaderPreMortemCleanUp} invoked by this {@link ClassLoaderLeakPreventor}. Normally configured via 
+   * {@link ClassLoaderLeakPreventorFactory#addListener(LeakPreventionListener)}. 
+   */
+  public void addListener(LeakPreventionListener listener) {
+    if(listener == null)
+      throw new IllegalArgumentException("listener must not be null");
+    listeners.addIfAbsent(listener);
+  }
+
+  public boolean removeListener(LeakPreventionListener listener) {
+    return listeners.remove(listener);
+  }
+
+  /** Get the {@link LeakPreventionListener}s currently registered */
+  public List<LeakPreventionListener> getListeners() {
+    return new ArrayList<LeakPreventionListener>(listeners);
   }
 
   /**
@@ -355,6 +1359,30 @@ public class ClassLoaderLeakPreventor {
     }
   }
   
+  /** 
+   * Wait for all the provided threads to finish, but no more than {@code waitMs} milliseconds in total, i.e. the 
+   * threads share a single deadline rather than waiting for each of them in turn.
+   * @return the threads still alive after waiting
+   */
+  public List<Thread> waitForThreads(Collection<Thread> threads, long waitMs) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitMs));
+    final List<Thread> alive = new ArrayList<Thread>();
+    for(Thread thread : threads) {
+      final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if(remainingMs > 0) {
+        try {
+          thread.join(remainingMs);
+        }
+        catch (InterruptedException e) {
+          // Do nothing
+        }
+      }
+      if(thread.isAlive())
+        alive.add(thread);
+    }
+    return alive;
+  }
+  
   /** Get current stack trace or provided thread as string. Returns {@code "unavailable"} if stack trace could not be acquired. */
   public String getStackTrace(Thread thread) {
     try {
@@ -409,8 +1437,15 @@ public class ClassLoaderLeakPreventor {
   }
   
   public Class<?> findClass(String className, boolean trySystemCL) {
+    final ReflectionCache.Key key = reflectionCache.classKey(className, trySystemCL);
+    final Object cached = reflectionCache.get(key);
+    if(cached != null)
+      return (cached instanceof Class) ? (Class<?>) cached : null;
+
     try {
-      return Class.forName(className);
+      final Class<?> clazz = Class.forName(className);
+      reflectionCache.put(key, clazz);
+      return clazz;
     }
 //    catch (NoClassDefFoundError e) {
 //      // Silently ignore
@@ -419,13 +1454,17 @@ public class ClassLoaderLeakPreventor {
     catch (ClassNotFoundException e) {
       if (trySystemCL) {
         try {
-          return Class.forName(className, true, ClassLoader.getSystemClassLoader());
+          final Class<?> clazz = Class.forName(className, true, ClassLoader.getSystemClassLoader());
+          reflectionCache.put(key, clazz);
+          return clazz;
         } catch (ClassNotFoundException e1) {
           // Silently ignore
+          reflectionCache.put(key, null);
           return null;
         }
       }
       // Silently ignore
+      reflectionCache.put(key, null);
       return null;
     }
     catch (Exception ex) { // Example SecurityException
@@ -438,21 +1477,81 @@ public class ClassLoaderLeakPreventor {
     if(clazz == null)
       return null;
 
+    final ReflectionCache.Key key = reflectionCache.fieldKey(clazz, fieldName);
+    final Object cached = reflectionCache.get(key);
+    if(cached != null)
+      return (cached instanceof Field) ? (Field) cached : null;
+
     try {
       final Field field = clazz.getDeclaredField(fieldName);
       field.setAccessible(true); // (Field is probably private) 
+      reflectionCache.put(key, field);
       return field;
     }
     catch (NoSuchFieldException ex) {
       // Silently ignore
+      reflectionCache.put(key, null);
       return null;
     }
     catch (Exception ex) { // Example SecurityException
-      warn(ex);
+      if(isInaccessibleObjectException(ex)) {
+        warnInaccessible(clazz, "field " + fieldName, ex);
+        reflectionCache.put(key, null); // Do not try again
+      }
+      else
+        warn(ex);
       return null;
     }
   }
   
+  /** 
+   * Find field and create a {@link FieldAccessor} for it, to be used when the field is accessed repeatedly.
+   * Returns {@code null} if the field does not exist or is not accessible. 
+   */
+  public FieldAccessor findFieldAccessor(Class<?> clazz, String fieldName) {
+    if(clazz == null)
+      return null;
+
+    final ReflectionCache.Key key = reflectionCache.fieldAccessorKey(clazz, fieldName);
+    final Object cached = reflectionCache.get(key);
+    if(cached != null)
+      return (cached instanceof FieldAccessor) ? (FieldAccessor) cached : null;
+
+    final FieldAccessor fieldAccessor = FieldAccessor.of(findField(clazz, fieldName));
+    reflectionCache.put(key, fieldAccessor);
+    return fieldAccessor;
+  }
+  
+  public FieldAccessor findFieldAccessorOfClass(String className, String fieldName) {
+    return findFieldAccessor(findClass(className), fieldName);
+  }
+  
+  /** Is the exception a Java 9+ {@code java.lang.reflect.InaccessibleObjectException}? */
+  private static boolean isInaccessibleObjectException(Exception ex) {
+    return "java.lang.reflect.InaccessibleObjectException".equals(ex.getClass().getName());
+  }
+  
+  /** 
+   * Log that a member could not be made accessible, due to Java 9+ strong encapsulation, including the JVM argument
+   * needed to make it accessible 
+   */
+  protected void warnInaccessible(Class<?> clazz, String member, Exception ex) {
+    String addOpens = null;
+    try {
+      final Object module = Class.class.getMethod("getModule").invoke(clazz); // Java 9+
+      final String moduleName = (String) module.getClass().getMethod("getName").invoke(module);
+      final String className = clazz.getName();
+      final int lastDot = className.lastIndexOf('.');
+      addOpens = "--add-opens " + ((moduleName != null) ? moduleName : "ALL-UNNAMED") + "/" + 
+          ((lastDot > 0) ? className.substring(0, lastDot) : "") + "=ALL-UNNAMED";
+    }
+    catch (Exception e) {
+      // Ignore
+    }
+    warn("Unable to access " + member + " of " + clazz.getName() + 
+        ((addOpens != null) ? "; to allow access, add JVM argument " + addOpens : "") + ": " + ex);
+  }
+  
   public <T> T getStaticFieldValue(Field field) {
     try {
       if(! Modifier.isStatic(field.getModifiers())) {
@@ -485,6 +1584,17 @@ public class ClassLoaderLeakPreventor {
     }
   }
   
+  public Object getFieldValue(FieldAccessor fieldAccessor, Object obj) {
+    try {
+      return fieldAccessor.get(obj);
+    }
+    catch (Exception ex) {
+      warn(ex);
+      // Silently ignore
+      return null;
+    }
+  }
+  
   public void setFinalStaticField(Field field, Object newValue) {
     // Allow modification of final field 
     try {
@@ -524,16 +1634,35 @@ public class ClassLoaderLeakPreventor {
     if(clazz == null)
       return null;
 
+    final ReflectionCache.Key key = reflectionCache.methodKey(clazz, methodName, parameterTypes);
+    final Object cached = reflectionCache.get(key);
+    if(cached != null)
+      return (cached instanceof Method) ? (Method) cached : null;
+
     try {
       final Method method = clazz.getDeclaredMethod(methodName, parameterTypes);
       method.setAccessible(true);
+      reflectionCache.put(key, method);
       return method;
     }
     catch (NoSuchMethodException ex) {
-      warn(ex);
-      // Silently ignore
+      warn(ex); // Only logged the first time, if the lookup is cached
+      reflectionCache.put(key, null);
       return null;
     }
+    catch (RuntimeException ex) {
+      if(isInaccessibleObjectException(ex)) {
+        warnInaccessible(clazz, "method " + methodName, ex);
+        reflectionCache.put(key, null); // Do not try again
+        return null;
+      }
+      throw ex;
+    }
+  }
+  
+  /** Get the cache of reflection lookups made by this {@link ClassLoaderLeakPreventor} */
+  public ReflectionCache getReflectionCache() {
+    return reflectionCache;
   }
 
   /** Get a Collection with all Threads. 
@@ -567,6 +1696,26 @@ public class ClassLoaderLeakPreventor {
     return output;
   }
   
+  /** Get a Collection with all ThreadGroups, except the topmost "system" ThreadGroup */
+  public Collection<ThreadGroup> getAllThreadGroups() {
+    ThreadGroup systemThreadGroup = Thread.currentThread().getThreadGroup();
+    while(systemThreadGroup.getParent() != null) {
+      systemThreadGroup = systemThreadGroup.getParent();
+    }
+    // systemThreadGroup should now be the topmost ThreadGroup, "system"
+
+    int enumeratedGroups;
+    ThreadGroup[] allThreadGroups;
+    int noOfGroups = systemThreadGroup.activeGroupCount(); // Estimate no of groups
+    do {
+      noOfGroups += 10; // Make room for 10 extra
+      allThreadGroups = new ThreadGroup[noOfGroups];
+      enumeratedGroups = systemThreadGroup.enumerate(allThreadGroups);
+    } while(enumeratedGroups >= noOfGroups); // If there was not room for all groups, try again
+    
+    return new ArrayList<ThreadGroup>(Arrays.asList(allThreadGroups).subList(0, enumeratedGroups));
+  }
+  
   /**
    * Override this method if you want to customize how we determine if we're running in
    * JBoss WildFly (a.k.a JBoss AS).
@@ -596,35 +1745,27 @@ public class ClassLoaderLeakPreventor {
 
   /**
    * Unlike <code>{@link System#gc()}</code> this method guarantees that garbage collection has been performed before
-   * returning.
+   * returning. This may cause long stop the world pauses; consider using {@link #awaitGc()} instead.
    */
   public static void gc() {
-    if (isDisableExplicitGCEnabled()) {
-      System.err.println(ClassLoaderLeakPreventor.class.getSimpleName() + ": "
-          + "Skipping GC call since -XX:+DisableExplicitGC is supplied as VM option.");
-      return;
-    }
-    
-    Object obj = new Object();
-    WeakReference<Object> ref = new WeakReference<Object>(obj);
-    //noinspection UnusedAssignment
-    obj = null;
-    while(ref.get() != null) {
-      System.gc();
-    }
+    GcStrategy.FORCED.awaitGc(Long.MAX_VALUE);
   }
   
-  /**
-   * Check is "-XX:+DisableExplicitGC" enabled.
-   *
-   * @return true is "-XX:+DisableExplicitGC" is set als vm argument, false otherwise.
+  /** 
+   * Wait for garbage collection according to the {@link #setGcStrategy(GcStrategy) GC strategy}, for at most
+   * {@link #setGcTimeoutMs(long) the GC timeout}. When called by {@link ClassLoaderPreMortemCleanUp}s during 
+   * {@link #runCleanUps()}, the GC timeout is shared by all calls, and limited by the remaining 
+   * {@link #setCleanUpTimeBudgetMs(long) time budget}, so that shutdown is not held up by one wait per call.
+   * @return {@code true} if garbage collection was performed, {@code false} if timed out or otherwise not known to
+   * have happened
    */
-  private static boolean isDisableExplicitGCEnabled() {
-    RuntimeMXBean bean = ManagementFactory.getRuntimeMXBean();
-    List<String> aList = bean.getInputArguments();
-
-    return aList.contains("-XX:+DisableExplicitGC");
-  }  
+  public boolean awaitGc() {
+    final CleanUpContext context = this.cleanUpContext;
+    final long timeoutMs = (context != null) ? context.getGcTimeoutMs(gcTimeoutMs) : gcTimeoutMs;
+    if(timeoutMs == 0 && gcTimeoutMs > 0)
+      debug("Not awaiting garbage collection, since the GC timeout or time budget of the cleanup has been used up");
+    return gcStrategy.awaitGc(timeoutMs);
+  }
 
   /** Is the JVM currently shutting down? */
   public boolean isJvmShuttingDown() {
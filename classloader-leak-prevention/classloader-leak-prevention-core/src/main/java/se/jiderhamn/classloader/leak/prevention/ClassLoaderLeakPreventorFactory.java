@@ -2,7 +2,9 @@ package se.jiderhamn.classloader.leak.prevention;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import se.jiderhamn.classloader.leak.prevention.cleanup.*;
 import se.jiderhamn.classloader.leak.prevention.preinit.*;
@@ -30,6 +32,60 @@ public class ClassLoaderLeakPreventorFactory {
    */
   protected Logger logger = new JULLogger();
 
+  /** 
+   * Should {@link ClassLoaderLeakPreventor}s created by this factory cache the results of classloader ancestry checks?
+   * @see ClassLoaderLeakPreventor#setAncestryCacheEnabled(boolean) 
+   */
+  protected boolean ancestryCacheEnabled = true;
+
+  /** 
+   * Max number of {@link IndependentCleanUp}s to run in parallel.
+   * @see ClassLoaderLeakPreventor#setCleanUpParallelism(int) 
+   */
+  protected int cleanUpParallelism = 1;
+
+  /** 
+   * Should {@link JvmGlobalInitiator}s already run in this JVM be skipped?
+   * @see ClassLoaderLeakPreventor#setRunJvmGlobalInitiatorsOnce(boolean) 
+   */
+  protected boolean runJvmGlobalInitiatorsOnce = false;
+
+  /** 
+   * Total no of milliseconds {@link ClassLoaderLeakPreventor#runCleanUps()} may take; 0 means no limit.
+   * @see ClassLoaderLeakPreventor#setCleanUpTimeBudgetMs(long) 
+   */
+  protected long cleanUpTimeBudgetMs = 0;
+
+  /** 
+   * How to make sure garbage collection is performed, when needed by {@link ClassLoaderPreMortemCleanUp}s
+   * @see ClassLoaderLeakPreventor#setGcStrategy(GcStrategy) 
+   */
+  protected GcStrategy gcStrategy = GcStrategy.NON_FORCING;
+
+  /** 
+   * Max no of milliseconds to wait for garbage collection
+   * @see ClassLoaderLeakPreventor#setGcTimeoutMs(long) 
+   */
+  protected long gcTimeoutMs = ClassLoaderLeakPreventor.GC_TIMEOUT_MS_DEFAULT;
+
+  /** 
+   * Map from {@link ClassLoaderPreMortemCleanUp} class name to {@link CleanUpPriority}, for classes not having the
+   * default {@link CleanUpPriority#NORMAL}. Thread safe.
+   */
+  protected final Map<String, CleanUpPriority> cleanUpPriorities = synchronizedMap(new LinkedHashMap<String, CleanUpPriority>());
+
+  /** Cache of reflection lookups, to be shared by all {@link ClassLoaderLeakPreventor}s created by this factory */
+  protected ReflectionCache reflectionCache = ReflectionCache.getDefault();
+
+  /** 
+   * {@link LeakPreventionListener}s to be notified by {@link ClassLoaderLeakPreventor}s created by this factory.
+   * Contains {@link TimingStatistics#getDefault()} and {@link CleanUpCostRegistry#getDefault()} by default. 
+   * Thread safe.
+   */
+  protected final CopyOnWriteArrayList<LeakPreventionListener> listeners = 
+      new CopyOnWriteArrayList<LeakPreventionListener>(new LeakPreventionListener[] {
+          TimingStatistics.getDefault(), CleanUpCostRegistry.getDefault()});
+
   /** 
    * Map from name to {@link PreClassLoaderInitiator}s with all the actions to invoke in the 
    * {@link #leakSafeClassLoader}. Maintains insertion order. Thread safe.
@@ -130,6 +186,12 @@ public class ClassLoaderLeakPreventorFactory {
     this.addCleanUp(new JavaUtilLoggingLevelCleanUp()); // Do this last, in case other shutdown procedures want to log something.
     this.addCleanUp(new ApacheCommonsLoggingCleanUp()); // Do this last, in case other shutdown procedures want to log something.
     
+    // Always run these, even if the cleanup time budget is exceeded
+    this.setCleanUpPriority(DriverManagerCleanUp.class, CleanUpPriority.ESSENTIAL);
+    this.setCleanUpPriority(StopThreadsCleanUp.class, CleanUpPriority.ESSENTIAL);
+    this.setCleanUpPriority(ThreadLocalCleanUp.class, CleanUpPriority.ESSENTIAL);
+    // Cached bundles are softly reachable, so this only speeds up garbage collection
+    this.setCleanUpPriority(ResourceBundleCleanUp.class, CleanUpPriority.OPTIONAL);
   }
 
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -148,9 +210,25 @@ public class ClassLoaderLeakPreventorFactory {
   
   /** Create new {@link ClassLoaderLeakPreventor} used to prevent the provided {@link ClassLoader} from leaking */
   public ClassLoaderLeakPreventor newLeakPreventor(ClassLoader classLoader) {
-    return new ClassLoaderLeakPreventor(leakSafeClassLoader, classLoader, logger,
+    final ClassLoaderLeakPreventor classLoaderLeakPreventor = new ClassLoaderLeakPreventor(leakSafeClassLoader, classLoader, logger,
         new ArrayList<PreClassLoaderInitiator>(preInitiators.values()), // Snapshot
-        new ArrayList<ClassLoaderPreMortemCleanUp>(cleanUps.values())); // Snapshot
+        new ArrayList<ClassLoaderPreMortemCleanUp>(cleanUps.values()), // Snapshot
+        reflectionCache);
+    classLoaderLeakPreventor.setAncestryCacheEnabled(ancestryCacheEnabled);
+    classLoaderLeakPreventor.setCleanUpParallelism(cleanUpParallelism);
+    classLoaderLeakPreventor.setRunJvmGlobalInitiatorsOnce(runJvmGlobalInitiatorsOnce);
+    classLoaderLeakPreventor.setCleanUpTimeBudgetMs(cleanUpTimeBudgetMs);
+    classLoaderLeakPreventor.setGcStrategy(gcStrategy);
+    classLoaderLeakPreventor.setGcTimeoutMs(gcTimeoutMs);
+    synchronized (cleanUpPriorities) { // Synchronized map
+      for(Map.Entry<String, CleanUpPriority> entry : cleanUpPriorities.entrySet()) {
+        classLoaderLeakPreventor.setCleanUpPriority(entry.getKey(), entry.getValue());
+      }
+    }
+    for(LeakPreventionListener listener : listeners) { // Snapshot, since CopyOnWriteArrayList
+      classLoaderLeakPreventor.addListener(listener);
+    }
+    return classLoaderLeakPreventor;
   }
 
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -161,37 +239,226 @@ public class ClassLoaderLeakPreventorFactory {
     this.logger = logger;
   }
   
+  /** 
+   * Should {@link ClassLoaderLeakPreventor}s created by this factory cache the results of classloader ancestry checks?
+   * Defaults to {@code true}.
+   */
+  public void setAncestryCacheEnabled(boolean ancestryCacheEnabled) {
+    this.ancestryCacheEnabled = ancestryCacheEnabled;
+  }
+  
+  /** 
+   * Set the max number of {@link IndependentCleanUp}s that {@link ClassLoaderLeakPreventor}s subsequently created by 
+   * this factory will run in parallel. Defaults to 1, meaning sequential execution.
+   */
+  public void setCleanUpParallelism(int cleanUpParallelism) {
+    if(cleanUpParallelism < 1)
+      throw new IllegalArgumentException("cleanUpParallelism must be at least 1");
+    this.cleanUpParallelism = cleanUpParallelism;
+  }
+  
+  /** 
+   * Should {@link ClassLoaderLeakPreventor}s subsequently created by this factory skip {@link JvmGlobalInitiator}s
+   * that have already succeeded in this JVM, for any classloader? Defaults to {@code false}.
+   * @see JvmGlobalInitiatorRegistry
+   */
+  public void setRunJvmGlobalInitiatorsOnce(boolean runJvmGlobalInitiatorsOnce) {
+    this.runJvmGlobalInitiatorsOnce = runJvmGlobalInitiatorsOnce;
+  }
+  
+  /** 
+   * Set the total no of milliseconds {@link ClassLoaderLeakPreventor#runCleanUps()} of {@link ClassLoaderLeakPreventor}s
+   * subsequently created by this factory may take, before skipping cleanups that are not 
+   * {@link CleanUpPriority#ESSENTIAL}. Defaults to 0, meaning no limit.
+   * @see ClassLoaderLeakPreventor#setCleanUpTimeBudgetMs(long) 
+   */
+  public void setCleanUpTimeBudgetMs(long cleanUpTimeBudgetMs) {
+    if(cleanUpTimeBudgetMs < 0)
+      throw new IllegalArgumentException("cleanUpTimeBudgetMs must not be negative");
+    this.cleanUpTimeBudgetMs = cleanUpTimeBudgetMs;
+  }
+  
+  /** 
+   * Set how {@link ClassLoaderLeakPreventor}s subsequently created by this factory make sure garbage collection has 
+   * been performed, when needed by {@link ClassLoaderPreMortemCleanUp}s. Defaults to {@link GcStrategy#NON_FORCING}.
+   * @see ClassLoaderLeakPreventor#setGcStrategy(GcStrategy) 
+   */
+  public void setGcStrategy(GcStrategy gcStrategy) {
+    if(gcStrategy == null)
+      throw new IllegalArgumentException("gcStrategy must not be null");
+    this.gcStrategy = gcStrategy;
+  }
+  
+  /** 
+   * Set max no of milliseconds {@link ClassLoaderLeakPreventor}s subsequently created by this factory wait for
+   * garbage collection.
+   * @see ClassLoaderLeakPreventor#setGcTimeoutMs(long) 
+   */
+  public void setGcTimeoutMs(long gcTimeoutMs) {
+    if(gcTimeoutMs < 0)
+      throw new IllegalArgumentException("gcTimeoutMs must not be negative");
+    this.gcTimeoutMs = gcTimeoutMs;
+  }
+  
+  /** 
+   * Set the {@link CleanUpPriority} of the {@link ClassLoaderPreMortemCleanUp} class, including subclasses, in 
+   * {@link ClassLoaderLeakPreventor}s subsequently created by this factory
+   */
+  public void setCleanUpPriority(Class<? extends ClassLoaderPreMortemCleanUp> cleanUpClass, CleanUpPriority priority) {
+    if(priority == null)
+      throw new IllegalArgumentException("priority must not be null");
+    cleanUpPriorities.put(cleanUpClass.getName(), priority);
+  }
+  
+  /** 
+   * Get the {@link CleanUpPriority} configured for the {@link ClassLoaderPreMortemCleanUp} class, not considering 
+   * superclasses. Defaults to {@link CleanUpPriority#NORMAL}.
+   */
+  public CleanUpPriority getCleanUpPriority(Class<? extends ClassLoaderPreMortemCleanUp> cleanUpClass) {
+    final CleanUpPriority priority = cleanUpPriorities.get(cleanUpClass.getName());
+    return (priority != null) ? priority : CleanUpPriority.NORMAL;
+  }
+  
+  /** Get the {@link ReflectionCache} shared by all {@link ClassLoaderLeakPreventor}s created by this factory */
+  public ReflectionCache getReflectionCache() {
+    return reflectionCache;
+  }
+
+  /** 
+   * Set the {@link ReflectionCache} to be shared by all {@link ClassLoaderLeakPreventor}s subsequently created by 
+   * this factory. Defaults to {@link ReflectionCache#getDefault()}.
+   */
+  public void setReflectionCache(ReflectionCache reflectionCache) {
+    if(reflectionCache == null)
+      throw new IllegalArgumentException("reflectionCache must not be null");
+    this.reflectionCache = reflectionCache;
+  }
+  
+  /** 
+   * Add {@link LeakPreventionListener} to be notified by {@link ClassLoaderLeakPreventor}s subsequently created by 
+   * this factory. Adding a listener that is already registered has no effect.
+   */
+  public void addListener(LeakPreventionListener listener) {
+    if(listener == null)
+      throw new IllegalArgumentException("listener must not be null");
+    listeners.addIfAbsent(listener);
+  }
+  
+  /** 
+   * Remove {@link LeakPreventionListener}, including the default {@link TimingStatistics#getDefault()} and
+   * {@link CleanUpCostRegistry#getDefault()}
+   */
+  public boolean removeListener(LeakPreventionListener listener) {
+    return listeners.remove(listener);
+  }
+  
+  /** Get the {@link LeakPreventionListener}s currently registered */
+  public List<LeakPreventionListener> getListeners() {
+    return new ArrayList<LeakPreventionListener>(listeners);
+  }
+  
   /** Add a new {@link PreClassLoaderInitiator}, using the class name as name */
   public void addPreInitiator(PreClassLoaderInitiator preClassLoaderInitiator) {
-    addConsideringOrder(this.preInitiators, preClassLoaderInitiator);
+    addConsideringOrder(this.preInitiators, preClassLoaderInitiator.getClass().getName(), preClassLoaderInitiator);
+    if(preClassLoaderInitiator instanceof MBeanRegistrationTracker) // Tracking must be stopped, or it will leak
+      setCleanUpPriority(MBeanCleanUp.class, CleanUpPriority.ESSENTIAL);
   }
 
   /** Add a new {@link ClassLoaderPreMortemCleanUp}, using the class name as name */
   public void addCleanUp(ClassLoaderPreMortemCleanUp classLoaderPreMortemCleanUp) {
-    addConsideringOrder(this.cleanUps, classLoaderPreMortemCleanUp);
-  }
-  
-  /** Add new {@link I} entry to {@code map}, taking {@link MustBeAfter} into account */
-  private <I> void addConsideringOrder(Map<String, I> map, I newEntry) {
-    for(Map.Entry<String, I> entry : map.entrySet()) {
-      if(entry.getValue() instanceof MustBeAfter<?>) {
-        final Class<? extends ClassLoaderPreMortemCleanUp>[] existingMustBeAfter = 
-            ((MustBeAfter<ClassLoaderPreMortemCleanUp>)entry.getValue()).mustBeBeforeMe();
-        for(Class<? extends ClassLoaderPreMortemCleanUp> clazz : existingMustBeAfter) {
-          if(clazz.isAssignableFrom(newEntry.getClass())) { // Entry needs to be after new entry
-            // TODO Resolve order automatically #51
-            throw new IllegalStateException(clazz.getName() + " must be added after " + newEntry.getClass());
+    addConsideringOrder(this.cleanUps, classLoaderPreMortemCleanUp.getClass().getName(), classLoaderPreMortemCleanUp);
+  }
+  
+  /** 
+   * Add new {@link I} entry to {@code map}, taking {@link MustBeAfter} into account. An entry replacing an existing
+   * entry with the same name takes its position. Any entries that must be after the new entry are moved to after it,
+   * otherwise the order is retained.
+   * @throws IllegalStateException if the new entry would create a circular {@link MustBeAfter} dependency, in which
+   *   case {@code map} is left unchanged
+   */
+  private <I> void addConsideringOrder(Map<String, I> map, String name, I newEntry) {
+    //noinspection SynchronizationOnLocalVariableOrMethodParameter
+    synchronized (map) { // Synchronized map
+      final Map<String, I> candidate = new LinkedHashMap<String, I>(map);
+      candidate.put(name, newEntry);
+      
+      final List<String> names = new ArrayList<String>(candidate.keySet());
+      final List<I> entries = new ArrayList<I>(candidate.values());
+      final int[] order = getMustBeAfterOrder(entries);
+      
+      map.clear();
+      for(int index : order) {
+        map.put(names.get(index), entries.get(index));
+      }
+    }
+  }
+  
+  /**
+   * Get the order of the provided elements (by index) that satisfies all {@link MustBeAfter} dependencies. Among the 
+   * elements that may come next, the element that came first in the provided list is always picked, so the 
+   * provided order is retained as far as possible, and is returned unchanged if it already satisfies all dependencies.
+   * @throws IllegalStateException if there is a circular dependency, including an element that must be after itself 
+   */
+  static int[] getMustBeAfterOrder(List<?> elements) {
+    final int size = elements.size();
+    final List<List<Integer>> dependents = new ArrayList<List<Integer>>(size); // Index => indices that must be after
+    for(int i = 0; i < size; i++)
+      dependents.add(new ArrayList<Integer>());
+    
+    final int[] noOfPrerequisites = new int[size];
+    for(int i = 0; i < size; i++) {
+      final Object element = elements.get(i);
+      if(element instanceof MustBeAfter) {
+        final Class<?>[] mustBeBeforeMe = ((MustBeAfter<?>) element).mustBeBeforeMe();
+        if(mustBeBeforeMe != null) {
+          for(int j = 0; j < size; j++) {
+            if(isInstanceOfAny(elements.get(j), mustBeBeforeMe)) {
+              dependents.get(j).add(i);
+              noOfPrerequisites[i]++;
+            }
           }
         }
       }
     }
     
-    map.put(newEntry.getClass().getName(), newEntry);
+    final int[] output = new int[size];
+    final boolean[] added = new boolean[size];
+    for(int n = 0; n < size; n++) {
+      int next = -1;
+      for(int i = 0; i < size && next < 0; i++) {
+        if(! added[i] && noOfPrerequisites[i] == 0)
+          next = i;
+      }
+      
+      if(next < 0) { // There are elements left, but all of them are waiting for others
+        final List<String> circular = new ArrayList<String>();
+        for(int i = 0; i < size; i++) {
+          if(! added[i])
+            circular.add(elements.get(i).getClass().getName());
+        }
+        throw new IllegalStateException("Circular " + MustBeAfter.class.getSimpleName() + " dependency among " + circular);
+      }
+      
+      output[n] = next;
+      added[next] = true;
+      for(int dependent : dependents.get(next))
+        noOfPrerequisites[dependent]--;
+    }
+    return output;
+  }
+  
+  /** Is {@code o} an instance of any of the provided classes? */
+  static boolean isInstanceOfAny(Object o, Class<?>[] classes) {
+    for(Class<?> clazz : classes) {
+      if(clazz != null && clazz.isInstance(o))
+        return true;
+    }
+    return false;
   }
 
-  /** Add a new named {@link ClassLoaderPreMortemCleanUp} */
+  /** Add a new named {@link ClassLoaderPreMortemCleanUp}, taking {@link MustBeAfter} into account */
   public void addCleanUp(String name, ClassLoaderPreMortemCleanUp classLoaderPreMortemCleanUp) {
-    this.cleanUps.put(name, classLoaderPreMortemCleanUp);
+    addConsideringOrder(this.cleanUps, name, classLoaderPreMortemCleanUp);
   }
   
   /** Remove all the currently configured {@link PreClassLoaderInitiator}s */
@@ -0,0 +1,80 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Decides which {@link ClassLoaderPreMortemCleanUp}s to run within a total time budget, based on their
+ * {@link CleanUpPriority} and expected cost. Time needed by subsequent cleanups of higher priority is reserved, so
+ * that a cleanup is skipped if running it would leave too little time for them. {@link CleanUpPriority#ESSENTIAL}
+ * cleanups are always run. Cleanups of unknown cost are expected to take no time.
+ * @author Mattias Jiderhamn
+ */
+class CleanUpBudget {
+
+  /** Point in time, as per {@link System#nanoTime()}, when the budget is exhausted */
+  private final long deadlineNanos;
+
+  private final CleanUpPriority[] priorities;
+
+  private final long[] expectedNanos;
+
+  /** Sum of expected cost of the {@link CleanUpPriority#ESSENTIAL} cleanups after each index */
+  private final long[] essentialAfter;
+
+  /** Sum of expected cost of the {@link CleanUpPriority#NORMAL} cleanups after each index */
+  private final long[] normalAfter;
+
+  /**
+   * @param budgetNanos Total time budget
+   * @param startNanos Start time as per {@link System#nanoTime()}
+   * @param priorities Priority of each cleanup, in the order they are run
+   * @param expectedNanos Expected cost of each cleanup, in the order they are run
+   */
+  CleanUpBudget(long budgetNanos, long startNanos, CleanUpPriority[] priorities, long[] expectedNanos) {
+    this.deadlineNanos = startNanos + budgetNanos;
+    this.priorities = priorities;
+    this.expectedNanos = expectedNanos;
+
+    final int size = priorities.length;
+    this.essentialAfter = new long[size];
+    this.normalAfter = new long[size];
+    long essential = 0;
+    long normal = 0;
+    for(int i = size - 1; i >= 0; i--) {
+      essentialAfter[i] = essential;
+      normalAfter[i] = normal;
+      if(priorities[i] == CleanUpPriority.ESSENTIAL)
+        essential += expectedNanos[i];
+      else if(priorities[i] == CleanUpPriority.NORMAL)
+        normal += expectedNanos[i];
+    }
+  }
+
+  /** Should the cleanup at the provided index be run, considering the time left at {@code nowNanos}? */
+  boolean shouldRun(int index, long nowNanos) {
+    final CleanUpPriority priority = priorities[index];
+    if(priority == CleanUpPriority.ESSENTIAL)
+      return true;
+
+    long needed = expectedNanos[index] + essentialAfter[index];
+    if(priority == CleanUpPriority.OPTIONAL)
+      needed += normalAfter[index];
+    return needed <= getRemainingNanos(nowNanos);
+  }
+
+  /** Get the time left of the budget at {@code nowNanos}; negative if exceeded */
+  long getRemainingNanos(long nowNanos) {
+    return deadlineNanos - nowNanos;
+  }
+
+  /** Get the point in time, as per {@link System#nanoTime()}, when the budget is exhausted */
+  long getDeadlineNanos() {
+    return deadlineNanos;
+  }
+
+  CleanUpPriority getPriority(int index) {
+    return priorities[index];
+  }
+
+  long getExpectedNanos(int index) {
+    return expectedNanos[index];
+  }
+}
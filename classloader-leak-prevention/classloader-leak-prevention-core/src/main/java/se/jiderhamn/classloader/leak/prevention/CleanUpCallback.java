@@ -0,0 +1,15 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Callback notified when a {@link CleanUpPhase} of {@link ClassLoaderLeakPreventor#runCleanUpsAsync(CleanUpCallback)}
+ * has finished. Must not retain references to the protected classloader.
+ * @author Mattias Jiderhamn
+ */
+public interface CleanUpCallback {
+  
+  /** 
+   * Called when all {@link ClassLoaderPreMortemCleanUp}s of a phase have been run or skipped. For 
+   * {@link CleanUpPhase#DEFERRED} this is called by the background thread.
+   */
+  void phaseFinished(ClassLoaderLeakPreventor preventor, CleanUpPhaseResult result);
+}
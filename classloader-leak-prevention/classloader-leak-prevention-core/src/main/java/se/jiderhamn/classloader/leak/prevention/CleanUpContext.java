@@ -0,0 +1,138 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.PlatformManagedObject;
+import java.security.Provider;
+import java.security.Security;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * JVM wide state shared by all the {@link ClassLoaderPreMortemCleanUp}s invoked by the same
+ * {@link ClassLoaderLeakPreventor#runCleanUps()}, so that a single cleanup run only needs to enumerate all threads,
+ * MBeans etc once, rather than once per {@link ClassLoaderPreMortemCleanUp}.
+ *
+ * Each part of the state is captured lazily, the first time it is requested, and then memoized.
+ * {@link ClassLoaderPreMortemCleanUp}s that change the state in a way that matters to subsequent
+ * {@link ClassLoaderPreMortemCleanUp}s - for example by starting new threads - should invalidate the corresponding
+ * part, so that it will be captured again when next requested. Removing things, such as unregistering MBeans,
+ * does not require invalidation, as long as the {@link ClassLoaderPreMortemCleanUp}s are prepared to find things
+ * that are no longer there.
+ *
+ * Thread safe.
+ * @author Mattias Jiderhamn
+ */
+public class CleanUpContext {
+
+  private final ClassLoaderLeakPreventor preventor;
+
+  private Collection<Thread> threads;
+
+  private Collection<ThreadGroup> threadGroups;
+
+  private Set<ObjectName> mBeanNames;
+
+  private List<Provider> securityProviders;
+
+  private Map<Class<? extends PlatformManagedObject>, List<? extends PlatformManagedObject>> platformMXBeans;
+
+  /** 
+   * Point in time, as per {@link System#nanoTime()}, after which {@link ClassLoaderLeakPreventor#awaitGc()} should not 
+   * wait for garbage collection, or {@code null} if there is no such limit
+   */
+  private final Long gcDeadlineNanos;
+
+  CleanUpContext(ClassLoaderLeakPreventor preventor) {
+    this(preventor, null);
+  }
+
+  CleanUpContext(ClassLoaderLeakPreventor preventor, Long gcDeadlineNanos) {
+    this.preventor = preventor;
+    this.gcDeadlineNanos = gcDeadlineNanos;
+  }
+
+  /** 
+   * Get the no of milliseconds to wait for garbage collection, which is {@code timeoutMs} or the time left until the
+   * GC deadline of this cleanup run, if that is less
+   */
+  long getGcTimeoutMs(long timeoutMs) {
+    if(gcDeadlineNanos == null)
+      return timeoutMs;
+    
+    final long remainingMs = TimeUnit.NANOSECONDS.toMillis(gcDeadlineNanos - System.nanoTime());
+    return Math.max(0, Math.min(timeoutMs, remainingMs));
+  }
+
+  /** Get all threads in the JVM. Memoized version of {@link ClassLoaderLeakPreventor#getAllThreads()}. */
+  public synchronized Collection<Thread> getAllThreads() {
+    if(threads == null)
+      threads = unmodifiableCollection(preventor.getAllThreads());
+    return threads;
+  }
+
+  /** Make sure threads are enumerated again the next time {@link #getAllThreads()} is called */
+  public synchronized void invalidateThreads() {
+    threads = null;
+  }
+
+  /** Get all thread groups in the JVM. Memoized version of {@link ClassLoaderLeakPreventor#getAllThreadGroups()}. */
+  public synchronized Collection<ThreadGroup> getAllThreadGroups() {
+    if(threadGroups == null)
+      threadGroups = unmodifiableCollection(preventor.getAllThreadGroups());
+    return threadGroups;
+  }
+
+  /** Make sure thread groups are enumerated again the next time {@link #getAllThreadGroups()} is called */
+  public synchronized void invalidateThreadGroups() {
+    threadGroups = null;
+  }
+
+  /** Get the names of all the MBeans registered in the {@link ManagementFactory#getPlatformMBeanServer()} */
+  public synchronized Set<ObjectName> getMBeanNames() {
+    if(mBeanNames == null)
+      mBeanNames = unmodifiableSet(ManagementFactory.getPlatformMBeanServer().queryNames(null, null));
+    return mBeanNames;
+  }
+
+  /** Make sure MBeans are enumerated again the next time {@link #getMBeanNames()} is called */
+  public synchronized void invalidateMBeanNames() {
+    mBeanNames = null;
+  }
+
+  /** Get all installed security providers, as per {@link Security#getProviders()} */
+  public synchronized List<Provider> getSecurityProviders() {
+    if(securityProviders == null)
+      securityProviders = unmodifiableList(Arrays.asList(Security.getProviders()));
+    return securityProviders;
+  }
+
+  /** Make sure security providers are enumerated again the next time {@link #getSecurityProviders()} is called */
+  public synchronized void invalidateSecurityProviders() {
+    securityProviders = null;
+  }
+
+  /**
+   * Get all platform MXBeans, as a map from each of {@link ManagementFactory#getPlatformManagementInterfaces()} to the
+   * result of {@link ManagementFactory#getPlatformMXBeans(Class)}.
+   */
+  public synchronized Map<Class<? extends PlatformManagedObject>, List<? extends PlatformManagedObject>> getPlatformMXBeans() {
+    if(platformMXBeans == null) {
+      final Map<Class<? extends PlatformManagedObject>, List<? extends PlatformManagedObject>> output =
+          new LinkedHashMap<Class<? extends PlatformManagedObject>, List<? extends PlatformManagedObject>>();
+      final Set<Class<? extends PlatformManagedObject>> platformInterfaces = ManagementFactory.getPlatformManagementInterfaces();
+      if(platformInterfaces != null) {
+        for(Class<? extends PlatformManagedObject> platformInterface : platformInterfaces) {
+          output.put(platformInterface, ManagementFactory.getPlatformMXBeans(platformInterface));
+        }
+      }
+      platformMXBeans = unmodifiableMap(output);
+    }
+    return platformMXBeans;
+  }
+}
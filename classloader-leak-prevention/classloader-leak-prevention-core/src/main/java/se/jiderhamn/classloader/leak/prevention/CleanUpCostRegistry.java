@@ -0,0 +1,119 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.Properties;
+
+/**
+ * {@link LeakPreventionListener} that keeps the mean duration of each {@link ClassLoaderPreMortemCleanUp}, used as its
+ * expected cost by the {@link ClassLoaderLeakPreventor#setCleanUpTimeBudgetMs(long) cleanup time budget}. Since the
+ * classes of this library may be loaded by the classloaders we want to avoid leaking, in which case static state such
+ * as {@link TimingStatistics#getDefault()} is lost at every redeploy, the means are kept as {@link String} system
+ * properties, named {@value #PROPERTY_PREFIX} + cleanup class name, with the no of invocations and the total
+ * duration in nanoseconds as value. That way they are held by the system classloader, and are shared by all copies
+ * of this library in the JVM, just like the records of {@link JvmGlobalInitiatorRegistry}.
+ *
+ * Once {@value #MAX_COUNT} invocations have been recorded, older invocations are given less weight, so that the mean
+ * follows changes in the cost.
+ *
+ * By default, {@link ClassLoaderLeakPreventorFactory}s register the instance returned by {@link #getDefault()}.
+ * @author Mattias Jiderhamn
+ */
+public class CleanUpCostRegistry implements LeakPreventionListener {
+
+  /** Prefix of the system properties holding the costs */
+  public static final String PROPERTY_PREFIX = "se.jiderhamn.classloader.leak.prevention.cost.";
+
+  /** Max no of invocations to base the mean on */
+  static final long MAX_COUNT = 100;
+
+  /** The instance registered by default */
+  private static final CleanUpCostRegistry DEFAULT = new CleanUpCostRegistry();
+
+  private CleanUpCostRegistry() {
+  }
+
+  /** Get the instance registered by default. All instances share the same system properties. */
+  public static CleanUpCostRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  @Override
+  public void beforePreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator) {
+    // Only cleanups have a budget
+  }
+
+  @Override
+  public void afterPreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator,
+                                           ExecutionResult result) {
+    // Only cleanups have a budget
+  }
+
+  @Override
+  public void beforeCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp) {
+    // Duration is included in ExecutionResult
+  }
+
+  @Override
+  public void afterCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp,
+                           ExecutionResult result) {
+    if(result.getOutcome() != ExecutionResult.Outcome.SKIPPED)
+      record(cleanUp.getClass().getName(), Math.max(0, result.getDurationNanos()));
+  }
+
+  /** Record an invocation of the cleanup with the provided class name */
+  void record(String cleanUpClassName, long nanos) {
+    final String key = PROPERTY_PREFIX + cleanUpClassName;
+    final Properties properties = System.getProperties();
+    synchronized (properties) { // Same lock as the Hashtable methods, so get and put is atomic
+      final long[] countAndTotal = parse(properties.getProperty(key));
+      long count = countAndTotal[0];
+      long totalNanos = countAndTotal[1];
+      if(count >= MAX_COUNT) { // Remove the mean of one invocation, giving older invocations less weight
+        totalNanos -= totalNanos / count;
+        count--;
+      }
+      properties.setProperty(key, (count + 1) + " " + (totalNanos + nanos));
+    }
+  }
+
+  /**
+   * Get the mean duration in nanoseconds of the provided {@link ClassLoaderPreMortemCleanUp} class, across all
+   * classloaders in the JVM, or 0 if never invoked
+   */
+  public long getMeanNanos(Class<? extends ClassLoaderPreMortemCleanUp> cleanUpClass) {
+    return getMeanNanos(cleanUpClass.getName());
+  }
+
+  /** Get the mean duration in nanoseconds of the cleanup with the provided class name, or 0 if never invoked */
+  public long getMeanNanos(String cleanUpClassName) {
+    final long[] countAndTotal = parse(System.getProperty(PROPERTY_PREFIX + cleanUpClassName));
+    return (countAndTotal[0] > 0) ? countAndTotal[1] / countAndTotal[0] : 0;
+  }
+
+  /** Forget the costs of all cleanups */
+  public void clear() {
+    final Properties properties = System.getProperties();
+    for(String name : properties.stringPropertyNames()) {
+      if(name.startsWith(PROPERTY_PREFIX))
+        properties.remove(name);
+    }
+  }
+
+  /** Parse the value of a system property into count and total nanos, both 0 if not a valid value */
+  static long[] parse(String value) {
+    if(value != null) {
+      final int space = value.indexOf(' ');
+      try {
+        if(space > 0) {
+          final long count = Long.parseLong(value.substring(0, space));
+          final long totalNanos = Long.parseLong(value.substring(space + 1));
+          if(count > 0 && totalNanos >= 0)
+            return new long[] {count, totalNanos};
+        }
+      }
+      catch (NumberFormatException e) {
+        // Not valid
+      }
+    }
+    return new long[] {0, 0};
+  }
+}
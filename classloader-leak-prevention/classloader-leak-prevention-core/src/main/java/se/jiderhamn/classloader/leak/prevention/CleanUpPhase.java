@@ -0,0 +1,17 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Phases of {@link ClassLoaderLeakPreventor#runCleanUpsAsync(CleanUpCallback)}
+ * @author Mattias Jiderhamn
+ */
+public enum CleanUpPhase {
+  
+  /** {@link ClassLoaderPreMortemCleanUp}s run before {@link ClassLoaderLeakPreventor#runCleanUpsAsync} returns */
+  SYNCHRONOUS,
+  
+  /** 
+   * The waiting parts of the {@link DeferrableCleanUp}s, and the {@link ClassLoaderPreMortemCleanUp}s that 
+   * {@link MustBeAfter} them, run in the background 
+   */
+  DEFERRED
+}
@@ -0,0 +1,65 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of one {@link CleanUpPhase} of {@link ClassLoaderLeakPreventor#runCleanUpsAsync(CleanUpCallback)}.
+ * Immutable.
+ * @author Mattias Jiderhamn
+ */
+public class CleanUpPhaseResult {
+  
+  private final CleanUpPhase phase;
+  
+  /** Results of the {@link ClassLoaderPreMortemCleanUp}s that were run or skipped, in the order they finished */
+  private final List<ExecutionResult> results;
+  
+  private final long durationNanos;
+  
+  /** Exception or error that aborted the phase, if any */
+  private final Throwable failure;
+
+  public CleanUpPhaseResult(CleanUpPhase phase, List<ExecutionResult> results, long durationNanos, Throwable failure) {
+    this.phase = phase;
+    this.results = Collections.unmodifiableList(results);
+    this.durationNanos = durationNanos;
+    this.failure = failure;
+  }
+
+  public CleanUpPhase getPhase() {
+    return phase;
+  }
+
+  /** Get results of the {@link ClassLoaderPreMortemCleanUp}s that were run or skipped, in the order they finished */
+  public List<ExecutionResult> getResults() {
+    return results;
+  }
+
+  /** Get duration of the whole phase in nanoseconds */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /** Get the exception or error that aborted the phase, or {@code null} if all {@link ClassLoaderPreMortemCleanUp}s were run or skipped */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /** Did all {@link ClassLoaderPreMortemCleanUp}s of the phase finish without failure? */
+  public boolean isSuccessful() {
+    if(failure != null)
+      return false;
+    for(ExecutionResult result : results) {
+      if(result.getOutcome() == ExecutionResult.Outcome.FAILURE)
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return phase + " cleanup phase " + (isSuccessful() ? "finished" : "failed") + " in " + (durationNanos / 1000000) + 
+        " ms for " + results.size() + " cleanup(s)" + ((failure != null) ? ": " + failure : "");
+  }
+}
@@ -0,0 +1,22 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Priority of a {@link ClassLoaderPreMortemCleanUp}, deciding which cleanups are skipped when
+ * {@link ClassLoaderLeakPreventor#runCleanUps()} would otherwise exceed its
+ * {@link ClassLoaderLeakPreventor#setCleanUpTimeBudgetMs(long) time budget}.
+ * @author Mattias Jiderhamn
+ */
+public enum CleanUpPriority {
+
+  /** Always run, even if the time budget is exceeded. Time is reserved for these before running other cleanups. */
+  ESSENTIAL,
+
+  /** Run unless there is not enough time left for it and the remaining {@link #ESSENTIAL} cleanups. The default. */
+  NORMAL,
+
+  /**
+   * Low value cleanup, that is skipped unless there is enough time left for it and all remaining {@link #ESSENTIAL} and
+   * {@link #NORMAL} cleanups.
+   */
+  OPTIONAL
+}
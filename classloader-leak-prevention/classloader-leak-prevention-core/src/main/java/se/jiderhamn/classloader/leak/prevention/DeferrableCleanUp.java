@@ -0,0 +1,20 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Interface for {@link ClassLoaderPreMortemCleanUp}s that may take long because they wait, for example for threads or
+ * shutdown hooks to finish. When run by {@link ClassLoaderLeakPreventor#runCleanUpsAsync(CleanUpCallback)}, only the
+ * waiting is done in the background, while the rest of the cleanup is done in order with the other cleanups before 
+ * the method returns. Cleanups that {@link MustBeAfter} a {@link DeferrableCleanUp} with something to wait for are
+ * run in the background too, after the waiting.
+ * @author Mattias Jiderhamn
+ */
+public interface DeferrableCleanUp {
+  
+  /**
+   * Do what {@link ClassLoaderPreMortemCleanUp#cleanUp(ClassLoaderLeakPreventor)} does, except for any waiting, which
+   * is instead returned to be run in the background. Since the protected classloader may already have been stopped
+   * by the container when the returned {@link Runnable} is run, it must not need to load any classes from it.
+   * @return The waiting part of the cleanup, or {@code null} if there is nothing to wait for
+   */
+  Runnable cleanUpWithoutWaiting(ClassLoaderLeakPreventor preventor);
+}
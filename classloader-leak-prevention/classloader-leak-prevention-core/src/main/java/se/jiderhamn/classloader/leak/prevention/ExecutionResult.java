@@ -0,0 +1,84 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * The result of invoking a single {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp}, as reported
+ * to {@link LeakPreventionListener}s. Immutable.
+ * @author Mattias Jiderhamn
+ */
+public class ExecutionResult {
+
+  public enum Outcome {
+    /** Finished without throwing */
+    SUCCESS,
+
+    /** 
+     * Threw an exception or error, see {@link #getThrowable()}, or a {@link JvmGlobalInitiator} reported that it did
+     * not succeed 
+     */
+    FAILURE,
+
+    /** Not invoked at all */
+    SKIPPED
+  }
+
+  /** The {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp} */
+  private final Object plugin;
+
+  /** Start time as per {@link System#currentTimeMillis()} */
+  private final long startTimeMillis;
+
+  /** Duration as per {@link System#nanoTime()} */
+  private final long durationNanos;
+
+  private final Outcome outcome;
+
+  private final Throwable throwable;
+
+  public ExecutionResult(Object plugin, long startTimeMillis, long durationNanos, Outcome outcome, Throwable throwable) {
+    this.plugin = plugin;
+    this.startTimeMillis = startTimeMillis;
+    this.durationNanos = durationNanos;
+    this.outcome = outcome;
+    this.throwable = throwable;
+  }
+
+  /** Create result for plugin that was not invoked */
+  public static ExecutionResult skipped(Object plugin) {
+    return new ExecutionResult(plugin, System.currentTimeMillis(), 0, Outcome.SKIPPED, null);
+  }
+
+  /** Get the {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp} */
+  public Object getPlugin() {
+    return plugin;
+  }
+
+  /** Get start time in milliseconds, as per {@link System#currentTimeMillis()} */
+  public long getStartTimeMillis() {
+    return startTimeMillis;
+  }
+
+  /** Get end time in milliseconds, as per {@link System#currentTimeMillis()} */
+  public long getEndTimeMillis() {
+    return startTimeMillis + durationNanos / 1000000;
+  }
+
+  /** Get duration in nanoseconds */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
+  /** Get the exception or error thrown, in case of {@link Outcome#FAILURE}, if any */
+  public Throwable getThrowable() {
+    return throwable;
+  }
+
+  @Override
+  public String toString() {
+    return plugin.getClass().getName() + " " + outcome + " in " + (durationNanos / 1000000) + " ms" +
+        ((throwable != null) ? ": " + throwable : "");
+  }
+}
@@ -0,0 +1,181 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Reads and writes an (accessible) field, resolved once, typically for fields of JDK internal classes that are read
+ * in loops over all threads or all entries. Where available, {@link MethodHandle}s are used, since they can be inlined
+ * by the JIT; otherwise plain {@link Field} reflection is used. Use {@link #of(Field)} to create instances, or
+ * preferably {@link ClassLoaderLeakPreventor#findFieldAccessor(Class, String)}, that also deals with fields that are
+ * not accessible.
+ *
+ * Both {@link #get(Object)} and {@link #set(Object, Object)} throw unchecked exceptions only; checked exceptions are
+ * wrapped in {@link IllegalStateException}. For static fields, the object argument is ignored.
+ * @author Mattias Jiderhamn
+ */
+public abstract class FieldAccessor {
+
+  /** Is {@link java.lang.invoke} available in this JVM? */
+  private static final boolean METHOD_HANDLES_AVAILABLE = isMethodHandlesAvailable();
+
+  protected final Field field;
+
+  protected FieldAccessor(Field field) {
+    this.field = field;
+  }
+
+  /**
+   * Create {@link FieldAccessor} for the provided field, which should already be accessible. Returns {@code null}
+   * if {@code field} is {@code null}.
+   */
+  public static FieldAccessor of(Field field) {
+    if(field == null)
+      return null;
+
+    if(METHOD_HANDLES_AVAILABLE) {
+      try {
+        return new MethodHandleFieldAccessor(field);
+      }
+      catch (Throwable t) { // IllegalAccessException, SecurityException
+        // Fall back to reflection
+      }
+    }
+    return new ReflectionFieldAccessor(field);
+  }
+
+  /** Get the underlying {@link Field} */
+  public Field getField() {
+    return field;
+  }
+
+  /** Get the value of the field of the provided object, or the static field value */
+  public abstract Object get(Object obj);
+
+  /** Set the value of the field of the provided object, or the static field value */
+  public abstract void set(Object obj, Object value);
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + field + "]";
+  }
+
+  private static boolean isMethodHandlesAvailable() {
+    try {
+      Class.forName("java.lang.invoke.MethodHandles");
+      return true;
+    }
+    catch (Throwable t) { // ClassNotFoundException
+      return false;
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** {@link FieldAccessor} using {@link Field} reflection */
+  static class ReflectionFieldAccessor extends FieldAccessor {
+
+    ReflectionFieldAccessor(Field field) {
+      super(field);
+    }
+
+    @Override
+    public Object get(Object obj) {
+      try {
+        return field.get(obj);
+      }
+      catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void set(Object obj, Object value) {
+      try {
+        field.set(obj, value);
+      }
+      catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /** {@link FieldAccessor} using {@link MethodHandle}s, that are adapted to always take the object as argument */
+  static class MethodHandleFieldAccessor extends FieldAccessor {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final MethodHandle getter;
+
+    /** Setter, or {@code null} if the field is final */
+    private final MethodHandle setter;
+
+    MethodHandleFieldAccessor(Field field) throws IllegalAccessException {
+      super(field);
+      final MethodHandles.Lookup lookup = MethodHandles.lookup();
+      final boolean isStatic = Modifier.isStatic(field.getModifiers());
+
+      MethodHandle getter = lookup.unreflectGetter(field);
+      if(isStatic)
+        getter = MethodHandles.dropArguments(getter, 0, Object.class);
+      this.getter = getter.asType(GETTER_TYPE);
+
+      if(Modifier.isFinal(field.getModifiers())) { // Setting final fields, if at all possible, requires reflection
+        this.setter = null;
+      }
+      else {
+        MethodHandle setter = lookup.unreflectSetter(field);
+        if(isStatic)
+          setter = MethodHandles.dropArguments(setter, 0, Object.class);
+        this.setter = setter.asType(SETTER_TYPE);
+      }
+    }
+
+    @Override
+    public Object get(Object obj) {
+      try {
+        return (Object) getter.invokeExact(obj);
+      }
+      catch (RuntimeException e) {
+        throw e;
+      }
+      catch (Error e) {
+        throw e;
+      }
+      catch (Throwable t) {
+        throw new IllegalStateException(t);
+      }
+    }
+
+    @Override
+    public void set(Object obj, Object value) {
+      if(setter == null) { // Final field
+        try {
+          field.set(obj, value);
+        }
+        catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+        return;
+      }
+
+      try {
+        setter.invokeExact(obj, value);
+      }
+      catch (RuntimeException e) {
+        throw e;
+      }
+      catch (Error e) {
+        throw e;
+      }
+      catch (Throwable t) {
+        throw new IllegalStateException(t);
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * How to make sure garbage collection has been performed, when a {@link ClassLoaderPreMortemCleanUp} needs objects
+ * that are only weakly reachable to be collected. Since a full stop the world garbage collection on a large heap may
+ * take seconds and affect every application in the JVM, it is only forced when {@link #FORCED} is chosen.
+ * @author Mattias Jiderhamn
+ */
+public enum GcStrategy {
+
+  /** 
+   * Do not trigger garbage collection, but wait for the next full or concurrent one to happen by itself. Young 
+   * collections are ignored, since they do not collect objects that have been promoted to the old generation.
+   */
+  NON_FORCING {
+    @Override
+    public boolean awaitGc(long timeoutMs) {
+      return awaitGcNotification(false, timeoutMs);
+    }
+  },
+
+  /**
+   * Request a concurrent garbage collection cycle if the JVM is known to perform explicit garbage collections
+   * concurrently, i.e. with {@code -XX:+ExplicitGCInvokesConcurrent} or a concurrent collector such as ZGC or
+   * Shenandoah, and wait for it to finish. Otherwise same as {@link #NON_FORCING}.
+   */
+  CONCURRENT {
+    @Override
+    public boolean awaitGc(long timeoutMs) {
+      return awaitGcNotification(isExplicitGcConcurrent() && ! isDisableExplicitGCEnabled(), timeoutMs);
+    }
+  },
+
+  /**
+   * Call {@link System#gc()} until garbage collection has been performed. May cause long stop the world pauses.
+   * This was the behaviour of previous versions.
+   */
+  FORCED {
+    @Override
+    public boolean awaitGc(long timeoutMs) {
+      if (isDisableExplicitGCEnabled()) {
+        System.err.println(ClassLoaderLeakPreventor.class.getSimpleName() + ": "
+            + "Skipping GC call since -XX:+DisableExplicitGC is supplied as VM option.");
+        return false;
+      }
+
+      final long deadline = (timeoutMs < Long.MAX_VALUE / 2) ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+      Object obj = new Object();
+      WeakReference<Object> ref = new WeakReference<Object>(obj);
+      //noinspection UnusedAssignment
+      obj = null;
+      while(ref.get() != null) {
+        if(System.currentTimeMillis() > deadline)
+          return false;
+        System.gc();
+      }
+      return true;
+    }
+  };
+
+  /** Type of {@link Notification} sent by {@link GarbageCollectorMXBean}s, as per com.sun.management.GarbageCollectionNotificationInfo */
+  private static final String GARBAGE_COLLECTION_NOTIFICATION = "com.sun.management.gc.notification";
+
+  /**
+   * Wait for garbage collection, as per the strategy, for at most {@code timeoutMs} milliseconds.
+   * @return {@code true} if garbage collection was performed, {@code false} if timed out or otherwise not known to
+   * have happened
+   */
+  public abstract boolean awaitGc(long timeoutMs);
+
+  /**
+   * Wait for a {@link GarbageCollectorMXBean} to report a full or concurrent garbage collection, as per
+   * {@link ClassLoaderCollectionWatchdog#isFullCollection(String, String)}, optionally requesting one via
+   * {@link System#gc()}. Returns {@code false} if timed out or if the JVM does not support notifications.
+   */
+  private static boolean awaitGcNotification(boolean requestGc, long timeoutMs) {
+    final CountDownLatch gcPerformed = new CountDownLatch(1);
+    final NotificationListener listener = new NotificationListener() {
+      @Override
+      public void handleNotification(Notification notification, Object handback) {
+        if(GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()) &&
+            notification.getUserData() instanceof CompositeData) {
+          final CompositeData info = (CompositeData) notification.getUserData();
+          if(ClassLoaderCollectionWatchdog.isFullCollection((String) info.get("gcName"), (String) info.get("gcAction")))
+            gcPerformed.countDown();
+        }
+      }
+    };
+
+    final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+    try {
+      for(GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+        if(gcBean instanceof NotificationEmitter) {
+          ((NotificationEmitter) gcBean).addNotificationListener(listener, null, null);
+          emitters.add((NotificationEmitter) gcBean);
+        }
+      }
+      if(emitters.isEmpty())
+        return false;
+
+      if(requestGc)
+        System.gc();
+      return gcPerformed.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally {
+      for(NotificationEmitter emitter : emitters) {
+        try {
+          emitter.removeNotificationListener(listener);
+        }
+        catch (ListenerNotFoundException e) {
+          // Should not happen
+        }
+      }
+    }
+  }
+
+  /**
+   * Does {@link System#gc()} start a concurrent cycle rather than stopping the world, either because of
+   * {@code -XX:+ExplicitGCInvokesConcurrent} or because the garbage collector is concurrent?
+   */
+  static boolean isExplicitGcConcurrent() {
+    for(String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if(argument.startsWith("-XX:+ExplicitGCInvokesConcurrent"))
+        return true;
+    }
+
+    for(GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      final String name = gcBean.getName();
+      if(name != null && (name.startsWith("ZGC") || name.startsWith("Shenandoah")))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check is "-XX:+DisableExplicitGC" enabled.
+   *
+   * @return true is "-XX:+DisableExplicitGC" is set als vm argument, false otherwise.
+   */
+  static boolean isDisableExplicitGCEnabled() {
+    return ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-XX:+DisableExplicitGC");
+  }
+}
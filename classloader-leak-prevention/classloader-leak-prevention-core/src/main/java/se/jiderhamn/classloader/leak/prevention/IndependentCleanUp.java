@@ -0,0 +1,17 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Marker interface for {@link ClassLoaderPreMortemCleanUp}s that do not depend on, or affect, the state touched by
+ * other {@link ClassLoaderPreMortemCleanUp}s - except those it declares using {@link MustBeAfter} - and that do not
+ * depend on the thread they are invoked by, for example its context classloader, {@link ThreadGroup} or
+ * {@link ThreadLocal}s. When {@link ClassLoaderLeakPreventor#setCleanUpParallelism(int)} is greater than 1,
+ * consecutive {@link IndependentCleanUp}s are run in parallel, on threads with the leak safe classloader as
+ * context classloader.
+ *
+ * {@link ClassLoaderPreMortemCleanUp}s not implementing this interface are always run by the thread invoking
+ * {@link ClassLoaderLeakPreventor#runCleanUps()}, after all previous {@link ClassLoaderPreMortemCleanUp}s have
+ * finished and before any subsequent ones are started.
+ * @author Mattias Jiderhamn
+ */
+public interface IndependentCleanUp {
+}
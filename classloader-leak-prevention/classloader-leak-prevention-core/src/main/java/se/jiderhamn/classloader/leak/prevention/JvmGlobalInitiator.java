@@ -0,0 +1,23 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Interface for {@link PreClassLoaderInitiator}s whose effect is JVM wide and idempotent, typically because they make
+ * a JDK singleton initialize itself in the leak safe classloader. Once such an initiator has succeeded in the JVM, 
+ * there is no need to invoke it again for other classloaders. When 
+ * {@link ClassLoaderLeakPreventor#setRunJvmGlobalInitiatorsOnce(boolean)} is enabled, {@link JvmGlobalInitiator}s
+ * that have already succeeded, as per {@link JvmGlobalInitiatorRegistry}, are skipped.
+ * 
+ * Since initiators commonly log and swallow errors, {@link ClassLoaderLeakPreventor} invokes 
+ * {@link #initialize(ClassLoaderLeakPreventor)} instead of 
+ * {@link PreClassLoaderInitiator#doOutsideClassLoader(ClassLoaderLeakPreventor)}, which in turn should simply 
+ * delegate to {@link #initialize(ClassLoaderLeakPreventor)}.
+ * @author Mattias Jiderhamn
+ */
+public interface JvmGlobalInitiator {
+  
+  /** 
+   * Perform the initialization. Return {@code true} if it succeeded, or {@code false} if it failed, so that it should
+   * be tried again for the next classloader.
+   */
+  boolean initialize(ClassLoaderLeakPreventor preventor);
+}
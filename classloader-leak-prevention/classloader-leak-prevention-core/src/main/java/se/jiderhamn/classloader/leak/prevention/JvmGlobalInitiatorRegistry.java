@@ -0,0 +1,265 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the {@link JvmGlobalInitiator}s that have succeeded in this JVM, so that they are only run once, even
+ * if every application bundles its own copy of this library. Since the classes of this library may be loaded by the
+ * classloaders we want to avoid leaking, the records are kept as {@link String} system properties, named
+ * {@value #PROPERTY_PREFIX} + initiator class name, with the time and the classloader of the application that ran it
+ * as value. That way they are held by the system classloader, and visible for example via JMX.
+ *
+ * Before an initiator is run, it is claimed by atomically setting the system property to {@value #CLAIMED} + the
+ * application, which is visible to all copies of this library. So if applications are deployed concurrently, one of
+ * them runs the initiator while the others wait, and then skip it if it succeeded, or try it themselves if it did not.
+ * No lock is held while the initiator is run, so it cannot cause a deadlock with other code in the JVM. If the claim is
+ * not released within {@link #setClaimTimeoutMs(long) the claim timeout}, for example because the initiator hangs,
+ * the waiting application takes over the claim and runs the initiator anyway.
+ * @author Mattias Jiderhamn
+ */
+public class JvmGlobalInitiatorRegistry {
+
+  /** Prefix of the system properties holding the records */
+  public static final String PROPERTY_PREFIX = "se.jiderhamn.classloader.leak.prevention.initiated.";
+
+  /** Prefix of the value of the system property while the initiator is being run */
+  static final String CLAIMED = "claimed by ";
+
+  /** Max time to wait for a notification before checking a claimed property again, in case it was missed */
+  private static final long WAIT_MS = 100;
+
+  /** Default no of milliseconds to wait for an initiator claimed by another application */
+  public static final long CLAIM_TIMEOUT_MS_DEFAULT = 60 * 1000; // 1 minute
+
+  /** Max no of milliseconds to wait for an initiator claimed by another application, before running it anyway */
+  private volatile long claimTimeoutMs = CLAIM_TIMEOUT_MS_DEFAULT;
+
+  /** The JVM wide instance */
+  private static final JvmGlobalInitiatorRegistry DEFAULT = new JvmGlobalInitiatorRegistry();
+
+  private JvmGlobalInitiatorRegistry() {
+  }
+
+  /** Get the JVM wide instance */
+  public static JvmGlobalInitiatorRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Invoke {@code invocation} of the provided {@link JvmGlobalInitiator} for the application with the provided
+   * classloader, unless the same initiator class has already succeeded in this JVM. The success is recorded only if
+   * {@code invocation} returns {@code true}. Returns {@code true} if invoked, {@code false} if skipped.
+   */
+  public boolean runOnce(JvmGlobalInitiator initiator, ClassLoader app, Invocation invocation) {
+    final String key = PROPERTY_PREFIX + initiator.getClass().getName();
+    if(! claim(key, CLAIMED + describe(app), claimTimeoutMs))
+      return false;
+
+    boolean succeeded = false;
+    try {
+      succeeded = invocation.run();
+    }
+    finally {
+      release(key, succeeded ? System.currentTimeMillis() + " " + describe(app) : null);
+    }
+    return true;
+  }
+
+  /** 
+   * Claim the system property by setting it to {@code claim}, unless already set. While another thread has claimed 
+   * it, wait until released, or at most {@code timeoutMs} after which the claim is taken over. Returns {@code false} 
+   * if the initiator has already succeeded.
+   */
+  private static boolean claim(String key, String claim, long timeoutMs) {
+    final long startNanos = System.nanoTime();
+    boolean interrupted = false;
+    try {
+      while(true) {
+        final Properties properties = System.getProperties(); // Get again in case replaced while waiting
+        synchronized (properties) { // Same lock as the Hashtable methods, so check and put is atomic
+          final String value = properties.getProperty(key);
+          if(value == null) {
+            properties.setProperty(key, claim);
+            return true;
+          }
+          else if(! value.startsWith(CLAIMED))
+            return false;
+          
+          final long remainingMs = timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+          if(remainingMs <= 0) {
+            System.err.println(JvmGlobalInitiatorRegistry.class.getSimpleName() + ": " + 
+                key.substring(PROPERTY_PREFIX.length()) + " has been " + value + " for more than " + timeoutMs + 
+                " ms - running it anyway");
+            properties.setProperty(key, claim);
+            return true;
+          }
+          
+          try {
+            properties.wait(Math.min(WAIT_MS, remainingMs));
+          }
+          catch (InterruptedException e) {
+            interrupted = true; // Keep waiting, but restore status when done
+          }
+        }
+      }
+    }
+    finally {
+      if(interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Release claimed system property, by setting it to {@code record}, or removing it if {@code null} */
+  private static void release(String key, String record) {
+    final Properties properties = System.getProperties();
+    synchronized (properties) {
+      if(record != null)
+        properties.setProperty(key, record);
+      else
+        properties.remove(key);
+      properties.notifyAll();
+    }
+  }
+
+  /** 
+   * Set max no of milliseconds to wait for a {@link JvmGlobalInitiator} that is being run by another application, 
+   * after which it is run anyway. Defaults to {@value #CLAIM_TIMEOUT_MS_DEFAULT}.
+   */
+  public void setClaimTimeoutMs(long claimTimeoutMs) {
+    if(claimTimeoutMs < 0)
+      throw new IllegalArgumentException("claimTimeoutMs must not be negative");
+    this.claimTimeoutMs = claimTimeoutMs;
+  }
+
+  public long getClaimTimeoutMs() {
+    return claimTimeoutMs;
+  }
+
+  /** Get the record of the provided {@link PreClassLoaderInitiator} class, or {@code null} if it has not succeeded */
+  public Record getRecord(Class<? extends PreClassLoaderInitiator> initiatorClass) {
+    return getRecord(initiatorClass.getName());
+  }
+
+  /** Get the record of the {@link PreClassLoaderInitiator} class with the provided name, or {@code null} if none */
+  public Record getRecord(String initiatorClassName) {
+    return Record.parse(initiatorClassName, System.getProperty(PROPERTY_PREFIX + initiatorClassName));
+  }
+
+  /** Get the records of all {@link JvmGlobalInitiator}s that have succeeded, in the order they were run */
+  public List<Record> getRecords() {
+    final List<Record> output = new ArrayList<Record>();
+    final Properties properties = System.getProperties();
+    for(String name : properties.stringPropertyNames()) {
+      if(name.startsWith(PROPERTY_PREFIX)) {
+        final Record record = Record.parse(name.substring(PROPERTY_PREFIX.length()), properties.getProperty(name));
+        if(record != null)
+          output.add(record);
+      }
+    }
+    Collections.sort(output);
+    return output;
+  }
+
+  /** 
+   * Forget the provided {@link PreClassLoaderInitiator} class, so that it will be run again. Returns {@code false} if
+   * it has not succeeded, or is currently being run.
+   */
+  public boolean forget(Class<? extends PreClassLoaderInitiator> initiatorClass) {
+    return forget(PROPERTY_PREFIX + initiatorClass.getName());
+  }
+  
+  /** Remove the system property, unless currently claimed */
+  private static boolean forget(String key) {
+    final Properties properties = System.getProperties();
+    synchronized (properties) {
+      final String value = properties.getProperty(key);
+      if(value == null || value.startsWith(CLAIMED))
+        return false;
+      
+      properties.remove(key);
+      return true;
+    }
+  }
+
+  /** Forget all {@link JvmGlobalInitiator}s, except those currently being run, so that they will be run again */
+  public void clear() {
+    for(Record record : getRecords()) {
+      forget(PROPERTY_PREFIX + record.getInitiatorClassName());
+    }
+  }
+
+  /** Describe the classloader in a way that does not reference it */
+  static String describe(ClassLoader classLoader) {
+    return (classLoader == null) ? "null" :
+        classLoader.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(classLoader));
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Invocation of a {@link JvmGlobalInitiator} by {@link #runOnce(JvmGlobalInitiator, ClassLoader, Invocation)} */
+  public interface Invocation {
+    /** Invoke the initiator, and return {@code true} if it succeeded */
+    boolean run();
+  }
+
+  /** Record of a {@link JvmGlobalInitiator} that has succeeded. Immutable. */
+  public static class Record implements Comparable<Record> {
+
+    private final String initiatorClassName;
+
+    /** Time as per {@link System#currentTimeMillis()} */
+    private final long timeMillis;
+
+    /** The classloader of the application that ran the initiator, as per {@link #describe(ClassLoader)} */
+    private final String app;
+
+    Record(String initiatorClassName, long timeMillis, String app) {
+      this.initiatorClassName = initiatorClassName;
+      this.timeMillis = timeMillis;
+      this.app = app;
+    }
+
+    /** Parse the value of a system property, or return {@code null} if it is not a valid record */
+    static Record parse(String initiatorClassName, String value) {
+      if(value == null)
+        return null;
+
+      final int space = value.indexOf(' ');
+      try {
+        return (space < 0) ? null :
+            new Record(initiatorClassName, Long.parseLong(value.substring(0, space)), value.substring(space + 1));
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    public String getInitiatorClassName() {
+      return initiatorClassName;
+    }
+
+    /** Get the time the initiator succeeded, as per {@link System#currentTimeMillis()} */
+    public long getTimeMillis() {
+      return timeMillis;
+    }
+
+    /** Get the class name and identity hash code of the classloader of the application that ran the initiator */
+    public String getApp() {
+      return app;
+    }
+
+    @Override
+    public int compareTo(Record other) {
+      return (timeMillis < other.timeMillis) ? -1 : ((timeMillis == other.timeMillis) ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+      return initiatorClassName + " run at " + new java.util.Date(timeMillis) + " by " + app;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Listener that is notified before and after each {@link PreClassLoaderInitiator} and
+ * {@link ClassLoaderPreMortemCleanUp} is invoked by a {@link ClassLoaderLeakPreventor}, for example to measure how
+ * long each of them take. Register on the {@link ClassLoaderLeakPreventorFactory} using
+ * {@link ClassLoaderLeakPreventorFactory#addListener(LeakPreventionListener)}.
+ *
+ * Implementations must be thread safe, since {@link ClassLoaderPreMortemCleanUp}s may be run in parallel, and should
+ * be fast. They must not retain references to the protected classloader, or anything loaded by it. Exceptions thrown
+ * by listeners are logged and ignored.
+ * @author Mattias Jiderhamn
+ * @see TimingStatistics
+ */
+public interface LeakPreventionListener {
+
+  /** Called right before the {@link PreClassLoaderInitiator} is invoked */
+  void beforePreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator);
+
+  /** Called after the {@link PreClassLoaderInitiator} has been invoked, whether successful or not */
+  void afterPreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator,
+                                    ExecutionResult result);
+
+  /** Called right before the {@link ClassLoaderPreMortemCleanUp} is invoked */
+  void beforeCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp);
+
+  /**
+   * Called after the {@link ClassLoaderPreMortemCleanUp} has been invoked, whether successful or not, or when it has
+   * been {@link ExecutionResult.Outcome#SKIPPED skipped}, in which case
+   * {@link #beforeCleanUp(ClassLoaderLeakPreventor, ClassLoaderPreMortemCleanUp)} is not called.
+   */
+  void afterCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp, ExecutionResult result);
+}
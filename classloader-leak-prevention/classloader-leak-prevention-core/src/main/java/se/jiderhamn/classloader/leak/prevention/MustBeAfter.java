@@ -4,7 +4,10 @@ package se.jiderhamn.classloader.leak.prevention;
  * Interface to be implemented by {@link PreClassLoaderInitiator}s and {@link ClassLoaderPreMortemCleanUp}s when order
  * is important. The class implementing this interface will define what other implementations it needs to be invoked
  * *after* for correct behaviour. It is the responsibility of {@link ClassLoaderLeakPreventorFactory} to make sure
- * the implementations are ordered correctly. Currently an {@link IllegalStateException} will be thrown (TODO #51)
+ * the implementations are ordered correctly, which it does by moving any implementations that must be after a newly 
+ * added one. Circular dependencies cause an {@link IllegalStateException}.
+ * When {@link ClassLoaderPreMortemCleanUp}s are run in parallel (see {@link IndependentCleanUp}), the order is
+ * respected as well.
  * @param <I> The interface that both this class and the dependent classes implements, 
  * i.e. either {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp}. 
  * 
@@ -0,0 +1,754 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+
+/**
+ * Find out what keeps a classloader from being garbage collected, without a heap dump. Starting from the roots known
+ * to cause classloader leaks, the object graph is walked reflectively, breadth first, to find the shortest reference
+ * paths to any object loaded by the classloader (including the classloader itself). The roots are
+ * <ul>
+ *   <li>all {@link Thread}s, including their {@link Thread#getContextClassLoader() contextClassLoader} and
+ *     {@link ThreadLocal}s,</li>
+ *   <li>static fields of the classes loaded by the system classloader and the ancestors of the classloader, plus a
+ *     number of JDK classes with known registries, such as {@link java.sql.DriverManager} and shutdown hooks, and
+ *     any classes {@link #addRootClass(Class) added}. Since Java 12 the classes of a classloader cannot be listed via
+ *     reflection, so then the static fields of the classes of the objects visited are added as the search proceeds.
+ *     Since reading a static field initializes the class, static fields are only read for classes known to already be
+ *     initialized - those with instances visited, those added, and others only if that can be checked using
+ *     {@code sun.misc.Unsafe.shouldBeInitialized()} - so that no static initializers are run by the search,</li>
+ *   <li>the {@link MBeanServer}s,</li>
+ *   <li>the security {@link Provider}s and</li>
+ *   <li>the ImageIO {@link javax.imageio.spi.IIORegistry}.</li>
+ * </ul>
+ * Weak and soft references are not followed, since they do not prevent garbage collection. Local variables on thread
+ * stacks cannot be found. Fields of JDK classes are only followed when accessible via reflection, which may require
+ * {@code --add-opens} on Java 9+.
+ *
+ * Memory usage is bounded: visited objects are tracked in a bitmap indexed by {@link System#identityHashCode(Object)}
+ * of {@link #setVisitedBits(int) fixed size}, and the search stops at {@link #setMaxNodes(int) max no of nodes},
+ * {@link #setMaxDepth(int) max depth} or {@link #setTimeoutMs(long) timeout}. The price for the bitmap is that
+ * objects whose identity hash code collides with that of an object already visited are skipped, so a path may be
+ * missed, but never made up. When run {@link #findPathsInBackground() in the background}, the search is time sliced,
+ * pausing regularly so that it can be used in production.
+ *
+ * Note that while searching, the classloader is strongly referenced.
+ * @author Mattias Jiderhamn
+ */
+public class ReferencePathFinder {
+
+  /** Default max length of a reference path */
+  public static final int MAX_DEPTH_DEFAULT = 64;
+
+  /** Default max no of objects to visit */
+  public static final int MAX_NODES_DEFAULT = 1000000;
+
+  /** Default size of the visited bitmap; 2^26 bits = 8 MB */
+  public static final int VISITED_BITS_DEFAULT = 1 << 26;
+
+  /** Default max no of paths to find */
+  public static final int MAX_PATHS_DEFAULT = 5;
+
+  /** Default max no of milliseconds the search may take */
+  public static final long TIMEOUT_MS_DEFAULT = 60 * 1000;
+
+  /** JDK classes, loaded by the bootstrap classloader, with static fields known to cause classloader leaks */
+  private static final String[] BOOTSTRAP_ROOT_CLASSES = {
+    "java.lang.ApplicationShutdownHooks",
+    "java.lang.Thread",
+    "java.beans.Introspector",
+    "java.beans.ThreadGroupContext",
+    "java.io.ObjectStreamClass$Caches",
+    "java.net.Authenticator",
+    "java.net.CookieHandler",
+    "java.net.ProxySelector",
+    "java.net.ResponseCache",
+    "java.net.URL",
+    "java.security.Policy",
+    "java.security.Security",
+    "java.sql.DriverManager",
+    "java.util.ResourceBundle",
+    "java.util.logging.LogManager",
+    "javax.management.MBeanServerFactory",
+    "javax.naming.spi.NamingManager",
+    "javax.net.ssl.HttpsURLConnection",
+    "javax.security.auth.Policy",
+    "sun.rmi.transport.ObjectTable"
+  };
+
+  /** Path element of a {@link Thread#getContextClassLoader()} when not followed via field */
+  private static final String CONTEXT_CLASS_LOADER = "getContextClassLoader()";
+
+  /** No of objects to process between checking the time */
+  private static final int CHECK_TIME_INTERVAL = 256;
+
+  /** sun.misc.Unsafe instance, or {@code null} if not available */
+  private static final Object UNSAFE;
+
+  /** sun.misc.Unsafe.shouldBeInitialized(Class), or {@code null} if not available */
+  private static final Method SHOULD_BE_INITIALIZED;
+
+  static {
+    Object unsafe = null;
+    Method shouldBeInitialized = null;
+    try {
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      shouldBeInitialized = unsafeClass.getMethod("shouldBeInitialized", Class.class);
+      unsafe = theUnsafe.get(null);
+    }
+    catch (Throwable e) { // ClassNotFoundException, NoSuchFieldException, NoSuchMethodException, SecurityException
+      shouldBeInitialized = null; // Only classes with instances visited will have their static fields read
+    }
+    UNSAFE = unsafe;
+    SHOULD_BE_INITIALIZED = shouldBeInitialized;
+  }
+
+  private final ClassLoader classLoader;
+
+  private final Logger logger;
+
+  /** Classes whose static fields are roots */
+  private final Set<Class<?>> rootClasses = Collections.newSetFromMap(new IdentityHashMap<Class<?>, Boolean>());
+
+  /** Objects not to follow */
+  private final Set<Object> excluded = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+  private String name;
+
+  private int maxDepth = MAX_DEPTH_DEFAULT;
+
+  private int maxNodes = MAX_NODES_DEFAULT;
+
+  private int visitedBits = VISITED_BITS_DEFAULT;
+
+  private int maxPaths = MAX_PATHS_DEFAULT;
+
+  private long timeoutMs = TIMEOUT_MS_DEFAULT;
+
+  private long sliceMs = 10;
+
+  private long pauseMs = 10;
+
+  /**
+   * @param classLoader The classloader that should have been garbage collected
+   * @param logger {@link Logger} used when searching in the background, and for problems
+   */
+  public ReferencePathFinder(ClassLoader classLoader, Logger logger) {
+    this.classLoader = classLoader;
+    this.logger = logger;
+    this.name = classLoader.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(classLoader));
+  }
+
+  /** Do not follow references from the provided object, such as a {@link ClassLoaderLeakPreventor} */
+  public ReferencePathFinder exclude(Object o) {
+    synchronized (excluded) {
+      excluded.add(o);
+    }
+    return this;
+  }
+
+  /** Use the static fields of the provided class as roots. The class will be initialized, unless already. */
+  public ReferencePathFinder addRootClass(Class<?> clazz) {
+    synchronized (rootClasses) {
+      rootClasses.add(clazz);
+    }
+    return this;
+  }
+
+  /** Search for reference paths in the calling thread, without pausing */
+  public Result findPaths() {
+    return new Search(false, null).run();
+  }
+
+  /**
+   * Search for reference paths in a new daemon thread, pausing {@link #setTimeSlice(long, long) regularly}. The result is
+   * logged when done.
+   */
+  public Future<Result> findPathsInBackground() {
+    final AtomicReference<FutureTask<Result>> self = new AtomicReference<FutureTask<Result>>();
+    final FutureTask<Result> future = new FutureTask<Result>(new Callable<Result>() {
+      @Override
+      public Result call() {
+        final Result result = new Search(true, self.get()).run(); // The task references the classloader via this finder
+        log(result);
+        return result;
+      }
+    });
+    self.set(future);
+
+    // Use doPrivileged() so that the thread does not inherit the ProtectionDomains of the caller
+    AccessController.doPrivileged(new PrivilegedAction<Object>() {
+      @Override
+      public Object run() {
+        final Thread thread = new Thread(future, ReferencePathFinder.class.getSimpleName());
+        thread.setContextClassLoader(ReferencePathFinder.class.getClassLoader());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return null;
+      }
+    });
+    return future;
+  }
+
+  /** Log the result, with one line per path */
+  protected void log(Result result) {
+    for(ReferencePath path : result.getPaths()) {
+      logger.warn("event=referencePath classLoader=" + name + " depth=" + path.getElements().size() +
+          " path=" + path.toLine());
+    }
+    logger.info("event=referencePathSearchDone classLoader=" + name + " paths=" + result.getPaths().size() +
+        " nodes=" + result.getNodesVisited() + " durationMs=" + result.getDurationMs() +
+        ((result.getTruncationReason() != null) ? " truncated=" + result.getTruncationReason() : "") +
+        " inaccessibleFields=" + result.getInaccessibleFields());
+  }
+
+  /** Is the object loaded by the classloader, or a child thereof, or is it the classloader or a child? */
+  private boolean isTarget(Object o, Map<Class<?>, Boolean> classVerdicts) {
+    if(o instanceof ClassLoader && isClassLoaderOrChild((ClassLoader) o))
+      return true;
+
+    final Class<?> clazz = (o instanceof Class) ? (Class<?>) o : o.getClass();
+    Boolean verdict = classVerdicts.get(clazz);
+    if(verdict == null) {
+      verdict = isClassLoaderOrChild(clazz.getClassLoader());
+      classVerdicts.put(clazz, verdict);
+    }
+    return verdict;
+  }
+
+  private boolean isClassLoaderOrChild(ClassLoader cl) {
+    while(cl != null) {
+      if(cl == classLoader)
+        return true;
+      cl = cl.getParent();
+    }
+    return false;
+  }
+
+  /** Collect the classloaders whose classes' static fields are roots */
+  private Set<ClassLoader> getRootClassLoaders() {
+    final Set<ClassLoader> classLoaders = Collections.newSetFromMap(new IdentityHashMap<ClassLoader, Boolean>());
+    for(ClassLoader cl : Arrays.asList(ClassLoader.getSystemClassLoader(), classLoader.getParent(),
+        ReferencePathFinder.class.getClassLoader())) {
+      for(; cl != null; cl = cl.getParent()) {
+        if(! isClassLoaderOrChild(cl))
+          classLoaders.add(cl);
+      }
+    }
+    return classLoaders;
+  }
+
+  /** Get the classes loaded by the classloader, or an empty list if not accessible */
+  private List<Class<?>> getClasses(ClassLoader cl) {
+    try {
+      final Field classesField = ClassLoader.class.getDeclaredField("classes");
+      classesField.setAccessible(true);
+      final Collection<?> classes = (Collection<?>) classesField.get(cl);
+      if(classes != null) {
+        final List<Class<?>> output = new ArrayList<Class<?>>();
+        for(Object clazz : classes.toArray()) { // Snapshot
+          if(clazz instanceof Class)
+            output.add((Class<?>) clazz);
+        }
+        return output;
+      }
+    }
+    catch (Exception e) { // NoSuchFieldException, IllegalAccessException, InaccessibleObjectException
+      // Java 12+; use classes of objects visited
+    }
+    return Collections.emptyList();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  // Settings
+
+  /** Set name to identify the classloader in the log */
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  /** Set max length of reference paths */
+  public void setMaxDepth(int maxDepth) {
+    if(maxDepth < 1)
+      throw new IllegalArgumentException("maxDepth must be at least 1");
+    this.maxDepth = maxDepth;
+  }
+
+  /** Set max no of objects to visit, which limits the memory used to a few bytes per object */
+  public void setMaxNodes(int maxNodes) {
+    if(maxNodes < 1)
+      throw new IllegalArgumentException("maxNodes must be at least 1");
+    this.maxNodes = maxNodes;
+  }
+
+  /**
+   * Set size of the bitmap of visited objects, in bits. Is rounded up to a power of two. Should be much larger than
+   * {@link #setMaxNodes(int) max no of nodes}, or many objects will be skipped due to identity hash code collisions.
+   */
+  public void setVisitedBits(int visitedBits) {
+    if(visitedBits < 64 || visitedBits > (1 << 30))
+      throw new IllegalArgumentException("visitedBits must be between 64 and 2^30");
+    this.visitedBits = visitedBits;
+  }
+
+  /** Set max no of paths to find */
+  public void setMaxPaths(int maxPaths) {
+    if(maxPaths < 1)
+      throw new IllegalArgumentException("maxPaths must be at least 1");
+    this.maxPaths = maxPaths;
+  }
+
+  /** Set max no of milliseconds the search may take */
+  public void setTimeoutMs(long timeoutMs) {
+    if(timeoutMs < 1)
+      throw new IllegalArgumentException("timeoutMs must be positive");
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Set no of milliseconds to search, and to pause thereafter, when searching in the background. Defaults to 10 ms
+   * each, i.e. using at most half a CPU.
+   */
+  public void setTimeSlice(long sliceMs, long pauseMs) {
+    if(sliceMs < 1 || pauseMs < 0)
+      throw new IllegalArgumentException("sliceMs must be positive and pauseMs not negative");
+    this.sliceMs = sliceMs;
+    this.pauseMs = pauseMs;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A single search. The objects visited are kept in arrays, which also serve as the breadth first queue. */
+  private class Search {
+
+    private final boolean timeSliced;
+
+    private final long[] visited;
+
+    private final int visitedMask;
+
+    /** The objects visited */
+    private Object[] objects = new Object[1024];
+
+    /** Index of the object referencing each object, or -1 for roots */
+    private int[] parents = new int[1024];
+
+    /** How each object was referenced: {@link Field}, array index (as {@code null}) or root description */
+    private Object[] vias = new Object[1024];
+
+    /** Array index for each object referenced from an array */
+    private int[] indexes = new int[1024];
+
+    private int[] depths = new int[1024];
+
+    private int size;
+
+    private final Map<Class<?>, Field[]> instanceFields = new IdentityHashMap<Class<?>, Field[]>();
+
+    private final Map<Class<?>, Field[]> staticFields = new IdentityHashMap<Class<?>, Field[]>();
+
+    private final Map<Class<?>, Boolean> classVerdicts = new IdentityHashMap<Class<?>, Boolean>();
+
+    private final Set<Object> excluded;
+
+    /** Classes whose static fields have been added as roots */
+    private final Set<Class<?>> classesAdded = Collections.newSetFromMap(new IdentityHashMap<Class<?>, Boolean>());
+
+    private final List<ReferencePath> paths = new ArrayList<ReferencePath>();
+
+    private int inaccessibleFields;
+
+    private String truncationReason;
+
+    Search(boolean timeSliced, Object task) {
+      this.timeSliced = timeSliced;
+      final int bits = Integer.highestOneBit(visitedBits - 1) << 1; // Round up to power of two
+      this.visited = new long[bits >>> 6];
+      this.visitedMask = bits - 1;
+      synchronized (ReferencePathFinder.this.excluded) {
+        this.excluded = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        this.excluded.addAll(ReferencePathFinder.this.excluded);
+      }
+      this.excluded.add(ReferencePathFinder.this);
+      if(task != null)
+        this.excluded.add(task);
+    }
+
+    Result run() {
+      final long start = System.currentTimeMillis();
+      final long deadline = start + timeoutMs;
+      try {
+        addRoots();
+
+        long sliceStart = System.currentTimeMillis();
+        for(int i = 0; i < size && paths.size() < maxPaths && truncationReason == null; i++) {
+          if(i % CHECK_TIME_INTERVAL == 0) {
+            final long now = System.currentTimeMillis();
+            if(now > deadline) {
+              truncationReason = "timeout";
+              break;
+            }
+            if(timeSliced && now - sliceStart >= sliceMs) {
+              Thread.sleep(pauseMs);
+              sliceStart = System.currentTimeMillis();
+            }
+          }
+          expand(i);
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        truncationReason = "interrupted";
+      }
+      return new Result(paths, size, inaccessibleFields, truncationReason, System.currentTimeMillis() - start);
+    }
+
+    private void addRoots() {
+      // Threads
+      ThreadGroup rootGroup = Thread.currentThread().getThreadGroup();
+      while(rootGroup.getParent() != null)
+        rootGroup = rootGroup.getParent();
+      Thread[] threads = new Thread[rootGroup.activeCount() + 16];
+      int noOfThreads;
+      while((noOfThreads = rootGroup.enumerate(threads, true)) == threads.length)
+        threads = new Thread[threads.length * 2];
+      for(int i = 0; i < noOfThreads; i++) {
+        addRoot(threads[i], "Thread '" + threads[i].getName() + "'");
+      }
+
+      // Static fields
+      for(String className : BOOTSTRAP_ROOT_CLASSES) {
+        try {
+          final Class<?> clazz = Class.forName(className, false, null);
+          if(isInitialized(clazz))
+            addStaticFields(clazz);
+        }
+        catch (Throwable e) { // ClassNotFoundException, LinkageError
+          // Not available in this JVM
+        }
+      }
+      synchronized (rootClasses) {
+        for(Class<?> clazz : rootClasses) {
+          addStaticFields(clazz);
+        }
+      }
+      for(ClassLoader cl : getRootClassLoaders()) {
+        for(Class<?> clazz : getClasses(cl)) {
+          if(isInitialized(clazz))
+            addStaticFields(clazz);
+        }
+      }
+
+      // Registries
+      try {
+        for(MBeanServer mBeanServer : MBeanServerFactory.findMBeanServer(null)) {
+          addRoot(mBeanServer, "MBeanServer " + mBeanServer.getDefaultDomain());
+        }
+      }
+      catch (SecurityException e) {
+        logger.debug("Cannot find MBeanServers: " + e);
+      }
+      for(Provider provider : Security.getProviders()) {
+        addRoot(provider, "Security provider " + provider.getName());
+      }
+      try {
+        addRoot(javax.imageio.spi.IIORegistry.getDefaultInstance(), "IIORegistry");
+      }
+      catch (Throwable e) { // NoClassDefFoundError if module not present
+        logger.debug("Cannot get IIORegistry: " + e);
+      }
+    }
+
+    private void addRoot(Object o, String description) {
+      add(o, -1, description, -1);
+    }
+
+    private void addStaticFields(Class<?> clazz) {
+      if(! classesAdded.add(clazz) || isTarget(clazz, classVerdicts))
+        return; // Already added, or class will be unloaded with the classloader
+
+      for(Field field : getFields(clazz, true)) {
+        final Object value = getValue(field, null);
+        if(value != null)
+          addRoot(value, "static " + clazz.getName() + "." + field.getName());
+      }
+    }
+
+    /** Add references from the object at the provided index */
+    private void expand(int i) {
+      final Object o = objects[i];
+      if(o == null || depths[i] + 1 >= maxDepth)
+        return;
+
+      if(o instanceof Class) {
+        final Class<?> clazz = (Class<?>) o;
+        if(classesAdded.contains(clazz) || isInitialized(clazz)) { // Do not run static initializer
+          for(Field field : getFields(clazz, true)) {
+            add(getValue(field, null), i, field, -1);
+          }
+        }
+      }
+      else if(o instanceof Object[]) {
+        final Object[] array = (Object[]) o;
+        for(int index = 0; index < array.length; index++) {
+          add(array[index], i, null, index);
+        }
+      }
+      else if(! o.getClass().isArray()) { // Primitive arrays have no references
+        if(o instanceof Thread)
+          add(((Thread) o).getContextClassLoader(), i, CONTEXT_CLASS_LOADER, -1); // In case field is not accessible
+        // Since there is an instance, the class and its superclasses are initialized
+        for(Class<?> clazz = o.getClass(); clazz != null && ! classesAdded.contains(clazz); clazz = clazz.getSuperclass()) {
+          addStaticFields(clazz); // In case classes of classloaders could not be listed, or were not initialized
+        }
+        for(Field field : getFields(o.getClass(), false)) {
+          add(getValue(field, o), i, field, -1);
+        }
+      }
+    }
+
+    /** Add object, unless null, excluded or already visited, either as a path or as an object to expand */
+    private void add(Object o, int parent, Object via, int index) {
+      if(o == null || isLeaf(o) || excluded.contains(o))
+        return;
+
+      final int bit = mix(System.identityHashCode(o)) & visitedMask;
+      final long mask = 1L << (bit & 63);
+      if((visited[bit >>> 6] & mask) != 0)
+        return; // Already visited, or identity hash code collision
+      visited[bit >>> 6] |= mask;
+
+      if(isTarget(o, classVerdicts)) {
+        paths.add(createPath(o, parent, via, index));
+        return;
+      }
+
+      if(size == maxNodes) {
+        truncationReason = "maxNodes";
+        return;
+      }
+      if(size == objects.length)
+        grow();
+      objects[size] = o;
+      parents[size] = parent;
+      vias[size] = via;
+      indexes[size] = index;
+      depths[size] = (parent < 0) ? 0 : depths[parent] + 1;
+      size++;
+    }
+
+    private void grow() {
+      final int newLength = (int) Math.min(maxNodes, objects.length * 2L);
+      objects = Arrays.copyOf(objects, newLength);
+      parents = Arrays.copyOf(parents, newLength);
+      vias = Arrays.copyOf(vias, newLength);
+      indexes = Arrays.copyOf(indexes, newLength);
+      depths = Arrays.copyOf(depths, newLength);
+    }
+
+    private ReferencePath createPath(Object target, int parent, Object via, int index) {
+      final List<String> elements = new ArrayList<String>();
+      elements.add(describe(via, index, target));
+      for(int i = parent; i >= 0; i = parents[i]) {
+        elements.add(describe(vias[i], indexes[i], objects[i]));
+      }
+      Collections.reverse(elements);
+      return new ReferencePath(elements);
+    }
+
+    /** Describe how the object was referenced */
+    private String describe(Object via, int index, Object o) {
+      final String type = (o != null) ? o.getClass().getName() : "?";
+      if(via instanceof Field)
+        return "." + ((Field) via).getName() + " (" + type + ")";
+      else if(via instanceof String)
+        return (CONTEXT_CLASS_LOADER.equals(via) ? "." : "") + via + " (" + type + ")";
+      else
+        return "[" + index + "] (" + type + ")";
+    }
+
+    /** Get the non primitive static or instance fields, including those of superclasses, that are accessible */
+    private Field[] getFields(Class<?> clazz, boolean statics) {
+      final Map<Class<?>, Field[]> cache = statics ? staticFields : instanceFields;
+      Field[] fields = cache.get(clazz);
+      if(fields == null) {
+        final List<Field> output = new ArrayList<Field>();
+        for(Class<?> c = clazz; c != null; c = statics ? null : c.getSuperclass()) {
+          final Field[] declaredFields;
+          try {
+            declaredFields = c.getDeclaredFields();
+          }
+          catch (Throwable e) { // NoClassDefFoundError, SecurityException
+            continue;
+          }
+          for(Field field : declaredFields) {
+            if(Modifier.isStatic(field.getModifiers()) == statics && ! field.getType().isPrimitive() &&
+                ! (c == Reference.class && ("referent".equals(field.getName()) || "discovered".equals(field.getName())))) {
+              try {
+                field.setAccessible(true);
+                output.add(field);
+              }
+              catch (RuntimeException e) { // SecurityException, InaccessibleObjectException
+                inaccessibleFields++;
+              }
+            }
+          }
+        }
+        fields = output.toArray(new Field[output.size()]);
+        cache.put(clazz, fields);
+      }
+      return fields;
+    }
+
+    private Object getValue(Field field, Object o) {
+      try {
+        return field.get(o);
+      }
+      catch (Exception e) { // IllegalAccessException
+        return null;
+      }
+      catch (LinkageError e) { // Static initializer failed
+        return null;
+      }
+    }
+  }
+
+  /** 
+   * Is the class known to be initialized, so that reading its static fields will not run its static initializer? 
+   * Returns {@code false} if unknown.
+   */
+  private static boolean isInitialized(Class<?> clazz) {
+    if(SHOULD_BE_INITIALIZED == null)
+      return false;
+    try {
+      return ! (Boolean) SHOULD_BE_INITIALIZED.invoke(UNSAFE, clazz);
+    }
+    catch (Exception e) { // IllegalAccessException, InvocationTargetException
+      return false;
+    }
+  }
+
+  /** Can the object not reference any classloader? */
+  private static boolean isLeaf(Object o) {
+    return o instanceof String || o instanceof Number && o.getClass().getClassLoader() == null ||
+        o instanceof Boolean || o instanceof Character || o instanceof Enum && o.getClass().getClassLoader() == null;
+  }
+
+  /** Spread the bits of the identity hash code, which may not use all bits */
+  private static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Result of a search */
+  public static class Result {
+
+    private final List<ReferencePath> paths;
+
+    private final int nodesVisited;
+
+    private final int inaccessibleFields;
+
+    private final String truncationReason;
+
+    private final long durationMs;
+
+    Result(List<ReferencePath> paths, int nodesVisited, int inaccessibleFields, String truncationReason,
+           long durationMs) {
+      this.paths = Collections.unmodifiableList(paths);
+      this.nodesVisited = nodesVisited;
+      this.inaccessibleFields = inaccessibleFields;
+      this.truncationReason = truncationReason;
+      this.durationMs = durationMs;
+    }
+
+    /** Get the reference paths found, shortest first */
+    public List<ReferencePath> getPaths() {
+      return paths;
+    }
+
+    /** Get no of objects visited, excluding those leading to the classloader */
+    public int getNodesVisited() {
+      return nodesVisited;
+    }
+
+    /** Get no of fields that could not be followed since they were not accessible */
+    public int getInaccessibleFields() {
+      return inaccessibleFields;
+    }
+
+    /**
+     * Get why the search stopped before having visited all reachable objects - "maxNodes", "timeout" or
+     * "interrupted" - or {@code null} if it did not.
+     */
+    public String getTruncationReason() {
+      return truncationReason;
+    }
+
+    public long getDurationMs() {
+      return durationMs;
+    }
+  }
+
+  /** A path of references from a root to an object loaded by the classloader */
+  public static class ReferencePath {
+
+    private final List<String> elements;
+
+    ReferencePath(List<String> elements) {
+      this.elements = Collections.unmodifiableList(elements);
+    }
+
+    /** Get the elements of the path, the first being the root and the last being loaded by the classloader */
+    public List<String> getElements() {
+      return elements;
+    }
+
+    /** Get path on a single line */
+    public String toLine() {
+      final StringBuilder output = new StringBuilder();
+      for(String element : elements) {
+        if(output.length() > 0)
+          output.append(" -> ");
+        output.append(element);
+      }
+      return output.toString();
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder output = new StringBuilder();
+      for(String element : elements) {
+        if(output.length() > 0)
+          output.append("\n  ");
+        output.append(element);
+      }
+      return output.toString();
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the results of the reflection lookups made by {@link ClassLoaderLeakPreventor#findClass(String, boolean)},
+ * {@link ClassLoaderLeakPreventor#findField(Class, String)},
+ * {@link ClassLoaderLeakPreventor#findFieldAccessor(Class, String)} and
+ * {@link ClassLoaderLeakPreventor#findMethod(Class, String, Class[])}, including lookups that did not find anything,
+ * so that neither the lookup itself nor the resulting exception needs to be repeated.
+ *
+ * Since members are cached with strong references, only members of classes that will never be garbage collected
+ * before this cache, i.e. classes loaded by the bootstrap classloader, by the system classloader, or by the classloader
+ * of this cache or any of its parents, are cached. Lookups in any other classes, such as classes of the protected
+ * classloader, bypass the cache.
+ *
+ * Thread safe. By default, all {@link ClassLoaderLeakPreventorFactory}s, and in turn all their
+ * {@link ClassLoaderLeakPreventor}s, share the same instance; see {@link #getDefault()}.
+ * @author Mattias Jiderhamn
+ */
+public class ReflectionCache {
+
+  /** Marker for lookups that did not find anything */
+  static final Object NOT_FOUND = new Object();
+
+  /** The instance shared by default */
+  private static final ReflectionCache DEFAULT = new ReflectionCache();
+
+  /** Classloaders that will not be garbage collected before this cache */
+  private final Set<ClassLoader> permanentClassLoaders =
+      Collections.newSetFromMap(new IdentityHashMap<ClassLoader, Boolean>());
+
+  private final ConcurrentMap<Key, Object> cache = new ConcurrentHashMap<Key, Object>();
+
+  /** No of lookups answered by the cache */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** No of lookups not answered by the cache */
+  private final AtomicLong misses = new AtomicLong();
+
+  public ReflectionCache() {
+    addWithParents(ReflectionCache.class.getClassLoader());
+    try {
+      addWithParents(ClassLoader.getSystemClassLoader());
+    }
+    catch (SecurityException e) {
+      // Only cache members of classes loaded by our own classloader and its parents
+    }
+  }
+
+  /** Get the {@link ReflectionCache} shared by default */
+  public static ReflectionCache getDefault() {
+    return DEFAULT;
+  }
+
+  private void addWithParents(ClassLoader classLoader) {
+    try {
+      for(ClassLoader cl = classLoader; cl != null; cl = cl.getParent()) {
+        permanentClassLoaders.add(cl);
+      }
+    }
+    catch (SecurityException e) {
+      // Parents will not be cached
+    }
+  }
+
+  /** Get cached result of a lookup, which is either the member found or {@link #NOT_FOUND}, or {@code null} if not cached */
+  Object get(Key key) {
+    if(key == null) // Not cacheable
+      return null;
+
+    final Object cached = cache.get(key);
+    if(cached != null)
+      hits.incrementAndGet();
+    else
+      misses.incrementAndGet();
+    return cached;
+  }
+
+  /** Cache the result of a lookup, where {@code null} means nothing was found */
+  void put(Key key, Object result) {
+    if(key != null)
+      cache.putIfAbsent(key, (result != null) ? result : NOT_FOUND);
+  }
+
+  /** Get key for lookup of class by name */
+  Key classKey(String className, boolean trySystemCL) {
+    // Classes found by name are visible from our own classloader or the system classloader, so they can always be cached
+    return new Key(trySystemCL ? Key.CLASS_TRY_SYSTEM_CL : Key.CLASS, null, className, null);
+  }
+
+  /** Get key for lookup of field, or {@code null} if the result cannot be cached */
+  Key fieldKey(Class<?> clazz, String fieldName) {
+    return isCacheable(clazz) ? new Key(Key.FIELD, clazz, fieldName, null) : null;
+  }
+
+  /** Get key for lookup of {@link FieldAccessor}, or {@code null} if the result cannot be cached */
+  Key fieldAccessorKey(Class<?> clazz, String fieldName) {
+    return isCacheable(clazz) ? new Key(Key.FIELD_ACCESSOR, clazz, fieldName, null) : null;
+  }
+
+  /** Get key for lookup of method, or {@code null} if the result cannot be cached */
+  Key methodKey(Class<?> clazz, String methodName, Class<?>[] parameterTypes) {
+    if(! isCacheable(clazz))
+      return null;
+    if(parameterTypes != null) {
+      for(Class<?> parameterType : parameterTypes) {
+        if(! isCacheable(parameterType))
+          return null;
+      }
+    }
+    return new Key(Key.METHOD, clazz, methodName, parameterTypes);
+  }
+
+  /** Can members of the provided class be cached, without risking to cause a leak? */
+  private boolean isCacheable(Class<?> clazz) {
+    if(clazz == null)
+      return false;
+    final ClassLoader classLoader = clazz.getClassLoader();
+    return classLoader == null || permanentClassLoaders.contains(classLoader);
+  }
+
+  /** Get the number of lookups that were answered by the cache */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Get the number of lookups that were not answered by the cache, excluding lookups that could not be cached */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Get the number of cached lookup results */
+  public int size() {
+    return cache.size();
+  }
+
+  /** Remove all cached lookup results */
+  public void clear() {
+    cache.clear();
+  }
+
+  /** Key identifying a lookup */
+  static class Key {
+
+    private static final int CLASS = 0;
+
+    private static final int CLASS_TRY_SYSTEM_CL = 1;
+
+    private static final int FIELD = 2;
+
+    private static final int METHOD = 3;
+
+    private static final int FIELD_ACCESSOR = 4;
+
+    private final int type;
+
+    private final Class<?> clazz;
+
+    private final String name;
+
+    private final Class<?>[] parameterTypes;
+
+    private final int hashCode;
+
+    private Key(int type, Class<?> clazz, String name, Class<?>[] parameterTypes) {
+      this.type = type;
+      this.clazz = clazz;
+      this.name = name;
+      this.parameterTypes = parameterTypes;
+      this.hashCode = 31 * (31 * (31 * type + System.identityHashCode(clazz)) + name.hashCode()) +
+          Arrays.hashCode(parameterTypes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(this == o)
+        return true;
+      if(! (o instanceof Key))
+        return false;
+
+      final Key other = (Key) o;
+      return type == other.type && clazz == other.clazz && name.equals(other.name) &&
+          Arrays.equals(parameterTypes, other.parameterTypes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
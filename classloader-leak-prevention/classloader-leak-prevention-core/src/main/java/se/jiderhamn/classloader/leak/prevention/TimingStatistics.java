@@ -0,0 +1,218 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link LeakPreventionListener} that keeps cumulative timing statistics per {@link PreClassLoaderInitiator} and
+ * {@link ClassLoaderPreMortemCleanUp}, including a histogram of durations with power-of-two buckets. Statistics are
+ * keyed by class name, so they will not cause leaks, and are cumulative across all classloaders (i.e. redeploys)
+ * as long as the same instance is used. Recording is lock free, and does not allocate once the first invocation of
+ * a plugin has been recorded.
+ *
+ * By default, {@link ClassLoaderLeakPreventorFactory}s register the instance returned by {@link #getDefault()}.
+ * Note that it is only JVM wide, and thereby cumulative across redeploys, if this library is loaded outside of the 
+ * protected classloaders, e.g. in the lib folder of the server. If the library is bundled with the application, 
+ * e.g. in WEB-INF/lib, every deployment has its own instance that is lost on undeploy. The expected costs used by the
+ * {@link ClassLoaderLeakPreventor#setCleanUpTimeBudgetMs(long) cleanup time budget} are kept across redeploys in 
+ * either case, by {@link CleanUpCostRegistry}.
+ * @author Mattias Jiderhamn
+ */
+public class TimingStatistics implements LeakPreventionListener {
+
+  /** The instance registered by default */
+  private static final TimingStatistics DEFAULT = new TimingStatistics();
+
+  /** Map from class name to statistics */
+  private final ConcurrentMap<String, Timing> timings = new ConcurrentHashMap<String, Timing>();
+
+  /** 
+   * Get the instance that is registered by default, which is JVM wide only if this library is loaded outside of the
+   * protected classloaders
+   */
+  public static TimingStatistics getDefault() {
+    return DEFAULT;
+  }
+
+  @Override
+  public void beforePreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator) {
+    // Timing is included in ExecutionResult
+  }
+
+  @Override
+  public void afterPreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator,
+                                           ExecutionResult result) {
+    record(result);
+  }
+
+  @Override
+  public void beforeCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp) {
+    // Timing is included in ExecutionResult
+  }
+
+  @Override
+  public void afterCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp,
+                           ExecutionResult result) {
+    record(result);
+  }
+
+  /** Record the result of a plugin invocation */
+  public void record(ExecutionResult result) {
+    getOrCreateTiming(result.getPlugin().getClass().getName()).record(result);
+  }
+
+  private Timing getOrCreateTiming(String name) {
+    Timing timing = timings.get(name);
+    if(timing == null) {
+      final Timing newTiming = new Timing();
+      timing = timings.putIfAbsent(name, newTiming);
+      if(timing == null)
+        timing = newTiming;
+    }
+    return timing;
+  }
+
+  /** Get statistics for the plugin (i.e. {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp}) class, or {@code null} if never invoked */
+  public Timing getTiming(Class<?> pluginClass) {
+    return getTiming(pluginClass.getName());
+  }
+
+  /** Get statistics for the plugin with the provided class name, or {@code null} if never invoked */
+  public Timing getTiming(String className) {
+    return timings.get(className);
+  }
+
+  /** Get all statistics, sorted by class name */
+  public Map<String, Timing> getTimings() {
+    return Collections.unmodifiableMap(new TreeMap<String, Timing>(timings));
+  }
+
+  /** Remove all statistics */
+  public void clear() {
+    timings.clear();
+  }
+
+  /** Get a multi line report of all statistics */
+  @Override
+  public String toString() {
+    final StringBuilder output = new StringBuilder();
+    for(Map.Entry<String, Timing> entry : getTimings().entrySet()) {
+      output.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+    }
+    return output.toString();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Cumulative statistics of a single plugin. Thread safe. */
+  public static class Timing {
+
+    /** Bucket {@code i} holds durations of at least 2^(i-1) and less than 2^i nanoseconds; bucket 0 holds 0 */
+    static final int NO_OF_BUCKETS = 64;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NO_OF_BUCKETS);
+
+    void record(ExecutionResult result) {
+      if(result.getOutcome() == ExecutionResult.Outcome.SKIPPED) {
+        skipped.incrementAndGet();
+        return;
+      }
+
+      if(result.getOutcome() == ExecutionResult.Outcome.FAILURE)
+        failures.incrementAndGet();
+
+      final long nanos = Math.max(0, result.getDurationNanos());
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      buckets.incrementAndGet(getBucket(nanos));
+      for(long max = maxNanos.get(); nanos > max && ! maxNanos.compareAndSet(max, nanos); max = maxNanos.get()) {
+        // Retry
+      }
+    }
+
+    static int getBucket(long nanos) {
+      return Math.min(NO_OF_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /** Get the number of invocations, including failures but not skips */
+    public long getCount() {
+      return count.get();
+    }
+
+    /** Get the number of invocations that threw an exception or error */
+    public long getFailures() {
+      return failures.get();
+    }
+
+    /** Get the number of times the plugin was skipped */
+    public long getSkipped() {
+      return skipped.get();
+    }
+
+    public long getTotalNanos() {
+      return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+
+    /** Get average duration, or 0 if never invoked */
+    public long getMeanNanos() {
+      final long count = this.count.get();
+      return (count > 0) ? totalNanos.get() / count : 0;
+    }
+
+    /**
+     * Get an upper bound of the duration below which the provided fraction (0 - 1) of the invocations fall, based on
+     * the histogram; i.e. the result is at most twice the exact percentile. Returns 0 if never invoked.
+     */
+    public long getPercentileNanos(double fraction) {
+      final long[] counts = getBucketCounts();
+      long total = 0;
+      for(long c : counts)
+        total += c;
+      if(total == 0)
+        return 0;
+
+      final long threshold = (long) Math.ceil(total * Math.max(0, Math.min(1, fraction)));
+      long cumulative = 0;
+      for(int i = 0; i < counts.length; i++) {
+        cumulative += counts[i];
+        if(cumulative >= threshold && cumulative > 0)
+          return Math.min((i == 0) ? 0 : (1L << i) - 1, getMaxNanos());
+      }
+      return getMaxNanos();
+    }
+
+    /** Get a copy of the histogram buckets; see {@link #NO_OF_BUCKETS} */
+    public long[] getBucketCounts() {
+      final long[] output = new long[NO_OF_BUCKETS];
+      for(int i = 0; i < NO_OF_BUCKETS; i++)
+        output[i] = buckets.get(i);
+      return output;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + getCount() + ", failures=" + getFailures() + ", skipped=" + getSkipped() +
+          ", mean=" + (getMeanNanos() / 1000) + " us, p90<=" + (getPercentileNanos(0.9) / 1000) +
+          " us, max=" + (getMaxNanos() / 1000) + " us";
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Thread safe cache with weakly referenced keys, that are compared by identity rather than {@link Object#equals(Object)}.
+ * Entries are expunged once the key has been garbage collected, so that the cache will not itself cause a leak.
+ * Values should not (directly or indirectly) reference the key, since that will prevent the entry from ever being
+ * expunged. 
+ * 
+ * Lookups neither lock nor allocate any objects. Modifications are synchronized, and never change an {@link Entry}
+ * chain that may be traversed by a lookup, but replace it. Therefore a lookup concurrent with {@link #put(Object, Object)} 
+ * may miss the new entry, which is fine for a cache.
+ * @author Mattias Jiderhamn
+ */
+public class WeakIdentityCache<K, V> {
+
+  private static final int INITIAL_CAPACITY = 64; // Must be power of two
+
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+  private volatile Entry<K, V>[] table = newTable(INITIAL_CAPACITY);
+
+  /** Number of entries. Guarded by this. */
+  private int size;
+
+  /** Get cached value for key, or {@code null} if there is none */
+  public V get(K key) {
+    if(key == null)
+      return null;
+
+    final Entry<K, V>[] table = this.table;
+    final int hash = System.identityHashCode(key);
+    for(Entry<K, V> e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+      if(e.hash == hash && e.get() == key)
+        return e.value;
+    }
+    return null;
+  }
+
+  /** Cache value for the provided key, replacing any previous value */
+  public synchronized void put(K key, V value) {
+    if(key == null)
+      return;
+
+    expungeStaleEntries();
+    final Entry<K, V>[] table = this.table;
+    final int hash = System.identityHashCode(key);
+    final int index = hash & (table.length - 1);
+    for(Entry<K, V> e = table[index]; e != null; e = e.next) {
+      if(e.hash == hash && e.get() == key) {
+        e.value = value;
+        return;
+      }
+    }
+
+    table[index] = new Entry<K, V>(key, hash, value, queue, table[index]);
+    if(++size > table.length * 3 / 4 && table.length < MAX_CAPACITY)
+      resize(table.length * 2);
+  }
+
+  /** Remove all entries */
+  public synchronized void clear() {
+    while(queue.poll() != null) {
+      // Empty the queue
+    }
+    table = newTable(INITIAL_CAPACITY);
+    size = 0;
+  }
+
+  /** Get the number of entries, including any entries whose key has been garbage collected but not yet expunged */
+  public synchronized int size() {
+    expungeStaleEntries();
+    return size;
+  }
+
+  /** Remove the entries whose keys have been garbage collected. Must be called when holding the lock. */
+  private void expungeStaleEntries() {
+    final Entry<K, V>[] table = this.table;
+    for(Object ref; (ref = queue.poll()) != null; ) {
+      @SuppressWarnings("unchecked")
+      final Entry<K, V> stale = (Entry<K, V>) ref;
+      final int index = stale.hash & (table.length - 1);
+      for(Entry<K, V> e = table[index]; e != null; e = e.next) {
+        if(e == stale) {
+          Entry<K, V> head = stale.next;
+          for(Entry<K, V> p = table[index]; p != stale; p = p.next) { // Copy the entries before the stale one
+            final K key = p.get();
+            if(key != null)
+              head = new Entry<K, V>(key, p.hash, p.value, queue, head);
+            else
+              size--; // Also stale, but will not be found once dequeued
+          }
+          table[index] = head;
+          stale.value = null; // Help GC
+          size--;
+          break;
+        }
+      }
+    }
+  }
+
+  /** Replace the table with one with the provided capacity. Must be called when holding the lock. */
+  private void resize(int newCapacity) {
+    final Entry<K, V>[] newTable = newTable(newCapacity);
+    for(Entry<K, V> head : table) {
+      for(Entry<K, V> e = head; e != null; e = e.next) {
+        final K key = e.get();
+        if(key != null) {
+          final int index = e.hash & (newCapacity - 1);
+          newTable[index] = new Entry<K, V>(key, e.hash, e.value, queue, newTable[index]);
+        }
+        else
+          size--; // Will not be found once dequeued
+      }
+    }
+    table = newTable;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"}) // Generic array creation
+  private static <K, V> Entry<K, V>[] newTable(int capacity) {
+    return new Entry[capacity];
+  }
+
+  /** 
+   * Hash table entry, that is itself the weak reference to the key. The chain is immutable, so that it can be 
+   * traversed without locking.
+   */
+  private static class Entry<K, V> extends WeakReference<K> {
+
+    private final int hash;
+
+    private volatile V value;
+
+    private final Entry<K, V> next;
+
+    private Entry(K key, int hash, V value, ReferenceQueue<K> queue, Entry<K, V> next) {
+      super(key, queue);
+      this.hash = hash;
+      this.value = value;
+      this.next = next;
+    }
+  }
+}
@@ -5,12 +5,13 @@ import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Clean up leak caused by cache in {@link javax.validation.Validation}
  * @author Mattias Jiderhamn
  */
-public class BeanValidationCleanUp implements ClassLoaderPreMortemCleanUp {
+public class BeanValidationCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     final Class<?> offendingClass = 
@@ -9,12 +9,13 @@ import java.util.List;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Deregister JDBC drivers loaded by classloader
  * @author Mattias Jiderhamn
  */
-public class DriverManagerCleanUp implements ClassLoaderPreMortemCleanUp {
+public class DriverManagerCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     final List<Driver> driversToDeregister = new ArrayList<Driver>();
@@ -4,12 +4,13 @@ import java.lang.reflect.Field;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Shutdown GeoTools cleaner thread as of https://osgeo-org.atlassian.net/browse/GEOT-2742
  * @author Mattias Jiderhamn
  */
-public class GeoToolsCleanUp implements ClassLoaderPreMortemCleanUp {
+public class GeoToolsCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     final Class<?> weakCollectionCleanerClass = preventor.findClass("org.geotools.util.WeakCollectionCleaner");
@@ -2,12 +2,13 @@ package se.jiderhamn.classloader.leak.prevention.cleanup;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Clear IntrospectionUtils caches of Tomcat and Apache Commons Modeler
  * @author Mattias Jiderhamn
  */
-public class IntrospectionUtilsCleanUp implements ClassLoaderPreMortemCleanUp {
+public class IntrospectionUtilsCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     // Tomcat
@@ -5,12 +5,13 @@ import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Clear Jackson TypeFactory cache as per https://github.com/FasterXML/jackson-databind/issues/1363
  * @author Mattias Jiderhamn
  */
-public class JacksonCleanUp implements ClassLoaderPreMortemCleanUp {
+public class JacksonCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     final Class<?> typeFactoryClass = preventor.findClass("com.fasterxml.jackson.databind.type.TypeFactory");
@@ -6,13 +6,14 @@ import java.util.WeakHashMap;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Workaround for leak caused by Mojarra JSF implementation if included in the container.
  * See <a href="http://java.net/jira/browse/JAVASERVERFACES-2746">JAVASERVERFACES-2746</a>
  * @author Mattias Jiderhamn
  */
-public class JavaServerFaces2746CleanUp implements ClassLoaderPreMortemCleanUp {
+public class JavaServerFaces2746CleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     /*
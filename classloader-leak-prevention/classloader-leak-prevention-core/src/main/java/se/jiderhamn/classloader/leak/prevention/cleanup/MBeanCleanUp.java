@@ -2,18 +2,22 @@ package se.jiderhamn.classloader.leak.prevention.cleanup;
 
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationTracker;
 
 /**
- * Unregister MBeans loaded by the protected class loader
+ * Unregister MBeans loaded by the protected class loader. If MBean registrations are tracked by 
+ * {@link MBeanRegistrationTracker}, only the tracked MBeans are looked at, otherwise all MBeans in the JVM.
  * @author Mattias Jiderhamn
  * @author rapla
  */
@@ -22,7 +26,7 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     try {
       final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
-      final Set<ObjectName> allMBeanNames = mBeanServer.queryNames(new ObjectName("*:*"), null);
+      final Set<ObjectName> trackedMBeanNames = MBeanRegistrationTracker.stopTracking(preventor);
 
       // Special treatment for Jetty, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=423255
       JettyJMXRemover jettyJMXRemover = null;
@@ -35,13 +39,26 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
         }
       }
       
+      final Collection<ObjectName> mBeanNames;
+      if(trackedMBeanNames != null) {
+        final Set<ObjectName> names = new LinkedHashSet<ObjectName>(trackedMBeanNames);
+        if(jettyJMXRemover != null) // Jetty MBeans are not necessarily registered by the web app
+          names.addAll(mBeanServer.queryNames(new ObjectName("*org.eclipse.jetty*:*"), null));
+        mBeanNames = names;
+      }
+      else
+        mBeanNames = preventor.getCleanUpContext().getMBeanNames();
+      
       // Look for custom MBeans
-      for(ObjectName objectName : allMBeanNames) {
+      for(ObjectName objectName : mBeanNames) {
         try {
           if (jettyJMXRemover != null && jettyJMXRemover.unregisterJettyJMXBean(objectName)) {
         	  continue;
           }
           
+          if(trackedMBeanNames != null && ! mBeanServer.isRegistered(objectName)) // Verify tracked MBean still there
+            continue;
+          
           final ClassLoader mBeanClassLoader = mBeanServer.getClassLoaderFor(objectName);
           if(preventor.isClassLoaderOrChild(mBeanClassLoader)) { // MBean loaded by protected ClassLoader
             preventor.warn("MBean '" + objectName + "' was loaded by protected ClassLoader; unregistering");
@@ -99,8 +116,8 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
     
     private final ClassLoaderLeakPreventor preventor;
 
-    /** List of objects that may be wrapped in MBean by Jetty. Should be allowed to contain null. */
-    private List<Object> objectsWrappedWithMBean;
+    /** Identity set of objects that may be wrapped in MBean by Jetty. Should be allowed to contain null. */
+    private Set<Object> objectsWrappedWithMBean;
 
     /** The org.eclipse.jetty.jmx.MBeanContainer instance */
     private Object beanContainer;
@@ -143,7 +160,7 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
           return;
         }
 
-        objectsWrappedWithMBean = new ArrayList<Object>();
+        objectsWrappedWithMBean = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
         // SessionHandler sessionHandler = webappContext.getSessionHandler();
         final Object sessionHandler = webAppContextClass.getMethod("getSessionHandler").invoke(webappContext);
         if(sessionHandler != null) {
@@ -172,10 +189,10 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
 
           final Class<?> servletHandlerClass = findJettyClass("org.eclipse.jetty.servlet.ServletHandler");
           // Object[] servletMappings = servletHandler.getServletMappings();
-          objectsWrappedWithMBean.add(Arrays.asList((Object[]) servletHandlerClass.getMethod("getServletMappings").invoke(servletHandler)));
+          addAll(objectsWrappedWithMBean, (Object[]) servletHandlerClass.getMethod("getServletMappings").invoke(servletHandler));
 
           // Object[] servlets = servletHandler.getServlets();
-          objectsWrappedWithMBean.add(Arrays.asList((Object[]) servletHandlerClass.getMethod("getServlets").invoke(servletHandler)));
+          addAll(objectsWrappedWithMBean, (Object[]) servletHandlerClass.getMethod("getServlets").invoke(servletHandler));
         }
       }
     }
@@ -194,13 +211,11 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
           if(bean == null)
             return false;
           
-		      // Search suspect list
-		      for (Object wrapped : objectsWrappedWithMBean) {
-		        if (wrapped == bean) {
-              preventor.warn("Jetty MBean '" + objectName + "' is a suspect in causing memory leaks; unregistering");
-			        removeBeanMethod.invoke(beanContainer, bean); // Remove it via the MBeanContainer
-			        return true;
-            }
+		      // Search suspect set
+		      if (objectsWrappedWithMBean.contains(bean)) {
+            preventor.warn("Jetty MBean '" + objectName + "' is a suspect in causing memory leaks; unregistering");
+		        removeBeanMethod.invoke(beanContainer, bean); // Remove it via the MBeanContainer
+		        return true;
 		      }
   		  }
         catch (Exception ex)  {
@@ -210,6 +225,12 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
 	    }
     }
 
+    /** Add the elements of the array, if any, to the set */
+    private void addAll(Set<Object> set, Object[] array) {
+      if(array != null)
+        set.addAll(Arrays.asList(array));
+    }
+
     Class findJettyClass(String className) throws ClassNotFoundException {
       try {
         return Class.forName(className, false, preventor.getClassLoader());
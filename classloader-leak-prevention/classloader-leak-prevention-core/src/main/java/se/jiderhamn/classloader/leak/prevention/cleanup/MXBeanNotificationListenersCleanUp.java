@@ -1,12 +1,11 @@
 package se.jiderhamn.classloader.leak.prevention.cleanup;
 
-import java.lang.management.ManagementFactory;
 import java.lang.management.PlatformManagedObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import javax.management.*;
 
@@ -36,44 +35,44 @@ public class MXBeanNotificationListenersCleanUp implements ClassLoaderPreMortemC
       preventor.warn("Unable to unregister NotificationEmitterSupport listeners, because details could not be found using reflection");
     }
 
-    final Set<Class<? extends PlatformManagedObject>> platformInterfaces = ManagementFactory.getPlatformManagementInterfaces();
+    final Map<Class<? extends PlatformManagedObject>, List<? extends PlatformManagedObject>> platformMXBeans =
+        preventor.getCleanUpContext().getPlatformMXBeans();
 
-    if (platformInterfaces != null) {
-      for (Class<? extends PlatformManagedObject> platformInterface : platformInterfaces) {
-        for (Object mxBean : ManagementFactory.getPlatformMXBeans(platformInterface)) {
-          if (mxBean instanceof NotificationEmitter) { // The MXBean may have NotificationListeners
-            if (canProcessNotificationEmitterSupport && notificationEmitterSupportClass.isAssignableFrom(mxBean.getClass())) {
-              final List<? /* NotificationEmitterSupport.ListenerInfo */> listenerList = preventor.getFieldValue(listenerListField, mxBean);
-              if (listenerList != null) {
-                for (Object listenerInfo : listenerList) { // Loop all listeners
-                  final NotificationListener listener = preventor.getFieldValue(listenerField, listenerInfo);
-                  final NotificationListener rawListener = unwrap(preventor, listenerWrapperClass, listener);
-                  final NotificationFilter filter = preventor.getFieldValue(filterField, listenerInfo);
-                  final Object handback = preventor.getFieldValue(handbackField, listenerInfo);
+    for (Map.Entry<Class<? extends PlatformManagedObject>, List<? extends PlatformManagedObject>> entry : platformMXBeans.entrySet()) {
+      final Class<? extends PlatformManagedObject> platformInterface = entry.getKey();
+      for (Object mxBean : entry.getValue()) {
+        if (mxBean instanceof NotificationEmitter) { // The MXBean may have NotificationListeners
+          if (canProcessNotificationEmitterSupport && notificationEmitterSupportClass.isAssignableFrom(mxBean.getClass())) {
+            final List<? /* NotificationEmitterSupport.ListenerInfo */> listenerList = preventor.getFieldValue(listenerListField, mxBean);
+            if (listenerList != null) {
+              for (Object listenerInfo : listenerList) { // Loop all listeners
+                final NotificationListener listener = preventor.getFieldValue(listenerField, listenerInfo);
+                final NotificationListener rawListener = unwrap(preventor, listenerWrapperClass, listener);
+                final NotificationFilter filter = preventor.getFieldValue(filterField, listenerInfo);
+                final Object handback = preventor.getFieldValue(handbackField, listenerInfo);
 
-                  if (preventor.isLoadedInClassLoader(rawListener) || preventor.isLoadedInClassLoader(filter) || preventor.isLoadedInClassLoader(handback)) {
-                    preventor.warn(((listener == rawListener) ? "Listener '" : "Wrapped listener '") + listener + 
-                    "' (or its filter or handback) of MXBean " + mxBean + 
-                    " of PlatformManagedObject " + platformInterface + " was loaded in protected ClassLoader; removing");
-                    // This is safe, as the implementation (as of this writing) works with a copy,
-                    // not altering the original
-                    try {
-                      ((NotificationEmitter) mxBean).removeNotificationListener(listener, filter, handback);
-                    }
-                    catch (ListenerNotFoundException e) { // Should never happen
-                      preventor.error(e);
-                    }
+                if (preventor.isLoadedInClassLoader(rawListener) || preventor.isLoadedInClassLoader(filter) || preventor.isLoadedInClassLoader(handback)) {
+                  preventor.warn(((listener == rawListener) ? "Listener '" : "Wrapped listener '") + listener + 
+                  "' (or its filter or handback) of MXBean " + mxBean + 
+                  " of PlatformManagedObject " + platformInterface + " was loaded in protected ClassLoader; removing");
+                  // This is safe, as the implementation (as of this writing) works with a copy,
+                  // not altering the original
+                  try {
+                    ((NotificationEmitter) mxBean).removeNotificationListener(listener, filter, handback);
+                  }
+                  catch (ListenerNotFoundException e) { // Should never happen
+                    preventor.error(e);
                   }
                 }
               }
             }
-            else if(mxBean instanceof NotificationBroadcasterSupport) { // Unlikely case
-              unregisterNotificationListeners(preventor, (NotificationBroadcasterSupport) mxBean, listenerWrapperClass);
-            }
+          }
+          else if(mxBean instanceof NotificationBroadcasterSupport) { // Unlikely case
+            unregisterNotificationListeners(preventor, (NotificationBroadcasterSupport) mxBean, listenerWrapperClass);
           }
         }
       }
-    }  
+    }
   }
 
   /** 
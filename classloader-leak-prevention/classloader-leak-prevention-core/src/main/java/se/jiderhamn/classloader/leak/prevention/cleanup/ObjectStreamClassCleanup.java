@@ -4,11 +4,12 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Clean up for the static caches of {@link java.io.ObjectStreamClass}
  */
-public class ObjectStreamClassCleanup implements ClassLoaderPreMortemCleanUp {
+public class ObjectStreamClassCleanup implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
 
     @Override
     public void cleanUp(ClassLoaderLeakPreventor preventor) {
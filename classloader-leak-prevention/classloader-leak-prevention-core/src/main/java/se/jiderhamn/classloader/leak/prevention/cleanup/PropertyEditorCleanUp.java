@@ -8,13 +8,14 @@ import java.util.Set;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Deregister custom property editors.
  * This has been fixed in Java 7.
  * @author Mattias Jiderhamn
  */
-public class PropertyEditorCleanUp implements ClassLoaderPreMortemCleanUp {
+public class PropertyEditorCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     final Field registryField = preventor.findField(PropertyEditorManager.class, "registry");
@@ -6,12 +6,13 @@ import java.security.PrivilegedAction;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * If default {@link java.net.ProxySelector} is loaded by protected ClassLoader it needs to be unset
  * @author Mattias Jiderhamn
  */
-public class ProxySelectorCleanUp implements ClassLoaderPreMortemCleanUp {
+public class ProxySelectorCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(final ClassLoaderLeakPreventor preventor) {
     AccessController.doPrivileged(new PrivilegedAction<Void>() {
@@ -9,12 +9,13 @@ import java.util.ResourceBundle;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Clean up caches in {@link ResourceBundle}
  * @author Mattias Jiderhamn
  */
-public class ResourceBundleCleanUp implements ClassLoaderPreMortemCleanUp {
+public class ResourceBundleCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     try {
@@ -6,12 +6,13 @@ import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Heavily inspired by org.apache.catalina.loader.WebappClassLoader.clearReferencesRmiTargets()
  * @author Mattias Jiderhamn
  */
-public class RmiTargetsCleanUp implements ClassLoaderPreMortemCleanUp {
+public class RmiTargetsCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     try {
@@ -5,6 +5,7 @@ import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * Clean up leak caused by {@link javax.xml.parsers.SAXParser} attribute/property being loaded by protected class loader
@@ -12,7 +13,7 @@ import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
  * See <a href="https://issues.apache.org/jira/browse/XALANJ-2600">here</a>.
  * @author Mattias Jiderhamn
  */
-public class SAAJEnvelopeFactoryParserPoolCleanUp implements ClassLoaderPreMortemCleanUp {
+public class SAAJEnvelopeFactoryParserPoolCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     // Internal class from the JDK (Removed in JDK11)
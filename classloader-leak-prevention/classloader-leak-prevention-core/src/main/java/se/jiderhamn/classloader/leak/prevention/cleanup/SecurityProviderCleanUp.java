@@ -5,6 +5,7 @@ import java.util.Set;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.CleanUpContext;
 
 /**
  * Deregister custom security providers
@@ -13,8 +14,9 @@ import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
 public class SecurityProviderCleanUp implements ClassLoaderPreMortemCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
+    final CleanUpContext context = preventor.getCleanUpContext();
     final Set<String> providersToRemove = new HashSet<String>();
-    for(java.security.Provider provider : java.security.Security.getProviders()) {
+    for(java.security.Provider provider : context.getSecurityProviders()) {
       if(preventor.isLoadedInClassLoader(provider)) {
         providersToRemove.add(provider.getName());
       }
@@ -25,6 +27,7 @@ public class SecurityProviderCleanUp implements ClassLoaderPreMortemCleanUp {
       for(String providerName : providersToRemove) {
         java.security.Security.removeProvider(providerName);
       }
+      context.invalidateSecurityProviders();
     }
     
   }
@@ -1,16 +1,18 @@
 package se.jiderhamn.classloader.leak.prevention.cleanup;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.DeferrableCleanUp;
 
 /**
  * Find and deregister shutdown hooks. Will by default execute the hooks immediately after removing them.
  * @author Mattias Jiderhamn
  */
-public class ShutdownHookCleanUp implements ClassLoaderPreMortemCleanUp {
+public class ShutdownHookCleanUp implements ClassLoaderPreMortemCleanUp, DeferrableCleanUp {
 
   /** Default no of milliseconds to wait for shutdown hook to finish execution */
   public static final int SHUTDOWN_HOOK_WAIT_MS_DEFAULT = 10 * 1000; // 10 seconds
@@ -47,6 +49,36 @@ public class ShutdownHookCleanUp implements ClassLoaderPreMortemCleanUp {
 
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
+    for(Thread shutdownHook : getShutdownHooksInClassLoader(preventor)) {
+      removeShutdownHook(preventor, shutdownHook);
+    }
+  }
+
+  /** Deregister and start the shutdown hooks right away, but wait for them to finish in the background */
+  @Override
+  public Runnable cleanUpWithoutWaiting(final ClassLoaderLeakPreventor preventor) {
+    final List<Thread> started = new ArrayList<Thread>();
+    for(Thread shutdownHook : getShutdownHooksInClassLoader(preventor)) {
+      if(removeAndStartShutdownHook(preventor, shutdownHook))
+        started.add(shutdownHook);
+    }
+    
+    if(started.isEmpty() || shutdownHookWaitMs <= 0)
+      return null;
+    
+    return new Runnable() {
+      @Override
+      public void run() {
+        for(Thread shutdownHook : started) {
+          waitForShutdownHook(preventor, shutdownHook);
+        }
+      }
+    };
+  }
+  
+  /** Get the shutdown hooks planned to run in the protected ClassLoader */
+  protected List<Thread> getShutdownHooksInClassLoader(ClassLoaderLeakPreventor preventor) {
+    final List<Thread> output = new ArrayList<Thread>();
     
     // We will not remove known shutdown hooks, since loading the owning class of the hook,
     // may register the hook if previously unregistered 
@@ -55,15 +87,26 @@ public class ShutdownHookCleanUp implements ClassLoaderPreMortemCleanUp {
       // Iterate copy to avoid ConcurrentModificationException
       for(Thread shutdownHook : new ArrayList<Thread>(shutdownHooks.keySet())) {
         if(preventor.isThreadInClassLoader(shutdownHook)) { // Planned to run in protected ClassLoader
-          removeShutdownHook(preventor, shutdownHook);
+          output.add(shutdownHook);
         }
       }
     }
+    return output;
   }
 
   /** Deregister shutdown hook and execute it immediately */
-  @SuppressWarnings({"deprecation", "WeakerAccess"})
+  @SuppressWarnings("WeakerAccess")
   protected void removeShutdownHook(ClassLoaderLeakPreventor preventor, Thread shutdownHook) {
+    if(removeAndStartShutdownHook(preventor, shutdownHook))
+      waitForShutdownHook(preventor, shutdownHook);
+  }
+
+  /** 
+   * Deregister shutdown hook and start it, if {@link #executeShutdownHooks}
+   * @return {@code true} if the shutdown hook was started
+   */
+  @SuppressWarnings("WeakerAccess")
+  protected boolean removeAndStartShutdownHook(ClassLoaderLeakPreventor preventor, Thread shutdownHook) {
     final String displayString = "'" + shutdownHook + "' of type " + shutdownHook.getClass().getName();
     preventor.error("Removing shutdown hook: " + displayString);
     Runtime.getRuntime().removeShutdownHook(shutdownHook);
@@ -73,18 +116,25 @@ public class ShutdownHookCleanUp implements ClassLoaderPreMortemCleanUp {
       preventor.info("Executing shutdown hook now: " + displayString);
       // Make sure it's from protected ClassLoader
       shutdownHook.start(); // Run cleanup immediately
-      
-      if(shutdownHookWaitMs > 0) { // Wait for shutdown hook to finish
-        try {
-          shutdownHook.join(shutdownHookWaitMs); // Wait for thread to run
-        }
-        catch (InterruptedException e) {
-          // Do nothing
-        }
-        if(shutdownHook.isAlive()) {
-          preventor.warn(shutdownHook + "still running after " + shutdownHookWaitMs + " ms - Stopping!");
-          shutdownHook.stop();
-        }
+      preventor.getCleanUpContext().invalidateThreads(); // Make sure subsequent cleanups see the shutdown hook thread
+      return true;
+    }
+    return false;
+  }
+
+  /** Wait for started shutdown hook to finish, and stop it if it does not do so within {@link #shutdownHookWaitMs} */
+  @SuppressWarnings({"deprecation", "WeakerAccess"})
+  protected void waitForShutdownHook(ClassLoaderLeakPreventor preventor, Thread shutdownHook) {
+    if(shutdownHookWaitMs > 0) { // Wait for shutdown hook to finish
+      try {
+        shutdownHook.join(shutdownHookWaitMs); // Wait for thread to run
+      }
+      catch (InterruptedException e) {
+        // Do nothing
+      }
+      if(shutdownHook.isAlive()) {
+        preventor.warn(shutdownHook + "still running after " + shutdownHookWaitMs + " ms - Stopping!");
+        shutdownHook.stop();
       }
     }
   }
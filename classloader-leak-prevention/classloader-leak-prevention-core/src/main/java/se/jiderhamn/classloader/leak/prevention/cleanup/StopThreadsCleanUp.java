@@ -3,11 +3,14 @@ package se.jiderhamn.classloader.leak.prevention.cleanup;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.security.AccessControlContext;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.DeferrableCleanUp;
+import se.jiderhamn.classloader.leak.prevention.FieldAccessor;
 
 import static se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor.THREAD_WAIT_MS_DEFAULT;
 
@@ -17,15 +20,15 @@ import static se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor.
  * @author Mattias Jiderhamn
  */
 @SuppressWarnings("WeakerAccess")
-public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
+public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp, DeferrableCleanUp {
 
   protected static final String JURT_ASYNCHRONOUS_FINALIZER = "com.sun.star.lib.util.AsynchronousFinalizer";
 
   /** Thread {@link Runnable} for Sun/Oracle JRE i.e. java.lang.Thread.target */
-  private Field oracleTarget;
+  private FieldAccessor oracleTarget;
   
   /** Thread {@link Runnable} for IBM JRE i.e. java.lang.Thread.runnable */
-  private Field ibmRunnable;
+  private FieldAccessor ibmRunnable;
 
   protected boolean stopThreads;
 
@@ -37,6 +40,12 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
   /** Should Timer threads tied to the protected ClassLoader classloader be forced to stop at application shutdown? */
   protected boolean stopTimerThreads;
 
+  /**
+   * Should all threads be interrupted in one pass and then waited for in parallel, so that {@link #threadWaitMs} is the
+   * max total wait, rather than waiting {@link #threadWaitMs} for each thread in turn?
+   */
+  protected boolean drainThreads = true;
+
   /** Default constructor with {@link #stopThreads} = true and {@link #stopTimerThreads} = true */
   @SuppressWarnings("unused")
   public StopThreadsCleanUp() {
@@ -60,6 +69,14 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
     this.threadWaitMs = threadWaitMs;
   }
 
+  /** 
+   * Should threads be waited for in parallel, with {@link #threadWaitMs} as the max total wait? Defaults to 
+   * {@code true}. If {@code false}, the wait for each thread may be up to {@link #threadWaitMs}.
+   */
+  public void setDrainThreads(boolean drainThreads) {
+    this.drainThreads = drainThreads;
+  }
+
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     // Force the execution of the cleanup code for JURT; see https://issues.apache.org/ooo/show_bug.cgi?id=122517
@@ -71,6 +88,23 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
     stopThreads(preventor);
   }
   
+  /** Stop threads right away where no waiting is needed, but wait for the others in the background */
+  @Override
+  public Runnable cleanUpWithoutWaiting(final ClassLoaderLeakPreventor preventor) {
+    forceStartOpenOfficeJurtCleanup(preventor); // (Do this before stopThreads())
+    
+    final List<PendingThread> pendingThreads = stopThreads(preventor, true);
+    if(pendingThreads.isEmpty())
+      return null;
+    
+    return new Runnable() {
+      @Override
+      public void run() {
+        waitForPendingThreads(preventor, pendingThreads);
+      }
+    };
+  }
+  
   /**
    * The bug detailed at https://issues.apache.org/ooo/show_bug.cgi?id=122517 is quite tricky. This is a try to 
    * avoid the issues by force starting the threads and it's job queue.
@@ -82,11 +116,11 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
           The com.sun.star.lib.util.AsynchronousFinalizer class was found and loaded, which means that in case the
           static block that starts the daemon thread had not been started yet, it has been started now.
           
-          Now let's force Garbage Collection, with the hopes of having the finalize()ers that put Jobs on the
+          Now let's await Garbage Collection, with the hopes of having the finalize()ers that put Jobs on the
           AsynchronousFinalizer queue be executed. Then just leave it, and handle the rest in {@link #stopThreads}.
           */
-        preventor.info("OpenOffice JURT AsynchronousFinalizer thread started - forcing garbage collection to invoke finalizers");
-        ClassLoaderLeakPreventor.gc();
+        preventor.info("OpenOffice JURT AsynchronousFinalizer thread started - awaiting garbage collection to invoke finalizers");
+        preventor.awaitGc();
       }
     }
     else {
@@ -94,10 +128,10 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
       if(preventor.getClassLoader().getResource("com/sun/star/lib/util/AsynchronousFinalizer.class") != null) {
         preventor.warn("OpenOffice JURT AsynchronousFinalizer thread will not be stopped if started, as stopThreads is false");
         /* 
-         By forcing Garbage Collection, we'll hopefully start the thread now, in case it would have been started by
+         By awaiting Garbage Collection, we'll hopefully start the thread now, in case it would have been started by
          GC later, so that at least it will appear in the logs. 
          */
-        ClassLoaderLeakPreventor.gc();
+        preventor.awaitGc();
       }
     }
   }
@@ -106,10 +140,22 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
    * Partially inspired by org.apache.catalina.loader.WebappClassLoader.clearReferencesThreads()
    */
   protected void stopThreads(ClassLoaderLeakPreventor preventor) {
+    final List<PendingThread> pendingThreads = stopThreads(preventor, drainThreads);
+    if(! pendingThreads.isEmpty())
+      waitForPendingThreads(preventor, pendingThreads);
+  }
+  
+  /**
+   * Implementation of {@link #stopThreads(ClassLoaderLeakPreventor)}
+   * @param deferWaiting Should threads to wait for be returned, rather than waited for in turn? 
+   * @return Threads to wait for, if {@code deferWaiting}
+   */
+  private List<PendingThread> stopThreads(ClassLoaderLeakPreventor preventor, boolean deferWaiting) {
     final Class<?> workerClass = preventor.findClass("java.util.concurrent.ThreadPoolExecutor$Worker");
 
     final boolean waitForThreads = threadWaitMs > 0;
-    for(Thread thread : preventor.getAllThreads()) {
+    final List<PendingThread> pendingThreads = new ArrayList<PendingThread>(); // Threads to wait for, if deferred
+    for(Thread thread : preventor.getCleanUpContext().getAllThreads()) {
       final Runnable runnable = getRunnable(preventor, thread);
 
       final boolean threadLoadedByClassLoader = preventor.isLoadedInClassLoader(thread);
@@ -210,38 +256,32 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
               if(waitForThreads) {
                 preventor.warn(displayString + "; waiting " + threadWaitMs + 
                     " ms. " + preventor.getStackTrace(thread));
+                if(deferWaiting) {
+                  pendingThreads.add(new PendingThread(thread, displayString, false));
+                  continue; // Handled after waiting
+                }
+                
                 preventor.waitForThread(thread, threadWaitMs, false /* No interrupt */);
               }
 
-              if(thread.isAlive() && preventor.isClassLoaderOrChild(thread.getContextClassLoader())) { // Still running in ClassLoader
-                preventor.warn(displayString + (waitForThreads ? " still" : "") + 
-                    " alive; changing context ClassLoader to leak safe (" + 
-                    preventor.getLeakSafeClassLoader() + "). " + preventor.getStackTrace(thread));
-                thread.setContextClassLoader(preventor.getLeakSafeClassLoader());
-
-                // Replace AccessControlContext since we already replaced ClassLoader,
-                // for test/use cease @see StopThreadsClenup_ExecutorTest
-                setThreadSafeAccessControlContext(preventor, thread);
-              }
+              changeContextClassLoaderIfAlive(preventor, thread, displayString, waitForThreads);
             }
             else if(stopThreads) { // Thread/Runnable/ThreadGroup loaded by protected ClassLoader
               if(waitForThreads) {
                 preventor.warn("Waiting for " + displayString + " for " + threadWaitMs + " ms. " +
                     preventor.getStackTrace(thread));
 
+                if(deferWaiting) {
+                  if(drainThreads)
+                    interrupt(preventor, thread); // Let it finish while we look at the other threads
+                  pendingThreads.add(new PendingThread(thread, displayString, true));
+                  continue; // Handled after waiting
+                }
+                
                 preventor.waitForThread(thread, threadWaitMs, true /* Interrupt if needed */);
               }
 
-              // Normally threads should not be stopped (method is deprecated), since it may cause an inconsistent state.
-              // In this case however, the alternative is a classloader leak, which may or may not be considered worse.
-              if(thread.isAlive()) {
-                preventor.warn("Stopping " + displayString + ". " + preventor.getStackTrace(thread));
-                //noinspection deprecation
-                thread.stop();
-              }
-              else {
-                preventor.info(displayString + " no longer alive - no action needed.");
-              }
+              stopThreadIfAlive(preventor, thread, displayString);
             }
             else {
               preventor.warn(displayString + " would cause leak. " + preventor.getStackTrace(thread));
@@ -251,6 +291,86 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
         }
       }
     }
+    return pendingThreads;
+  }
+  
+  /** 
+   * Wait for threads found by {@link #stopThreads(ClassLoaderLeakPreventor, boolean)}, in parallel if 
+   * {@link #drainThreads} or else in turn, then stop or change the context ClassLoader of those still alive
+   */
+  private void waitForPendingThreads(ClassLoaderLeakPreventor preventor, List<PendingThread> pendingThreads) {
+    if(drainThreads) {
+      drainThreads(preventor, pendingThreads);
+    }
+    else {
+      for(PendingThread pendingThread : pendingThreads) {
+        preventor.waitForThread(pendingThread.thread, threadWaitMs, pendingThread.stop /* Interrupt if to be stopped */);
+        if(pendingThread.stop)
+          stopThreadIfAlive(preventor, pendingThread.thread, pendingThread.displayString);
+        else
+          changeContextClassLoaderIfAlive(preventor, pendingThread.thread, pendingThread.displayString, true);
+      }
+    }
+  }
+  
+  /** 
+   * Wait for the provided threads using a single shared deadline of {@link #threadWaitMs}, then stop those 
+   * loaded by the protected ClassLoader or change the context ClassLoader of the others, in case they are still alive.
+   */
+  private void drainThreads(ClassLoaderLeakPreventor preventor, List<PendingThread> pendingThreads) {
+    final List<Thread> threads = new ArrayList<Thread>(pendingThreads.size());
+    for(PendingThread pendingThread : pendingThreads) {
+      threads.add(pendingThread.thread);
+    }
+    
+    preventor.info("Waiting up to " + threadWaitMs + " ms for " + threads.size() + " thread(s) to finish");
+    preventor.waitForThreads(threads, threadWaitMs);
+    
+    for(PendingThread pendingThread : pendingThreads) {
+      if(pendingThread.stop)
+        stopThreadIfAlive(preventor, pendingThread.thread, pendingThread.displayString);
+      else
+        changeContextClassLoaderIfAlive(preventor, pendingThread.thread, pendingThread.displayString, true);
+    }
+  }
+  
+  /** Stop thread loaded by the protected ClassLoader, unless it has already finished */
+  protected void stopThreadIfAlive(ClassLoaderLeakPreventor preventor, Thread thread, String displayString) {
+    // Normally threads should not be stopped (method is deprecated), since it may cause an inconsistent state.
+    // In this case however, the alternative is a classloader leak, which may or may not be considered worse.
+    if(thread.isAlive()) {
+      preventor.warn("Stopping " + displayString + ". " + preventor.getStackTrace(thread));
+      //noinspection deprecation
+      thread.stop();
+    }
+    else {
+      preventor.info(displayString + " no longer alive - no action needed.");
+    }
+  }
+  
+  /** Change the context ClassLoader of thread just running in the protected ClassLoader, unless it has finished */
+  protected void changeContextClassLoaderIfAlive(ClassLoaderLeakPreventor preventor, Thread thread, String displayString,
+                                                 boolean waited) {
+    if(thread.isAlive() && preventor.isClassLoaderOrChild(thread.getContextClassLoader())) { // Still running in ClassLoader
+      preventor.warn(displayString + (waited ? " still" : "") + 
+          " alive; changing context ClassLoader to leak safe (" + 
+          preventor.getLeakSafeClassLoader() + "). " + preventor.getStackTrace(thread));
+      thread.setContextClassLoader(preventor.getLeakSafeClassLoader());
+
+      // Replace AccessControlContext since we already replaced ClassLoader,
+      // for test/use cease @see StopThreadsClenup_ExecutorTest
+      setThreadSafeAccessControlContext(preventor, thread);
+    }
+  }
+  
+  /** Make thread stop sleep(), wait() or join() */
+  private void interrupt(ClassLoaderLeakPreventor preventor, Thread thread) {
+    try {
+      thread.interrupt();
+    }
+    catch (SecurityException e) {
+      preventor.error(e);
+    }
   }
 
 
@@ -259,7 +379,7 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
    */
   private void setThreadSafeAccessControlContext(ClassLoaderLeakPreventor preventor, Thread thread) {
       // Replace AccessControlContext
-      final Field inheritedAccessControlContext = preventor.findField(Thread.class, "inheritedAccessControlContext");
+      final FieldAccessor inheritedAccessControlContext = preventor.findFieldAccessor(Thread.class, "inheritedAccessControlContext");
       if(inheritedAccessControlContext != null) {
         try {
           final AccessControlContext acc = preventor.createAccessControlContext();
@@ -275,8 +395,8 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
   /** Get {@link Runnable} of given thread, if any */
   private Runnable getRunnable(ClassLoaderLeakPreventor preventor, Thread thread) {
     if(oracleTarget == null && ibmRunnable == null) { // Not yet initialized
-      oracleTarget = preventor.findField(Thread.class, "target"); // Sun/Oracle JRE
-      ibmRunnable = preventor.findField(Thread.class, "runnable"); // IBM JRE       
+      oracleTarget = preventor.findFieldAccessor(Thread.class, "target"); // Sun/Oracle JRE
+      ibmRunnable = preventor.findFieldAccessor(Thread.class, "runnable"); // IBM JRE       
     }
 
     return (oracleTarget != null) ? (Runnable) preventor.getFieldValue(oracleTarget, thread) : // Sun/Oracle JRE  
@@ -316,6 +436,24 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
     }
   }
   
+  /** Thread found running in the protected ClassLoader, to be handled once done waiting */
+  private static class PendingThread {
+    
+    final Thread thread;
+    
+    /** Description of the thread and why it is considered running in the protected ClassLoader */
+    final String displayString;
+    
+    /** Is the thread loaded by the protected ClassLoader, so that it should be stopped rather than have its context ClassLoader changed? */
+    final boolean stop;
+
+    PendingThread(Thread thread, String displayString, boolean stop) {
+      this.thread = thread;
+      this.displayString = displayString;
+      this.stop = stop;
+    }
+  }
+  
   /** 
    * Inner class with the sole task of killing JURT finalizer thread after it is done processing jobs. 
    * We need to postpone the stopping of this thread, since more Jobs may in theory be add()ed when the protected 
@@ -362,8 +500,8 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
                 }
 
                 if(State.RUNNABLE != jurtThread.getState()) { // Unless thread is currently executing a Job
-                  preventor.debug(getName() + " about to force Garbage Collection");
-                  ClassLoaderLeakPreventor.gc(); // Force garbage collection, which may put new items on queue
+                  preventor.debug(getName() + " about to await Garbage Collection");
+                  preventor.awaitGc(); // Garbage collection may put new items on queue
 
                   synchronized (jurtQueue) {
                     queueIsEmpty = jurtQueue.isEmpty();
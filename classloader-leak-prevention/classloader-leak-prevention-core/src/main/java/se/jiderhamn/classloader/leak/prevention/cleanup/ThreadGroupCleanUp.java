@@ -1,42 +1,40 @@
 package se.jiderhamn.classloader.leak.prevention.cleanup;
 
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.CleanUpContext;
 import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
 
 /**
- * Destroy any {@link ThreadGroup}s that are loaded by the protected classloader
+ * Destroy any {@link ThreadGroup}s that are loaded by the protected classloader. 
+ * 
+ * Destroyed {@link ThreadGroup}s may leave stale entries in java.beans.ThreadGroupContext, that are not removed until
+ * the {@link ThreadGroup}s have been garbage collected. Rather than waiting for garbage collection, the entries are
+ * enqueued as stale right away, so that they can be removed immediately.
+ * 
+ * Must be after {@link StopThreadsCleanUp}, so that when run by {@link ClassLoaderLeakPreventor#runCleanUpsAsync}, the
+ * {@link ThreadGroup}s are not destroyed until the waiting for threads by {@link StopThreadsCleanUp} is done.
  * @author Mattias Jiderhamn
  */
 public class ThreadGroupCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAfter {
 
   @Override
   public Class[] mustBeBeforeMe() {
-    return new Class[] {JavaServerFaces2746CleanUp.class};
+    return new Class[] {JavaServerFaces2746CleanUp.class, StopThreadsCleanUp.class};
   }
 
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
-    boolean threadGroupDestroyed = false;
+    final List<ThreadGroup> destroyed = new ArrayList<ThreadGroup>();
     try {
-      ThreadGroup systemThreadGroup = Thread.currentThread().getThreadGroup();
-      while(systemThreadGroup.getParent() != null) {
-        systemThreadGroup = systemThreadGroup.getParent();
-      }
-      // systemThreadGroup should now be the topmost ThreadGroup, "system"
-
-      int enumeratedGroups;
-      ThreadGroup[] allThreadGroups;
-      int noOfGroups = systemThreadGroup.activeGroupCount(); // Estimate no of groups
-      do {
-        noOfGroups += 10; // Make room for 10 extra
-        allThreadGroups = new ThreadGroup[noOfGroups];
-        enumeratedGroups = systemThreadGroup.enumerate(allThreadGroups);
-      } while(enumeratedGroups >= noOfGroups); // If there was not room for all groups, try again
-      
-      for(ThreadGroup threadGroup : allThreadGroups) {
+      final CleanUpContext context = preventor.getCleanUpContext();
+      for(ThreadGroup threadGroup : context.getAllThreadGroups()) {
         if(preventor.isLoadedInClassLoader(threadGroup) && ! threadGroup.isDestroyed()) {
           preventor.warn("ThreadGroup '" + threadGroup + "' was loaded inside application, needs to be destroyed");
           
@@ -53,7 +51,8 @@ public class ThreadGroupCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
 
           try {
             threadGroup.destroy();
-            threadGroupDestroyed = true;
+            destroyed.add(threadGroup);
+            context.invalidateThreadGroups();
             preventor.info("ThreadGroup '" + threadGroup + "' successfully destroyed");
           }
           catch (Exception e) {
@@ -69,8 +68,11 @@ public class ThreadGroupCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
     try {
       final Object contexts = preventor.getStaticFieldValue("java.beans.ThreadGroupContext", "contexts");
       if(contexts != null) { // Since Java 1.7
-        if(threadGroupDestroyed) // At least one ThreadGroup destroyed by this clean up 
-          ClassLoaderLeakPreventor.gc(); // Force GC so WeakIdentityMap turns destroyed ThreadGroups into stale entries
+        if(! destroyed.isEmpty()) { // At least one ThreadGroup destroyed by this clean up 
+          // Turn entries of destroyed ThreadGroups into stale entries, without waiting for them to be garbage collected
+          if(! enqueueEntries(preventor, contexts, destroyed))
+            preventor.awaitGc(); // Fall back to GC, so WeakIdentityMap turns destroyed ThreadGroups into stale entries
+        }
 
         final Method removeStaleEntries = preventor.findMethod("java.beans.WeakIdentityMap", "removeStaleEntries");
         if(removeStaleEntries != null)
@@ -81,4 +83,40 @@ public class ThreadGroupCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
       preventor.warn(t);
     }
   }
-}
\ No newline at end of file
+  
+  /** 
+   * Enqueue the entries of the java.beans.WeakIdentityMap that refer to any of the destroyed {@link ThreadGroup}s, so 
+   * that they will be removed by the next java.beans.WeakIdentityMap.removeStaleEntries(), just as if the
+   * {@link ThreadGroup}s had been garbage collected. The table of the map is walked while holding the same lock as 
+   * the map itself uses when modifying it.
+   * @return {@code true} if the entries could be enqueued, {@code false} if garbage collection is needed
+   */
+  protected boolean enqueueEntries(ClassLoaderLeakPreventor preventor, Object contexts, List<ThreadGroup> destroyed) {
+    final Class<?> weakIdentityMapClass = preventor.findClass("java.beans.WeakIdentityMap");
+    final Field tableField = preventor.findField(weakIdentityMapClass, "table");
+    final Object lock = (weakIdentityMapClass != null) ? 
+        preventor.getStaticFieldValue(weakIdentityMapClass, "NULL") : null;
+    if(tableField == null || lock == null)
+      return false;
+    
+    synchronized (lock) {
+      final Reference<?>/*java.beans.WeakIdentityMap.Entry*/[] table = preventor.getFieldValue(tableField, contexts);
+      if(table == null)
+        return false;
+      
+      for(Reference<?> entry : table) {
+        while(entry != null) {
+          final Object referent = entry.get();
+          for(ThreadGroup threadGroup : destroyed) {
+            if(referent == threadGroup) {
+              entry.enqueue();
+              break;
+            }
+          }
+          entry = preventor.getFieldValue(entry, "next");
+        }
+      }
+    }
+    return true;
+  }
+}
@@ -2,9 +2,17 @@ package se.jiderhamn.classloader.leak.prevention.cleanup;
 
 import java.lang.ref.Reference;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.FieldAccessor;
 import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
 
 /**
@@ -20,13 +28,22 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
   /** Class name for per thread transaction in Caucho Resin transaction manager */
   private static final String CAUCHO_TRANSACTION_IMPL = "com.caucho.transaction.TransactionImpl";
   
-  protected Field java_lang_Thread_threadLocals;
+  /** Min no of threads to scan in each fork/join task */
+  private static final int MIN_THREADS_PER_TASK = 16;
+  
+  /** 
+   * No of threads to use for scanning {@link ThreadLocal}s of all threads for leaks. Any leaks found are still 
+   * processed by the thread invoking the cleanup. 1 means everything is done by the invoking thread.
+   */
+  protected int parallelism = 1;
+  
+  protected FieldAccessor java_lang_Thread_threadLocals;
 
-  protected Field java_lang_Thread_inheritableThreadLocals;
+  protected FieldAccessor java_lang_Thread_inheritableThreadLocals;
 
-  protected Field java_lang_ThreadLocal$ThreadLocalMap_table;
+  protected FieldAccessor java_lang_ThreadLocal$ThreadLocalMap_table;
 
-  protected Field java_lang_ThreadLocal$ThreadLocalMap$Entry_value;
+  protected FieldAccessor java_lang_ThreadLocal$ThreadLocalMap$Entry_value;
 
   /** Needs to be done after {@link StopThreadsCleanUp}, since new {@link ThreadLocal}s may be added when threads are 
    * shutting down. */
@@ -35,6 +52,18 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
     return new Class[] {StopThreadsCleanUp.class};
   }
 
+  /** 
+   * Set the no of threads to use for scanning the {@link ThreadLocal}s of all threads, using a temporary 
+   * {@link ForkJoinPool}. Defaults to 1, meaning the invoking thread does everything. A higher value may speed up the 
+   * cleanup when there are many threads with many {@link ThreadLocal}s. Either way, entries are cleared and logged by 
+   * the invoking thread.
+   */
+  public void setParallelism(int parallelism) {
+    if(parallelism < 1)
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    this.parallelism = parallelism;
+  }
+
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     initFields(preventor); // Initialize some reflection variables
@@ -49,17 +78,78 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
       preventor.error("java.lang.ThreadLocal$ThreadLocalMap.table not found; something is seriously wrong!");
 
 
-    for(Thread thread : preventor.getAllThreads()) {
-      forEachThreadLocalInThread(preventor, thread);
+    final Collection<Thread> threads = preventor.getCleanUpContext().getAllThreads();
+    if(parallelism > 1 && threads.size() > MIN_THREADS_PER_TASK) {
+      forEachThreadLocalInParallel(preventor, threads.toArray(new Thread[threads.size()]));
+    }
+    else {
+      for(Thread thread : threads) {
+        forEachThreadLocalInThread(preventor, thread);
+      }
+    }
+  }
+  
+  /** 
+   * Scan the {@link ThreadLocal}s of the threads in parallel using a temporary {@link ForkJoinPool}, then process the 
+   * entries found by the current thread, in the same order as if done sequentially.
+   */
+  protected void forEachThreadLocalInParallel(final ClassLoaderLeakPreventor preventor, Thread[] threads) {
+    if(java_lang_ThreadLocal$ThreadLocalMap$Entry_value == null) // Avoid concurrent lookups
+      java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findFieldAccessorOfClass("java.lang.ThreadLocal$ThreadLocalMap$Entry", "value");
+    
+    final ForkJoinPool pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+      @Override
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) { };
+        thread.setContextClassLoader(preventor.getLeakSafeClassLoader());
+        return thread;
+      }
+    }, null, false);
+    final List<ThreadLocalEntry> entries;
+    try {
+      final int threadsPerTask = Math.max(MIN_THREADS_PER_TASK, threads.length / (parallelism * 4));
+      entries = pool.invoke(new DetectTask(preventor, threads, 0, threads.length, threadsPerTask));
+    }
+    finally {
+      pool.shutdown();
+      try {
+        pool.awaitTermination(ClassLoaderLeakPreventor.THREAD_WAIT_MS_DEFAULT, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Let the caller know
+      }
+    }
+    
+    try {
+      processEntries(preventor, entries);
+    }
+    catch (Exception ex) {
+      preventor.error(ex);
+    }
+  }
+  
+  /** Detect entries to process in the {@link ThreadLocal}s of a thread, without modifying anything */
+  protected void detectInThread(ClassLoaderLeakPreventor preventor, Thread thread, List<ThreadLocalEntry> output) {
+    try {
+      if(java_lang_Thread_threadLocals != null) {
+        detectInThreadLocalMap(preventor, thread, java_lang_Thread_threadLocals.get(thread), output);
+      }
+
+      if(java_lang_Thread_inheritableThreadLocals != null) {
+        detectInThreadLocalMap(preventor, thread, java_lang_Thread_inheritableThreadLocals.get(thread), output);
+      }
+    }
+    catch (Exception ex) {
+      preventor.error(ex);
     }
   }
 
   /** Make sure fields are initialized */
   private void initFields(ClassLoaderLeakPreventor preventor) {
     if(java_lang_Thread_threadLocals == null) { // First invokation of this preventor
-      java_lang_Thread_threadLocals = preventor.findField(Thread.class, "threadLocals");
-      java_lang_Thread_inheritableThreadLocals = preventor.findField(Thread.class, "inheritableThreadLocals");
-      java_lang_ThreadLocal$ThreadLocalMap_table = preventor.findFieldOfClass("java.lang.ThreadLocal$ThreadLocalMap", "table");
+      java_lang_Thread_threadLocals = preventor.findFieldAccessor(Thread.class, "threadLocals");
+      java_lang_Thread_inheritableThreadLocals = preventor.findFieldAccessor(Thread.class, "inheritableThreadLocals");
+      java_lang_ThreadLocal$ThreadLocalMap_table = preventor.findFieldAccessorOfClass("java.lang.ThreadLocal$ThreadLocalMap", "table");
     }
   }
 
@@ -80,9 +170,18 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
 
   protected void processThreadLocalMap(ClassLoaderLeakPreventor preventor,
                                        Thread thread, Object threadLocalMap) throws IllegalAccessException {
+    final List<ThreadLocalEntry> entries = new ArrayList<ThreadLocalEntry>();
+    detectInThreadLocalMap(preventor, thread, threadLocalMap, entries);
+    processEntries(preventor, entries);
+  }
+
+  /** 
+   * Add the entries of the ThreadLocalMap that need to be processed to {@code output}, without modifying anything. 
+   * May be called concurrently for different threads. 
+   */
+  protected void detectInThreadLocalMap(ClassLoaderLeakPreventor preventor, Thread thread, Object threadLocalMap,
+                                        List<ThreadLocalEntry> output) {
     if(threadLocalMap != null && java_lang_ThreadLocal$ThreadLocalMap_table != null) {
-      Field resin_suspendState = null;
-      Field resin_isSuspended = null;
       final Object[] threadLocalMapTable = (Object[]) java_lang_ThreadLocal$ThreadLocalMap_table.get(threadLocalMap); // java.lang.ThreadLocal.ThreadLocalMap.Entry[]
       for(Object entry : threadLocalMapTable) {
         if(entry != null) {
@@ -91,7 +190,7 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
           final ThreadLocal<?> threadLocal = (ThreadLocal<?>) reference.get();
 
           if(java_lang_ThreadLocal$ThreadLocalMap$Entry_value == null) {
-            java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findField(entry.getClass(), "value");
+            java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findFieldAccessor(entry.getClass(), "value");
           }
 
           // Dereference the value if this is a Reference<T>: all Reference<T> implementations are all loaded using the bootstrap classloader,
@@ -99,78 +198,171 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
           // We could have called Reference.clear() directly, which would have fixed the leak even when not allowed to modify the ThreadLocalMap.Entry
           final Object value = dereferenceIfApplicable(java_lang_ThreadLocal$ThreadLocalMap$Entry_value.get(entry));
 
-          // Workaround for http://bugs.caucho.com/view.php?id=5647
-          if(value != null && CAUCHO_TRANSACTION_IMPL.equals(value.getClass().getName())) { // Resin transaction
-            if(resin_suspendState == null && resin_isSuspended == null) { // First thread with Resin transaction, look up fields
-              resin_suspendState = preventor.findField(value.getClass(), "_suspendState");
-              resin_isSuspended = preventor.findField(value.getClass(), "_isSuspended");
-            }
+          final boolean resinTransaction = value != null && CAUCHO_TRANSACTION_IMPL.equals(value.getClass().getName());
+          final boolean customThreadLocal = preventor.isLoadedInClassLoader(threadLocal); // This is not an actual problem
+          final boolean valueLoadedInWebApp = preventor.isLoadedInClassLoader(value);
+          final boolean leak = customThreadLocal || valueLoadedInWebApp ||
+              (value instanceof ClassLoader && preventor.isClassLoaderOrChild((ClassLoader) value)); // The value is classloader (child) itself
+          if(leak || resinTransaction) {
+            output.add(new ThreadLocalEntry(thread, reference, threadLocal, value, leak, customThreadLocal, 
+                valueLoadedInWebApp));
+          }
+        }
+      }
+    }
+  }
+
+  /** Process entries found by {@link #detectInThreadLocalMap}, in order. Always called by a single thread. */
+  protected void processEntries(ClassLoaderLeakPreventor preventor, List<ThreadLocalEntry> entries) 
+      throws IllegalAccessException {
+    Field resin_suspendState = null;
+    Field resin_isSuspended = null;
+    for(ThreadLocalEntry threadLocalEntry : entries) {
+      final Thread thread = threadLocalEntry.thread;
+      final ThreadLocal<?> threadLocal = threadLocalEntry.threadLocal;
+      final Object value = threadLocalEntry.value;
 
-            if(resin_suspendState != null && resin_isSuspended != null) { // Both fields exist (as per version 4.0.37)
-              if(preventor.getFieldValue(resin_suspendState, value) != null) { // There is a suspended state that may cause leaks
-                // In theory a new transaction can be started and suspended between where we read and write the state,
-                // and flag, therefore we suspend the thread meanwhile.
-                try {
-                  //noinspection deprecation
-                  thread.suspend(); // Suspend the thread
-                  if(preventor.getFieldValue(resin_suspendState, value) != null) { // Re-read suspend state when thread is suspended
-                    final Object isSuspended = preventor.getFieldValue(resin_isSuspended, value);
-                    if(!(isSuspended instanceof Boolean)) {
-                      preventor.error(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " but _isSuspended is not boolean: " + isSuspended);
-                    }
-                    else if((Boolean) isSuspended) { // Is currently suspended - suspend state is correct
-                      preventor.debug(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " that is suspended");
-                    }
-                    else { // Is not suspended, and thus should not have suspend state
-                      resin_suspendState.set(value, null);
-                      preventor.error(thread.toString() + " had " + CAUCHO_TRANSACTION_IMPL + " with unused _suspendState that was removed");
-                    }
-                  }
+      // Workaround for http://bugs.caucho.com/view.php?id=5647
+      if(value != null && CAUCHO_TRANSACTION_IMPL.equals(value.getClass().getName())) { // Resin transaction
+        if(resin_suspendState == null && resin_isSuspended == null) { // First thread with Resin transaction, look up fields
+          resin_suspendState = preventor.findField(value.getClass(), "_suspendState");
+          resin_isSuspended = preventor.findField(value.getClass(), "_isSuspended");
+        }
+
+        if(resin_suspendState != null && resin_isSuspended != null) { // Both fields exist (as per version 4.0.37)
+          if(preventor.getFieldValue(resin_suspendState, value) != null) { // There is a suspended state that may cause leaks
+            // In theory a new transaction can be started and suspended between where we read and write the state,
+            // and flag, therefore we suspend the thread meanwhile.
+            try {
+              //noinspection deprecation
+              thread.suspend(); // Suspend the thread
+              if(preventor.getFieldValue(resin_suspendState, value) != null) { // Re-read suspend state when thread is suspended
+                final Object isSuspended = preventor.getFieldValue(resin_isSuspended, value);
+                if(!(isSuspended instanceof Boolean)) {
+                  preventor.error(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " but _isSuspended is not boolean: " + isSuspended);
                 }
-                catch (Throwable t) { // Such as SecurityException
-                  preventor.error(t);
+                else if((Boolean) isSuspended) { // Is currently suspended - suspend state is correct
+                  preventor.debug(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " that is suspended");
                 }
-                finally {
-                  //noinspection deprecation
-                  thread.resume();
+                else { // Is not suspended, and thus should not have suspend state
+                  resin_suspendState.set(value, null);
+                  preventor.error(thread.toString() + " had " + CAUCHO_TRANSACTION_IMPL + " with unused _suspendState that was removed");
                 }
               }
             }
-          }
-          
-          final boolean customThreadLocal = preventor.isLoadedInClassLoader(threadLocal); // This is not an actual problem
-          final boolean valueLoadedInWebApp = preventor.isLoadedInClassLoader(value);
-          if(customThreadLocal || valueLoadedInWebApp ||
-              (value instanceof ClassLoader && preventor.isClassLoaderOrChild((ClassLoader) value))) { // The value is classloader (child) itself
-            // This ThreadLocal is either itself loaded by the web app classloader, or it's value is
-            // Let's do something about it
-
-            StringBuilder message = new StringBuilder();
-            if(threadLocal != null) {
-              if(customThreadLocal) {
-                message.append("Custom ");
-              }
-              message.append("ThreadLocal of type ").append(threadLocal.getClass().getName()).append(": ").append(threadLocal);
+            catch (Throwable t) { // Such as SecurityException
+              preventor.error(t);
             }
-            else {
-              message.append("Unknown ThreadLocal");
+            finally {
+              //noinspection deprecation
+              thread.resume();
             }
-            message.append(" with value ").append(value);
-            if(value != null) {
-              message.append(" of type ").append(value.getClass().getName());
-              if(valueLoadedInWebApp)
-                message.append(" that is loaded by web app");
-            }
-
+          }
+        }
+      }
+      
+      if(threadLocalEntry.leak) {
+        // This ThreadLocal is either itself loaded by the web app classloader, or it's value is
+        // Let's do something about it
 
-            // Process the detected potential leak
-            processLeak(preventor, thread, reference, threadLocal, value, message.toString());
+        StringBuilder message = new StringBuilder();
+        if(threadLocal != null) {
+          if(threadLocalEntry.customThreadLocal) {
+            message.append("Custom ");
           }
+          message.append("ThreadLocal of type ").append(threadLocal.getClass().getName()).append(": ").append(threadLocal);
         }
+        else {
+          message.append("Unknown ThreadLocal");
+        }
+        message.append(" with value ").append(value);
+        if(value != null) {
+          message.append(" of type ").append(value.getClass().getName());
+          if(threadLocalEntry.valueLoadedInWebApp)
+            message.append(" that is loaded by web app");
+        }
+
+
+        // Process the detected potential leak
+        processLeak(preventor, thread, threadLocalEntry.entry, threadLocal, value, message.toString());
       }
     }
   }
   
+  /** Entry of a ThreadLocalMap found to be leaking, or otherwise in need of processing */
+  protected static class ThreadLocalEntry {
+    
+    protected final Thread thread;
+    
+    /** The ThreadLocalMap.Entry */
+    protected final Reference<?> entry;
+    
+    protected final ThreadLocal<?> threadLocal;
+    
+    /** The value, dereferenced if applicable */
+    protected final Object value;
+    
+    /** Does the entry cause a leak? */
+    protected final boolean leak;
+    
+    protected final boolean customThreadLocal;
+    
+    protected final boolean valueLoadedInWebApp;
+
+    protected ThreadLocalEntry(Thread thread, Reference<?> entry, ThreadLocal<?> threadLocal, Object value, boolean leak,
+                               boolean customThreadLocal, boolean valueLoadedInWebApp) {
+      this.thread = thread;
+      this.entry = entry;
+      this.threadLocal = threadLocal;
+      this.value = value;
+      this.leak = leak;
+      this.customThreadLocal = customThreadLocal;
+      this.valueLoadedInWebApp = valueLoadedInWebApp;
+    }
+  }
+  
+  /** Fork/join task detecting entries to process in a range of threads, splitting the range if too large */
+  @SuppressWarnings("serial") // Never serialized
+  private class DetectTask extends RecursiveTask<List<ThreadLocalEntry>> {
+    
+    private final ClassLoaderLeakPreventor preventor;
+    
+    private final Thread[] threads;
+    
+    private final int from;
+    
+    private final int to;
+    
+    private final int threadsPerTask;
+
+    DetectTask(ClassLoaderLeakPreventor preventor, Thread[] threads, int from, int to, int threadsPerTask) {
+      this.preventor = preventor;
+      this.threads = threads;
+      this.from = from;
+      this.to = to;
+      this.threadsPerTask = threadsPerTask;
+    }
+
+    @Override
+    protected List<ThreadLocalEntry> compute() {
+      if(to - from <= threadsPerTask) {
+        final List<ThreadLocalEntry> output = new ArrayList<ThreadLocalEntry>();
+        for(int i = from; i < to; i++) {
+          detectInThread(preventor, threads[i], output);
+        }
+        return output;
+      }
+      
+      final int middle = (from + to) >>> 1;
+      final DetectTask first = new DetectTask(preventor, threads, from, middle, threadsPerTask);
+      first.fork();
+      final List<ThreadLocalEntry> second = new DetectTask(preventor, threads, middle, to, threadsPerTask).compute();
+      final List<ThreadLocalEntry> output = first.join();
+      output.addAll(second); // Retain order
+      return output;
+    }
+  }
+  
   protected Object dereferenceIfApplicable(Object value) {
       return value instanceof Reference ? dereferenceIfApplicable(((Reference<?>) value).get()) : value; 
   }
@@ -195,14 +387,14 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
     entry.clear(); // Clear the key
 
     if(java_lang_ThreadLocal$ThreadLocalMap$Entry_value == null) {
-      java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findField(entry.getClass(), "value");
+      java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findFieldAccessor(entry.getClass(), "value");
     }
 
     try {
       java_lang_ThreadLocal$ThreadLocalMap$Entry_value.set(entry, null); // Clear value to avoid circular references
     }
-    catch (IllegalAccessException iaex) {
-      preventor.error(iaex);
+    catch (Exception ex) { // IllegalStateException wrapping IllegalAccessException
+      preventor.error(ex);
     }
   }
 }
@@ -9,6 +9,7 @@ import javax.net.ssl.X509TrustManager;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.IndependentCleanUp;
 
 /**
  * {@link sun.security.ssl.X509TrustManagerImpl} keeps a list set of trusted certs, which may include 
@@ -16,7 +17,7 @@ import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
  * with references to the classloader that we want to protect 
  * @author Mattias Jiderhamn
  */
-public class X509TrustManagerImplUnparseableExtensionCleanUp implements ClassLoaderPreMortemCleanUp {
+public class X509TrustManagerImplUnparseableExtensionCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
 
   private static final String SUN_SECURITY_X509_X509_CERT_IMPL = "sun.security.x509.X509CertImpl";
 
@@ -1,6 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.JvmGlobalInitiator;
 import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
 
 /**
@@ -10,16 +11,22 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * See http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class AwtToolkitInitiator implements PreClassLoaderInitiator {
+public class AwtToolkitInitiator implements PreClassLoaderInitiator, JvmGlobalInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    initialize(preventor);
+  }
+
+  @Override
+  public boolean initialize(ClassLoaderLeakPreventor preventor) {
     try {
       java.awt.Toolkit.getDefaultToolkit(); // Will start a Thread
+      return true;
     }
     catch (Throwable t) {
       preventor.error(t);
       preventor.warn("Consider adding -Djava.awt.headless=true to your JVM parameters");
+      return false;
     }
-    
   }
 }
\ No newline at end of file
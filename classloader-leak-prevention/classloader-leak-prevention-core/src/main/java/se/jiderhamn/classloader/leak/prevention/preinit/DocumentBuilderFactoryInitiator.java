@@ -1,6 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.JvmGlobalInitiator;
 import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
 
 /**
@@ -10,15 +11,21 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * See http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class DocumentBuilderFactoryInitiator implements PreClassLoaderInitiator {
+public class DocumentBuilderFactoryInitiator implements PreClassLoaderInitiator, JvmGlobalInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    initialize(preventor);
+  }
+
+  @Override
+  public boolean initialize(ClassLoaderLeakPreventor preventor) {
     try {
       javax.xml.parsers.DocumentBuilderFactory.newInstance().newDocumentBuilder();
+      return true;
     }
     catch (Exception ex) { // Example: ParserConfigurationException
       preventor.error(ex);
+      return false;
     }
-                                            
   }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.JvmGlobalInitiator;
 import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
 import se.jiderhamn.classloader.leak.prevention.cleanup.DriverManagerCleanUp;
 
@@ -17,9 +18,15 @@ import se.jiderhamn.classloader.leak.prevention.cleanup.DriverManagerCleanUp;
  * TODO {@link DriverManagerCleanUp}
  * @author Mattias Jiderhamn
  */
-public class JdbcDriversInitiator implements PreClassLoaderInitiator {
+public class JdbcDriversInitiator implements PreClassLoaderInitiator, JvmGlobalInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    initialize(preventor);
+  }
+
+  @Override
+  public boolean initialize(ClassLoaderLeakPreventor preventor) {
     java.sql.DriverManager.getDrivers(); // Load initial drivers using leak safe classloader
+    return true;
   }
 }
\ No newline at end of file
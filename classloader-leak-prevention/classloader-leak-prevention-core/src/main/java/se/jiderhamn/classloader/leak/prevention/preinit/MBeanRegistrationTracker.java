@@ -0,0 +1,147 @@
+package se.jiderhamn.classloader.leak.prevention.preinit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventorFactory;
+import se.jiderhamn.classloader.leak.prevention.CleanUpPriority;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.cleanup.MBeanCleanUp;
+
+/**
+ * Keep track of the MBeans registered in the {@link ManagementFactory#getPlatformMBeanServer()} by the protected
+ * {@link ClassLoader}, so that {@link MBeanCleanUp} only needs to look at those MBeans, instead of every MBean in the
+ * JVM. An MBean is tracked if it is registered while the protected {@link ClassLoader} (or a child thereof) is the
+ * {@link Thread#contextClassLoader} of the registering thread, or if the MBean was loaded by the protected
+ * {@link ClassLoader}. MBeans loaded by the protected {@link ClassLoader} that are already registered when the 
+ * tracking starts are tracked too, but to also catch MBeans of other classes registered by the protected
+ * {@link ClassLoader}, the tracking should be started before the application registers any MBeans - for example by 
+ * declaring the listener first.
+ *
+ * This is not enabled by default. If enabled, {@link MBeanCleanUp} is made {@link CleanUpPriority#ESSENTIAL} by
+ * {@link ClassLoaderLeakPreventorFactory#addPreInitiator}, and the tracking is stopped when the cleanups have finished
+ * in any case.
+ * @author Mattias Jiderhamn
+ */
+public class MBeanRegistrationTracker implements PreClassLoaderInitiator {
+
+  /** Tracking per {@link ClassLoaderLeakPreventor}, JVM wide */
+  private static final ConcurrentMap<ClassLoaderLeakPreventor, Tracking> trackings =
+      new ConcurrentHashMap<ClassLoaderLeakPreventor, Tracking>();
+
+  @Override
+  public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final Tracking tracking = new Tracking(preventor, mBeanServer);
+    if(trackings.putIfAbsent(preventor, tracking) != null) {
+      preventor.warn("MBean registrations are already tracked for " + preventor.getClassLoader());
+      return;
+    }
+
+    try {
+      mBeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, tracking, null, null);
+    }
+    catch (InstanceNotFoundException e) {
+      trackings.remove(preventor);
+      preventor.error(e);
+      return;
+    }
+    
+    // In case the tracking is started after the protected ClassLoader has registered MBeans. Done after adding the
+    // listener, so that no registration is missed in between.
+    tracking.addRegisteredMBeans();
+  }
+
+  /**
+   * Get the names of the MBeans currently tracked for the provided {@link ClassLoaderLeakPreventor}, or {@code null}
+   * if MBean registrations are not tracked.
+   */
+  public static Set<ObjectName> getTrackedMBeanNames(ClassLoaderLeakPreventor preventor) {
+    final Tracking tracking = trackings.get(preventor);
+    return (tracking != null) ? Collections.unmodifiableSet(tracking.mBeanNames) : null;
+  }
+
+  /**
+   * Stop tracking MBean registrations for the provided {@link ClassLoaderLeakPreventor}, and return the names of the
+   * MBeans tracked, or {@code null} if MBean registrations were not tracked.
+   */
+  public static Set<ObjectName> stopTracking(ClassLoaderLeakPreventor preventor) {
+    final Tracking tracking = trackings.remove(preventor);
+    if(tracking == null)
+      return null;
+
+    try {
+      tracking.mBeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, tracking);
+    }
+    catch (Exception e) { // InstanceNotFoundException / ListenerNotFoundException
+      preventor.error(e);
+    }
+    return tracking.mBeanNames;
+  }
+
+  /** Listener for registrations of MBeans, keeping track of those belonging to the protected {@link ClassLoader} */
+  private static class Tracking implements NotificationListener {
+
+    private final ClassLoaderLeakPreventor preventor;
+
+    private final MBeanServer mBeanServer;
+
+    private final Set<ObjectName> mBeanNames =
+        Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+
+    Tracking(ClassLoaderLeakPreventor preventor, MBeanServer mBeanServer) {
+      this.preventor = preventor;
+      this.mBeanServer = mBeanServer;
+    }
+
+    /** 
+     * Add the MBeans already registered that were loaded by the protected {@link ClassLoader}. MBeans that were
+     * registered by the protected {@link ClassLoader} but loaded by another {@link ClassLoader} cannot be found this
+     * way, and are only tracked if registered after tracking started.
+     */
+    void addRegisteredMBeans() {
+      for(ObjectName objectName : mBeanServer.queryNames(null, null)) {
+        if(isLoadedInClassLoader(objectName))
+          mBeanNames.add(objectName);
+      }
+    }
+
+    /** Invoked by the thread registering or unregistering the MBean */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if(! (notification instanceof MBeanServerNotification))
+        return;
+
+      final ObjectName objectName = ((MBeanServerNotification) notification).getMBeanName();
+      if(MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        if(preventor.isClassLoaderOrChild(Thread.currentThread().getContextClassLoader()) ||
+            isLoadedInClassLoader(objectName)) {
+          mBeanNames.add(objectName);
+        }
+      }
+      else if(MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        mBeanNames.remove(objectName);
+      }
+    }
+
+    private boolean isLoadedInClassLoader(ObjectName objectName) {
+      try {
+        return preventor.isClassLoaderOrChild(mBeanServer.getClassLoaderFor(objectName));
+      }
+      catch (InstanceNotFoundException e) { // Already unregistered
+        return false;
+      }
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.JvmGlobalInitiator;
 import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
 
 /**
@@ -11,9 +12,15 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * See http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class SecurityProvidersInitiator implements PreClassLoaderInitiator {
+public class SecurityProvidersInitiator implements PreClassLoaderInitiator, JvmGlobalInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    initialize(preventor);
+  }
+
+  @Override
+  public boolean initialize(ClassLoaderLeakPreventor preventor) {
     java.security.Security.getProviders();
+    return true;
   }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ClassLoaderCollectionWatchdog}
+ * @author Mattias Jiderhamn
+ */
+public class ClassLoaderCollectionWatchdogTest {
+
+  private static final long TIMEOUT_MS = 10 * 1000;
+
+  private final ClassLoaderCollectionWatchdog watchdog = new ClassLoaderCollectionWatchdog(new StdLogger());
+
+  @After
+  public void tearDown() {
+    watchdog.stop();
+  }
+
+  @Test
+  public void collected() throws InterruptedException {
+    watchdog.setMaxFullGcs(1);
+    watchdog.setMaxAgeMs(0);
+    watchdog.watch(new URLClassLoader(new URL[0]), "collected");
+    assertEquals(1, watchdog.getPendingCount());
+
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while(watchdog.getCollectedCount() == 0 && System.currentTimeMillis() < deadline) {
+      ClassLoaderLeakPreventor.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(1, watchdog.getCollectedCount());
+    assertEquals(0, watchdog.getLeakedCount());
+    assertEquals(0, watchdog.getPendingCount());
+  }
+
+  @Test
+  public void leakedAfterFullGcs() throws InterruptedException {
+    watchdog.setMaxFullGcs(2);
+    watchdog.setMaxAgeMs(0);
+    ClassLoader classLoader = new URLClassLoader(new URL[0]);
+    watchdog.watch(classLoader, "leaked");
+
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while(watchdog.getLeakedCount() == 0 && System.currentTimeMillis() < deadline) {
+      ClassLoaderLeakPreventor.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(1, watchdog.getLeakedCount());
+    assertTrue("At least 3 full GCs", watchdog.getFullGcCount() >= 3);
+    assertEquals(0, watchdog.getCollectedCount());
+    assertEquals(0, watchdog.getPendingCount());
+
+    //noinspection UnusedAssignment
+    classLoader = null;
+    deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while(watchdog.getCollectedAfterLeakedCount() == 0 && System.currentTimeMillis() < deadline) {
+      ClassLoaderLeakPreventor.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(1, watchdog.getCollectedAfterLeakedCount());
+    assertEquals(0, watchdog.getCollectedCount());
+  }
+
+  /** Test that a classloader is reported as leaked after max age, without any garbage collection */
+  @Test
+  public void leakedAfterMaxAge() throws InterruptedException {
+    watchdog.setMaxFullGcs(0);
+    watchdog.setMaxAgeMs(100);
+    final ClassLoader classLoader = new URLClassLoader(new URL[0]);
+    watchdog.watch(classLoader, "old");
+
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while(watchdog.getLeakedCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, watchdog.getLeakedCount());
+    assertEquals(1, watchdog.getWatchedCount());
+    assertFalse(classLoader.toString().isEmpty()); // Keep classloader strongly reachable
+  }
+
+  @Test
+  public void isFullCollection() {
+    assertTrue(ClassLoaderCollectionWatchdog.isFullCollection("G1 Old Generation", "end of major GC"));
+    assertTrue(ClassLoaderCollectionWatchdog.isFullCollection("ZGC Cycles", "end of GC cycle"));
+    assertFalse(ClassLoaderCollectionWatchdog.isFullCollection("G1 Young Generation", "end of minor GC"));
+    assertFalse(ClassLoaderCollectionWatchdog.isFullCollection("ZGC Pauses", "end of GC pause"));
+    assertTrue(ClassLoaderCollectionWatchdog.isFullCollection("Shenandoah Cycles", "end of GC cycle"));
+  }
+
+  /** Test that only major cycles of generational ZGC are considered full collections */
+  @Test
+  public void isFullCollectionGenerationalZgc() {
+    assertTrue(ClassLoaderCollectionWatchdog.isFullCollection("ZGC Major Cycles", "end of GC cycle"));
+    assertFalse(ClassLoaderCollectionWatchdog.isFullCollection("ZGC Minor Cycles", "end of GC cycle"));
+    assertFalse(ClassLoaderCollectionWatchdog.isFullCollection("ZGC Major Pauses", "end of GC pause"));
+    assertFalse(ClassLoaderCollectionWatchdog.isFullCollection("ZGC Minor Pauses", "end of GC pause"));
+  }
+}
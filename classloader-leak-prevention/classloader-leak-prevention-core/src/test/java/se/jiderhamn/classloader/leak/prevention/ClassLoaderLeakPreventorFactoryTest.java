@@ -1,12 +1,30 @@
 package se.jiderhamn.classloader.leak.prevention;
 
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.cleanup.MBeanCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.MBeanCleanUpTest;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ResourceBundleCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.StopThreadsCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.WarningThreadLocalCleanUp;
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationTracker;
 
 import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test cases for {@link ClassLoaderLeakPreventorFactory}
@@ -15,7 +33,7 @@ import static org.junit.Assert.assertThat;
 public class ClassLoaderLeakPreventorFactoryTest {
   
   /** Test that {@link MustBeAfter} has expected effect on {@link ClassLoaderPreMortemCleanUp}s */
-  @Test(expected = IllegalStateException.class) // TODO #51
+  @Test
   public void cleanUpMustBeAfter() {
     final List<ClassLoaderPreMortemCleanUp> executionOrder = new ArrayList<ClassLoaderPreMortemCleanUp>();
     
@@ -38,8 +56,6 @@ public class ClassLoaderLeakPreventorFactoryTest {
     factory.addCleanUp(afterFoo1);
     factory.addCleanUp(foo);
     
-    // TODO #51
-    
     factory.newLeakPreventor().runCleanUps();
     
     // Make sure imposed order is achieved, while retaining order among moved elements
@@ -84,6 +100,77 @@ public class ClassLoaderLeakPreventorFactoryTest {
     factory.addCleanUp(new Circle2());
   }
   
+  /** Test that a circular dependency leaves the configuration unchanged */
+  @Test
+  public void circularMustBeAfterNotAdded() {
+    ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    factory.clearCleanUps();
+    final Circle1 circle1 = new Circle1();
+    factory.addCleanUp(circle1);
+    try {
+      factory.addCleanUp(new Circle2());
+      fail("Circular dependency should cause exception");
+    }
+    catch (IllegalStateException e) {
+      // Expected
+    }
+    assertSame(circle1, factory.getCleanUp(Circle1.class));
+    assertNull(factory.getCleanUp(Circle2.class));
+  }
+
+  @Test
+  public void cleanUpPriorities() {
+    ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    assertEquals(CleanUpPriority.ESSENTIAL, factory.getCleanUpPriority(StopThreadsCleanUp.class));
+    assertEquals(CleanUpPriority.ESSENTIAL, factory.getCleanUpPriority(ThreadLocalCleanUp.class));
+    assertEquals(CleanUpPriority.OPTIONAL, factory.getCleanUpPriority(ResourceBundleCleanUp.class));
+    assertEquals(CleanUpPriority.NORMAL, factory.getCleanUpPriority(WarningThreadLocalCleanUp.class));
+    factory.setCleanUpPriority(ResourceBundleCleanUp.class, CleanUpPriority.NORMAL);
+    factory.setCleanUpTimeBudgetMs(1000);
+    
+    final ClassLoaderLeakPreventor preventor = factory.newLeakPreventor(getClass().getClassLoader());
+    assertEquals(1000, preventor.getCleanUpTimeBudgetMs());
+    assertEquals(CleanUpPriority.NORMAL, preventor.getCleanUpPriority(new ResourceBundleCleanUp()));
+    assertEquals(CleanUpPriority.ESSENTIAL, preventor.getCleanUpPriority(new StopThreadsCleanUp()));
+    assertEquals("Inherited from superclass", 
+        CleanUpPriority.ESSENTIAL, preventor.getCleanUpPriority(new WarningThreadLocalCleanUp()));
+    assertEquals(CleanUpPriority.NORMAL, preventor.getCleanUpPriority(new Circle1()));
+  }
+  
+  /** Test that MBean tracking is always stopped, so that the listener does not leak the classloader */
+  @Test
+  public void mBeanTrackingStopped() {
+    ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    assertEquals(CleanUpPriority.NORMAL, factory.getCleanUpPriority(MBeanCleanUp.class));
+    factory.addPreInitiator(new MBeanRegistrationTracker());
+    assertEquals(CleanUpPriority.ESSENTIAL, factory.getCleanUpPriority(MBeanCleanUp.class));
+    
+    factory.clearCleanUps(); // MBeanCleanUp removed
+    final ClassLoaderLeakPreventor preventor = factory.newLeakPreventor(new URLClassLoader(new URL[0]));
+    new MBeanRegistrationTracker().doOutsideClassLoader(preventor);
+    assertNotNull(MBeanRegistrationTracker.getTrackedMBeanNames(preventor));
+    preventor.runCleanUps();
+    assertNull(MBeanRegistrationTracker.getTrackedMBeanNames(preventor));
+  }
+  
+  /** Test that MBeans loaded by the classloader that are registered before tracking starts are tracked too */
+  @Test
+  public void mBeansRegisteredBeforeTracking() throws Exception {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName("se.jiderhamn:before=tracking" + System.currentTimeMillis());
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), objectName);
+    final ClassLoaderLeakPreventor preventor = 
+        new ClassLoaderLeakPreventorFactory().newLeakPreventor(getClass().getClassLoader());
+    try {
+      new MBeanRegistrationTracker().doOutsideClassLoader(preventor);
+      assertTrue(MBeanRegistrationTracker.getTrackedMBeanNames(preventor).contains(objectName));
+    }
+    finally {
+      MBeanRegistrationTracker.stopTracking(preventor);
+      mBeanServer.unregisterMBean(objectName);
+    }
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   /** Base class for {@link ClassLoaderPreMortemCleanUp}s that will record their execution */
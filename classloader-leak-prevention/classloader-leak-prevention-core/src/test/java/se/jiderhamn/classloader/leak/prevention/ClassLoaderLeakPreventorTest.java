@@ -0,0 +1,701 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.AccessControlContext;
+import java.security.DomainCombiner;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for {@link ClassLoaderLeakPreventor}
+ * @author Mattias Jiderhamn
+ */
+public class ClassLoaderLeakPreventorTest {
+
+  private final ClassLoader protectedClassLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+  private final ClassLoader childClassLoader = new URLClassLoader(new URL[0], protectedClassLoader);
+
+  private final ClassLoader otherClassLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+  /** Test that ancestry verdicts are cached, and that the cached verdicts are correct */
+  @Test
+  public void ancestryCache() {
+    final ClassLoaderLeakPreventor preventor = newPreventor();
+    assertTrue(preventor.isAncestryCacheEnabled());
+
+    assertTrue(preventor.isClassLoaderOrChild(childClassLoader));
+    assertFalse(preventor.isClassLoaderOrChild(otherClassLoader));
+    assertEquals(0, preventor.getAncestryCacheHits());
+    assertEquals(2, preventor.getAncestryCacheMisses());
+
+    assertTrue(preventor.isClassLoaderOrChild(childClassLoader));
+    assertFalse(preventor.isClassLoaderOrChild(otherClassLoader));
+    assertTrue(preventor.isClassLoaderOrChild(protectedClassLoader)); // Never cached
+    assertFalse(preventor.isClassLoaderOrChild(null)); // Never cached
+    assertEquals(2, preventor.getAncestryCacheHits());
+    assertEquals(2, preventor.getAncestryCacheMisses());
+
+    assertFalse(preventor.isLoadedByClassLoader(String.class)); // Bootstrap classloader, so no ancestry check needed
+    assertFalse(preventor.isLoadedByClassLoader(String.class));
+    assertFalse(preventor.isLoadedInClassLoader("foo"));
+    assertEquals(4, preventor.getAncestryCacheHits());
+    assertEquals(3, preventor.getAncestryCacheMisses());
+  }
+
+  /** Test that the DomainCombiner filters ProtectionDomains of the protected ClassLoader, and caches the decision */
+  @Test
+  public void domainCombiner() {
+    final ClassLoaderLeakPreventor preventor = newPreventor();
+    final DomainCombiner combiner = preventor.createAccessControlContext().getDomainCombiner();
+    final ProtectionDomain other = new ProtectionDomain(null, null, otherClassLoader, null);
+    final ProtectionDomain system = new ProtectionDomain(null, null, null, null);
+    final ProtectionDomain protectedDomain = new ProtectionDomain(null, null, protectedClassLoader, null);
+    final ProtectionDomain child = new ProtectionDomain(null, null, childClassLoader, null);
+
+    assertNull(combiner.combine(null, null));
+    final ProtectionDomain[] nothingToFilter = {other, system};
+    assertSame("Array should be returned as is when nothing is filtered", nothingToFilter, 
+        combiner.combine(nothingToFilter, null));
+    assertSame(nothingToFilter, combiner.combine(nothingToFilter, null));
+    assertEquals(Arrays.asList(other, system), 
+        Arrays.asList(combiner.combine(new ProtectionDomain[] {protectedDomain, other, child, system}, null)));
+    assertEquals(Arrays.asList(other, system), 
+        Arrays.asList(combiner.combine(new ProtectionDomain[] {other, system, child}, null)));
+    assertEquals(0, combiner.combine(new ProtectionDomain[] {child, protectedDomain}, null).length);
+    assertEquals("Verdicts per ProtectionDomain should be cached", 2, preventor.getAncestryCacheMisses()); // other + child
+    assertEquals(0, preventor.getAncestryCacheHits());
+
+    preventor.setAncestryCacheEnabled(false);
+    assertSame(nothingToFilter, combiner.combine(nothingToFilter, null));
+    assertEquals(Collections.singletonList(other), 
+        Arrays.asList(combiner.combine(new ProtectionDomain[] {child, other}, null)));
+  }
+
+  /** Test that the DomainCombiner is detached from threads spawned by initiators, and that these are recorded */
+  @Test
+  public void threadsSpawnedByInitiators() throws InterruptedException {
+    final CountDownLatch release = new CountDownLatch(1);
+    final ThreadSpawningInitiator spawning = new ThreadSpawningInitiator(release);
+    final PreClassLoaderInitiator nonSpawning = new PreClassLoaderInitiator() {
+      @Override
+      public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      }
+    };
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+        protectedClassLoader, new StdLogger(), Arrays.asList(nonSpawning, spawning),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    try {
+      preventor.runPreClassLoaderInitiators();
+      
+      assertEquals(Collections.singletonMap(spawning, Collections.singletonList(spawning.thread)), 
+          preventor.getThreadsSpawnedByInitiators());
+      final FieldAccessor inheritedAccessControlContext = 
+          preventor.findFieldAccessor(Thread.class, "inheritedAccessControlContext");
+      if(inheritedAccessControlContext != null) {
+        final AccessControlContext accessControlContext = 
+            (AccessControlContext) preventor.getFieldValue(inheritedAccessControlContext, spawning.thread);
+        assertNull("Combiner should be detached", accessControlContext.getDomainCombiner());
+      }
+      
+      preventor.runCleanUps(); // Looks only at recorded threads
+    }
+    finally {
+      release.countDown();
+      spawning.thread.join();
+    }
+    assertTrue(preventor.getThreadsSpawnedByInitiators().isEmpty());
+  }
+
+  /** Test that the DomainCombiner is detached also from threads spawned by threads spawned by initiators */
+  @Test
+  public void threadsSpawnedByInitiatorThreads() throws InterruptedException {
+    final CountDownLatch release = new CountDownLatch(1);
+    final ThreadSpawningInitiator spawning = new ThreadSpawningInitiator(release, true);
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>singletonList(spawning),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    try {
+      preventor.runPreClassLoaderInitiators();
+      
+      final Map<PreClassLoaderInitiator, List<Thread>> spawned = preventor.getThreadsSpawnedByInitiators();
+      assertEquals(Collections.singleton(spawning), spawned.keySet());
+      assertEquals(new HashSet<Thread>(Arrays.asList(spawning.thread, spawning.child)), 
+          new HashSet<Thread>(spawned.get(spawning)));
+      final FieldAccessor inheritedAccessControlContext = 
+          preventor.findFieldAccessor(Thread.class, "inheritedAccessControlContext");
+      if(inheritedAccessControlContext != null) {
+        final AccessControlContext accessControlContext = 
+            (AccessControlContext) preventor.getFieldValue(inheritedAccessControlContext, spawning.child);
+        assertNull("Combiner should be detached from child", accessControlContext.getDomainCombiner());
+      }
+    }
+    finally {
+      release.countDown();
+      spawning.thread.join();
+      spawning.child.join();
+    }
+  }
+
+  /** Test that disabling the ancestry cache bypasses it, and still gives correct verdicts */
+  @Test
+  public void ancestryCacheDisabled() {
+    final ClassLoaderLeakPreventor preventor = newPreventor();
+    preventor.setAncestryCacheEnabled(false);
+
+    for(int i = 0; i < 2; i++) {
+      assertTrue(preventor.isClassLoaderOrChild(childClassLoader));
+      assertFalse(preventor.isClassLoaderOrChild(otherClassLoader));
+      assertFalse(preventor.isLoadedByClassLoader(String.class));
+    }
+    assertEquals(0, preventor.getAncestryCacheHits());
+    assertEquals(0, preventor.getAncestryCacheMisses());
+  }
+
+  /** Test that the {@link ClassLoaderLeakPreventorFactory} setting is passed on */
+  @Test
+  public void ancestryCacheConfiguredByFactory() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    assertTrue(factory.newLeakPreventor(protectedClassLoader).isAncestryCacheEnabled());
+
+    factory.setAncestryCacheEnabled(false);
+    assertFalse(factory.newLeakPreventor(protectedClassLoader).isAncestryCacheEnabled());
+  }
+
+  /** Test that {@link CleanUpContext} memoizes state during {@link ClassLoaderLeakPreventor#runCleanUps()} */
+  @Test
+  public void cleanUpContext() {
+    final List<CleanUpContext> contexts = new ArrayList<CleanUpContext>();
+    final ClassLoaderPreMortemCleanUp cleanUp = new ClassLoaderPreMortemCleanUp() {
+      @Override
+      public void cleanUp(ClassLoaderLeakPreventor preventor) {
+        final CleanUpContext context = preventor.getCleanUpContext();
+        contexts.add(context);
+        assertTrue(context.getAllThreads().contains(Thread.currentThread()));
+        assertSame(context.getAllThreads(), context.getAllThreads());
+        assertSame(context.getMBeanNames(), context.getMBeanNames());
+        assertSame(context.getSecurityProviders(), context.getSecurityProviders());
+        assertSame(context.getPlatformMXBeans(), context.getPlatformMXBeans());
+        assertFalse(context.getPlatformMXBeans().isEmpty());
+        
+        final Collection<ThreadGroup> threadGroups = context.getAllThreadGroups();
+        assertTrue(threadGroups.contains(Thread.currentThread().getThreadGroup()));
+        context.invalidateThreadGroups();
+        assertNotSame(threadGroups, context.getAllThreadGroups());
+      }
+    };
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+        Arrays.asList(cleanUp, cleanUp));
+    preventor.runCleanUps();
+    
+    assertEquals(2, contexts.size());
+    assertSame("Same context for all cleanups", contexts.get(0), contexts.get(1));
+    assertNotSame("New context outside of runCleanUps()", contexts.get(0), preventor.getCleanUpContext());
+  }
+
+  /** Test that reflection lookups, including lookups that do not find anything, are cached */
+  @Test
+  public void reflectionCache() throws Exception {
+    final ReflectionCache reflectionCache = new ReflectionCache();
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList(), reflectionCache);
+    assertSame(reflectionCache, preventor.getReflectionCache());
+    final long initialMisses = reflectionCache.getMisses(); // Lookups made by constructor
+    final long initialHits = reflectionCache.getHits();
+    
+    for(int i = 0; i < 2; i++) {
+      assertEquals(Lookup.class, preventor.findClass(Lookup.class.getName()));
+      assertNull(preventor.findClass("se.jiderhamn.DoesNotExist"));
+      assertEquals(Lookup.class.getDeclaredField("field"), preventor.findField(Lookup.class, "field"));
+      assertNull(preventor.findField(Lookup.class, "doesNotExist"));
+      assertEquals(Lookup.class.getDeclaredMethod("method", String.class), 
+          preventor.findMethod(Lookup.class, "method", String.class));
+      assertNull(preventor.findMethod(Lookup.class, "method", Integer.class));
+    }
+    assertEquals(6, reflectionCache.getMisses() - initialMisses);
+    assertEquals(6, reflectionCache.getHits() - initialHits);
+    assertSame(preventor.findField(Lookup.class, "field"), preventor.findField(Lookup.class, "field"));
+
+    // Members of classes in the protected classloader are not cached
+    final Class<?> proxyClass = java.lang.reflect.Proxy.getProxyClass(childClassLoader, Runnable.class);
+    final int size = reflectionCache.size();
+    preventor.findMethod(proxyClass, "run");
+    assertNull(preventor.findField(proxyClass, "doesNotExist"));
+    assertEquals(size, reflectionCache.size());
+    
+    reflectionCache.clear();
+    assertEquals(0, reflectionCache.size());
+  }
+  
+  /** Test that the {@link ClassLoaderLeakPreventorFactory} shares the {@link ReflectionCache} */
+  @Test
+  public void reflectionCacheSharedByFactory() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    assertSame(ReflectionCache.getDefault(), factory.getReflectionCache());
+    assertSame(ReflectionCache.getDefault(), factory.newLeakPreventor(protectedClassLoader).getReflectionCache());
+    
+    final ReflectionCache reflectionCache = new ReflectionCache();
+    factory.setReflectionCache(reflectionCache);
+    assertSame(reflectionCache, factory.newLeakPreventor(protectedClassLoader).getReflectionCache());
+    assertSame(reflectionCache, factory.newLeakPreventor(childClassLoader).getReflectionCache());
+  }
+
+  /** 
+   * Test that {@link IndependentCleanUp}s are run in parallel, on threads with leak safe context classloader, 
+   * while other {@link ClassLoaderPreMortemCleanUp}s act as barriers and {@link MustBeAfter} is respected 
+   */
+  @Test
+  public void parallelCleanUps() throws InterruptedException {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final ClassLoader leakSafeClassLoader = getClass().getClassLoader();
+    final Set<Thread> independentThreads = Collections.synchronizedSet(new HashSet<Thread>());
+    
+    final ClassLoaderPreMortemCleanUp first = new EventCleanUp(events, "first");
+    final ClassLoaderPreMortemCleanUp barrier = new EventCleanUp(events, "barrier");
+    final IndependentEventCleanUp slow = new IndependentEventCleanUp(events, "slow", independentThreads, 200);
+    final IndependentEventCleanUp afterSlow = new AfterSlowCleanUp(events, independentThreads);
+    final List<ClassLoaderPreMortemCleanUp> cleanUps = new ArrayList<ClassLoaderPreMortemCleanUp>();
+    cleanUps.add(first);
+    cleanUps.add(slow);
+    cleanUps.add(new IndependentEventCleanUp(events, "fast1", independentThreads, 0));
+    cleanUps.add(afterSlow);
+    cleanUps.add(new IndependentEventCleanUp(events, "fast2", independentThreads, 0));
+    cleanUps.add(barrier);
+    cleanUps.add(new IndependentEventCleanUp(events, "last", independentThreads, 0));
+    
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(leakSafeClassLoader, protectedClassLoader, 
+        new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), cleanUps);
+    preventor.setCleanUpParallelism(4);
+    preventor.runCleanUps();
+    
+    assertEquals(7, events.size());
+    assertEquals("first", events.get(0));
+    assertEquals("barrier", events.get(5));
+    assertEquals("last", events.get(6));
+    assertTrue("Fast cleanups should finish before slow: " + events, events.indexOf("fast1") < events.indexOf("slow"));
+    assertTrue("Fast cleanups should finish before slow: " + events, events.indexOf("fast2") < events.indexOf("slow"));
+    assertTrue("MustBeAfter should be respected: " + events, events.indexOf("slow") < events.indexOf("afterSlow"));
+    
+    assertFalse(independentThreads.contains(Thread.currentThread()));
+    for(Thread thread : independentThreads) {
+      thread.join(1000); // Executor may report termination just before the thread itself exits
+      assertFalse("Pool threads should be terminated", thread.isAlive());
+    }
+  }
+
+  /** Test that failures of parallel {@link IndependentCleanUp}s are propagated */
+  @Test(expected = UnsupportedOperationException.class)
+  public void parallelCleanUpFailure() {
+    final ClassLoaderPreMortemCleanUp failing = new FailingCleanUp();
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+        Arrays.asList(failing, new FailingCleanUp()));
+    preventor.setCleanUpParallelism(2);
+    preventor.runCleanUps();
+  }
+
+  /** 
+   * Test that parallel {@link IndependentCleanUp}s are cancelled if the calling thread is interrupted, and that the
+   * interrupted status is preserved
+   */
+  @Test
+  public void parallelCleanUpsInterrupted() throws InterruptedException {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+        Arrays.<ClassLoaderPreMortemCleanUp>asList(new IndependentEventCleanUp(events, "slow", threads, 5000)));
+    preventor.setCleanUpParallelism(2);
+    
+    final long start = System.currentTimeMillis();
+    Thread.currentThread().interrupt();
+    try {
+      preventor.runCleanUps();
+      fail("Interruption should be propagated");
+    }
+    catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof InterruptedException);
+    }
+    assertTrue("Interrupted status should be restored", Thread.interrupted());
+    assertTrue("Should not wait for the cleanup", System.currentTimeMillis() - start < 2000);
+    
+    for(Thread thread : threads) {
+      thread.join(1000);
+      assertFalse("Cleanup should be cancelled", thread.isAlive());
+    }
+    assertFalse(events.contains("slow"));
+  }
+
+  /** 
+   * Test that cleanups are skipped according to {@link CleanUpPriority} when the time budget does not suffice, 
+   * both when run sequentially and in parallel
+   */
+  @Test
+  public void cleanUpTimeBudget() {
+    for(int parallelism = 1; parallelism <= 2; parallelism++) {
+      final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+      final ClassLoaderPreMortemCleanUp optional = new OptionalEventCleanUp(events);
+      final ClassLoaderPreMortemCleanUp essential = new EssentialEventCleanUp(events);
+      final TimingStatistics statistics = new TimingStatistics();
+      statistics.record(new ExecutionResult(optional, 0, 2000 * 1000000L, ExecutionResult.Outcome.SUCCESS, null));
+      statistics.record(new ExecutionResult(essential, 0, 500 * 1000000L, ExecutionResult.Outcome.SUCCESS, null));
+
+      final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+          protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+          Arrays.asList(new EventCleanUp(events, "normal1"), optional, essential, new EventCleanUp(events, "normal2")));
+      preventor.addListener(statistics);
+      preventor.setCleanUpParallelism(parallelism);
+      preventor.setCleanUpPriority(OptionalEventCleanUp.class, CleanUpPriority.OPTIONAL);
+      preventor.setCleanUpPriority(EssentialEventCleanUp.class, CleanUpPriority.ESSENTIAL);
+      preventor.setCleanUpTimeBudgetMs(1000);
+      preventor.runCleanUps();
+      
+      assertEquals("Optional should not fit: " + events, Arrays.asList("normal1", "essential", "normal2"), events);
+      assertEquals(1, statistics.getTiming(OptionalEventCleanUp.class).getSkipped());
+      
+      // No time left after the slow cleanup
+      events.clear();
+      final ClassLoaderLeakPreventor exceeded = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+          protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+          Arrays.<ClassLoaderPreMortemCleanUp>asList(new IndependentEventCleanUp(events, "slow", new HashSet<Thread>(), 200), 
+              new EventCleanUp(events, "normal"), essential));
+      exceeded.setCleanUpParallelism(parallelism);
+      exceeded.setCleanUpPriority(EssentialEventCleanUp.class, CleanUpPriority.ESSENTIAL);
+      exceeded.setCleanUpTimeBudgetMs(100); // Slow will start, but exceed it
+      exceeded.runCleanUps();
+
+      assertEquals("Normal should be skipped: " + events, Arrays.asList("slow", "essential"), events);
+    }
+  }
+
+  /** 
+   * Test that the GC timeout is shared by all {@link ClassLoaderLeakPreventor#awaitGc()} calls of a cleanup run, and 
+   * limited by the time budget
+   */
+  @Test
+  public void awaitGcTimeoutPerCleanUpRun() {
+    final List<ClassLoaderPreMortemCleanUp> cleanUps = Arrays.<ClassLoaderPreMortemCleanUp>asList(
+        new AwaitGcCleanUp(), new AwaitGcCleanUp(), new AwaitGcCleanUp());
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), cleanUps);
+    preventor.setGcStrategy(GcStrategy.NON_FORCING);
+    preventor.setGcTimeoutMs(300);
+    long start = System.currentTimeMillis();
+    preventor.runCleanUps();
+    assertTrue("GC timeout should be shared", System.currentTimeMillis() - start < 600);
+    
+    preventor.setGcTimeoutMs(10 * 1000);
+    preventor.setCleanUpTimeBudgetMs(300);
+    preventor.setCleanUpPriority(AwaitGcCleanUp.class, CleanUpPriority.ESSENTIAL);
+    start = System.currentTimeMillis();
+    preventor.runCleanUps();
+    assertTrue("GC timeout should be limited by budget", System.currentTimeMillis() - start < 600);
+  }
+
+  /** 
+   * Test that the time budget of a parallel {@link IndependentCleanUp} is checked after waiting for the cleanups it 
+   * {@link MustBeAfter must be after}
+   */
+  @Test
+  public void parallelCleanUpTimeBudget() {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    final ClassLoaderPreMortemCleanUp afterSlow = new AfterSlowCleanUp(events, threads);
+    final TimingStatistics statistics = new TimingStatistics();
+    statistics.record(new ExecutionResult(afterSlow, 0, 100 * 1000000L, ExecutionResult.Outcome.SUCCESS, null));
+
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+        Arrays.asList(new IndependentEventCleanUp(events, "slow", threads, 200), afterSlow));
+    preventor.addListener(statistics);
+    preventor.setCleanUpParallelism(2);
+    preventor.setCleanUpTimeBudgetMs(250); // Enough for afterSlow when submitted, but not after slow has finished
+    preventor.runCleanUps();
+
+    assertEquals("afterSlow should be skipped: " + events, Arrays.asList("slow"), events);
+    assertEquals(1, statistics.getTiming(AfterSlowCleanUp.class).getSkipped());
+  }
+
+  /** 
+   * Test that only the waiting of {@link DeferrableCleanUp}s, and the cleanups that {@link MustBeAfter} them - directly
+   * or transitively - are run in the background by {@link ClassLoaderLeakPreventor#runCleanUpsAsync(CleanUpCallback)},
+   * in dependency order, while the other cleanups are run in order before it returns
+   */
+  @Test
+  public void asyncCleanUps() throws Exception {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final List<CleanUpPhaseResult> phaseResults = Collections.synchronizedList(new ArrayList<CleanUpPhaseResult>());
+    final Set<Thread> callbackThreads = Collections.synchronizedSet(new HashSet<Thread>());
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(), 
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), 
+        Arrays.asList(new EventCleanUp(events, "first"), new DeferrableEventCleanUp(events), 
+            new AfterDeferrableCleanUp(events), new AfterAfterDeferrableCleanUp(events), 
+            new EventCleanUp(events, "last"), new FailingCleanUp()));
+    
+    final Future<CleanUpPhaseResult> future = preventor.runCleanUpsAsync(new CleanUpCallback() {
+      @Override
+      public void phaseFinished(ClassLoaderLeakPreventor preventor, CleanUpPhaseResult result) {
+        callbackThreads.add(Thread.currentThread());
+        phaseResults.add(result);
+      }
+    });
+    
+    assertEquals("Waiting and cleanups after it should be deferred: " + events, 
+        Arrays.asList("first", "deferrable", "last"), events);
+    assertEquals(1, phaseResults.size());
+    final CleanUpPhaseResult synchronous = phaseResults.get(0);
+    assertEquals(CleanUpPhase.SYNCHRONOUS, synchronous.getPhase());
+    assertFalse("Failure should be reported", synchronous.isSuccessful());
+    assertTrue(synchronous.getFailure() instanceof UnsupportedOperationException);
+    assertEquals(4, synchronous.getResults().size());
+    
+    final CleanUpPhaseResult deferred = future.get(5, TimeUnit.SECONDS);
+    assertEquals(CleanUpPhase.DEFERRED, deferred.getPhase());
+    assertTrue(deferred.isSuccessful());
+    assertEquals(Arrays.asList("first", "deferrable", "last", "wait", "afterDeferrable", "afterAfterDeferrable"), 
+        events);
+    assertEquals(3, deferred.getResults().size());
+    assertTrue(deferred.getResults().get(0).getPlugin() instanceof DeferrableEventCleanUp);
+    assertTrue(deferred.getResults().get(1).getPlugin() instanceof AfterDeferrableCleanUp);
+    assertTrue(deferred.getResults().get(2).getPlugin() instanceof AfterAfterDeferrableCleanUp);
+    assertEquals(2, phaseResults.size());
+    assertSame(deferred, phaseResults.get(1));
+    assertEquals(2, callbackThreads.size());
+    assertTrue(callbackThreads.contains(Thread.currentThread()));
+  }
+
+  private ClassLoaderLeakPreventor newPreventor() {
+    return new ClassLoaderLeakPreventor(getClass().getClassLoader(), protectedClassLoader, new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(), Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+  }
+
+  /** 
+   * {@link PreClassLoaderInitiator} that spawns a thread, that lives until released, and optionally itself spawns a 
+   * child thread before the initiator returns
+   */
+  private static class ThreadSpawningInitiator implements PreClassLoaderInitiator {
+    
+    private final CountDownLatch release;
+    
+    private final boolean spawnChild;
+    
+    private final CountDownLatch childStarted = new CountDownLatch(1);
+    
+    private Thread thread;
+
+    private volatile Thread child;
+
+    private ThreadSpawningInitiator(CountDownLatch release) {
+      this(release, false);
+    }
+
+    private ThreadSpawningInitiator(CountDownLatch release, boolean spawnChild) {
+      this.release = release;
+      this.spawnChild = spawnChild;
+    }
+
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      thread = new Thread("spawned-by-initiator") {
+        @Override
+        public void run() {
+          if(spawnChild) {
+            child = new Thread("spawned-by-initiator-thread") {
+              @Override
+              public void run() {
+                awaitRelease();
+              }
+            };
+            child.setDaemon(true);
+            child.start();
+            childStarted.countDown();
+          }
+          awaitRelease();
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+      if(spawnChild) {
+        try {
+          childStarted.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    
+    private void awaitRelease() {
+      try {
+        release.await();
+      }
+      catch (InterruptedException e) {
+        // Done
+      }
+    }
+  }
+
+  /** {@link ClassLoaderPreMortemCleanUp} that records an event when done */
+  private static class EventCleanUp implements ClassLoaderPreMortemCleanUp {
+    
+    private final List<String> events;
+    
+    private final String name;
+
+    EventCleanUp(List<String> events, String name) {
+      this.events = events;
+      this.name = name;
+    }
+
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      events.add(name);
+    }
+  }
+
+  /** {@link IndependentCleanUp} that records its thread and an event when done */
+  private static class IndependentEventCleanUp extends EventCleanUp implements IndependentCleanUp {
+    
+    private final Set<Thread> threads;
+    
+    private final long sleepMs;
+
+    IndependentEventCleanUp(List<String> events, String name, Set<Thread> threads, long sleepMs) {
+      super(events, name);
+      this.threads = threads;
+      this.sleepMs = sleepMs;
+    }
+
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      assertSame(preventor.getLeakSafeClassLoader(), Thread.currentThread().getContextClassLoader());
+      threads.add(Thread.currentThread());
+      if(sleepMs > 0) {
+        try {
+          Thread.sleep(sleepMs);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      super.cleanUp(preventor);
+    }
+  }
+  
+  private static class AfterSlowCleanUp extends IndependentEventCleanUp implements MustBeAfter<ClassLoaderPreMortemCleanUp> {
+    AfterSlowCleanUp(List<String> events, Set<Thread> threads) {
+      super(events, "afterSlow", threads, 0);
+    }
+
+    @Override
+    public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+      return new Class[] {IndependentEventCleanUp.class};
+    }
+  }
+  
+  private static class AwaitGcCleanUp implements ClassLoaderPreMortemCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      preventor.awaitGc();
+    }
+  }
+  
+  private static class OptionalEventCleanUp extends EventCleanUp {
+    OptionalEventCleanUp(List<String> events) {
+      super(events, "optional");
+    }
+  }
+  
+  private static class EssentialEventCleanUp extends EventCleanUp {
+    EssentialEventCleanUp(List<String> events) {
+      super(events, "essential");
+    }
+  }
+  
+  /** {@link DeferrableCleanUp} that verifies that its waiting is run in the background */
+  private static class DeferrableEventCleanUp extends EventCleanUp implements DeferrableCleanUp {
+    
+    private final Thread callingThread = Thread.currentThread();
+    
+    private final List<String> events;
+    
+    DeferrableEventCleanUp(List<String> events) {
+      super(events, "deferrable");
+      this.events = events;
+    }
+
+    @Override
+    public Runnable cleanUpWithoutWaiting(final ClassLoaderLeakPreventor preventor) {
+      assertSame(callingThread, Thread.currentThread());
+      super.cleanUp(preventor);
+      return new Runnable() {
+        @Override
+        public void run() {
+          assertNotSame(callingThread, Thread.currentThread());
+          assertSame(preventor.getLeakSafeClassLoader(), Thread.currentThread().getContextClassLoader());
+          try {
+            Thread.sleep(200); // Make sure runCleanUpsAsync() returns first
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          events.add("wait");
+        }
+      };
+    }
+  }
+  
+  private static class AfterDeferrableCleanUp extends EventCleanUp implements MustBeAfter<ClassLoaderPreMortemCleanUp> {
+    AfterDeferrableCleanUp(List<String> events) {
+      super(events, "afterDeferrable");
+    }
+
+    @Override
+    public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+      return new Class[] {DeferrableEventCleanUp.class};
+    }
+  }
+  
+  private static class AfterAfterDeferrableCleanUp extends EventCleanUp 
+      implements MustBeAfter<ClassLoaderPreMortemCleanUp> {
+    AfterAfterDeferrableCleanUp(List<String> events) {
+      super(events, "afterAfterDeferrable");
+    }
+
+    @Override
+    public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+      return new Class[] {AfterDeferrableCleanUp.class};
+    }
+  }
+  
+  private static class FailingCleanUp implements ClassLoaderPreMortemCleanUp, IndependentCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      throw new UnsupportedOperationException("Failing on purpose");
+    }
+  }
+
+  /** Class used for testing reflection lookups */
+  @SuppressWarnings("unused")
+  private static class Lookup {
+    private Object field;
+    
+    private void method(String s) { }
+  }
+}
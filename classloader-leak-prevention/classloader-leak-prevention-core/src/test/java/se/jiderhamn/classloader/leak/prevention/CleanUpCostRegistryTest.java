@@ -0,0 +1,122 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link CleanUpCostRegistry}
+ * @author Mattias Jiderhamn
+ */
+public class CleanUpCostRegistryTest {
+
+  private static final long SLEEP_MS = 50;
+
+  private final CleanUpCostRegistry registry = CleanUpCostRegistry.getDefault();
+
+  @Before
+  @After
+  public void reset() {
+    registry.clear();
+  }
+
+  @Test
+  public void meanGivesOlderInvocationsLessWeight() {
+    final String name = "se.jiderhamn.Dummy";
+    assertEquals(0, registry.getMeanNanos(name));
+
+    registry.record(name, 100);
+    registry.record(name, 300);
+    assertEquals(200, registry.getMeanNanos(name));
+
+    for(int i = 0; i < CleanUpCostRegistry.MAX_COUNT; i++)
+      registry.record(name, 1000);
+    final long mean = registry.getMeanNanos(name);
+    assertTrue("Older invocations should weigh less: " + mean, mean > 950 && mean < 1000);
+
+    System.setProperty(CleanUpCostRegistry.PROPERTY_PREFIX + name, "garbage");
+    assertEquals(0, registry.getMeanNanos(name));
+  }
+
+  /**
+   * Test that the expected cost of a cleanup is known to a {@link ClassLoaderLeakPreventor} loaded by another
+   * classloader than the one that ran it, as when this library is in WEB-INF/lib and the application is redeployed
+   */
+  @Test
+  public void expectedCostSpansPreventorLoaders() throws Exception {
+    final ClassLoader loader1 = newLibraryClassLoader();
+    final ClassLoader loader2 = newLibraryClassLoader();
+    final Class<?> app1 = loader1.loadClass(App.class.getName());
+    final Class<?> app2 = loader2.loadClass(App.class.getName());
+    assertNotSame(app1, app2);
+
+    assertEquals(0L, invoke(app1, "getExpectedCostNanos"));
+    invoke(app1, "runCleanUps");
+
+    assertEquals("Static statistics should be lost with the classloader",
+        -1L, invoke(app2, "getTimingStatisticsMeanNanos"));
+    final long expectedNanos = (Long) invoke(app2, "getExpectedCostNanos");
+    assertTrue("Cost should be known from the other classloader: " + expectedNanos,
+        expectedNanos >= SLEEP_MS * 1000000L);
+  }
+
+  private static Object invoke(Class<?> clazz, String method) throws Exception {
+    final Method m = clazz.getMethod(method);
+    return m.invoke(null);
+  }
+
+  /** Create classloader that loads its own copy of this library and the test classes */
+  private ClassLoader newLibraryClassLoader() {
+    return new URLClassLoader(new URL[] {
+        ClassLoaderLeakPreventor.class.getProtectionDomain().getCodeSource().getLocation(),
+        CleanUpCostRegistryTest.class.getProtectionDomain().getCodeSource().getLocation()},
+        ClassLoader.getSystemClassLoader().getParent());
+  }
+
+  /** Uses the copy of this library loaded by the same classloader. Must not reference JUnit. */
+  public static class App {
+
+    public static void runCleanUps() {
+      newLeakPreventor().runCleanUps();
+    }
+
+    public static long getExpectedCostNanos() {
+      return newLeakPreventor().getExpectedCostNanos(new SleepingCleanUp());
+    }
+
+    /** Get mean of {@link TimingStatistics#getDefault()}, or -1 if never invoked */
+    public static long getTimingStatisticsMeanNanos() {
+      final TimingStatistics.Timing timing = TimingStatistics.getDefault().getTiming(SleepingCleanUp.class);
+      return (timing == null) ? -1 : timing.getMeanNanos();
+    }
+
+    private static ClassLoaderLeakPreventor newLeakPreventor() {
+      final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+      factory.clearPreInitiators();
+      factory.clearCleanUps();
+      factory.addCleanUp(new SleepingCleanUp());
+      factory.setCleanUpTimeBudgetMs(1000);
+      return factory.newLeakPreventor(new URLClassLoader(new URL[0]));
+    }
+  }
+
+  public static class SleepingCleanUp implements ClassLoaderPreMortemCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      try {
+        Thread.sleep(SLEEP_MS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
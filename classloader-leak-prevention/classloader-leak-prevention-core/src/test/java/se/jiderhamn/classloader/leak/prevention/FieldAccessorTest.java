@@ -0,0 +1,89 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link FieldAccessor}
+ * @author Mattias Jiderhamn
+ */
+public class FieldAccessorTest {
+
+  @Test
+  public void methodHandleFieldAccessor() throws Exception {
+    final FieldAccessor accessor = FieldAccessor.of(getField("instanceField"));
+    assertTrue(accessor instanceof FieldAccessor.MethodHandleFieldAccessor);
+    assertGetAndSet(accessor);
+  }
+
+  @Test
+  public void reflectionFieldAccessor() throws Exception {
+    assertGetAndSet(new FieldAccessor.ReflectionFieldAccessor(getField("instanceField")));
+  }
+
+  @Test
+  public void staticField() throws Exception {
+    final FieldAccessor accessor = FieldAccessor.of(getField("staticField"));
+    accessor.set(null, "foo");
+    assertEquals("foo", Fields.staticField);
+    assertEquals("foo", accessor.get(null));
+    assertEquals("foo", accessor.get(new Fields())); // Object is ignored
+  }
+
+  @Test
+  public void finalField() throws Exception {
+    final Fields fields = new Fields();
+    final FieldAccessor accessor = FieldAccessor.of(getField("finalField"));
+    assertSame(fields.finalField, accessor.get(fields));
+  }
+
+  @Test
+  public void nullField() {
+    assertNull(FieldAccessor.of(null));
+  }
+
+  @Test
+  public void findFieldAccessor() {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+        getClass().getClassLoader(), new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList(), new ReflectionCache());
+
+    final FieldAccessor accessor = preventor.findFieldAccessor(Fields.class, "instanceField");
+    assertSame("Cached", accessor, preventor.findFieldAccessor(Fields.class, "instanceField"));
+    assertEquals(Fields.class, accessor.getField().getDeclaringClass());
+
+    assertNull(preventor.findFieldAccessor(Fields.class, "doesNotExist"));
+    assertNull(preventor.findFieldAccessor(null, "instanceField"));
+  }
+
+  private static void assertGetAndSet(FieldAccessor accessor) {
+    final Fields fields = new Fields();
+    accessor.set(fields, "foo");
+    assertEquals("foo", fields.instanceField);
+    assertEquals("foo", accessor.get(fields));
+    accessor.set(fields, null);
+    assertNull(accessor.get(fields));
+  }
+
+  private static Field getField(String name) throws NoSuchFieldException {
+    final Field field = Fields.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return field;
+  }
+
+  @SuppressWarnings("unused")
+  private static class Fields {
+    private static String staticField;
+
+    private String instanceField;
+
+    private final Object finalField = new Object();
+  }
+}
@@ -0,0 +1,63 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Test cases for {@link GcStrategy}
+ * @author Mattias Jiderhamn
+ */
+public class GcStrategyTest {
+
+  @Test
+  public void forced() {
+    WeakReference<Object> ref = new WeakReference<Object>(new Object());
+    assertTrue(GcStrategy.FORCED.awaitGc(10 * 1000));
+    assertNull("Weakly reachable object should have been collected", ref.get());
+  }
+
+  /** Test that {@link GcStrategy#NON_FORCING} returns when a full garbage collection is triggered by someone else */
+  @Test
+  public void nonForcing() {
+    final Thread gcThread = new Thread("GcStrategyTest") {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+        System.gc();
+      }
+    };
+    gcThread.start();
+    assertTrue(GcStrategy.NON_FORCING.awaitGc(10 * 1000));
+  }
+
+  /** Test that {@link GcStrategy#NON_FORCING} does not return because of young collections only */
+  @Test
+  public void youngCollectionsIgnored() {
+    assumeFalse("Every cycle of a concurrent collector is full", GcStrategy.isExplicitGcConcurrent());
+    final Thread allocatingThread = new Thread("GcStrategyTest") {
+      @Override
+      public void run() {
+        final long deadline = System.currentTimeMillis() + 500;
+        while(System.currentTimeMillis() < deadline) {
+          garbage = new byte[64 * 1024]; // Short lived, so should only cause young collections
+        }
+      }
+    };
+    allocatingThread.start();
+    assertFalse(GcStrategy.NON_FORCING.awaitGc(300));
+  }
+
+  @SuppressWarnings("unused")
+  private static volatile byte[] garbage;
+}
@@ -0,0 +1,306 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.preinit.AwtToolkitInitiator;
+import se.jiderhamn.classloader.leak.prevention.preinit.DocumentBuilderFactoryInitiator;
+import se.jiderhamn.classloader.leak.prevention.preinit.JdbcDriversInitiator;
+import se.jiderhamn.classloader.leak.prevention.preinit.SecurityProvidersInitiator;
+import se.jiderhamn.classloader.leak.prevention.preinit.SunAwtAppContextInitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for {@link JvmGlobalInitiatorRegistry}
+ * @author Mattias Jiderhamn
+ */
+public class JvmGlobalInitiatorRegistryTest {
+
+  private static final AtomicInteger invocations = new AtomicInteger();
+
+  private final JvmGlobalInitiatorRegistry registry = JvmGlobalInitiatorRegistry.getDefault();
+
+  @Before
+  @After
+  public void reset() {
+    registry.forget(CountingInitiator.class);
+    registry.forget(FailingInitiator.class);
+    registry.forget(SwallowingInitiator.class);
+    System.clearProperty(JvmGlobalInitiatorRegistry.PROPERTY_PREFIX + CountingInitiator.class.getName()); // If claimed
+    registry.setClaimTimeoutMs(JvmGlobalInitiatorRegistry.CLAIM_TIMEOUT_MS_DEFAULT);
+    invocations.set(0);
+  }
+
+  @Test
+  public void runOnce() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    factory.clearPreInitiators();
+    factory.clearCleanUps();
+    factory.addPreInitiator(new CountingInitiator());
+    factory.setRunJvmGlobalInitiatorsOnce(true);
+    final TimingStatistics statistics = new TimingStatistics();
+    factory.addListener(statistics);
+
+    final ClassLoader app1 = newClassLoader();
+    final long before = System.currentTimeMillis();
+    factory.newLeakPreventor(app1).runPreClassLoaderInitiators();
+    factory.newLeakPreventor(newClassLoader()).runPreClassLoaderInitiators();
+    assertEquals(1, invocations.get());
+
+    final TimingStatistics.Timing timing = statistics.getTiming(CountingInitiator.class);
+    assertEquals(1, timing.getCount());
+    assertEquals(1, timing.getSkipped());
+
+    final JvmGlobalInitiatorRegistry.Record record = registry.getRecord(CountingInitiator.class);
+    assertNotNull(record);
+    assertEquals(CountingInitiator.class.getName(), record.getInitiatorClassName());
+    assertEquals(JvmGlobalInitiatorRegistry.describe(app1), record.getApp());
+    assertTrue(record.getTimeMillis() >= before);
+    final List<String> recorded = new ArrayList<String>();
+    for(JvmGlobalInitiatorRegistry.Record r : registry.getRecords()) {
+      recorded.add(r.getInitiatorClassName());
+    }
+    assertTrue(recorded.toString(), recorded.contains(CountingInitiator.class.getName()));
+    assertEquals(record.getTimeMillis() + " " + record.getApp(),
+        System.getProperty(JvmGlobalInitiatorRegistry.PROPERTY_PREFIX + CountingInitiator.class.getName()));
+
+    assertTrue(registry.forget(CountingInitiator.class));
+    factory.newLeakPreventor(newClassLoader()).runPreClassLoaderInitiators();
+    assertEquals(2, invocations.get());
+  }
+
+  @Test
+  public void disabledByDefault() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    factory.clearPreInitiators();
+    factory.clearCleanUps();
+    factory.addPreInitiator(new CountingInitiator());
+    factory.newLeakPreventor(newClassLoader()).runPreClassLoaderInitiators();
+    factory.newLeakPreventor(newClassLoader()).runPreClassLoaderInitiators();
+    assertEquals(2, invocations.get());
+    assertNull(registry.getRecord(CountingInitiator.class));
+  }
+
+  @Test
+  public void failureNotRecorded() {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+        newClassLoader(), new StdLogger(), Collections.<PreClassLoaderInitiator>singletonList(new FailingInitiator()),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setRunJvmGlobalInitiatorsOnce(true);
+    for(int i = 1; i <= 2; i++) {
+      try {
+        preventor.runPreClassLoaderInitiators();
+        fail("Failure should be propagated");
+      }
+      catch (IllegalStateException e) {
+        assertEquals(i, invocations.get());
+      }
+    }
+    assertNull(registry.getRecord(FailingInitiator.class));
+  }
+
+  /** Test that an initiator that logs and swallows its failure, is not recorded as succeeded */
+  @Test
+  public void unsuccessfulNotRecorded() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    factory.clearPreInitiators();
+    factory.clearCleanUps();
+    factory.addPreInitiator(new SwallowingInitiator());
+    factory.setRunJvmGlobalInitiatorsOnce(true);
+    final TimingStatistics statistics = new TimingStatistics();
+    factory.addListener(statistics);
+
+    factory.newLeakPreventor(newClassLoader()).runPreClassLoaderInitiators();
+    factory.newLeakPreventor(newClassLoader()).runPreClassLoaderInitiators();
+    assertEquals(2, invocations.get());
+    assertNull(registry.getRecord(SwallowingInitiator.class));
+
+    final TimingStatistics.Timing timing = statistics.getTiming(SwallowingInitiator.class);
+    assertEquals(2, timing.getFailures());
+    assertEquals(0, timing.getSkipped());
+  }
+
+  @Test
+  public void nonGlobalNotSkipped() {
+    final PreClassLoaderInitiator initiator = new PreClassLoaderInitiator() {
+      @Override
+      public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+        invocations.incrementAndGet();
+      }
+    };
+    for(int i = 0; i < 2; i++) {
+      final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+          newClassLoader(), new StdLogger(), Collections.singletonList(initiator),
+          Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+      preventor.setRunJvmGlobalInitiatorsOnce(true);
+      preventor.runPreClassLoaderInitiators();
+    }
+    assertEquals(2, invocations.get());
+  }
+
+  /** Test that concurrent deploys invoke the initiator once, and that the others wait for it */
+  @Test
+  public void concurrent() throws Exception {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    factory.clearPreInitiators();
+    factory.clearCleanUps();
+    factory.addPreInitiator(new CountingInitiator());
+    factory.setRunJvmGlobalInitiatorsOnce(true);
+
+    final int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+      for(int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            start.await();
+            factory.newLeakPreventor(newClassLoader()).runPreClassLoaderInitiators();
+            return invocations.get(); // Must have been invoked by someone, once we return
+          }
+        }));
+      }
+      start.countDown();
+      for(Future<Integer> future : futures) {
+        assertEquals(1, future.get().intValue());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(1, invocations.get());
+  }
+
+  /** Test that an initiator claimed by another copy of the library is waited for, and run if that one failed */
+  @Test
+  public void waitForClaim() throws Exception {
+    final String key = JvmGlobalInitiatorRegistry.PROPERTY_PREFIX + CountingInitiator.class.getName();
+    System.setProperty(key, JvmGlobalInitiatorRegistry.CLAIMED + "other");
+    final CountingInitiator initiator = new CountingInitiator();
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        registry.runOnce(initiator, newClassLoader(), new JvmGlobalInitiatorRegistry.Invocation() {
+          @Override
+          public boolean run() {
+            return initiator.initialize(null);
+          }
+        });
+      }
+    };
+    thread.start();
+    
+    Thread.sleep(50);
+    assertTrue("Should wait for claim", thread.isAlive());
+    assertEquals(0, invocations.get());
+    assertNull(registry.getRecord(CountingInitiator.class));
+    assertFalse("Claim should not be forgotten", registry.forget(CountingInitiator.class));
+    
+    System.clearProperty(key); // The other one failed
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+    assertEquals(1, invocations.get());
+    assertNotNull(registry.getRecord(CountingInitiator.class));
+  }
+
+  /** Test that an initiator claimed by another application that hangs is run anyway after the claim timeout */
+  @Test
+  public void claimTimeout() {
+    System.setProperty(JvmGlobalInitiatorRegistry.PROPERTY_PREFIX + CountingInitiator.class.getName(), 
+        JvmGlobalInitiatorRegistry.CLAIMED + "hung");
+    registry.setClaimTimeoutMs(200);
+    final CountingInitiator initiator = new CountingInitiator();
+    final long start = System.currentTimeMillis();
+    assertTrue(registry.runOnce(initiator, newClassLoader(), new JvmGlobalInitiatorRegistry.Invocation() {
+      @Override
+      public boolean run() {
+        return initiator.initialize(null);
+      }
+    }));
+    final long elapsed = System.currentTimeMillis() - start;
+    assertTrue("Should wait for the claim timeout: " + elapsed, elapsed >= 200 && elapsed < 5000);
+    assertEquals(1, invocations.get());
+    assertNotNull(registry.getRecord(CountingInitiator.class));
+  }
+
+  @Test
+  public void defaultInitiators() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    assertTrue(factory.getPreInitiator(AwtToolkitInitiator.class) instanceof JvmGlobalInitiator);
+    assertTrue(factory.getPreInitiator(DocumentBuilderFactoryInitiator.class) instanceof JvmGlobalInitiator);
+    assertTrue(factory.getPreInitiator(SecurityProvidersInitiator.class) instanceof JvmGlobalInitiator);
+    assertTrue(factory.getPreInitiator(JdbcDriversInitiator.class) instanceof JvmGlobalInitiator);
+    assertFalse(factory.getPreInitiator(SunAwtAppContextInitiator.class) instanceof JvmGlobalInitiator);
+  }
+
+  private ClassLoader newClassLoader() {
+    return new URLClassLoader(new URL[0], getClass().getClassLoader());
+  }
+
+  public static class CountingInitiator implements PreClassLoaderInitiator, JvmGlobalInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      initialize(preventor);
+    }
+
+    @Override
+    public boolean initialize(ClassLoaderLeakPreventor preventor) {
+      try {
+        Thread.sleep(10); // Give concurrent invocations a chance to overlap
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      invocations.incrementAndGet();
+      return true;
+    }
+  }
+
+  public static class FailingInitiator implements PreClassLoaderInitiator, JvmGlobalInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      initialize(preventor);
+    }
+
+    @Override
+    public boolean initialize(ClassLoaderLeakPreventor preventor) {
+      invocations.incrementAndGet();
+      throw new IllegalStateException("Failing on purpose");
+    }
+  }
+
+  /** Initiator that logs and swallows its failure, like {@link AwtToolkitInitiator} */
+  public static class SwallowingInitiator implements PreClassLoaderInitiator, JvmGlobalInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      initialize(preventor);
+    }
+
+    @Override
+    public boolean initialize(ClassLoaderLeakPreventor preventor) {
+      invocations.incrementAndGet();
+      preventor.error(new IllegalStateException("Failing on purpose"));
+      return false;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ReferencePathFinder}
+ * @author Mattias Jiderhamn
+ */
+public class ReferencePathFinderTest {
+
+  /** Static field causing leak */
+  private static List<Object> leak;
+
+  /** Has {@link Uninitialized} been initialized? */
+  private static final AtomicBoolean uninitializedInitialized = new AtomicBoolean();
+
+  private final ClassLoader classLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+  @After
+  public void tearDown() {
+    leak = null;
+  }
+
+  @Test
+  public void staticField() {
+    leak = new ArrayList<Object>();
+    leak.add(classLoader);
+
+    final ReferencePathFinder.Result result = new ReferencePathFinder(classLoader, new StdLogger())
+        .addRootClass(getClass()) // Classes of the system classloader cannot be listed in Java 12+
+        .findPaths();
+    final ReferencePathFinder.ReferencePath path = findPath(result, "static " + getClass().getName() + ".leak");
+    assertEquals(path.toString(), 3, path.getElements().size());
+    assertEquals("[0] (" + URLClassLoader.class.getName() + ")", path.getElements().get(2));
+  }
+
+  /** Test that the search does not initialize classes, by reading their static fields */
+  @Test
+  public void noStaticInitializer() {
+    leak = new ArrayList<Object>();
+    leak.add(Uninitialized.class);
+    leak.add(classLoader);
+
+    final ReferencePathFinder.Result result = new ReferencePathFinder(classLoader, new StdLogger())
+        .addRootClass(getClass())
+        .findPaths();
+    findPath(result, "static " + getClass().getName() + ".leak");
+    assertFalse("Static initializer should not be run", uninitializedInitialized.get());
+  }
+
+  @Test
+  public void contextClassLoader() throws Exception {
+    final CountDownLatch stop = new CountDownLatch(1);
+    final Thread thread = new Thread("ReferencePathFinderTest") {
+      @Override
+      public void run() {
+        try {
+          stop.await();
+        }
+        catch (InterruptedException e) {
+          // Stop
+        }
+      }
+    };
+    thread.setContextClassLoader(classLoader);
+    thread.start();
+    try {
+      final ReferencePathFinder.Result result =
+          new ReferencePathFinder(classLoader, new StdLogger()).findPathsInBackground().get(30, TimeUnit.SECONDS);
+      final ReferencePathFinder.ReferencePath path = findPath(result, "Thread 'ReferencePathFinderTest'");
+      assertEquals(path.toString(), 2, path.getElements().size());
+      assertTrue(path.toString(), path.getElements().get(1).contains("ontextClassLoader"));
+    }
+    finally {
+      stop.countDown();
+      thread.join();
+    }
+  }
+
+  @Test
+  public void maxNodes() {
+    final ReferencePathFinder finder = new ReferencePathFinder(classLoader, new StdLogger());
+    finder.setMaxNodes(10);
+    final ReferencePathFinder.Result result = finder.findPaths();
+    assertEquals("maxNodes", result.getTruncationReason());
+    assertEquals(10, result.getNodesVisited());
+  }
+
+  /** Class that should not be initialized by the search */
+  @SuppressWarnings("unused")
+  private static class Uninitialized {
+    private static final Object field = new Object();
+    
+    static {
+      uninitializedInitialized.set(true);
+    }
+  }
+
+  /** Find path starting with the provided root */
+  private static ReferencePathFinder.ReferencePath findPath(ReferencePathFinder.Result result, String root) {
+    for(ReferencePathFinder.ReferencePath path : result.getPaths()) {
+      if(path.getElements().get(0).startsWith(root + " "))
+        return path;
+    }
+    throw new AssertionError("No path from " + root + " found in " + result.getPaths());
+  }
+}
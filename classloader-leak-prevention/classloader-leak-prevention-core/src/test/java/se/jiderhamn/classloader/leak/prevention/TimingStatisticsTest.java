@@ -0,0 +1,199 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for {@link TimingStatistics} and {@link LeakPreventionListener} notifications
+ * @author Mattias Jiderhamn
+ */
+public class TimingStatisticsTest {
+
+  private final ClassLoader protectedClassLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+  @Test
+  public void histogram() {
+    final TimingStatistics statistics = new TimingStatistics();
+    final Object plugin = new Object();
+    assertNull(statistics.getTiming(Object.class));
+
+    for(int i = 1; i <= 100; i++) {
+      statistics.record(new ExecutionResult(plugin, 0, i * 1000L, ExecutionResult.Outcome.SUCCESS, null));
+    }
+    statistics.record(ExecutionResult.skipped(plugin));
+
+    final TimingStatistics.Timing timing = statistics.getTiming(Object.class);
+    assertNotNull(timing);
+    assertEquals(100, timing.getCount());
+    assertEquals(1, timing.getSkipped());
+    assertEquals(0, timing.getFailures());
+    assertEquals(5050 * 1000L, timing.getTotalNanos());
+    assertEquals(50500, timing.getMeanNanos());
+    assertEquals(100000, timing.getMaxNanos());
+
+    final long p50 = timing.getPercentileNanos(0.5);
+    assertTrue("Median should be within factor 2: " + p50, p50 >= 50000 && p50 < 2 * 50000);
+    assertEquals(timing.getMaxNanos(), timing.getPercentileNanos(1));
+    assertTrue(timing.getPercentileNanos(0.9) <= timing.getMaxNanos());
+
+    assertEquals(0, TimingStatistics.Timing.getBucket(0));
+    assertEquals(1, TimingStatistics.Timing.getBucket(1));
+    assertEquals(2, TimingStatistics.Timing.getBucket(3));
+    assertEquals(3, TimingStatistics.Timing.getBucket(4));
+    assertEquals(TimingStatistics.Timing.NO_OF_BUCKETS - 1, TimingStatistics.Timing.getBucket(Long.MAX_VALUE));
+
+    statistics.clear();
+    assertTrue(statistics.getTimings().isEmpty());
+  }
+
+  /** Test that listeners are notified for initiators and cleanups, including failures */
+  @Test
+  public void listenerNotified() {
+    final TimingStatistics statistics = new TimingStatistics();
+    final RecordingListener recorder = new RecordingListener();
+    final PreClassLoaderInitiator initiator = new NoOpInitiator();
+    final ClassLoaderPreMortemCleanUp cleanUp = new SleepingCleanUp();
+    final ClassLoaderPreMortemCleanUp failing = new FailingCleanUp();
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+        protectedClassLoader, new StdLogger(), Collections.singletonList(initiator), Arrays.asList(cleanUp, failing));
+    preventor.addListener(statistics);
+    preventor.addListener(recorder);
+    preventor.addListener(new ThrowingListener()); // Should not affect anything
+
+    preventor.runPreClassLoaderInitiators();
+    try {
+      preventor.runCleanUps();
+      fail("Failure of cleanup should be propagated");
+    }
+    catch (UnsupportedOperationException e) {
+      // Expected
+    }
+
+    assertEquals(Arrays.asList("before " + initiator, "after " + initiator + " SUCCESS",
+        "before " + cleanUp, "after " + cleanUp + " SUCCESS",
+        "before " + failing, "after " + failing + " FAILURE"), recorder.events);
+    assertSame(preventor, recorder.preventor);
+    assertTrue(recorder.results.get(1).getDurationNanos() >= 10 * 1000000L);
+    assertTrue(recorder.results.get(2).getThrowable() instanceof UnsupportedOperationException);
+
+    assertEquals(1, statistics.getTiming(NoOpInitiator.class).getCount());
+    assertEquals(1, statistics.getTiming(SleepingCleanUp.class).getCount());
+    assertTrue(statistics.getTiming(SleepingCleanUp.class).getMaxNanos() >= 10 * 1000000L);
+    assertEquals(1, statistics.getTiming(FailingCleanUp.class).getFailures());
+    assertTrue(statistics.toString().contains(SleepingCleanUp.class.getName()));
+  }
+
+  @Test
+  public void defaultListenerRegisteredByFactory() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    assertEquals(Arrays.<LeakPreventionListener>asList(TimingStatistics.getDefault(), 
+        CleanUpCostRegistry.getDefault()), factory.getListeners());
+
+    final RecordingListener recorder = new RecordingListener();
+    factory.addListener(recorder);
+    factory.addListener(recorder);
+    assertEquals(Arrays.asList(TimingStatistics.getDefault(), CleanUpCostRegistry.getDefault(), recorder),
+        factory.newLeakPreventor(protectedClassLoader).getListeners());
+
+    assertTrue(factory.removeListener(TimingStatistics.getDefault()));
+    assertTrue(factory.removeListener(CleanUpCostRegistry.getDefault()));
+    assertEquals(Collections.<LeakPreventionListener>singletonList(recorder),
+        factory.newLeakPreventor(protectedClassLoader).getListeners());
+  }
+
+  /** {@link LeakPreventionListener} that records all notifications */
+  private static class RecordingListener implements LeakPreventionListener {
+
+    private final List<String> events = new ArrayList<String>();
+
+    private final List<ExecutionResult> results = new ArrayList<ExecutionResult>();
+
+    private ClassLoaderLeakPreventor preventor;
+
+    @Override
+    public void beforePreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator) {
+      this.preventor = preventor;
+      events.add("before " + initiator);
+    }
+
+    @Override
+    public void afterPreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator,
+                                             ExecutionResult result) {
+      assertSame(initiator, result.getPlugin());
+      events.add("after " + initiator + " " + result.getOutcome());
+      results.add(result);
+    }
+
+    @Override
+    public void beforeCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp) {
+      events.add("before " + cleanUp);
+    }
+
+    @Override
+    public void afterCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp,
+                             ExecutionResult result) {
+      assertSame(cleanUp, result.getPlugin());
+      events.add("after " + cleanUp + " " + result.getOutcome());
+      results.add(result);
+    }
+  }
+
+  private static class ThrowingListener implements LeakPreventionListener {
+    @Override
+    public void beforePreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator) {
+      throw new IllegalStateException("Failing on purpose");
+    }
+
+    @Override
+    public void afterPreClassLoaderInitiator(ClassLoaderLeakPreventor preventor, PreClassLoaderInitiator initiator,
+                                             ExecutionResult result) {
+      throw new IllegalStateException("Failing on purpose");
+    }
+
+    @Override
+    public void beforeCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp) {
+      throw new IllegalStateException("Failing on purpose");
+    }
+
+    @Override
+    public void afterCleanUp(ClassLoaderLeakPreventor preventor, ClassLoaderPreMortemCleanUp cleanUp,
+                             ExecutionResult result) {
+      throw new IllegalStateException("Failing on purpose");
+    }
+  }
+
+  private static class NoOpInitiator implements PreClassLoaderInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    }
+  }
+
+  private static class SleepingCleanUp implements ClassLoaderPreMortemCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      try {
+        Thread.sleep(10);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class FailingCleanUp implements ClassLoaderPreMortemCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      throw new UnsupportedOperationException("Failing on purpose");
+    }
+  }
+}
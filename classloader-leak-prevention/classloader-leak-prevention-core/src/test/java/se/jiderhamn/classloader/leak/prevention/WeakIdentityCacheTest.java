@@ -0,0 +1,98 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link WeakIdentityCache}
+ * @author Mattias Jiderhamn
+ */
+public class WeakIdentityCacheTest {
+
+  @Test
+  public void identity() {
+    final WeakIdentityCache<String, Integer> cache = new WeakIdentityCache<String, Integer>();
+    final String key = new String("key");
+    cache.put(key, 1);
+    assertEquals(Integer.valueOf(1), cache.get(key));
+    assertNull("Equal but not identical key", cache.get(new String("key")));
+    assertNull(cache.get(null));
+
+    cache.put(key, 2);
+    assertEquals(Integer.valueOf(2), cache.get(key));
+    assertEquals(1, cache.size());
+
+    cache.clear();
+    assertNull(cache.get(key));
+    assertEquals(0, cache.size());
+  }
+
+  /** Test that entries survive resizing, and are expunged once their keys have been garbage collected */
+  @Test
+  public void resizeAndExpunge() {
+    final WeakIdentityCache<Object, Integer> cache = new WeakIdentityCache<Object, Integer>();
+    final List<Object> keys = new ArrayList<Object>();
+    for(int i = 0; i < 1000; i++) {
+      final Object key = new Object();
+      keys.add(key);
+      cache.put(key, i);
+    }
+    for(int i = 0; i < keys.size(); i++) {
+      assertEquals(Integer.valueOf(i), cache.get(keys.get(i)));
+    }
+    assertEquals(1000, cache.size());
+
+    final Object survivor = keys.get(500);
+    keys.clear();
+    for(int i = 0; i < 100 && cache.size() > 1; i++) {
+      System.gc();
+    }
+    assertEquals(1, cache.size());
+    assertEquals(Integer.valueOf(500), cache.get(survivor));
+  }
+
+  /** Test that lookups concurrent with modifications never return the value of another key, nor miss older entries */
+  @Test
+  public void concurrent() throws Exception {
+    final WeakIdentityCache<Object, Object> cache = new WeakIdentityCache<Object, Object>();
+    final AtomicReference<String> error = new AtomicReference<String>();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for(int t = 0; t < 4; t++) {
+      threads.add(new Thread("WeakIdentityCacheTest-" + t) {
+        @Override
+        public void run() {
+          final List<Object> keys = new ArrayList<Object>();
+          for(int i = 0; i < 20000; i++) {
+            final Object key = new Object();
+            if(i % 2 == 0)
+              keys.add(key); // Let every other key be garbage collected
+            cache.put(key, key.toString());
+            final Object value = cache.get(key);
+            if(value != null && ! value.equals(key.toString()))
+              error.set("Wrong value " + value + " for " + key);
+          }
+          for(Object key : keys) { // Entries put before should never be missed
+            final Object value = cache.get(key);
+            if(! key.toString().equals(value))
+              error.set("Wrong value " + value + " for " + key);
+          }
+        }
+      });
+    }
+    for(Thread thread : threads) {
+      thread.start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(error.get(), error.get());
+    assertTrue(cache.size() <= 4 * 20000);
+  }
+}
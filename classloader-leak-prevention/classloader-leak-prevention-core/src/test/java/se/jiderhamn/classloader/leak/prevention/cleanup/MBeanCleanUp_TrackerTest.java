@@ -0,0 +1,41 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationTracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test case for {@link MBeanCleanUp} when MBean registrations are tracked by {@link MBeanRegistrationTracker}
+ * @author Mattias Jiderhamn
+ */
+public class MBeanCleanUp_TrackerTest extends ClassLoaderPreMortemCleanUpTestBase<MBeanCleanUp> {
+  
+  /** Tracking is per {@link ClassLoaderLeakPreventor}, so use the same one for triggering the leak and cleaning up */
+  private ClassLoaderLeakPreventor classLoaderLeakPreventor;
+  
+  @Override
+  protected void triggerLeak() throws Exception {
+    final ClassLoaderLeakPreventor preventor = getClassLoaderLeakPreventor();
+    new MBeanRegistrationTracker().doOutsideClassLoader(preventor);
+    
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName("se.jiderhamn:tracked=bar" + System.currentTimeMillis() /* Unique name per test */);
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), objectName);
+    
+    assertTrue(MBeanRegistrationTracker.getTrackedMBeanNames(preventor).contains(objectName));
+    assertEquals(1, MBeanRegistrationTracker.getTrackedMBeanNames(preventor).size());
+  }
+
+  @Override
+  protected ClassLoaderLeakPreventor getClassLoaderLeakPreventor() {
+    if(classLoaderLeakPreventor == null)
+      classLoaderLeakPreventor = super.getClassLoaderLeakPreventor();
+    return classLoaderLeakPreventor;
+  }
+}
@@ -0,0 +1,74 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that {@link StopThreadsCleanUp} waits for all threads using a single shared deadline
+ * @author Mattias Jiderhamn
+ */
+public class StopThreadsCleanUp_DrainTest {
+
+  private static final int NO_OF_THREADS = 5;
+
+  private static final int THREAD_WAIT_MS = 200;
+
+  @Test
+  public void drainThreads() throws InterruptedException {
+    final ClassLoader protectedClassLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for(int i = 0; i < NO_OF_THREADS; i++) {
+      final Thread thread = new Thread("drain-" + i) {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          }
+          catch (InterruptedException e) {
+            // Done
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.setContextClassLoader(protectedClassLoader); // Running in, but not loaded by, protected ClassLoader
+      thread.start();
+      threads.add(thread);
+    }
+
+    final StopThreadsCleanUp stopThreadsCleanUp = new StopThreadsCleanUp();
+    stopThreadsCleanUp.setThreadWaitMs(THREAD_WAIT_MS);
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(stopThreadsCleanUp));
+    try {
+      final long start = System.currentTimeMillis();
+      preventor.runCleanUps();
+      final long duration = System.currentTimeMillis() - start;
+
+      assertTrue("Threads should be waited for in parallel, but took " + duration + " ms",
+          duration < NO_OF_THREADS * THREAD_WAIT_MS / 2);
+      for(Thread thread : threads) {
+        assertTrue(thread.isAlive());
+        assertSame("Context ClassLoader should be changed", preventor.getLeakSafeClassLoader(),
+            thread.getContextClassLoader());
+      }
+    }
+    finally {
+      release.countDown();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.lang.ref.Reference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that scanning {@link ThreadLocal}s in parallel finds the same leaks, in the same order, as scanning sequentially
+ * @author Mattias Jiderhamn
+ */
+public class ThreadLocalCleanUp_ParallelTest {
+
+  private static final int NO_OF_THREADS = 100;
+
+  private static final ThreadLocal<Object> threadLocal = new ThreadLocal<Object>();
+
+  @Test
+  public void parallelEqualsSequential() throws InterruptedException {
+    final ClassLoader protectedClassLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    final CountDownLatch started = new CountDownLatch(NO_OF_THREADS);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Thread> leakingThreads = new ArrayList<Thread>();
+    for(int i = 0; i < NO_OF_THREADS; i++) {
+      final boolean leak = i % 3 == 0;
+      final Thread thread = new Thread("thread-local-" + i) {
+        @Override
+        public void run() {
+          threadLocal.set(leak ? protectedClassLoader : new Object()); // Value is the protected ClassLoader itself
+          started.countDown();
+          try {
+            release.await();
+          }
+          catch (InterruptedException e) {
+            // Done
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+      if(leak)
+        leakingThreads.add(thread);
+    }
+    started.await();
+
+    try {
+      final List<Thread> sequential = runCleanUp(protectedClassLoader, 1);
+      final List<Thread> parallel = runCleanUp(protectedClassLoader, 4);
+      assertEquals(sequential, parallel);
+      assertTrue(parallel.containsAll(leakingThreads));
+      assertEquals(leakingThreads.size(), parallel.size());
+    }
+    finally {
+      release.countDown();
+    }
+  }
+
+  /** Run cleanup that records, but does not remove, leaks and return the threads leaking */
+  private List<Thread> runCleanUp(ClassLoader protectedClassLoader, int parallelism) {
+    final RecordingThreadLocalCleanUp cleanUp = new RecordingThreadLocalCleanUp();
+    cleanUp.setParallelism(parallelism);
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(getClass().getClassLoader(),
+        protectedClassLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(cleanUp));
+    preventor.runCleanUps();
+    return cleanUp.threads;
+  }
+
+  /** Record leaks without removing them, so that the cleanup can be run again */
+  private static class RecordingThreadLocalCleanUp extends ThreadLocalCleanUp {
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    @Override
+    protected void processLeak(ClassLoaderLeakPreventor preventor, Thread thread, Reference<?> entry,
+                               ThreadLocal<?> threadLocal, Object value, String message) {
+      assertFalse("Leaks should be processed by the invoking thread", Thread.currentThread() instanceof ForkJoinWorkerThread);
+      threads.add(thread);
+    }
+  }
+}
@@ -23,6 +23,7 @@ import javax.servlet.ServletContextListener;
 
 import se.jiderhamn.classloader.leak.prevention.cleanup.ShutdownHookCleanUp;
 import se.jiderhamn.classloader.leak.prevention.cleanup.StopThreadsCleanUp;
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationTracker;
 import se.jiderhamn.classloader.leak.prevention.preinit.OracleJdbcThreadInitiator;
 
 import static java.util.Collections.emptyList;
@@ -88,6 +89,56 @@ import static se.jiderhamn.classloader.leak.prevention.cleanup.ShutdownHookClean
  *       If set to -1 there will be no waiting at all, but Thread is allowed to run until finished.
  *     </td>
  *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.cleanUpTimeBudgetMs</code></td>
+ *     <td><code>0</code> (no limit)</td>
+ *     <td>
+ *       Total no of milliseconds the cleanup at application shutdown may take, before skipping cleanups that are not 
+ *       essential.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.asyncCleanUp</code></td>
+ *     <td><code>false</code></td>
+ *     <td>
+ *       Should waiting for threads and shutdown hooks to finish be done in the background after application shutdown,
+ *       rather than blocking the application server? Cleanups that must be done after the threads have finished, such
+ *       as clearing ThreadLocals, are then done in the background too.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.trackMBeans</code></td>
+ *     <td><code>false</code></td>
+ *     <td>
+ *       Should MBeans registered by the application be tracked, so that only those need to be looked at when 
+ *       unregistering MBeans at application shutdown, rather than all MBeans in the JVM?
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.runJvmGlobalInitiatorsOnce</code></td>
+ *     <td><code>false</code></td>
+ *     <td>
+ *       Should initiators that only need to run once per JVM be skipped if already run by another application? 
+ *       See {@link JvmGlobalInitiatorRegistry}.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.gcStrategy</code></td>
+ *     <td><code>NON_FORCING</code></td>
+ *     <td>
+ *       How to wait for garbage collection when needed at application shutdown; one of <code>NON_FORCING</code>, 
+ *       <code>CONCURRENT</code> and <code>FORCED</code>. See {@link GcStrategy}.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.watchCollection</code></td>
+ *     <td><code>false</code></td>
+ *     <td>
+ *       Should the web app classloader be watched after application shutdown, and reported as leaked if it is not 
+ *       garbage collected? See {@link ClassLoaderCollectionWatchdog}. Requires this library to be loaded outside 
+ *       the web app, such as in the lib folder of the server.
+ *     </td>
+ *   </tr>
  * </table>
  * 
  * 
@@ -123,6 +174,12 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
 
   protected ClassLoaderLeakPreventor classLoaderLeakPreventor;
 
+  /** Should {@link ClassLoaderLeakPreventor#runCleanUpsAsync(CleanUpCallback)} be used at application shutdown? */
+  protected boolean asyncCleanUp;
+
+  /** Should the web app classloader be watched by the {@link ClassLoaderCollectionWatchdog} after shutdown? */
+  protected boolean watchCollection;
+
   /** Other {@link javax.servlet.ServletContextListener}s to use also */
   protected final List<ServletContextListener> otherListeners = new LinkedList<ServletContextListener>();
 
@@ -192,6 +249,37 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
      */
     int shutdownHookWaitMs = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.shutdownHookWaitMs", SHUTDOWN_HOOK_WAIT_MS_DEFAULT);
 
+    /* 
+     * Total no of milliseconds the cleanup at application shutdown may take, before skipping cleanups that are not
+     * essential. 0 means no limit.
+     */
+    int cleanUpTimeBudgetMs = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.cleanUpTimeBudgetMs", 0);
+
+    // Should waiting for threads and shutdown hooks be done in the background at application shutdown?
+    asyncCleanUp = "true".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.asyncCleanUp"));
+
+    // Should MBeans registered by the web app be tracked, so that not all MBeans need to be looked at on shutdown?
+    boolean trackMBeans = "true".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.trackMBeans"));
+
+    // Should JVM wide initiators be skipped, if already run in this JVM by another application?
+    boolean runJvmGlobalInitiatorsOnce = 
+        "true".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.runJvmGlobalInitiatorsOnce"));
+
+    // Should the web app classloader be watched after shutdown, to find out whether it is garbage collected?
+    watchCollection = "true".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.watchCollection"));
+
+    // How to wait for garbage collection, when needed at shutdown? Forcing GC may cause long pauses for the whole JVM. 
+    final String gcStrategyParam = servletContext.getInitParameter("ClassLoaderLeakPreventor.gcStrategy");
+    GcStrategy gcStrategy = GcStrategy.NON_FORCING;
+    if(gcStrategyParam != null && gcStrategyParam.trim().length() > 0) {
+      try {
+        gcStrategy = GcStrategy.valueOf(gcStrategyParam.trim().toUpperCase());
+      }
+      catch (IllegalArgumentException e) {
+        info("Invalid ClassLoaderLeakPreventor.gcStrategy '" + gcStrategyParam + "', using " + gcStrategy);
+      }
+    }
+
     final ClassLoader webAppClassLoader = Thread.currentThread().getContextClassLoader();
     info("Settings for " + this.getClass().getName() + " (CL: 0x" +
          Integer.toHexString(System.identityHashCode(webAppClassLoader)) + "):");
@@ -200,13 +288,24 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
     info("  executeShutdownHooks = " + executeShutdownHooks);
     info("  threadWaitMs = " + threadWaitMs + " ms");
     info("  shutdownHookWaitMs = " + shutdownHookWaitMs + " ms");
+    info("  cleanUpTimeBudgetMs = " + cleanUpTimeBudgetMs + " ms");
+    info("  asyncCleanUp = " + asyncCleanUp);
+    info("  trackMBeans = " + trackMBeans);
+    info("  runJvmGlobalInitiatorsOnce = " + runJvmGlobalInitiatorsOnce);
+    info("  gcStrategy = " + gcStrategy);
+    info("  watchCollection = " + watchCollection);
     
     // Create factory with default PreClassLoaderInitiators and ClassLoaderPreMortemCleanUps
     final ClassLoaderLeakPreventorFactory classLoaderLeakPreventorFactory = createClassLoaderLeakPreventorFactory();
+    classLoaderLeakPreventorFactory.setCleanUpTimeBudgetMs(Math.max(0, cleanUpTimeBudgetMs));
+    classLoaderLeakPreventorFactory.setGcStrategy(gcStrategy);
+    classLoaderLeakPreventorFactory.setRunJvmGlobalInitiatorsOnce(runJvmGlobalInitiatorsOnce);
     
     // Configure default PreClassLoaderInitiators 
     if(! startOracleTimeoutThread)
       classLoaderLeakPreventorFactory.removePreInitiator(OracleJdbcThreadInitiator.class);
+    if(trackMBeans)
+      classLoaderLeakPreventorFactory.addPreInitiator(new MBeanRegistrationTracker());
 
     // Configure default ClassLoaderPreMortemCleanUps 
     final ShutdownHookCleanUp shutdownHookCleanUp = classLoaderLeakPreventorFactory.getCleanUp(ShutdownHookCleanUp.class);
@@ -239,7 +338,13 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
       }
     }
 
-    classLoaderLeakPreventor.runCleanUps();
+    if(asyncCleanUp)
+      classLoaderLeakPreventor.runCleanUpsAsync(null); // Result of each phase is logged
+    else
+      classLoaderLeakPreventor.runCleanUps();
+
+    if(watchCollection)
+      ClassLoaderCollectionWatchdog.getDefault().watch(classLoaderLeakPreventor, servletContextEvent.getServletContext().getContextPath());
   }
 
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
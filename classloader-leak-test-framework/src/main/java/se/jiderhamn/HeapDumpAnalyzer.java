@@ -0,0 +1,1745 @@
+package se.jiderhamn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import se.jiderhamn.classloader.RedefiningClassLoader;
+import se.jiderhamn.classloader.ZombieMarker;
+
+/**
+ * Analyzer of HPROF heap dumps, as created by {@link HeapDumper}, that finds the shortest path from a GC root to the
+ * {@link RedefiningClassLoader} marked with a {@link ZombieMarker}, so that the cause of a classloader leak can be
+ * seen without opening the heap dump in a separate tool.
+ *
+ * The file is memory mapped rather than read into the heap, and only compact indexes - of classes, GC roots and the
+ * objects on the way from the classloader - are kept in primitive arrays. Instead of indexing every object of the heap
+ * dump, the search is made breadth first backwards from the classloader, with one streaming pass over the heap dump
+ * per level, looking for objects referencing any object of the previous level. The heap dump segments of each pass
+ * are parsed in parallel. That way, heap dumps of several GB can be analyzed with a small, fixed heap; the memory
+ * needed depends mainly on {@link #setMaxVisited(int) the max no of objects visited}.
+ *
+ * Weak, soft and phantom references are not followed.
+ * @author Mattias Jiderhamn
+ */
+public class HeapDumpAnalyzer {
+
+  /** Default max no of objects to visit */
+  public static final int MAX_VISITED_DEFAULT = 1000000;
+
+  // Record tags
+  private static final int TAG_UTF8 = 0x01;
+  private static final int TAG_LOAD_CLASS = 0x02;
+  private static final int TAG_HEAP_DUMP = 0x0C;
+  private static final int TAG_HEAP_DUMP_SEGMENT = 0x1C;
+
+  // Heap dump sub record tags
+  private static final int ROOT_UNKNOWN = 0xFF;
+  private static final int ROOT_JNI_GLOBAL = 0x01;
+  private static final int ROOT_JNI_LOCAL = 0x02;
+  private static final int ROOT_JAVA_FRAME = 0x03;
+  private static final int ROOT_NATIVE_STACK = 0x04;
+  private static final int ROOT_STICKY_CLASS = 0x05;
+  private static final int ROOT_THREAD_BLOCK = 0x06;
+  private static final int ROOT_MONITOR_USED = 0x07;
+  private static final int ROOT_THREAD_OBJECT = 0x08;
+  private static final int CLASS_DUMP = 0x20;
+  private static final int INSTANCE_DUMP = 0x21;
+  private static final int OBJECT_ARRAY_DUMP = 0x22;
+  private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+  // Basic types
+  private static final int TYPE_OBJECT = 2;
+  private static final int TYPE_BOOLEAN = 4;
+  private static final int TYPE_CHAR = 5;
+  private static final int TYPE_FLOAT = 6;
+  private static final int TYPE_DOUBLE = 7;
+  private static final int TYPE_BYTE = 8;
+  private static final int TYPE_SHORT = 9;
+  private static final int TYPE_INT = 10;
+  private static final int TYPE_LONG = 11;
+
+  // Kinds of references, stored in the top byte of the "via" of visited objects
+  private static final int VIA_FIELD = 1;
+  private static final int VIA_STATIC_FIELD = 2;
+  private static final int VIA_ARRAY_ELEMENT = 3;
+  private static final int VIA_CLASS = 4;
+  private static final int VIA_CLASS_LOADER = 5;
+  private static final int VIA_SUPERCLASS = 6;
+  private static final int VIA_SIGNERS = 7;
+  private static final int VIA_PROTECTION_DOMAIN = 8;
+
+  private static final long VIA_VALUE_MASK = 0x00FFFFFFFFFFFFFFL;
+
+  private final File file;
+
+  private int maxVisited = MAX_VISITED_DEFAULT;
+
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  public HeapDumpAnalyzer(File file) {
+    this.file = file;
+  }
+
+  /** Set max no of objects to visit in the search, which determines the memory needed */
+  public void setMaxVisited(int maxVisited) {
+    if(maxVisited < 1)
+      throw new IllegalArgumentException("maxVisited must be at least 1");
+    this.maxVisited = maxVisited;
+  }
+
+  /** Set no of threads to parse heap dump segments with */
+  public void setParallelism(int parallelism) {
+    if(parallelism < 1)
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Find the shortest path from a GC root to the {@link RedefiningClassLoader} that has been
+   * {@link RedefiningClassLoader#markAsZombie() marked as zombie}.
+   * @param classLoaderName Name of the {@link RedefiningClassLoader} to find, in case there are multiple zombies, or
+   *   {@code null} for any
+   * @return Multi line description of the path, or of why no path could be found
+   */
+  public String findPathToZombie(final String classLoaderName) throws IOException {
+    return analyze(new AnalysisTask<String>() {
+      @Override
+      public String run(Analysis analysis) throws IOException, InterruptedException {
+        return analysis.findPathToZombie(classLoaderName);
+      }
+    });
+  }
+
+  /**
+   * Compute the retained size of the {@link RedefiningClassLoader} that has been
+   * {@link RedefiningClassLoader#markAsZombie() marked as zombie}, that is the total size of the objects that would be
+   * garbage collected if the classloader was collected, by building the dominator tree of the whole heap dump.
+   * The indexes needed are stored in memory mapped temporary files rather than in the heap.
+   * @param classLoaderName Name of the {@link RedefiningClassLoader} to find, in case there are multiple zombies, or
+   *   {@code null} for any
+   */
+  public RetainedSize computeRetainedSizeOfZombie(final String classLoaderName) throws IOException {
+    return analyze(new AnalysisTask<RetainedSize>() {
+      @Override
+      public RetainedSize run(Analysis analysis) throws IOException, InterruptedException {
+        return analysis.computeRetainedSizeOfZombie(classLoaderName);
+      }
+    });
+  }
+
+  private <T> T analyze(AnalysisTask<T> task) throws IOException {
+    final MappedFile mappedFile = new MappedFile(file);
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, HeapDumpAnalyzer.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      return task.run(new Analysis(mappedFile, executor));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Heap dump analysis interrupted");
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Analyze heap dump and print path to zombie classloader; arguments are file name and optionally classloader name */
+  public static void main(String[] args) throws IOException {
+    if(args.length < 1) {
+      System.err.println("Usage: " + HeapDumpAnalyzer.class.getName() + " <heap dump file> [classloader name]");
+      return;
+    }
+    final HeapDumpAnalyzer analyzer = new HeapDumpAnalyzer(new File(args[0]));
+    final String classLoaderName = (args.length > 1) ? args[1] : null;
+    System.out.println(analyzer.findPathToZombie(classLoaderName));
+    System.out.println(analyzer.computeRetainedSizeOfZombie(classLoaderName));
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** State of a single analysis */
+  private class Analysis {
+
+    private final MappedFile mappedFile;
+
+    private final ExecutorService executor;
+
+    private int idSize;
+
+    /** Map from UTF8 string id to position of record */
+    private final LongMap strings = new LongMap(true);
+
+    /** Map from class id to id of class name string */
+    private final LongMap classNames = new LongMap(true);
+
+    /** Positions of heap dump segments, as start and end pairs */
+    private final List<long[]> segments = new ArrayList<long[]>();
+
+    /** Map from id of each GC root to the kind of root */
+    private final LongMap roots = new LongMap(true);
+
+    private final Map<Long, ClassInfo> classes = new HashMap<Long, ClassInfo>();
+
+    /** Description of why no zombie was found by {@link #findZombies(String)} */
+    private String noZombieReason;
+
+    Analysis(MappedFile mappedFile, ExecutorService executor) {
+      this.mappedFile = mappedFile;
+      this.executor = executor;
+    }
+
+    String findPathToZombie(String classLoaderName) throws IOException, InterruptedException {
+      final LongMap zombies = findZombies(classLoaderName);
+      return (zombies != null) ? search(zombies) : noZombieReason;
+    }
+
+    RetainedSize computeRetainedSizeOfZombie(String classLoaderName) throws IOException, InterruptedException {
+      final LongMap zombies = findZombies(classLoaderName);
+      if(zombies == null)
+        return new RetainedSize(-1, Collections.<String, Long>emptyMap(), noZombieReason);
+      for(int i = 0; i < zombies.capacity(); i++) {
+        if(zombies.keyAt(i) != 0) // Any zombie if there are multiple
+          return new DominatorTree().computeRetainedSize(zombies.keyAt(i));
+      }
+      throw new IllegalStateException("No zombie");
+    }
+
+    /**
+     * Find the zombie {@link RedefiningClassLoader} with the provided name, or all zombies if name is {@code null}.
+     * Returns {@code null} and sets {@link #noZombieReason} if none was found.
+     */
+    private LongMap findZombies(String classLoaderName) throws IOException, InterruptedException {
+      readRecords();
+
+      final long loaderClassId = findClass(RedefiningClassLoader.class.getName());
+      if(loaderClassId == 0)
+        return noZombie("No " + RedefiningClassLoader.class.getName() + " found in heap dump");
+
+      // Index classes and GC roots, and find instances of RedefiningClassLoader
+      final LongMap loaders = new LongMap(true);
+      runPass(new PassFactory() {
+        @Override
+        public SegmentPass create() {
+          return new IndexPass(loaderClassId);
+        }
+      }, new PassResultHandler() {
+        @Override
+        public void handle(SegmentPass pass) {
+          final IndexPass indexPass = (IndexPass) pass;
+          roots.putAll(indexPass.roots);
+          for(ClassInfo classInfo : indexPass.classes)
+            classes.put(classInfo.id, classInfo);
+          loaders.putAll(indexPass.loaders);
+        }
+      });
+      for(ClassInfo classInfo : classes.values())
+        classInfo.link();
+
+      // Find the zombie(s)
+      final ClassInfo loaderClass = classes.get(loaderClassId);
+      if(loaderClass == null)
+        return noZombie("Class " + RedefiningClassLoader.class.getName() + " not found in heap dump");
+      final int zombieMarkerOffset = loaderClass.getFieldOffset("zombieMarker");
+      final int nameOffset = loaderClass.getFieldOffset("name");
+      final LongMap zombies = new LongMap(true); // Map from zombie id to id of name
+      for(int i = 0; i < loaders.capacity(); i++) {
+        final long loaderId = loaders.keyAt(i);
+        if(loaderId != 0 && mappedFile.getId(loaders.valueAt(i) + zombieMarkerOffset, idSize) != 0)
+          zombies.put(loaderId, (nameOffset >= 0) ? mappedFile.getId(loaders.valueAt(i) + nameOffset, idSize) : 0);
+      }
+      if(zombies.size() == 0)
+        return noZombie("No " + RedefiningClassLoader.class.getSimpleName() + " marked with " +
+            ZombieMarker.class.getSimpleName() + " found in heap dump");
+
+      if(classLoaderName != null && zombies.size() > 1) { // Need to find out which is which
+        final LongMap names = readStrings(zombies);
+        final LongMap named = new LongMap(false);
+        for(int i = 0; i < zombies.capacity(); i++) {
+          final long zombieId = zombies.keyAt(i);
+          if(zombieId != 0 && classLoaderName.equals(getStringValue(names, zombies.valueAt(i))))
+            named.put(zombieId, 0);
+        }
+        if(named.size() == 0)
+          return noZombie("No zombie " + RedefiningClassLoader.class.getSimpleName() + " named '" + classLoaderName +
+              "' found in heap dump");
+        return named;
+      }
+
+      return zombies;
+    }
+
+    private LongMap noZombie(String reason) {
+      noZombieReason = reason;
+      return null;
+    }
+
+    /** Read top level records; strings, classes and positions of heap dump segments */
+    private void readRecords() throws IOException {
+      long pos = 0;
+      while(mappedFile.get(pos) != 0) // Skip "JAVA PROFILE 1.0.x"
+        pos++;
+      pos++;
+      idSize = mappedFile.getInt(pos);
+      if(idSize != 4 && idSize != 8)
+        throw new IOException("Unsupported identifier size " + idSize + " - not an HPROF file?");
+      pos += 4 + 8; // Identifier size + timestamp
+
+      while(pos < mappedFile.size) {
+        final int tag = mappedFile.get(pos) & 0xFF;
+        final long length = mappedFile.getInt(pos + 5) & 0xFFFFFFFFL;
+        final long body = pos + 9;
+        if(tag == TAG_UTF8)
+          strings.put(mappedFile.getId(body, idSize), pos);
+        else if(tag == TAG_LOAD_CLASS)
+          classNames.put(mappedFile.getId(body + 4, idSize), mappedFile.getId(body + 8 + idSize, idSize));
+        else if(tag == TAG_HEAP_DUMP || tag == TAG_HEAP_DUMP_SEGMENT)
+          segments.add(new long[] {body, body + length});
+        pos = body + length;
+      }
+    }
+
+    /** Get id of class with the provided name, or 0 if not found */
+    private long findClass(String className) {
+      final String internalName = className.replace('.', '/');
+      for(int i = 0; i < classNames.capacity(); i++) {
+        if(classNames.keyAt(i) != 0 && internalName.equals(getString(classNames.valueAt(i))))
+          return classNames.keyAt(i);
+      }
+      return 0;
+    }
+
+    /** Get UTF8 string with the provided id */
+    private String getString(long id) {
+      final long pos = strings.get(id);
+      if(pos == LongMap.NOT_FOUND)
+        return null;
+      final int length = (int) ((mappedFile.getInt(pos + 5) & 0xFFFFFFFFL) - idSize);
+      final byte[] bytes = new byte[length];
+      for(int i = 0; i < length; i++)
+        bytes[i] = mappedFile.get(pos + 9 + idSize + i);
+      try {
+        return new String(bytes, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /** Get display name of class */
+    private String getClassName(long classId) {
+      final String name = getString(classNames.get(classId));
+      return (name != null) ? name.replace('/', '.') : "class@0x" + Long.toHexString(classId);
+    }
+
+    /** Run pass over all heap dump segments in parallel, and handle the result of each in the calling thread */
+    private void runPass(PassFactory passFactory, PassResultHandler handler) throws InterruptedException, IOException {
+      final List<Future<SegmentPass>> futures = new ArrayList<Future<SegmentPass>>();
+      for(final long[] segment : segments) {
+        final SegmentPass pass = passFactory.create();
+        futures.add(executor.submit(new Callable<SegmentPass>() {
+          @Override
+          public SegmentPass call() {
+            parseSegment(segment[0], segment[1], pass);
+            return pass;
+          }
+        }));
+      }
+      for(Future<SegmentPass> future : futures) {
+        try {
+          handler.handle(future.get());
+        }
+        catch (ExecutionException e) {
+          throw new IOException("Error parsing heap dump: " + e.getCause(), e.getCause());
+        }
+      }
+    }
+
+    /** Parse the sub records of a heap dump segment */
+    private void parseSegment(long pos, long end, SegmentPass pass) {
+      final int idSize = this.idSize;
+      while(pos < end) {
+        final int tag = mappedFile.get(pos++) & 0xFF;
+        switch (tag) {
+          case ROOT_UNKNOWN:
+          case ROOT_STICKY_CLASS:
+          case ROOT_MONITOR_USED:
+            pass.root(mappedFile.getId(pos, idSize), tag);
+            pos += idSize;
+            break;
+          case ROOT_JNI_GLOBAL:
+            pass.root(mappedFile.getId(pos, idSize), tag);
+            pos += 2 * idSize;
+            break;
+          case ROOT_NATIVE_STACK:
+          case ROOT_THREAD_BLOCK:
+            pass.root(mappedFile.getId(pos, idSize), tag);
+            pos += idSize + 4;
+            break;
+          case ROOT_JNI_LOCAL:
+          case ROOT_JAVA_FRAME:
+          case ROOT_THREAD_OBJECT:
+            pass.root(mappedFile.getId(pos, idSize), tag);
+            pos += idSize + 8;
+            break;
+          case CLASS_DUMP:
+            pos = pass.classDump(pos);
+            break;
+          case INSTANCE_DUMP: {
+            final long id = mappedFile.getId(pos, idSize);
+            final long classId = mappedFile.getId(pos + idSize + 4, idSize);
+            final int length = mappedFile.getInt(pos + 2 * idSize + 4);
+            final long data = pos + 2 * idSize + 8;
+            pass.instance(id, classId, data, length);
+            pos = data + length;
+            break;
+          }
+          case OBJECT_ARRAY_DUMP: {
+            final long id = mappedFile.getId(pos, idSize);
+            final int length = mappedFile.getInt(pos + idSize + 4);
+            final long data = pos + 2 * idSize + 8;
+            pass.objectArray(id, data, length);
+            pos = data + (long) length * idSize;
+            break;
+          }
+          case PRIMITIVE_ARRAY_DUMP: {
+            final long id = mappedFile.getId(pos, idSize);
+            final int length = mappedFile.getInt(pos + idSize + 4);
+            final int type = mappedFile.get(pos + idSize + 8);
+            final long data = pos + idSize + 9;
+            pass.primitiveArray(id, type, data, length);
+            pos = data + (long) length * getSize(type);
+            break;
+          }
+          default:
+            throw new IllegalStateException("Unsupported heap dump sub record 0x" + Integer.toHexString(tag) +
+                " at position " + (pos - 1));
+        }
+      }
+    }
+
+    /** Get size of value of the provided basic type */
+    private int getSize(int type) {
+      switch (type) {
+        case TYPE_OBJECT: return idSize;
+        case TYPE_BOOLEAN: case TYPE_BYTE: return 1;
+        case TYPE_CHAR: case TYPE_SHORT: return 2;
+        case TYPE_FLOAT: case TYPE_INT: return 4;
+        case TYPE_DOUBLE: case TYPE_LONG: return 8;
+        default: throw new IllegalStateException("Unknown basic type " + type);
+      }
+    }
+
+    /** Read {@link String}s with ids provided as values of the map; returns map from {@link String} id to value */
+    private LongMap readStrings(LongMap idsAsValues) throws IOException, InterruptedException {
+      final LongMap stringIds = new LongMap(false);
+      for(int i = 0; i < idsAsValues.capacity(); i++) {
+        if(idsAsValues.keyAt(i) != 0 && idsAsValues.valueAt(i) != 0)
+          stringIds.put(idsAsValues.valueAt(i), 0);
+      }
+      final LongMap stringPositions = locate(stringIds);
+
+      final ClassInfo stringClass = classes.get(findClass(String.class.getName()));
+      final int valueOffset = (stringClass != null) ? stringClass.getFieldOffset("value") : -1;
+      final LongMap valueIds = new LongMap(true);
+      for(int i = 0; valueOffset >= 0 && i < stringPositions.capacity(); i++) {
+        if(stringPositions.keyAt(i) != 0)
+          valueIds.put(stringPositions.keyAt(i),
+              mappedFile.getId(stringPositions.valueAt(i) + 2 * idSize + 9 + valueOffset, idSize)); // Instance data
+      }
+      final LongMap arrays = new LongMap(false);
+      for(int i = 0; i < valueIds.capacity(); i++) {
+        if(valueIds.keyAt(i) != 0)
+          arrays.put(valueIds.valueAt(i), 0);
+      }
+      final LongMap arrayPositions = locate(arrays);
+
+      // Map from String id to position of value array record; resolved by getStringValue()
+      final LongMap output = new LongMap(true);
+      for(int i = 0; i < valueIds.capacity(); i++) {
+        if(valueIds.keyAt(i) != 0 && arrayPositions.get(valueIds.valueAt(i)) != LongMap.NOT_FOUND)
+          output.put(valueIds.keyAt(i), arrayPositions.get(valueIds.valueAt(i)));
+      }
+      return output;
+    }
+
+    /** Get value of {@link String} read by {@link #readStrings(LongMap)} */
+    private String getStringValue(LongMap strings, long stringId) {
+      final long pos = strings.get(stringId);
+      if(pos == LongMap.NOT_FOUND)
+        return null;
+
+      // Primitive array record: id, stack trace serial, length, type, data
+      final int length = mappedFile.getInt(pos + idSize + 5);
+      final int type = mappedFile.get(pos + idSize + 9);
+      final long data = pos + idSize + 10;
+      final StringBuilder output = new StringBuilder(length);
+      if(type == TYPE_CHAR) { // Java 8 and earlier
+        for(int i = 0; i < length; i++)
+          output.append((char) mappedFile.getShort(data + 2L * i));
+      }
+      else { // Java 9+ compact strings; assume Latin 1
+        for(int i = 0; i < length; i++)
+          output.append((char) (mappedFile.get(data + i) & 0xFF));
+      }
+      return output.toString();
+    }
+
+    /** Find the position of the records of the objects with the provided ids */
+    private LongMap locate(final LongMap ids) throws IOException, InterruptedException {
+      final LongMap output = new LongMap(true);
+      runPass(new PassFactory() {
+        @Override
+        public SegmentPass create() {
+          return new LocatePass(ids);
+        }
+      }, new PassResultHandler() {
+        @Override
+        public void handle(SegmentPass pass) {
+          output.putAll(((LocatePass) pass).positions);
+        }
+      });
+      return output;
+    }
+
+    /** Search backwards from the targets, level by level, until a GC root is found */
+    private String search(LongMap targets) throws IOException, InterruptedException {
+      final LongMap visited = new LongMap(true); // Map from object to referenced object closer to target
+      final LongMap vias = new LongMap(true); // Map from object to how the closer object is referenced
+      LongMap level = new LongMap(false);
+      for(int i = 0; i < targets.capacity(); i++) {
+        if(targets.keyAt(i) != 0) {
+          visited.put(targets.keyAt(i), 0);
+          level.put(targets.keyAt(i), 0);
+        }
+      }
+
+      int depth = 0;
+      while(level.size() > 0) {
+        final long root = findRoot(level);
+        if(root != 0)
+          return describePath(root, visited, vias);
+        if(visited.size() >= maxVisited)
+          return "No path to GC root found within " + visited.size() + " objects (" + depth + " levels)";
+
+        final LongMap nextLevel = new LongMap(false);
+        final LongMap currentLevel = level;
+        searchClasses(currentLevel, visited, vias, nextLevel);
+        runPass(new PassFactory() {
+          @Override
+          public SegmentPass create() {
+            return new SearchPass(currentLevel, visited);
+          }
+        }, new PassResultHandler() {
+          @Override
+          public void handle(SegmentPass pass) {
+            final LongList found = ((SearchPass) pass).found;
+            for(int i = 0; i < found.size(); i += 3) {
+              addVisited(found.get(i), found.get(i + 1), found.get(i + 2), visited, vias, nextLevel);
+            }
+          }
+        });
+        level = nextLevel;
+        depth++;
+      }
+      return "No path to GC root found (" + visited.size() + " objects in " + depth + " levels)";
+    }
+
+    /** Find references from the classes to any object in the level */
+    private void searchClasses(LongMap level, LongMap visited, LongMap vias, LongMap nextLevel) {
+      for(ClassInfo classInfo : classes.values()) {
+        if(visited.get(classInfo.id) != LongMap.NOT_FOUND)
+          continue;
+
+        if(level.contains(classInfo.loaderId))
+          addVisited(classInfo.id, classInfo.loaderId, via(VIA_CLASS_LOADER, 0), visited, vias, nextLevel);
+        else if(level.contains(classInfo.superId))
+          addVisited(classInfo.id, classInfo.superId, via(VIA_SUPERCLASS, 0), visited, vias, nextLevel);
+        else if(level.contains(classInfo.signersId))
+          addVisited(classInfo.id, classInfo.signersId, via(VIA_SIGNERS, 0), visited, vias, nextLevel);
+        else if(level.contains(classInfo.protectionDomainId))
+          addVisited(classInfo.id, classInfo.protectionDomainId, via(VIA_PROTECTION_DOMAIN, 0), visited, vias, nextLevel);
+        else {
+          for(int i = 0; i < classInfo.staticValues.length; i++) {
+            if(level.contains(classInfo.staticValues[i])) {
+              addVisited(classInfo.id, classInfo.staticValues[i], via(VIA_STATIC_FIELD, classInfo.staticNameIds[i]),
+                  visited, vias, nextLevel);
+              break;
+            }
+          }
+        }
+      }
+    }
+
+    private void addVisited(long id, long referenced, long via, LongMap visited, LongMap vias, LongMap nextLevel) {
+      if(visited.size() < maxVisited && visited.get(id) == LongMap.NOT_FOUND) {
+        visited.put(id, referenced);
+        vias.put(id, via);
+        nextLevel.put(id, 0);
+      }
+    }
+
+    /** Get a GC root in the level, or 0 if none */
+    private long findRoot(LongMap level) {
+      for(int i = 0; i < level.capacity(); i++) {
+        if(level.keyAt(i) != 0 && roots.contains(level.keyAt(i)))
+          return level.keyAt(i);
+      }
+      return 0;
+    }
+
+    private String describePath(long root, LongMap visited, LongMap vias) throws IOException, InterruptedException {
+      final LongMap path = new LongMap(false);
+      for(long id = root; id != 0; id = visited.get(id))
+        path.put(id, 0);
+      final LongMap positions = locate(path);
+
+      final StringBuilder output = new StringBuilder("Shortest path from GC root to zombie classloader:\n");
+      output.append("  GC root (").append(getRootKind((int) roots.get(root))).append("): ")
+          .append(describe(root, positions));
+      for(long id = root; visited.get(id) != 0; id = visited.get(id)) {
+        final long referenced = visited.get(id);
+        output.append("\n    ").append(describeVia(vias.get(id))).append(" -> ").append(describe(referenced, positions));
+      }
+      return output.toString();
+    }
+
+    /** Describe the object */
+    private String describe(long id, LongMap positions) {
+      if(classes.containsKey(id))
+        return "class " + getClassName(id);
+
+      final long pos = positions.get(id);
+      String type = "?";
+      if(pos != LongMap.NOT_FOUND) {
+        final int tag = mappedFile.get(pos) & 0xFF;
+        if(tag == INSTANCE_DUMP)
+          type = getClassName(mappedFile.getId(pos + 1 + idSize + 4, idSize));
+        else if(tag == OBJECT_ARRAY_DUMP)
+          type = getClassName(mappedFile.getId(pos + 1 + idSize + 8, idSize));
+        else if(tag == PRIMITIVE_ARRAY_DUMP)
+          type = "primitive array";
+      }
+      return type + "@0x" + Long.toHexString(id);
+    }
+
+    private String describeVia(long via) {
+      final long value = via & VIA_VALUE_MASK;
+      switch ((int) (via >>> 56)) {
+        case VIA_FIELD: return "." + getString(value);
+        case VIA_STATIC_FIELD: return ".(static) " + getString(value);
+        case VIA_ARRAY_ELEMENT: return "[" + value + "]";
+        case VIA_CLASS: return "<class>";
+        case VIA_CLASS_LOADER: return "<classloader>";
+        case VIA_SUPERCLASS: return "<superclass>";
+        case VIA_SIGNERS: return "<signers>";
+        case VIA_PROTECTION_DOMAIN: return "<protection domain>";
+        default: return "?";
+      }
+    }
+
+    /** Base class for a pass over a single heap dump segment */
+    private abstract class SegmentPass {
+
+      void root(long id, int kind) {
+      }
+
+      /**
+       * Handle class dump sub record at the provided position, after the tag.
+       * @return Position of next sub record
+       */
+      long classDump(long pos) {
+        return parseClassDump(pos, null);
+      }
+
+      void instance(long id, long classId, long data, int length) {
+      }
+
+      void objectArray(long id, long data, int length) {
+      }
+
+      void primitiveArray(long id, int type, long data, int length) {
+      }
+    }
+
+    /** Parse class dump sub record, optionally into {@link ClassInfo}, and return the position of the next record */
+    private long parseClassDump(long pos, ClassInfo classInfo) {
+      final long start = pos;
+      pos += 2 * idSize + 4 + 5 * idSize + 4; // Class, stack trace serial, super, loader, signers, domain, reserved
+      final int constantPoolSize = mappedFile.getShort(pos) & 0xFFFF;
+      pos += 2;
+      for(int i = 0; i < constantPoolSize; i++) {
+        pos += 2;
+        pos += 1 + getSize(mappedFile.get(pos));
+      }
+
+      final int noOfStatics = mappedFile.getShort(pos) & 0xFFFF;
+      pos += 2;
+      final LongList staticNameIds = (classInfo != null) ? new LongList() : null;
+      final LongList staticValues = (classInfo != null) ? new LongList() : null;
+      for(int i = 0; i < noOfStatics; i++) {
+        final int type = mappedFile.get(pos + idSize);
+        if(classInfo != null && type == TYPE_OBJECT) {
+          final long value = mappedFile.getId(pos + idSize + 1, idSize);
+          if(value != 0) {
+            staticNameIds.add(mappedFile.getId(pos, idSize));
+            staticValues.add(value);
+          }
+        }
+        pos += idSize + 1 + getSize(type);
+      }
+
+      final int noOfFields = mappedFile.getShort(pos) & 0xFFFF;
+      pos += 2;
+      if(classInfo != null) {
+        classInfo.id = mappedFile.getId(start, idSize);
+        classInfo.superId = mappedFile.getId(start + idSize + 4, idSize);
+        classInfo.loaderId = mappedFile.getId(start + 2 * idSize + 4, idSize);
+        classInfo.signersId = mappedFile.getId(start + 3 * idSize + 4, idSize);
+        classInfo.protectionDomainId = mappedFile.getId(start + 4 * idSize + 4, idSize);
+        classInfo.staticNameIds = staticNameIds.toArray();
+        classInfo.staticValues = staticValues.toArray();
+        classInfo.fieldNameIds = new long[noOfFields];
+        classInfo.fieldTypes = new byte[noOfFields];
+        for(int i = 0; i < noOfFields; i++) {
+          classInfo.fieldNameIds[i] = mappedFile.getId(pos + (long) i * (idSize + 1), idSize);
+          classInfo.fieldTypes[i] = mappedFile.get(pos + (long) i * (idSize + 1) + idSize);
+        }
+      }
+      return pos + (long) noOfFields * (idSize + 1);
+    }
+
+    /** Pass indexing GC roots and classes, and finding instances of a class */
+    private class IndexPass extends SegmentPass {
+
+      private final long instanceClassId;
+
+      private final LongMap roots = new LongMap(true);
+
+      private final List<ClassInfo> classes = new ArrayList<ClassInfo>();
+
+      /** Map from id of instances of {@link #instanceClassId} to position of data */
+      private final LongMap loaders = new LongMap(true);
+
+      IndexPass(long instanceClassId) {
+        this.instanceClassId = instanceClassId;
+      }
+
+      @Override
+      void root(long id, int kind) {
+        if(! roots.contains(id))
+          roots.put(id, kind);
+      }
+
+      @Override
+      long classDump(long pos) {
+        final ClassInfo classInfo = new ClassInfo();
+        classes.add(classInfo);
+        return parseClassDump(pos, classInfo);
+      }
+
+      @Override
+      void instance(long id, long classId, long data, int length) {
+        if(classId == instanceClassId)
+          loaders.put(id, data);
+      }
+    }
+
+    /** Pass finding the position of the records of objects */
+    private class LocatePass extends SegmentPass {
+
+      private final LongMap ids;
+
+      private final LongMap positions = new LongMap(true);
+
+      LocatePass(LongMap ids) {
+        this.ids = ids;
+      }
+
+      @Override
+      void instance(long id, long classId, long data, int length) {
+        if(ids.contains(id))
+          positions.put(id, data - 2 * idSize - 9);
+      }
+
+      @Override
+      void objectArray(long id, long data, int length) {
+        if(ids.contains(id))
+          positions.put(id, data - 2 * idSize - 9);
+      }
+
+      @Override
+      void primitiveArray(long id, int type, long data, int length) {
+        if(ids.contains(id))
+          positions.put(id, data - idSize - 10);
+      }
+    }
+
+    /** Pass finding objects not yet visited, that reference any object of a level */
+    private class SearchPass extends SegmentPass {
+
+      private final LongMap level;
+
+      private final LongMap visited;
+
+      /** Triplets of found object, referenced object and via */
+      private final LongList found = new LongList();
+
+      SearchPass(LongMap level, LongMap visited) {
+        this.level = level;
+        this.visited = visited;
+      }
+
+      @Override
+      void instance(long id, long classId, long data, int length) {
+        if(visited.contains(id))
+          return;
+
+        if(level.contains(classId)) {
+          add(id, classId, via(VIA_CLASS, 0));
+          return;
+        }
+
+        final ClassInfo classInfo = classes.get(classId);
+        if(classInfo != null) {
+          final int[] offsets = classInfo.referenceOffsets;
+          for(int i = 0; i < offsets.length; i++) {
+            final long value = mappedFile.getId(data + offsets[i], idSize);
+            if(value != 0 && level.contains(value)) {
+              add(id, value, via(VIA_FIELD, classInfo.referenceNameIds[i]));
+              return;
+            }
+          }
+        }
+      }
+
+      @Override
+      void objectArray(long id, long data, int length) {
+        if(visited.contains(id))
+          return;
+
+        final long arrayClassId = mappedFile.getId(data - idSize, idSize);
+        if(level.contains(arrayClassId)) {
+          add(id, arrayClassId, via(VIA_CLASS, 0));
+          return;
+        }
+
+        for(int i = 0; i < length; i++) {
+          final long value = mappedFile.getId(data + (long) i * idSize, idSize);
+          if(value != 0 && level.contains(value)) {
+            add(id, value, via(VIA_ARRAY_ELEMENT, i));
+            return;
+          }
+        }
+      }
+
+      private void add(long id, long referenced, long via) {
+        found.add(id);
+        found.add(referenced);
+        found.add(via);
+      }
+    }
+
+    /**
+     * Dominator tree of the objects of the heap dump, computed using the Lengauer-Tarjan algorithm. All per object
+     * indexes are stored in {@link MappedArray}s.
+     */
+    private class DominatorTree {
+
+      /** Type of class objects in {@link #types} */
+      private static final int TYPE_CLASS = -100;
+
+      /** Sorted ids of all objects; the index of the id is the node no. Node {@link #n} is the virtual root. */
+      private MappedArray ids;
+
+      /** No of objects */
+      private int n;
+
+      /** Shallow size of each node */
+      private MappedArray sizes;
+
+      /** Node of the class of each node, or {@link #TYPE_CLASS} or -type for primitive arrays */
+      private MappedArray types;
+
+      /** Offsets of the outgoing edges of each node in {@link #targets} */
+      private MappedArray offsets;
+
+      private MappedArray targets;
+
+      private final List<MappedArray> arrays = new ArrayList<MappedArray>();
+
+      RetainedSize computeRetainedSize(long zombieId) throws IOException, InterruptedException {
+        try {
+          indexObjects();
+          final int zombie = indexOf(zombieId);
+          if(zombie < 0)
+            return new RetainedSize(-1, Collections.<String, Long>emptyMap(), "Zombie not found in heap dump");
+          buildGraph();
+          return computeRetainedSize(zombie);
+        }
+        finally {
+          for(MappedArray array : arrays)
+            array.close();
+        }
+      }
+
+      private MappedArray newArray(long length, int elementSize) throws IOException {
+        final MappedArray array = new MappedArray(length, elementSize);
+        arrays.add(array);
+        return array;
+      }
+
+      /** Find all object ids and sort them */
+      private void indexObjects() throws IOException {
+        final long[] count = new long[1];
+        for(long[] segment : segments) {
+          parseSegment(segment[0], segment[1], new SegmentPass() {
+            @Override
+            long classDump(long pos) {
+              count[0]++;
+              return super.classDump(pos);
+            }
+
+            @Override
+            void instance(long id, long classId, long data, int length) {
+              count[0]++;
+            }
+
+            @Override
+            void objectArray(long id, long data, int length) {
+              count[0]++;
+            }
+
+            @Override
+            void primitiveArray(long id, int type, long data, int length) {
+              count[0]++;
+            }
+          });
+        }
+        if(count[0] >= Integer.MAX_VALUE)
+          throw new IOException("Too many objects in heap dump: " + count[0]);
+        n = (int) count[0];
+
+        ids = newArray(n, 8);
+        final int[] index = new int[1];
+        for(long[] segment : segments) {
+          parseSegment(segment[0], segment[1], new SegmentPass() {
+            @Override
+            long classDump(long pos) {
+              ids.putLong(index[0]++, mappedFile.getId(pos, idSize));
+              return super.classDump(pos);
+            }
+
+            @Override
+            void instance(long id, long classId, long data, int length) {
+              ids.putLong(index[0]++, id);
+            }
+
+            @Override
+            void objectArray(long id, long data, int length) {
+              ids.putLong(index[0]++, id);
+            }
+
+            @Override
+            void primitiveArray(long id, int type, long data, int length) {
+              ids.putLong(index[0]++, id);
+            }
+          });
+        }
+        ids.sortLongs(n);
+      }
+
+      /** Get node of object, or -1 if not in heap dump */
+      private int indexOf(long id) {
+        int low = 0;
+        int high = n - 1;
+        while(low <= high) {
+          final int middle = (low + high) >>> 1;
+          final long value = ids.getLong(middle);
+          if(value < id)
+            low = middle + 1;
+          else if(value > id)
+            high = middle - 1;
+          else
+            return middle;
+        }
+        return -1;
+      }
+
+      /** Build the outgoing edges of all nodes, in two passes; first counting, then adding the edges */
+      private void buildGraph() throws IOException, InterruptedException {
+        sizes = newArray(n, 8);
+        types = newArray(n, 4);
+        offsets = newArray(n + 3L, 8); // Counted at node + 2 and added at node + 1, ending up as start at node
+        runPass(new PassFactory() {
+          @Override
+          public SegmentPass create() {
+            return new EdgePass() {
+              @Override
+              void edge(int from, int to) {
+                offsets.putLong(from + 2, offsets.getLong(from + 2) + 1);
+              }
+            };
+          }
+        }, NO_RESULT);
+        for(int i = 0; i < roots.capacity(); i++) { // Virtual root
+          if(roots.keyAt(i) != 0 && indexOf(roots.keyAt(i)) >= 0)
+            offsets.putLong(n + 2, offsets.getLong(n + 2) + 1);
+        }
+        for(int i = 2; i < n + 3; i++)
+          offsets.putLong(i, offsets.getLong(i) + offsets.getLong(i - 1));
+
+        targets = newArray(offsets.getLong(n + 2), 4);
+        runPass(new PassFactory() {
+          @Override
+          public SegmentPass create() {
+            return new EdgePass() {
+              @Override
+              void node(int node, long size, int type) {
+                sizes.putLong(node, size);
+                types.putInt(node, type);
+              }
+
+              @Override
+              void edge(int from, int to) {
+                addEdge(from, to);
+              }
+            };
+          }
+        }, NO_RESULT);
+        for(int i = 0; i < roots.capacity(); i++) {
+          final int root = (roots.keyAt(i) != 0) ? indexOf(roots.keyAt(i)) : -1;
+          if(root >= 0)
+            addEdge(n, root);
+        }
+      }
+
+      /** Add edge while building graph */
+      private void addEdge(int from, int to) {
+        final long position = offsets.getLong(from + 1);
+        targets.putInt(position, to);
+        offsets.putLong(from + 1, position + 1);
+      }
+
+      /** Build the dominator tree and compute the retained size of the node and its dominated nodes */
+      private RetainedSize computeRetainedSize(int zombie) throws IOException {
+        final int nodes = n + 1;
+
+        // Predecessors of each node
+        final MappedArray predecessorOffsets = newArray(nodes + 2L, 8); // Same scheme as offsets
+        final long edges = offsets.getLong(nodes);
+        for(long e = 0; e < edges; e++) {
+          final int target = targets.getInt(e);
+          predecessorOffsets.putLong(target + 2, predecessorOffsets.getLong(target + 2) + 1);
+        }
+        for(int i = 2; i < nodes + 2; i++)
+          predecessorOffsets.putLong(i, predecessorOffsets.getLong(i) + predecessorOffsets.getLong(i - 1));
+        final MappedArray predecessors = newArray(edges, 4);
+        for(int node = 0; node < nodes; node++) {
+          for(long e = offsets.getLong(node); e < offsets.getLong(node + 1); e++) {
+            final int target = targets.getInt(e);
+            final long position = predecessorOffsets.getLong(target + 1);
+            predecessors.putInt(position, node);
+            predecessorOffsets.putLong(target + 1, position + 1);
+          }
+        }
+
+        // Depth first search from virtual root, numbering the reachable nodes 1..count in preorder
+        final MappedArray dfsNo = newArray(nodes, 4);
+        final MappedArray vertex = newArray(nodes + 1L, 4); // dfs no -> node
+        final MappedArray parent = newArray(nodes + 1L, 4);
+        final MappedArray semi = newArray(nodes + 1L, 4);
+        final MappedArray label = newArray(nodes + 1L, 4);
+        final MappedArray ancestor = newArray(nodes + 1L, 4);
+        final MappedArray idom = newArray(nodes + 1L, 4);
+        final MappedArray bucketHead = newArray(nodes + 1L, 4);
+        final MappedArray bucketNext = newArray(nodes + 1L, 4);
+        final MappedArray stack = newArray(nodes + 1L, 4);
+        final MappedArray stackEdge = newArray(nodes + 1L, 8);
+
+        int count = 1;
+        dfsNo.putInt(n, 1);
+        vertex.putInt(1, n);
+        semi.putInt(1, 1);
+        label.putInt(1, 1);
+        stack.putInt(0, n);
+        stackEdge.putLong(0, offsets.getLong(n));
+        int stackSize = 1;
+        while(stackSize > 0) {
+          final int node = stack.getInt(stackSize - 1);
+          final long e = stackEdge.getLong(stackSize - 1);
+          if(e < offsets.getLong(node + 1)) {
+            stackEdge.putLong(stackSize - 1, e + 1);
+            final int target = targets.getInt(e);
+            if(dfsNo.getInt(target) == 0) {
+              count++;
+              dfsNo.putInt(target, count);
+              vertex.putInt(count, target);
+              parent.putInt(count, dfsNo.getInt(node));
+              semi.putInt(count, count);
+              label.putInt(count, count);
+              stack.putInt(stackSize, target);
+              stackEdge.putLong(stackSize, offsets.getLong(target));
+              stackSize++;
+            }
+          }
+          else
+            stackSize--;
+        }
+
+        // Semidominators and implicit immediate dominators
+        for(int w = count; w >= 2; w--) {
+          final int node = vertex.getInt(w);
+          for(long e = predecessorOffsets.getLong(node); e < predecessorOffsets.getLong(node + 1); e++) {
+            final int v = dfsNo.getInt(predecessors.getInt(e));
+            if(v != 0) { // Reachable
+              final int u = eval(v, ancestor, label, semi, stack);
+              if(semi.getInt(u) < semi.getInt(w))
+                semi.putInt(w, semi.getInt(u));
+            }
+          }
+          bucketNext.putInt(w, bucketHead.getInt(semi.getInt(w)));
+          bucketHead.putInt(semi.getInt(w), w);
+
+          final int p = parent.getInt(w);
+          ancestor.putInt(w, p); // Link
+          for(int v = bucketHead.getInt(p); v != 0; v = bucketNext.getInt(v)) {
+            final int u = eval(v, ancestor, label, semi, stack);
+            idom.putInt(v, (semi.getInt(u) < semi.getInt(v)) ? u : p);
+          }
+          bucketHead.putInt(p, 0);
+        }
+        for(int w = 2; w <= count; w++) {
+          if(idom.getInt(w) != semi.getInt(w))
+            idom.putInt(w, idom.getInt(idom.getInt(w)));
+        }
+
+        // Retained sizes, from the leaves of the dominator tree and up
+        final MappedArray retained = newArray(nodes + 1L, 8);
+        for(int w = 2; w <= count; w++)
+          retained.putLong(w, sizes.getLong(vertex.getInt(w)));
+        for(int w = count; w >= 2; w--)
+          retained.putLong(idom.getInt(w), retained.getLong(idom.getInt(w)) + retained.getLong(w));
+
+        final int zombieNo = dfsNo.getInt(zombie);
+        if(zombieNo == 0)
+          return new RetainedSize(-1, Collections.<String, Long>emptyMap(), "Zombie not reachable from GC roots");
+
+        // Break down by the objects immediately dominated by the zombie, and by the classes dominated by the zombie
+        // (which are typically dominated by the internal class list of the classloader)
+        final MappedArray underZombie = newArray(nodes + 1L, 4);
+        final MappedArray own = newArray(nodes + 1L, 8);
+        for(int w = zombieNo + 1; w <= count; w++) { // Dominated nodes have higher dfs no than their dominator
+          final int d = idom.getInt(w);
+          if(d == zombieNo || (d > zombieNo && underZombie.getInt(d) != 0)) {
+            underZombie.putInt(w, 1);
+            own.putLong(w, sizes.getLong(vertex.getInt(w)));
+          }
+        }
+        final Map<String, Long> breakdown = new HashMap<String, Long>();
+        for(int w = count; w > zombieNo; w--) {
+          if(underZombie.getInt(w) != 0) {
+            final int node = vertex.getInt(w);
+            if(idom.getInt(w) == zombieNo || types.getInt(node) == TYPE_CLASS) {
+              final String key = describeType(node);
+              final Long sum = breakdown.get(key);
+              breakdown.put(key, ((sum != null) ? sum : 0) + own.getLong(w));
+            }
+            else
+              own.putLong(idom.getInt(w), own.getLong(idom.getInt(w)) + own.getLong(w));
+          }
+        }
+        return new RetainedSize(retained.getLong(zombieNo), breakdown, null);
+      }
+
+      /** Get the node with the lowest semidominator on the path to the root of the forest, compressing the path */
+      private int eval(int v, MappedArray ancestor, MappedArray label, MappedArray semi, MappedArray stack) {
+        if(ancestor.getInt(v) == 0)
+          return v;
+
+        // Iterative version of recursive path compression, using stack
+        int stackSize = 0;
+        for(int x = v; ancestor.getInt(ancestor.getInt(x)) != 0; x = ancestor.getInt(x))
+          stack.putInt(stackSize++, x);
+        while(stackSize > 0) {
+          final int x = stack.getInt(--stackSize);
+          final int a = ancestor.getInt(x);
+          if(semi.getInt(label.getInt(a)) < semi.getInt(label.getInt(x)))
+            label.putInt(x, label.getInt(a));
+          ancestor.putInt(x, ancestor.getInt(a));
+        }
+        return label.getInt(v);
+      }
+
+      /** Describe the type of the node, for the breakdown */
+      private String describeType(int node) {
+        final int type = types.getInt(node);
+        if(type == TYPE_CLASS)
+          return "class " + getClassName(ids.getLong(node)) + " (statics)";
+        else if(type == -1)
+          return "?";
+        else if(type < 0)
+          return getPrimitiveTypeName(-type) + "[]";
+        else
+          return getClassName(ids.getLong(type));
+      }
+
+      /** Pass finding the outgoing edges of the objects */
+      private abstract class EdgePass extends SegmentPass {
+
+        void node(int node, long size, int type) {
+        }
+
+        abstract void edge(int from, int to);
+
+        private void edgeTo(int from, long id) {
+          if(id != 0) {
+            final int to = indexOf(id);
+            if(to >= 0)
+              edge(from, to);
+          }
+        }
+
+        @Override
+        long classDump(long pos) {
+          final long end = super.classDump(pos);
+          final ClassInfo classInfo = classes.get(mappedFile.getId(pos, idSize));
+          final int node = indexOf(classInfo.id);
+          node(node, end - pos, TYPE_CLASS);
+          edgeTo(node, classInfo.superId);
+          edgeTo(node, classInfo.loaderId);
+          edgeTo(node, classInfo.signersId);
+          edgeTo(node, classInfo.protectionDomainId);
+          for(long value : classInfo.staticValues)
+            edgeTo(node, value);
+          return end;
+        }
+
+        @Override
+        void instance(long id, long classId, long data, int length) {
+          final int node = indexOf(id);
+          final int classNode = indexOf(classId);
+          node(node, 2L * idSize + length, classNode);
+          if(classNode >= 0)
+            edge(node, classNode);
+          final ClassInfo classInfo = classes.get(classId);
+          if(classInfo != null) {
+            for(int offset : classInfo.referenceOffsets)
+              edgeTo(node, mappedFile.getId(data + offset, idSize));
+          }
+        }
+
+        @Override
+        void objectArray(long id, long data, int length) {
+          final int node = indexOf(id);
+          final int classNode = indexOf(mappedFile.getId(data - idSize, idSize));
+          node(node, 2L * idSize + 4 + (long) length * idSize, classNode);
+          if(classNode >= 0)
+            edge(node, classNode);
+          for(int i = 0; i < length; i++)
+            edgeTo(node, mappedFile.getId(data + (long) i * idSize, idSize));
+        }
+
+        @Override
+        void primitiveArray(long id, int type, long data, int length) {
+          node(indexOf(id), 2L * idSize + 4 + (long) length * getSize(type), -type);
+        }
+      }
+    }
+
+    /** Class information from class dump */
+    private class ClassInfo {
+
+      long id;
+
+      long superId;
+
+      long loaderId;
+
+      long signersId;
+
+      long protectionDomainId;
+
+      long[] staticNameIds;
+
+      long[] staticValues;
+
+      /** Declared instance fields */
+      long[] fieldNameIds;
+
+      byte[] fieldTypes;
+
+      /** Offsets of non weak references in instance data, including fields of superclasses */
+      int[] referenceOffsets;
+
+      long[] referenceNameIds;
+
+      /** Resolve offsets of the references of instances of this class */
+      void link() {
+        final boolean weak = isSubclassOf("java/lang/ref/Reference") && ! isSubclassOf("java/lang/ref/FinalReference");
+        final LongList offsets = new LongList();
+        final LongList nameIds = new LongList();
+        int offset = 0;
+        for(ClassInfo c = this; c != null; c = classes.get(c.superId)) {
+          final boolean isReference = weak && "java/lang/ref/Reference".equals(getString(classNames.get(c.id)));
+          for(int i = 0; i < c.fieldTypes.length; i++) {
+            if(c.fieldTypes[i] == TYPE_OBJECT) {
+              final String name = isReference ? getString(c.fieldNameIds[i]) : null;
+              if(! "referent".equals(name) && ! "discovered".equals(name)) { // Weak, soft or phantom reference
+                offsets.add(offset);
+                nameIds.add(c.fieldNameIds[i]);
+              }
+            }
+            offset += getSize(c.fieldTypes[i]);
+          }
+        }
+        referenceOffsets = new int[offsets.size()];
+        for(int i = 0; i < referenceOffsets.length; i++)
+          referenceOffsets[i] = (int) offsets.get(i);
+        referenceNameIds = nameIds.toArray();
+      }
+
+      private boolean isSubclassOf(String internalName) {
+        for(ClassInfo c = this; c != null; c = classes.get(c.superId)) {
+          if(internalName.equals(getString(classNames.get(c.id))))
+            return true;
+        }
+        return false;
+      }
+
+      /** Get the offset of the named field in instance data, or -1 if not found */
+      int getFieldOffset(String name) {
+        int offset = 0;
+        for(ClassInfo c = this; c != null; c = classes.get(c.superId)) {
+          for(int i = 0; i < c.fieldTypes.length; i++) {
+            if(name.equals(getString(c.fieldNameIds[i])))
+              return offset;
+            offset += getSize(c.fieldTypes[i]);
+          }
+        }
+        return -1;
+      }
+    }
+  }
+
+  private static long via(int kind, long value) {
+    return ((long) kind << 56) | (value & VIA_VALUE_MASK);
+  }
+
+  private static String getRootKind(int kind) {
+    switch (kind) {
+      case ROOT_JNI_GLOBAL: return "JNI global";
+      case ROOT_JNI_LOCAL: return "JNI local";
+      case ROOT_JAVA_FRAME: return "Java frame";
+      case ROOT_NATIVE_STACK: return "native stack";
+      case ROOT_STICKY_CLASS: return "system class";
+      case ROOT_THREAD_BLOCK: return "thread block";
+      case ROOT_MONITOR_USED: return "busy monitor";
+      case ROOT_THREAD_OBJECT: return "thread";
+      default: return "unknown";
+    }
+  }
+
+  private interface AnalysisTask<T> {
+    T run(Analysis analysis) throws IOException, InterruptedException;
+  }
+
+  private interface PassFactory {
+    Analysis.SegmentPass create();
+  }
+
+  private interface PassResultHandler {
+    void handle(Analysis.SegmentPass pass);
+  }
+
+  /** Handler for passes that have no result */
+  private static final PassResultHandler NO_RESULT = new PassResultHandler() {
+    @Override
+    public void handle(Analysis.SegmentPass pass) {
+    }
+  };
+
+  private static String getPrimitiveTypeName(int type) {
+    switch (type) {
+      case TYPE_BOOLEAN: return "boolean";
+      case TYPE_CHAR: return "char";
+      case TYPE_FLOAT: return "float";
+      case TYPE_DOUBLE: return "double";
+      case TYPE_BYTE: return "byte";
+      case TYPE_SHORT: return "short";
+      case TYPE_INT: return "int";
+      case TYPE_LONG: return "long";
+      default: return "?";
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Retained size of a zombie classloader */
+  public static class RetainedSize {
+
+    /** Max no of entries in {@link #toString()} */
+    private static final int MAX_BREAKDOWN_ENTRIES = 20;
+
+    private final long retainedBytes;
+
+    private final Map<String, Long> breakdown;
+
+    private final String problem;
+
+    public RetainedSize(long retainedBytes, Map<String, Long> breakdown, String problem) {
+      this.retainedBytes = retainedBytes;
+      this.breakdown = sortByValue(breakdown);
+      this.problem = problem;
+    }
+
+    /** Get the approximate no of bytes retained by the classloader, or -1 if it could not be computed */
+    public long getRetainedBytes() {
+      return retainedBytes;
+    }
+
+    /**
+     * Get the retained bytes of the objects immediately dominated by the classloader, grouped by type - where the
+     * classes defined by the classloader are listed separately, representing their static fields - largest first.
+     */
+    public Map<String, Long> getBreakdown() {
+      return breakdown;
+    }
+
+    /** Get description of why the retained size could not be computed, if so */
+    public String getProblem() {
+      return problem;
+    }
+
+    private static Map<String, Long> sortByValue(Map<String, Long> map) {
+      final List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(map.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> entry1, Map.Entry<String, Long> entry2) {
+          return entry2.getValue().compareTo(entry1.getValue());
+        }
+      });
+      final Map<String, Long> output = new LinkedHashMap<String, Long>();
+      for(Map.Entry<String, Long> entry : entries)
+        output.put(entry.getKey(), entry.getValue());
+      return Collections.unmodifiableMap(output);
+    }
+
+    @Override
+    public String toString() {
+      if(problem != null)
+        return "Unable to compute retained size: " + problem;
+      final StringBuilder output = new StringBuilder("Zombie classloader retains ").append(retainedBytes).append(" bytes");
+      int i = 0;
+      for(Map.Entry<String, Long> entry : breakdown.entrySet()) {
+        if(i++ == MAX_BREAKDOWN_ENTRIES) {
+          output.append("\n  ...");
+          break;
+        }
+        output.append("\n  ").append(entry.getValue()).append(" bytes: ").append(entry.getKey());
+      }
+      return output.toString();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Memory mapped file, that may be larger than 2 GB */
+  private static class MappedFile {
+
+    private static final int CHUNK_BITS = 30;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final MappedByteBuffer[] chunks;
+
+    private final long size;
+
+    MappedFile(File file) throws IOException {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        final FileChannel channel = randomAccessFile.getChannel();
+        size = channel.size();
+        chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+        for(int i = 0; i < chunks.length; i++) {
+          final long start = (long) i << CHUNK_BITS;
+          chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << CHUNK_BITS, size - start));
+        }
+      }
+      finally {
+        randomAccessFile.close(); // Mapping remains valid
+      }
+    }
+
+    byte get(long pos) {
+      return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+    }
+
+    short getShort(long pos) {
+      final MappedByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+      final int offset = (int) (pos & CHUNK_MASK);
+      if(offset + 2 <= chunk.limit())
+        return chunk.getShort(offset);
+      return (short) (((get(pos) & 0xFF) << 8) | (get(pos + 1) & 0xFF));
+    }
+
+    int getInt(long pos) {
+      final MappedByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+      final int offset = (int) (pos & CHUNK_MASK);
+      if(offset + 4 <= chunk.limit())
+        return chunk.getInt(offset);
+      int value = 0;
+      for(int i = 0; i < 4; i++)
+        value = (value << 8) | (get(pos + i) & 0xFF);
+      return value;
+    }
+
+    long getLong(long pos) {
+      final MappedByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+      final int offset = (int) (pos & CHUNK_MASK);
+      if(offset + 8 <= chunk.limit())
+        return chunk.getLong(offset);
+      return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xFFFFFFFFL);
+    }
+
+    long getId(long pos, int idSize) {
+      return (idSize == 4) ? (getInt(pos) & 0xFFFFFFFFL) : getLong(pos);
+    }
+  }
+
+  /** Array of ints or longs, that may be larger than the heap, stored in a memory mapped temporary file */
+  static class MappedArray {
+
+    private static final int CHUNK_BITS = 30;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final File file;
+
+    private final MappedByteBuffer[] chunks;
+
+    private final int elementSize;
+
+    MappedArray(long length, int elementSize) throws IOException {
+      this.elementSize = elementSize;
+      this.file = File.createTempFile(HeapDumpAnalyzer.class.getSimpleName(), ".idx");
+      final long size = Math.max(length * elementSize, elementSize);
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(size); // Zero filled
+        final FileChannel channel = randomAccessFile.getChannel();
+        chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+        for(int i = 0; i < chunks.length; i++) {
+          final long start = (long) i << CHUNK_BITS;
+          chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(1L << CHUNK_BITS, size - start));
+        }
+      }
+      finally {
+        randomAccessFile.close(); // Mapping remains valid
+      }
+      if(! file.delete()) // Not possible while mapped on Windows
+        file.deleteOnExit();
+    }
+
+    int getInt(long index) {
+      final long pos = index * elementSize;
+      return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+    }
+
+    void putInt(long index, int value) {
+      final long pos = index * elementSize;
+      chunks[(int) (pos >>> CHUNK_BITS)].putInt((int) (pos & CHUNK_MASK), value);
+    }
+
+    long getLong(long index) {
+      final long pos = index * elementSize;
+      return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+    }
+
+    void putLong(long index, long value) {
+      final long pos = index * elementSize;
+      chunks[(int) (pos >>> CHUNK_BITS)].putLong((int) (pos & CHUNK_MASK), value);
+    }
+
+    /** Sort the first elements, as longs, using heap sort */
+    void sortLongs(int length) {
+      for(int i = length / 2 - 1; i >= 0; i--)
+        siftDown(i, length);
+      for(int end = length - 1; end > 0; end--) {
+        final long first = getLong(0);
+        putLong(0, getLong(end));
+        putLong(end, first);
+        siftDown(0, end);
+      }
+    }
+
+    private void siftDown(int i, int length) {
+      final long value = getLong(i);
+      while(true) {
+        int child = 2 * i + 1;
+        if(child >= length)
+          break;
+        if(child + 1 < length && getLong(child + 1) > getLong(child))
+          child++;
+        if(getLong(child) <= value)
+          break;
+        putLong(i, getLong(child));
+        i = child;
+      }
+      putLong(i, value);
+    }
+
+    /** Release file, in case it could not be deleted while mapped */
+    void close() {
+      if(file.exists())
+        file.delete(); // Will only succeed once buffers have been garbage collected on Windows
+    }
+  }
+
+  /** Open addressing hash map from non zero long keys to long values, or set of long keys, using primitive arrays */
+  static class LongMap {
+
+    static final long NOT_FOUND = Long.MIN_VALUE;
+
+    private final boolean hasValues;
+
+    private long[] keys = new long[16];
+
+    private long[] values;
+
+    private int size;
+
+    /** @param hasValues Are values stored? Otherwise used as a set, and all values are 0 */
+    LongMap(boolean hasValues) {
+      this.hasValues = hasValues;
+      this.values = hasValues ? new long[16] : null;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int capacity() {
+      return keys.length;
+    }
+
+    long keyAt(int index) {
+      return keys[index];
+    }
+
+    long valueAt(int index) {
+      return hasValues ? values[index] : 0;
+    }
+
+    boolean contains(long key) {
+      return key != 0 && keys[indexOf(key)] == key;
+    }
+
+    long get(long key) {
+      if(key == 0)
+        return NOT_FOUND;
+      final int index = indexOf(key);
+      return (keys[index] == key) ? valueAt(index) : NOT_FOUND;
+    }
+
+    void put(long key, long value) {
+      if(key == 0)
+        throw new IllegalArgumentException("Key must not be 0");
+      if(! hasValues && value != 0)
+        throw new IllegalArgumentException("Values not stored");
+      int index = indexOf(key);
+      if(keys[index] != key) {
+        if(size + 1 > keys.length / 2) {
+          resize(keys.length * 2);
+          index = indexOf(key);
+        }
+        keys[index] = key;
+        size++;
+      }
+      if(hasValues)
+        values[index] = value;
+    }
+
+    void putAll(LongMap other) {
+      for(int i = 0; i < other.keys.length; i++) {
+        if(other.keys[i] != 0)
+          put(other.keys[i], hasValues ? other.valueAt(i) : 0);
+      }
+    }
+
+    /** Get index of the key, or of the empty slot where it should be */
+    private int indexOf(long key) {
+      final int mask = keys.length - 1;
+      int index = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+      while(keys[index] != 0 && keys[index] != key)
+        index = (index + 1) & mask;
+      return index;
+    }
+
+    private void resize(int capacity) {
+      final long[] oldKeys = keys;
+      final long[] oldValues = values;
+      keys = new long[capacity];
+      values = hasValues ? new long[capacity] : null;
+      size = 0;
+      for(int i = 0; i < oldKeys.length; i++) {
+        if(oldKeys[i] != 0)
+          put(oldKeys[i], hasValues ? oldValues[i] : 0);
+      }
+    }
+  }
+
+  /** Growable list of longs */
+  static class LongList {
+
+    private long[] elements = new long[16];
+
+    private int size;
+
+    void add(long value) {
+      if(size == elements.length) {
+        final long[] newElements = new long[elements.length * 2];
+        System.arraycopy(elements, 0, newElements, 0, size);
+        elements = newElements;
+      }
+      elements[size++] = value;
+    }
+
+    long get(int index) {
+      return elements[index];
+    }
+
+    int size() {
+      return size;
+    }
+
+    long[] toArray() {
+      final long[] output = new long[size];
+      System.arraycopy(elements, 0, output, 0, size);
+      return output;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package se.jiderhamn.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM wide cache of the bytecode of classes, so that class files need not be read again by every
+ * {@link RedefiningClassLoader}. The entries are keyed by the URL of the class file, which includes both the class name
+ * and the code source. Entries are softly referenced, and the least recently used ones are evicted when the total
+ * size exceeds the max. Only bytes are cached, so the cache never prevents classes or classloaders from being
+ * garbage collected.
+ * @author Mattias Jiderhamn
+ */
+public class ClassBytesCache {
+
+  /** System property for the max total no of bytes of the default cache */
+  public static final String MAX_BYTES_SYSTEM_PROPERTY = "ClassLoaderLeakTestFramework.classCacheBytes";
+
+  /** Default max total no of bytes */
+  public static final long MAX_BYTES_DEFAULT = 64 * 1024 * 1024;
+
+  private static final ClassBytesCache DEFAULT = new ClassBytesCache(getMaxBytesProperty());
+
+  private final long maxBytes;
+
+  /** Map from URL to bytes, in least recently used order */
+  private final Map<String, SoftReference<byte[]>> entries = new LinkedHashMap<String, SoftReference<byte[]>>(256, 0.75f, true);
+
+  /** Map from URL to no of bytes, so that size can be maintained if the soft reference has been cleared */
+  private final Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+
+  /** Total no of bytes of the entries */
+  private long size;
+
+  private long hits;
+
+  private long misses;
+
+  public ClassBytesCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Get the JVM wide cache, with max size as per {@link #MAX_BYTES_SYSTEM_PROPERTY} */
+  public static ClassBytesCache getDefault() {
+    return DEFAULT;
+  }
+
+  /** Get the bytes of the class file with the provided URL, from the cache if possible. Do not modify the result! */
+  public byte[] getBytes(URL url) throws IOException {
+    final String key = url.toExternalForm();
+    synchronized (this) {
+      final SoftReference<byte[]> reference = entries.get(key);
+      final byte[] bytes = (reference != null) ? reference.get() : null;
+      if(bytes != null) {
+        hits++;
+        return bytes;
+      }
+      misses++;
+    }
+
+    final byte[] bytes = read(url); // Outside lock; if read in parallel, the last one wins
+    synchronized (this) {
+      final Integer previousSize = sizes.put(key, bytes.length);
+      if(previousSize != null)
+        size -= previousSize;
+      entries.put(key, new SoftReference<byte[]>(bytes));
+      size += bytes.length;
+
+      // Evict least recently used
+      final Iterator<Map.Entry<String, SoftReference<byte[]>>> iterator = entries.entrySet().iterator();
+      while(size > maxBytes && iterator.hasNext()) {
+        final Map.Entry<String, SoftReference<byte[]>> eldest = iterator.next();
+        iterator.remove();
+        size -= sizes.remove(eldest.getKey());
+      }
+    }
+    return bytes;
+  }
+
+  /** Get the no of times the bytes were found in the cache */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Get the no of times the bytes had to be read */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Get the total no of bytes in the cache, including entries that may have been softly cleared */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  private static byte[] read(URL url) throws IOException {
+    final InputStream is = url.openStream();
+    try {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+      final byte[] buffer = new byte[4096];
+      int read;
+      while((read = is.read(buffer)) >= 0) {
+        output.write(buffer, 0, read);
+      }
+      return output.toByteArray();
+    }
+    finally {
+      is.close();
+    }
+  }
+
+  private static long getMaxBytesProperty() {
+    final String maxBytes = System.getProperty(MAX_BYTES_SYSTEM_PROPERTY);
+    try {
+      return (maxBytes != null) ? Long.parseLong(maxBytes.trim()) : MAX_BYTES_DEFAULT;
+    }
+    catch (NumberFormatException e) {
+      System.err.println("Invalid " + MAX_BYTES_SYSTEM_PROPERTY + ": " + maxBytes);
+      return MAX_BYTES_DEFAULT;
+    }
+  }
+}
@@ -1,10 +1,23 @@
 package se.jiderhamn.classloader;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+
 import org.apache.bcel.classfile.ClassFormatException;
+import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.JavaClass;
 
-/** Classloader that redefines classes even if existing in parent */
-public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
+/**
+ * Classloader that redefines classes even if existing in parent. The bytecode is read via the parent, using the
+ * JVM wide {@link ClassBytesCache}, and defined straight away unless a subclass overrides {@link #modifyClass(JavaClass)}
+ * in which case the class is parsed using BCEL. The classloader is parallel capable.
+ */
+public class RedefiningClassLoader extends ClassLoader {
+
+  static {
+    registerAsParallelCapable();
+  }
 
   private static final String DEBUG_SYSTEM_PROPERTY = "ClassLoaderLeakTestFramework.debug";
 
@@ -17,11 +30,16 @@ public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
   /** Set to non-null to indicate it should be ready for garbage collection */
   @SuppressWarnings({"unused", "FieldCanBeLocal"})
   private ZombieMarker zombieMarker = null;
-  
+
   private final String name;
 
+  private final String[] ignoredPackages;
+
   private final boolean logRedefinitions;
 
+  /** Does a subclass override {@link #modifyClass(JavaClass)}, so that classes need to be parsed? */
+  private final boolean modifyingClasses;
+
   public RedefiningClassLoader(ClassLoader parent) {
     this(parent, null);
   }
@@ -39,29 +57,29 @@ public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
   }
 
   public RedefiningClassLoader(ClassLoader parent, String name, String[] ignoredPackages) {
-    super(parent, ignoredPackages);
+    super(parent);
     this.name = name;
+    this.ignoredPackages = ignoredPackages.clone();
     this.logRedefinitions = isDebugLoggingEnabled();
+    this.modifyingClasses = isModifyClassOverridden(getClass());
   }
 
   RedefiningClassLoader(String name, String[] ignoredPackages) {
-    super(ignoredPackages);
-    this.name = name;
-    this.logRedefinitions = isDebugLoggingEnabled();
+    this(ClassLoader.getSystemClassLoader(), name, ignoredPackages);
   }
 
   public static boolean isDebugLoggingEnabled() {
     return "true".equals(System.getProperty(DEBUG_SYSTEM_PROPERTY));
   }
 
-  @Override
+  /**
+   * Override to modify the bytecode of the classes being redefined. Note that unless overridden, BCEL is not used at
+   * all, and the unparsed bytes are defined as is.
+   */
   protected JavaClass modifyClass(JavaClass clazz) {
-    if (logRedefinitions) {
-      System.out.println("Loading " + clazz.getClassName() + " in " + this);
-    }
-    return super.modifyClass(clazz);
+    return clazz;
   }
-  
+
   /** Mark this class loader as being ready for garbage collection */
   public void markAsZombie() {
     this.zombieMarker = new ZombieMarker();
@@ -69,26 +87,87 @@ public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
 
   @Override
   public String toString() {
-    return (name != null) ? (this.getClass().getName() + '[' + name + "]@" + Integer.toHexString(System.identityHashCode(this))) :  
+    return (name != null) ? (this.getClass().getName() + '[' + name + "]@" + Integer.toHexString(System.identityHashCode(this))) :
         super.toString();
   }
 
   @Override
   protected Class<?> loadClass(String class_name, boolean resolve) throws ClassNotFoundException {
+    synchronized (getClassLoadingLock(class_name)) {
+      Class<?> clazz = findLoadedClass(class_name);
+      if(clazz == null) {
+        clazz = isIgnored(class_name) ? getParentOrSystemClassLoader().loadClass(class_name) : redefineClass(class_name);
+      }
+      if(resolve)
+        resolveClass(clazz);
+      return clazz;
+    }
+  }
+
+  /** Define our own version of the class, from the bytecode found via the parent */
+  private Class<?> redefineClass(String class_name) throws ClassNotFoundException {
+    final URL url = getParentOrSystemClassLoader().getResource(class_name.replace('.', '/') + ".class");
+    if(url == null)
+      throw new ClassNotFoundException(class_name);
+
+    byte[] bytes;
     try {
-      int i = class_name.lastIndexOf('.');
-      if (i != -1) {
-        String pkgName = class_name.substring(0, i);
-        if (getPackage(pkgName) == null) {
-          super.definePackage(pkgName, null, null, null, null,
-                  null, null, null);
-        }
+      bytes = ClassBytesCache.getDefault().getBytes(url);
+      if(modifyingClasses) {
+        final JavaClass javaClass = new ClassParser(new ByteArrayInputStream(bytes), url.toExternalForm()).parse();
+        bytes = modifyClass(javaClass).getBytes();
       }
-      return super.loadClass(class_name, resolve);
+    }
+    catch (IOException e) {
+      throw new ClassNotFoundException(class_name, e);
     }
     catch (ClassFormatException e) {
       throw new RuntimeException("Unable to load class " + class_name, e);
     }
+
+    if (logRedefinitions) {
+      System.out.println("Loading " + class_name + " in " + this);
+    }
+
+    int i = class_name.lastIndexOf('.');
+    if (i != -1) {
+      String pkgName = class_name.substring(0, i);
+      if (getPackage(pkgName) == null) {
+        try {
+          definePackage(pkgName, null, null, null, null, null, null, null);
+        }
+        catch (IllegalArgumentException e) {
+          // Package defined in parallel
+        }
+      }
+    }
+    return defineClass(class_name, bytes, 0, bytes.length);
   }
-  
-}
\ No newline at end of file
+
+  private boolean isIgnored(String class_name) {
+    for(String ignoredPackage : ignoredPackages) {
+      if(class_name.startsWith(ignoredPackage))
+        return true;
+    }
+    return false;
+  }
+
+  private ClassLoader getParentOrSystemClassLoader() {
+    return (getParent() != null) ? getParent() : ClassLoader.getSystemClassLoader();
+  }
+
+  /** Is {@link #modifyClass(JavaClass)} overridden by the provided subclass or any of its superclasses? */
+  private static boolean isModifyClassOverridden(Class<?> clazz) {
+    for(Class<?> c = clazz; c != RedefiningClassLoader.class; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod("modifyClass", JavaClass.class);
+        return true;
+      }
+      catch (NoSuchMethodException e) {
+        // Continue with superclass
+      }
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,180 @@
+package se.jiderhamn.classloader.leak;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Triggers garbage collection and waits for it to complete. Rather than calling {@link System#gc()} in a tight loop
+ * until a {@link WeakReference} has been cleared, the {@link WeakReference} is registered with a {@link ReferenceQueue}
+ * which is waited on, with exponential backoff between the {@link System#gc()} calls and an overall timeout. That way
+ * no CPU is burnt waiting for concurrent collectors, that may return from {@link System#gc()} before the cycle has
+ * completed, and there is no hanging forever with {@code -XX:+DisableExplicitGC}.
+ * @author Mattias Jiderhamn
+ */
+public class GcTrigger {
+
+  /** System property for the max no of milliseconds to wait for each garbage collection */
+  public static final String TIMEOUT_SYSTEM_PROPERTY = "ClassLoaderLeakTestFramework.gcTimeoutMs";
+
+  /** Default max no of milliseconds to wait for each garbage collection */
+  public static final long TIMEOUT_MS_DEFAULT = 60 * 1000;
+
+  private static final long INITIAL_BACKOFF_MS = 1;
+
+  private static final long MAX_BACKOFF_MS = 500;
+
+  private static final AtomicLong totalAwaits = new AtomicLong();
+
+  private static final AtomicLong totalRequests = new AtomicLong();
+
+  private static final AtomicLong totalCycles = new AtomicLong();
+
+  private static final AtomicLong totalWaitMs = new AtomicLong();
+
+  private static final AtomicLong totalTimeouts = new AtomicLong();
+
+  /** Trigger and wait for garbage collection, using the timeout of the {@link #TIMEOUT_SYSTEM_PROPERTY} */
+  public static Result awaitGc() {
+    return awaitGc(getTimeoutMs());
+  }
+
+  /** Trigger and wait for garbage collection, for at most {@code timeoutMs} milliseconds */
+  public static Result awaitGc(long timeoutMs) {
+    if(isDisableExplicitGCEnabled())
+      return new Result(false, 0, 0, 0, true);
+
+    final long start = System.currentTimeMillis();
+    final long cyclesBefore = getCollectionCount();
+    final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    final WeakReference<Object> sentinel = new WeakReference<Object>(new Object(), queue);
+    long backoffMs = INITIAL_BACKOFF_MS;
+    int requests = 0;
+    boolean collected = false;
+    try {
+      while(! collected) {
+        final long remainingMs = start + timeoutMs - System.currentTimeMillis();
+        if(remainingMs <= 0)
+          break;
+
+        System.gc();
+        requests++;
+        // Cleared at once by stop the world collections; otherwise wait for the concurrent cycle to enqueue it
+        collected = (sentinel.get() == null || queue.remove(Math.min(backoffMs, remainingMs)) != null);
+        backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sentinel.clear(); // Keep strongly reachable until here
+
+    final Result result = new Result(collected, requests, getCollectionCount() - cyclesBefore,
+        System.currentTimeMillis() - start, false);
+    totalAwaits.incrementAndGet();
+    totalRequests.addAndGet(result.getRequests());
+    totalCycles.addAndGet(result.getCycles());
+    totalWaitMs.addAndGet(result.getWaitMs());
+    if(! collected)
+      totalTimeouts.incrementAndGet();
+    return result;
+  }
+
+  /** Get the max no of milliseconds to wait for each garbage collection */
+  public static long getTimeoutMs() {
+    final String timeout = System.getProperty(TIMEOUT_SYSTEM_PROPERTY);
+    try {
+      return (timeout != null) ? Long.parseLong(timeout.trim()) : TIMEOUT_MS_DEFAULT;
+    }
+    catch (NumberFormatException e) {
+      System.err.println("Invalid " + TIMEOUT_SYSTEM_PROPERTY + ": " + timeout);
+      return TIMEOUT_MS_DEFAULT;
+    }
+  }
+
+  /**
+   * Check is "-XX:+DisableExplicitGC" enabled.
+   *
+   * @return true is "-XX:+DisableExplicitGC" is set als vm argument, false otherwise.
+   */
+  public static boolean isDisableExplicitGCEnabled() {
+    return ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-XX:+DisableExplicitGC");
+  }
+
+  /** Get the total no of garbage collection cycles of all collectors, as reported by {@link GarbageCollectorMXBean}s */
+  private static long getCollectionCount() {
+    long count = 0;
+    for(GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if(gcBean.getCollectionCount() > 0) // -1 if undefined
+        count += gcBean.getCollectionCount();
+    }
+    return count;
+  }
+
+  /** Get statistics of all the garbage collections awaited so far, for comparing collectors and tuning suite time */
+  public static String getStatistics() {
+    return "GC awaited " + totalAwaits.get() + " times, using " + totalRequests.get() + " System.gc() calls and " +
+        totalCycles.get() + " GC cycles, waiting " + totalWaitMs.get() + " ms in total; " + totalTimeouts.get() +
+        " timeouts";
+  }
+
+  /** The result of waiting for garbage collection */
+  public static class Result {
+
+    private final boolean completed;
+
+    private final int requests;
+
+    private final long cycles;
+
+    private final long waitMs;
+
+    private final boolean explicitGcDisabled;
+
+    Result(boolean completed, int requests, long cycles, long waitMs, boolean explicitGcDisabled) {
+      this.completed = completed;
+      this.requests = requests;
+      this.cycles = cycles;
+      this.waitMs = waitMs;
+      this.explicitGcDisabled = explicitGcDisabled;
+    }
+
+    /** Was garbage collection confirmed to have completed, before the timeout? */
+    public boolean isCompleted() {
+      return completed;
+    }
+
+    /** Get the no of {@link System#gc()} calls made */
+    public int getRequests() {
+      return requests;
+    }
+
+    /**
+     * Get the no of garbage collection cycles of any collector, including young generation collections and cycles not
+     * triggered by us, that were reported by the {@link GarbageCollectorMXBean}s while waiting
+     */
+    public long getCycles() {
+      return cycles;
+    }
+
+    /** Get the no of milliseconds waited */
+    public long getWaitMs() {
+      return waitMs;
+    }
+
+    /** Was garbage collection not triggered, because of {@code -XX:+DisableExplicitGC}? */
+    public boolean isExplicitGcDisabled() {
+      return explicitGcDisabled;
+    }
+
+    @Override
+    public String toString() {
+      if(explicitGcDisabled)
+        return "Garbage collection cannot be triggered since -XX:+DisableExplicitGC is supplied as VM option";
+      return "Garbage collection " + (completed ? "completed" : "NOT completed") + " after " + requests +
+          " System.gc() calls, " + cycles + " GC cycles and " + waitMs + " ms";
+    }
+  }
+}
@@ -5,14 +5,26 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.internal.runners.statements.InvokeMethod;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
 import org.junit.runners.BlockJUnit4ClassRunner;
 import org.junit.runners.model.FrameworkMethod;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.Statement;
 import org.junit.runners.model.TestClass;
+import se.jiderhamn.HeapDumpAnalyzer;
 import se.jiderhamn.HeapDumper;
 import se.jiderhamn.classloader.PackagesLoadedOutsideClassLoader;
 import se.jiderhamn.classloader.RedefiningClassLoader;
@@ -29,11 +41,95 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
   /** Number of seconds to halt to allow for heap dump aquirement, if that option is enabled */
   private static final int HALT_TIME_S = 10;
 
+  /** System property to set to {@code true} to verify all the test methods of a class in a single batch */
+  public static final String BATCH_SYSTEM_PROPERTY = "ClassLoaderLeakTestFramework.batch";
+
+  /** Tests run in the current batch, awaiting verification; {@code null} unless running batch */
+  private List<BatchedTest> batch;
+
   public JUnitClassloaderRunner(Class<?> klass) throws InitializationError {
     super(klass);
     // TODO: Replace testclass here to support @Before, @After - alt throw exception if used
   }
 
+  /** Should all the test methods of the class be verified in a single batch? */
+  public static boolean isBatchEnabled() {
+    return "true".equals(System.getProperty(BATCH_SYSTEM_PROPERTY));
+  }
+
+  @Override
+  protected Statement childrenInvoker(final RunNotifier notifier) {
+    if(! isBatchEnabled())
+      return super.childrenInvoker(notifier);
+
+    return new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        runBatch(notifier);
+      }
+    };
+  }
+
+  /**
+   * Run all test methods, each in its own {@link RedefiningClassLoader}, without verifying garbage collection. Then
+   * verify all of them in a single garbage collection phase (and a second one for the tests with leak preventors), and
+   * report the results. Tests that fail verification - which may be because one test leaks the classloader of another -
+   * are re-run and verified individually.
+   */
+  @SuppressWarnings("UnusedAssignment")
+  private void runBatch(RunNotifier notifier) throws Throwable {
+    final RecordingListener recording = new RecordingListener();
+    final RunNotifier recordingNotifier = new RunNotifier();
+    recordingNotifier.addListener(recording);
+    final List<BatchedTest> batched = new ArrayList<BatchedTest>();
+    batch = batched;
+    try {
+      super.childrenInvoker(recordingNotifier).evaluate();
+    }
+    finally {
+      batch = null; // Run individually from now on
+    }
+
+    forceGc(3);
+    final List<BatchedTest> prevented = new ArrayList<BatchedTest>();
+    final Map<Description, FrameworkMethod> reRun = new HashMap<Description, FrameworkMethod>();
+    for(BatchedTest test : batched) {
+      RedefiningClassLoader classLoader = test.weak.get();
+      if(test.expectedLeak && classLoader != null && test.preventorClass != null) {
+        try {
+          runLeakPreventor(classLoader, test.preventorClass);
+          prevented.add(test);
+        }
+        catch (Exception e) {
+          reRun.put(test.description, test.method);
+        }
+      }
+      else if(test.expectedLeak != (classLoader != null))
+        reRun.put(test.description, test.method);
+      classLoader = null; // Make available for garbage collection in the second GC phase
+    }
+    if(! prevented.isEmpty()) {
+      forceGc(3);
+      for(BatchedTest test : prevented) {
+        if(test.weak.get() != null)
+          reRun.put(test.description, test.method);
+      }
+    }
+    
+    if(RedefiningClassLoader.isDebugLoggingEnabled()) {
+      System.out.println("Batch of " + batched.size() + " tests in " + getTestClass().getName() + " verified with " +
+          (prevented.isEmpty() ? 1 : 2) + " GC phase(s); " + reRun.size() + " to be re-verified individually");
+      System.out.println(GcTrigger.getStatistics());
+    }
+
+    for(Description description : recording.descriptions) {
+      if(reRun.containsKey(description))
+        runLeaf(methodBlock(reRun.get(description)), description, notifier);
+      else
+        recording.replay(description, notifier);
+    }
+  }
+
   @Override
   protected Statement methodInvoker(FrameworkMethod method, Object test) {
     final LeakPreventor leakPreventorAnn = method.getMethod().getDeclaringClass().getAnnotation(LeakPreventor.class);
@@ -45,6 +141,9 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
   
   private class SeparateClassLoaderInvokeMethod extends InvokeMethod {
     
+    /** The test method */
+    private final FrameworkMethod testMethod;
+
     /** The method to run for triggering potential leak, or verify non-leak */
     private final Method originalMethod;
 
@@ -60,6 +159,9 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
     /** Automatically generate a heap dump of classloader could not be garbage collected? */
     private final boolean dumpHeapOnError;
     
+    /** Max no of bytes the leaked classloader may retain, if expected to leak. Negative means no limit. */
+    private final long maxRetainedBytes;
+    
     /** Class that can be used to remove the leak */
     private Class<? extends Runnable> preventorClass;
     
@@ -74,12 +176,14 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
                                             Class<? extends Runnable> preventorClass,
                                             PackagesLoadedOutsideClassLoader packagesLoadedOutsideClassLoader) {
       super(testMethod, target);
+      this.testMethod = testMethod;
       originalMethod = testMethod.getMethod();
 
       final Leaks leakAnn = testMethod.getAnnotation(Leaks.class);
       this.expectedLeak = (leakAnn == null || leakAnn.value()); // Default to true
       this.haltBeforeError = (leakAnn != null && leakAnn.haltBeforeError()); // Default to false
       this.dumpHeapOnError = (leakAnn != null && leakAnn.dumpHeapOnError()); // Default to false
+      this.maxRetainedBytes = (leakAnn != null) ? leakAnn.maxRetainedBytes() : -1;
 
       this.preventorClass = preventorClass;
       this.ignoredPackages = (packagesLoadedOutsideClassLoader == null) ? null :
@@ -134,96 +238,244 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
         myClassLoader.markAsZombie();
         myClassLoader = null; // Make available to garbage collector
         
-        forceGc(3);
-
-        if(expectedLeak) { // We expect this test to leak classloaders
-          RedefiningClassLoader redefiningClassLoader = weak.get();
-          Assert.assertNotNull("ClassLoader has been garbage collected, while test is expected to leak", redefiningClassLoader);
-
-          if(redefiningClassLoader != null && // Always true, otherwise assertion failure above
-             preventorClass != null) {
-            try {
-              Thread.currentThread().setContextClassLoader(redefiningClassLoader);
-              Class<? extends Runnable> preventorInLeakedLoader = (Class<Runnable>) redefiningClassLoader.loadClass(preventorClass.getName());
-              Runnable leakPreventor = preventorInLeakedLoader.newInstance();
-              final String leakPreventorName = leakPreventor.toString();
-
-              leakPreventor.run(); // Try to prevent leak
-              
-              // Make available for Garbage Collection
-              leakPreventor = null;
-              preventorInLeakedLoader = null;
-              redefiningClassLoader = null;
-              Thread.currentThread().setContextClassLoader(clBefore);
-              
-              forceGc(3);
-
-              final boolean leak = (weak.get() != null); // Still not garbage collected
-              if(leak) {
-                final String message = "ClassLoader (" + weak.get() + ") has not been garbage collected, " +
-                    "despite running the leak preventor " + leakPreventorName;
-                weak.clear(); // Avoid including this reference in the heap dump
-                performErrorActions(testName);
-
-                fail(message);
-              }
-            }
-            catch (Exception e) {
-              throw new RuntimeException("Leak prevention class " + preventorClass.getName() + " could not be used!", e);
-            }
-            finally {
-              redefiningClassLoader = null;
-              Thread.currentThread().setContextClassLoader(clBefore); // Make sure it is reset, even if there is an error
-            }
+        if(batch != null && maxRetainedBytes < 0) // Verify later, together with the rest of the batch
+          batch.add(new BatchedTest(testMethod, weak, expectedLeak, preventorClass));
+        else
+          verify(testName, weak, clBefore);
+      }
+    }
+
+    /** Verify that the classloader has been garbage collected, or leaked if expected to */
+    @SuppressWarnings("UnusedAssignment")
+    private void verify(String testName, WeakReference<RedefiningClassLoader> weak, ClassLoader clBefore) 
+        throws InterruptedException {
+      forceGc(3);
+
+      if(expectedLeak) { // We expect this test to leak classloaders
+        RedefiningClassLoader redefiningClassLoader = weak.get();
+        Assert.assertNotNull("ClassLoader has been garbage collected, while test is expected to leak", redefiningClassLoader);
+
+        if(redefiningClassLoader != null && // Always true, otherwise assertion failure above
+           preventorClass != null) {
+          try {
+            final String leakPreventorName = runLeakPreventor(redefiningClassLoader, preventorClass);
+            
+            // Make available for Garbage Collection
+            redefiningClassLoader = null;
+            
+            forceGc(3);
 
-          }
-          else { // Leak was expected, but we had no prevention mechanism
             final boolean leak = (weak.get() != null); // Still not garbage collected
             if(leak) {
-              redefiningClassLoader = null; // Avoid including this reference in the heap dump 
+              final String message = "ClassLoader (" + weak.get() + ") has not been garbage collected, " +
+                  "despite running the leak preventor " + leakPreventorName;
               weak.clear(); // Avoid including this reference in the heap dump
-              performErrorActions(testName);
+              final String analysis = performErrorActions(testName);
+
+              fail(message + analysis);
             }
           }
+          catch (Exception e) {
+            throw new RuntimeException("Leak prevention class " + preventorClass.getName() + " could not be used!", e);
+          }
+          finally {
+            redefiningClassLoader = null;
+            Thread.currentThread().setContextClassLoader(clBefore); // Make sure it is reset, even if there is an error
+          }
 
         }
-        else { // We did not expect a leak
+        else { // Leak was expected, but we had no prevention mechanism
           final boolean leak = (weak.get() != null); // Still not garbage collected
           if(leak) {
-            final String message = "ClassLoader has not been garbage collected " + weak.get();
+            redefiningClassLoader = null; // Avoid including this reference in the heap dump 
             weak.clear(); // Avoid including this reference in the heap dump
-            performErrorActions(testName);
-            fail(message);
+            if(maxRetainedBytes >= 0) {
+              verifyRetainedSize(testName);
+            }
+            else {
+              final String analysis = performErrorActions(testName);
+              if(analysis.length() > 0)
+                System.out.println(analysis.trim());
+            }
           }
         }
+
+      }
+      else { // We did not expect a leak
+        final boolean leak = (weak.get() != null); // Still not garbage collected
+        if(leak) {
+          final String message = "ClassLoader has not been garbage collected " + weak.get();
+          weak.clear(); // Avoid including this reference in the heap dump
+          final String analysis = performErrorActions(testName);
+          fail(message + analysis);
+        }
       }
     }
 
-    /** Call only if there is a leak */
-    private void performErrorActions(String testName) throws InterruptedException {
+    /** 
+     * Call only if there is a leak. Returns the path to the leaked classloader and its retained size, from the heap
+     * dump if any, to be appended to the error message.
+     */
+    private String performErrorActions(String testName) throws InterruptedException {
+      String analysis = "";
       if(dumpHeapOnError) {
-        dumpHeap(testName);
+        final File heapDump = dumpHeap(testName);
+        if(heapDump != null)
+          analysis = "\n" + findPathToZombie(heapDump, testName) + "\n" + computeRetainedSize(heapDump, testName);
       }
 
       if(haltBeforeError) {
         waitForHeapDump();
       }
+      return analysis;
+    }
+
+    /** Call only if there is an expected leak. Fail if the leaked classloader retains more than allowed. */
+    private void verifyRetainedSize(String testName) throws InterruptedException {
+      final File heapDump = dumpHeap(testName);
+      if(heapDump == null)
+        return; // Cannot verify
+
+      final HeapDumpAnalyzer.RetainedSize retainedSize = computeRetainedSize(heapDump, testName);
+      System.out.println(retainedSize);
+      if(retainedSize.getRetainedBytes() > maxRetainedBytes) {
+        final String path = findPathToZombie(heapDump, testName);
+        if(haltBeforeError) {
+          waitForHeapDump();
+        }
+        fail("ClassLoader retains " + retainedSize.getRetainedBytes() + " bytes, more than the max " + 
+            maxRetainedBytes + "\n" + path + "\n" + retainedSize);
+      }
+      else if(! dumpHeapOnError) {
+        heapDump.delete();
+      }
+    }
+  }
+
+  /** Test that has been run in a batch, awaiting verification */
+  private class BatchedTest {
+    
+    private final FrameworkMethod method;
+    
+    private final Description description;
+
+    private final WeakReference<RedefiningClassLoader> weak;
+    
+    private final boolean expectedLeak;
+    
+    private final Class<? extends Runnable> preventorClass;
+
+    private BatchedTest(FrameworkMethod method, WeakReference<RedefiningClassLoader> weak, boolean expectedLeak,
+                        Class<? extends Runnable> preventorClass) {
+      this.method = method;
+      this.description = describeChild(method);
+      this.weak = weak;
+      this.expectedLeak = expectedLeak;
+      this.preventorClass = preventorClass;
+    }
+  }
+
+  /** Listener recording the results of tests, so that they can be reported after batch verification */
+  private static class RecordingListener extends RunListener {
+    
+    /** Descriptions of the tests, in the order run */
+    private final List<Description> descriptions = new ArrayList<Description>();
+    
+    private final Set<Description> ignored = new HashSet<Description>();
+
+    private final Map<Description, List<Failure>> failures = new HashMap<Description, List<Failure>>();
+
+    private final Map<Description, Failure> assumptionFailures = new HashMap<Description, Failure>();
+
+    @Override
+    public void testStarted(Description description) {
+      descriptions.add(description);
+    }
+
+    @Override
+    public void testIgnored(Description description) {
+      descriptions.add(description);
+      ignored.add(description);
+    }
+
+    @Override
+    public void testFailure(Failure failure) {
+      if(! descriptions.contains(failure.getDescription()))
+        descriptions.add(failure.getDescription());
+      List<Failure> list = failures.get(failure.getDescription());
+      if(list == null) {
+        list = new ArrayList<Failure>();
+        failures.put(failure.getDescription(), list);
+      }
+      list.add(failure);
+    }
+
+    @Override
+    public void testAssumptionFailure(Failure failure) {
+      assumptionFailures.put(failure.getDescription(), failure);
+    }
+
+    /** Report the recorded result of the test */
+    void replay(Description description, RunNotifier notifier) {
+      if(ignored.contains(description)) {
+        notifier.fireTestIgnored(description);
+        return;
+      }
+
+      notifier.fireTestStarted(description);
+      if(assumptionFailures.containsKey(description))
+        notifier.fireTestAssumptionFailed(assumptionFailures.get(description));
+      if(failures.containsKey(description)) {
+        for(Failure failure : failures.get(description))
+          notifier.fireTestFailure(failure);
+      }
+      notifier.fireTestFinished(description);
     }
   }
 
-  /** Make sure Garbage Collection has been run N no of times */
-  public static void forceGc(int n) {
+  /** Run the leak preventor, loaded by the leaked classloader, with that as context classloader. Returns its name. */
+  static String runLeakPreventor(ClassLoader leakedClassLoader, Class<? extends Runnable> preventorClass) 
+      throws Exception {
+    final ClassLoader clBefore = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(leakedClassLoader);
+      final Runnable leakPreventor = (Runnable) leakedClassLoader.loadClass(preventorClass.getName()).newInstance();
+      final String leakPreventorName = leakPreventor.toString();
+      leakPreventor.run(); // Try to prevent leak
+      return leakPreventorName;
+    }
+    finally {
+      Thread.currentThread().setContextClassLoader(clBefore);
+    }
+  }
+
+  /** 
+   * Make sure Garbage Collection has been run N no of times. Returns the total no of {@link System#gc()} calls needed,
+   * or -1 if any garbage collection timed out.
+   */
+  public static int forceGc(int n) {
+    int requests = 0;
     for(int i = 0; i < n; i++) {
-      forceGc();
+      final int result = forceGc();
+      if(result < 0)
+        return -1;
+      requests += result;
     }
+    return requests;
   }
   
-  /** Make sure Garbage Collection has been run */
-  public static void forceGc() {
-    WeakReference<Object> ref = new WeakReference<Object>(new Object());
-    while(ref.get() != null) { // Until garbage collection has actually been run
-      System.gc();
-    }
+  /** 
+   * Make sure Garbage Collection has been run, using {@link GcTrigger}. Returns the no of {@link System#gc()} calls 
+   * needed, or -1 if timed out.
+   * @throws IllegalStateException If garbage collection cannot be triggered, because of {@code -XX:+DisableExplicitGC}
+   */
+  public static int forceGc() {
+    final GcTrigger.Result result = GcTrigger.awaitGc();
+    if(result.isExplicitGcDisabled())
+      throw new IllegalStateException(result + "; leaks cannot be verified");
+    if(! result.isCompleted() || RedefiningClassLoader.isDebugLoggingEnabled())
+      System.out.println(result);
+    return result.isCompleted() ? result.getRequests() : -1;
   }
 
   private static void waitForHeapDump() throws InterruptedException {
@@ -232,17 +484,43 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
     Thread.sleep(HALT_TIME_S * 1000);
   }
 
-  /** Create heap dump in file with same name as the test */
-  private void dumpHeap(String testName) {
+  /** Create heap dump in file with same name as the test. Returns the file, or null if the heap could not be dumped. */
+  private File dumpHeap(String testName) {
     final File surefireReports = getSurefireReportsDirectory();
     try {
       File heapDump = (surefireReports != null) ? new File(surefireReports, testName + HEAP_DUMP_EXTENSION) : 
           new File(testName + HEAP_DUMP_EXTENSION);
+      if(heapDump.exists() && ! heapDump.delete()) { // Do not analyze heap dump from previous run
+        HeapDumper.dumpHeap(heapDump, false); // Print error
+        return null;
+      }
       HeapDumper.dumpHeap(heapDump, false);
       System.out.println("Heaped dumped to " + heapDump.getAbsolutePath());
+      return heapDump;
     }
     catch (ClassNotFoundException e) {
       System.out.println("Unable to dump heap - not Sun/Oracle JVM?");
+      return null;
+    }
+  }
+
+  /** Find the shortest path from a GC root to the leaked classloader in the heap dump */
+  private static String findPathToZombie(File heapDump, String testName) {
+    try {
+      return new HeapDumpAnalyzer(heapDump).findPathToZombie(testName);
+    }
+    catch (Exception e) {
+      return "Unable to analyze heap dump: " + e;
+    }
+  }
+
+  /** Compute the size retained by the leaked classloader in the heap dump */
+  private static HeapDumpAnalyzer.RetainedSize computeRetainedSize(File heapDump, String testName) {
+    try {
+      return new HeapDumpAnalyzer(heapDump).computeRetainedSizeOfZombie(testName);
+    }
+    catch (Exception e) {
+      return new HeapDumpAnalyzer.RetainedSize(-1, Collections.<String, Long>emptyMap(), e.toString());
     }
   }
 
@@ -20,5 +20,11 @@ public @interface Leaks {
    * on Sun/Oracle JVM. 
    */
   boolean dumpHeapOnError() default false;
+
+  /**
+   * For tests expected to leak, set this to fail the test if the leaked classloader retains more than this no of bytes,
+   * as computed from a heap dump. Only works on Sun/Oracle JVM. Negative means no limit.
+   */
+  long maxRetainedBytes() default -1;
   
 }
@@ -0,0 +1,143 @@
+package se.jiderhamn.classloader.leak;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import se.jiderhamn.classloader.RedefiningClassLoader;
+
+/**
+ * Generates reproducible, large scale classloader leaks, for tuning leak prevention measures. For each
+ * {@link #generate(String)}, a {@link SyntheticLeakyApp} is run in a new {@link RedefiningClassLoader}, creating the
+ * configured number of each {@link Dimension}. The {@link ThreadLocal}s are set in a pool of "container" threads
+ * created by the generator, outside of the application, like the request threads of an application server.
+ *
+ * Call {@link #undeploy(ClassLoader)} to undo everything the application did, or {@link #close()} when done, to
+ * stop the container threads.
+ * @author Mattias Jiderhamn
+ */
+public class LeakyAppGenerator {
+
+  /** The kinds of leaks to generate */
+  public enum Dimension {
+    /** Threads of a custom {@link Thread} subclass, that run until interrupted */
+    CUSTOM_THREADS,
+    /** Worker threads of a fixed {@link java.util.concurrent.ThreadPoolExecutor} */
+    EXECUTOR_WORKERS,
+    /** {@link java.util.Timer}s with a scheduled task */
+    TIMERS,
+    /** {@link ThreadLocal} entries in the container threads, with values of an application type */
+    THREAD_LOCALS,
+    /** {@link ThreadLocal} entries in the container threads, with values wrapped in {@link java.lang.ref.Reference}s */
+    REFERENCE_THREAD_LOCALS,
+    /** MBeans registered in the platform MBean server */
+    MBEANS,
+    /** Notification listeners registered with the {@link java.lang.management.MemoryMXBean} */
+    NOTIFICATION_LISTENERS,
+    /** Shutdown hooks */
+    SHUTDOWN_HOOKS,
+    /** {@link java.security.Provider}s */
+    SECURITY_PROVIDERS,
+    /** JDBC drivers registered with {@link java.sql.DriverManager} */
+    JDBC_DRIVERS
+  }
+
+  private final Map<Dimension, Integer> counts = new EnumMap<Dimension, Integer>(Dimension.class);
+
+  private int containerThreads = 8;
+
+  private ThreadPoolExecutor containerPool;
+
+  /** Set the number of the provided {@link Dimension} to create in each application */
+  public void setCount(Dimension dimension, int count) {
+    counts.put(dimension, count);
+  }
+
+  public int getCount(Dimension dimension) {
+    final Integer count = counts.get(dimension);
+    return (count != null) ? count : 0;
+  }
+
+  /** Set all counts to 0 */
+  public void clearCounts() {
+    counts.clear();
+  }
+
+  /** Set the number of container threads to spread the {@link ThreadLocal} entries across. Defaults to 8. */
+  public void setContainerThreads(int containerThreads) {
+    if(containerPool != null)
+      throw new IllegalStateException("Container threads already started");
+    this.containerThreads = containerThreads;
+  }
+
+  /** Create a new {@link RedefiningClassLoader} with the provided name, and generate leaks in it */
+  public RedefiningClassLoader generate(String name) throws Exception {
+    final RedefiningClassLoader classLoader = new RedefiningClassLoader(LeakyAppGenerator.class.getClassLoader(), name);
+    generate(classLoader);
+    return classLoader;
+  }
+
+  /** Generate leaks in the provided classloader, that should be able to redefine {@link SyntheticLeakyApp} */
+  public void generate(ClassLoader classLoader) throws Exception {
+    final Map<String, Object> config = new HashMap<String, Object>();
+    for(Map.Entry<Dimension, Integer> entry : counts.entrySet()) {
+      config.put(entry.getKey().name(), entry.getValue());
+    }
+    config.put(SyntheticLeakyApp.CONTAINER_POOL, getContainerPool());
+
+    final Runnable app = (Runnable) classLoader.loadClass(SyntheticLeakyApp.class.getName())
+        .getConstructor(Map.class).newInstance(config);
+    runInClassLoader(classLoader, app);
+  }
+
+  /** Undo everything done in the provided classloader by {@link #generate}, so that it can be garbage collected */
+  public void undeploy(ClassLoader classLoader) throws Exception {
+    JUnitClassloaderRunner.runLeakPreventor(classLoader, SyntheticLeakyApp.Undeploy.class);
+  }
+
+  /** Stop the container threads */
+  public synchronized void close() {
+    if(containerPool != null) {
+      containerPool.shutdownNow();
+      containerPool = null;
+    }
+  }
+
+  /**
+   * Get the pool of container threads, that are created and started up front, so that they do not inherit the
+   * context classloader or {@link java.security.AccessControlContext} of the application.
+   */
+  private synchronized ExecutorService getContainerPool() {
+    if(containerPool == null) {
+      final ClassLoader classLoader = LeakyAppGenerator.class.getClassLoader();
+      containerPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(containerThreads, new ThreadFactory() {
+        private int count = 0;
+
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "leaky-app-container-" + count++);
+          thread.setDaemon(true);
+          thread.setContextClassLoader(classLoader);
+          return thread;
+        }
+      });
+      containerPool.prestartAllCoreThreads();
+    }
+    return containerPool;
+  }
+
+  private static void runInClassLoader(ClassLoader classLoader, Runnable runnable) {
+    final ClassLoader clBefore = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(classLoader);
+      runnable.run();
+    }
+    finally {
+      Thread.currentThread().setContextClassLoader(clBefore);
+    }
+  }
+}
@@ -0,0 +1,302 @@
+package se.jiderhamn.classloader.leak;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import se.jiderhamn.classloader.RedefiningClassLoader;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Soak test harness simulating repeated redeploys. In each cycle, a fresh {@link RedefiningClassLoader} is created,
+ * a workload that may trigger leaks is run inside it, a cleanup - typically
+ * {@code new ClassLoaderLeakPreventorFactory().newLeakPreventor().runCleanUps()} of the ClassLoader Leak Prevention
+ * library - is run inside it, and the classloader is dropped. Both the workload and the cleanup are {@link Runnable}s
+ * that are loaded by the new classloader, and run with that as the context classloader, just like
+ * {@link LeakPreventor}s.
+ *
+ * After each cycle, garbage collection is awaited, and Metaspace (or PermGen) usage, loaded and unloaded class counts,
+ * the no of classloaders of previous cycles that are still alive and the cleanup latency are recorded. The cleanup
+ * latency is the time of {@link Runnable#run()} of the cleanup, excluding loading and instantiating its class. After
+ * {@link #setWarmupCycles(int) warmup}, the {@link Result} is violating the limits if Metaspace usage grows by more
+ * than {@link #setMaxMetaspaceGrowthPerCycle(long)} bytes per cycle (as per linear regression), if more than
+ * {@link #setMaxLiveClassLoaders(int)} classloaders are alive or if the 99th percentile cleanup latency of the last
+ * half of the cycles is more than {@link #setMaxLatencyGrowth(double)} times that of the first half.
+ * @author Mattias Jiderhamn
+ */
+public class RedeploySoak {
+
+  /** Latency increases less than this are considered noise */
+  private static final long LATENCY_NOISE_NS = 1000 * 1000;
+
+  private final Class<? extends Runnable> workloadClass;
+
+  private final Class<? extends Runnable> cleanUpClass;
+
+  private int cycles = 500;
+
+  private int warmupCycles = 50;
+
+  private long maxMetaspaceGrowthPerCycle = 1024;
+
+  private int maxLiveClassLoaders = 0;
+
+  private double maxLatencyGrowth = 2.0;
+
+  /**
+   * @param workloadClass {@link Runnable} to run in each new classloader, possibly triggering leaks
+   * @param cleanUpClass {@link Runnable} that prevents the leaks, or {@code null} for none
+   */
+  public RedeploySoak(Class<? extends Runnable> workloadClass, Class<? extends Runnable> cleanUpClass) {
+    this.workloadClass = workloadClass;
+    this.cleanUpClass = cleanUpClass;
+  }
+
+  /** Set the total no of cycles, including warmup. Defaults to 500. */
+  public void setCycles(int cycles) {
+    this.cycles = cycles;
+  }
+
+  /** 
+   * Set the no of initial cycles not to include when checking the limits. Defaults to 50. Note that Metaspace usage
+   * typically keeps growing somewhat until the JIT compiler has warmed up.
+   */
+  public void setWarmupCycles(int warmupCycles) {
+    this.warmupCycles = warmupCycles;
+  }
+
+  /** Set max Metaspace/PermGen growth in bytes per cycle after warmup, as per linear regression. Defaults to 1024. */
+  public void setMaxMetaspaceGrowthPerCycle(long maxMetaspaceGrowthPerCycle) {
+    this.maxMetaspaceGrowthPerCycle = maxMetaspaceGrowthPerCycle;
+  }
+
+  /** Set the max no of classloaders of previous cycles that may be alive after a cycle. Defaults to 0. */
+  public void setMaxLiveClassLoaders(int maxLiveClassLoaders) {
+    this.maxLiveClassLoaders = maxLiveClassLoaders;
+  }
+
+  /**
+   * Set how many times higher the 99th percentile cleanup latency of the last half of the cycles after warmup may be,
+   * compared to the first half. Defaults to 2.
+   */
+  public void setMaxLatencyGrowth(double maxLatencyGrowth) {
+    this.maxLatencyGrowth = maxLatencyGrowth;
+  }
+
+  /** Run all the cycles, and return the result without verifying the limits */
+  public Result run() throws Exception {
+    if(warmupCycles >= cycles - 1)
+      throw new IllegalStateException("At least 2 cycles after the " + warmupCycles + " warmup cycles are needed");
+
+    final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+    final List<WeakReference<RedefiningClassLoader>> classLoaders = new ArrayList<WeakReference<RedefiningClassLoader>>();
+    final List<Cycle> output = new ArrayList<Cycle>(cycles);
+    for(int i = 0; i < cycles; i++) {
+      final long cleanUpNanos = runCycle(i, classLoaders);
+
+      if(JUnitClassloaderRunner.forceGc() < 0)
+        fail("Garbage collection did not complete in cycle " + i);
+      int live = 0;
+      for(Iterator<WeakReference<RedefiningClassLoader>> it = classLoaders.iterator(); it.hasNext(); ) {
+        if(it.next().get() == null)
+          it.remove();
+        else
+          live++;
+      }
+      output.add(new Cycle(getMetaspaceUsed(), classLoading.getLoadedClassCount(),
+          classLoading.getUnloadedClassCount(), live, cleanUpNanos));
+    }
+    return new Result(output);
+  }
+
+  /** Run one cycle, and return the no of nanoseconds taken by the cleanup */
+  private long runCycle(int cycle, List<WeakReference<RedefiningClassLoader>> classLoaders) throws Exception {
+    RedefiningClassLoader classLoader = new RedefiningClassLoader(workloadClass.getClassLoader(), "soak-" + cycle);
+    classLoaders.add(new WeakReference<RedefiningClassLoader>(classLoader));
+
+    JUnitClassloaderRunner.runLeakPreventor(classLoader, workloadClass);
+    final long cleanUpNanos = (cleanUpClass != null) ? runCleanUp(classLoader) : 0;
+
+    classLoader.markAsZombie();
+    classLoader = null; // Make available for garbage collection
+    return cleanUpNanos;
+  }
+
+  /** 
+   * Run the cleanup in the provided classloader, and return the no of nanoseconds taken by {@link Runnable#run()}. 
+   * Loading and instantiating the cleanup class is not included, just like the classes of the application are not 
+   * loaded at shutdown.
+   */
+  private long runCleanUp(ClassLoader classLoader) throws Exception {
+    final ClassLoader clBefore = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(classLoader);
+      final Runnable cleanUp = (Runnable) classLoader.loadClass(cleanUpClass.getName()).newInstance();
+      final long start = System.nanoTime();
+      cleanUp.run();
+      return System.nanoTime() - start;
+    }
+    finally {
+      Thread.currentThread().setContextClassLoader(clBefore);
+    }
+  }
+
+  /** Get the no of bytes used by the Metaspace, or PermGen on Java 7 and earlier; -1 if there is no such pool */
+  private static long getMetaspaceUsed() {
+    long used = -1;
+    for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if(pool.getName().equals("Metaspace") || pool.getName().endsWith("Perm Gen")) {
+        used = Math.max(used, 0) + pool.getUsage().getUsed();
+      }
+    }
+    return used;
+  }
+
+  /** Measurements after one cycle, including awaiting garbage collection */
+  public static class Cycle {
+
+    private final long metaspaceUsed;
+
+    private final int loadedClasses;
+
+    private final long unloadedClasses;
+
+    private final int liveClassLoaders;
+
+    private final long cleanUpNanos;
+
+    Cycle(long metaspaceUsed, int loadedClasses, long unloadedClasses, int liveClassLoaders, long cleanUpNanos) {
+      this.metaspaceUsed = metaspaceUsed;
+      this.loadedClasses = loadedClasses;
+      this.unloadedClasses = unloadedClasses;
+      this.liveClassLoaders = liveClassLoaders;
+      this.cleanUpNanos = cleanUpNanos;
+    }
+
+    /** Get the no of bytes used by Metaspace (or PermGen), or -1 if unknown */
+    public long getMetaspaceUsed() {
+      return metaspaceUsed;
+    }
+
+    /** Get the no of classes currently loaded in the JVM */
+    public int getLoadedClasses() {
+      return loadedClasses;
+    }
+
+    /** Get the total no of classes unloaded since the JVM started */
+    public long getUnloadedClasses() {
+      return unloadedClasses;
+    }
+
+    /** Get the no of classloaders of this and previous cycles that have not been garbage collected */
+    public int getLiveClassLoaders() {
+      return liveClassLoaders;
+    }
+
+    /** Get the no of nanoseconds taken by the cleanup */
+    public long getCleanUpNanos() {
+      return cleanUpNanos;
+    }
+  }
+
+  /** The measurements of all the cycles */
+  public class Result {
+
+    private final List<Cycle> cycles;
+
+    Result(List<Cycle> cycles) {
+      this.cycles = Collections.unmodifiableList(cycles);
+    }
+
+    /** Get the measurements of all the cycles, including warmup */
+    public List<Cycle> getCycles() {
+      return cycles;
+    }
+
+    /** Get the Metaspace (or PermGen) growth in bytes per cycle after warmup, as per linear regression */
+    public double getMetaspaceGrowthPerCycle() {
+      final int n = cycles.size() - warmupCycles;
+      double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+      for(int x = 0; x < n; x++) {
+        final double y = cycles.get(warmupCycles + x).getMetaspaceUsed();
+        sumX += x;
+        sumY += y;
+        sumXY += x * y;
+        sumXX += (double) x * x;
+      }
+      return (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+    }
+
+    /** Get the percentile (0-100) of the cleanup latency in nanoseconds, of the cycles from {@code from} to {@code to} */
+    public long getCleanUpNanosPercentile(double percentile, int from, int to) {
+      final long[] nanos = new long[to - from];
+      for(int i = from; i < to; i++) {
+        nanos[i - from] = cycles.get(i).getCleanUpNanos();
+      }
+      Arrays.sort(nanos);
+      final int rank = (int) Math.ceil(percentile / 100 * nanos.length); // Nearest rank
+      return nanos[Math.max(rank - 1, 0)];
+    }
+
+    /** Get the percentile (0-100) of the cleanup latency in nanoseconds, of the cycles after warmup */
+    public long getCleanUpNanosPercentile(double percentile) {
+      return getCleanUpNanosPercentile(percentile, warmupCycles, cycles.size());
+    }
+
+    /** Get descriptions of the limits that were exceeded; empty if none */
+    public List<String> getViolations() {
+      final List<String> violations = new ArrayList<String>();
+      final Cycle last = cycles.get(cycles.size() - 1);
+      if(last.getLiveClassLoaders() > maxLiveClassLoaders)
+        violations.add(last.getLiveClassLoaders() + " classloaders still alive after " + cycles.size() + " cycles; max " +
+            maxLiveClassLoaders);
+
+      if(last.getMetaspaceUsed() >= 0 && getMetaspaceGrowthPerCycle() > maxMetaspaceGrowthPerCycle)
+        violations.add("Metaspace grows by " + Math.round(getMetaspaceGrowthPerCycle()) + " bytes per cycle; max " +
+            maxMetaspaceGrowthPerCycle);
+
+      final int middle = warmupCycles + (cycles.size() - warmupCycles) / 2;
+      final long firstP99 = getCleanUpNanosPercentile(99, warmupCycles, middle);
+      final long lastP99 = getCleanUpNanosPercentile(99, middle, cycles.size());
+      if(lastP99 > firstP99 * maxLatencyGrowth && lastP99 - firstP99 > LATENCY_NOISE_NS)
+        violations.add("p99 cleanup latency grew from " + toMs(firstP99) + " ms to " + toMs(lastP99) + " ms; max " +
+            maxLatencyGrowth + " times");
+      return violations;
+    }
+
+    /** Fail if any of the limits were exceeded */
+    public void verify() {
+      final List<String> violations = getViolations();
+      if(! violations.isEmpty())
+        fail(violations + "\n" + this);
+    }
+
+    @Override
+    public String toString() {
+      final Cycle first = cycles.get(warmupCycles);
+      final Cycle last = cycles.get(cycles.size() - 1);
+      return "Redeploy soak of " + workloadClass.getName() + " with " +
+          ((cleanUpClass != null) ? cleanUpClass.getName() : "no cleanup") + ", " + cycles.size() + " cycles (" +
+          warmupCycles + " warmup):\n" +
+          "  Metaspace used: " + first.getMetaspaceUsed() + " -> " + last.getMetaspaceUsed() + " bytes (" +
+          Math.round(getMetaspaceGrowthPerCycle()) + " bytes per cycle)\n" +
+          "  Loaded classes: " + first.getLoadedClasses() + " -> " + last.getLoadedClasses() + ", unloaded " +
+          (last.getUnloadedClasses() - first.getUnloadedClasses()) + "\n" +
+          "  Live classloaders: " + last.getLiveClassLoaders() + "\n" +
+          "  Cleanup latency: p50 " + toMs(getCleanUpNanosPercentile(50)) + " ms, p90 " +
+          toMs(getCleanUpNanosPercentile(90)) + " ms, p99 " + toMs(getCleanUpNanosPercentile(99)) + " ms, max " +
+          toMs(getCleanUpNanosPercentile(100)) + " ms";
+    }
+  }
+
+  private static String toMs(long nanos) {
+    return String.format("%.3f", nanos / 1000000.0);
+  }
+}
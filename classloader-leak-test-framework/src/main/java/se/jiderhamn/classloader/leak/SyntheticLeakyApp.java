@@ -0,0 +1,377 @@
+package se.jiderhamn.classloader.leak;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.security.Provider;
+import java.security.Security;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Synthetic application, to be loaded by a {@link se.jiderhamn.classloader.RedefiningClassLoader} by
+ * {@link LeakyAppGenerator}, that causes the configured number of classloader leaks of each
+ * {@link LeakyAppGenerator.Dimension}. The configuration is passed as a {@link Map} of JDK types only, since this
+ * class is loaded by another classloader than {@link LeakyAppGenerator}. Everything created is kept in static fields
+ * so that {@link Undeploy} can undo it, like a well-behaved application would.
+ * @author Mattias Jiderhamn
+ */
+public class SyntheticLeakyApp implements Runnable {
+
+  /** Key of the {@link ExecutorService} of "container" threads to set {@link ThreadLocal}s in */
+  static final String CONTAINER_POOL = "containerPool";
+
+  private static final String PREFIX = "leaky-app-";
+
+  private static final List<Thread> threads = new ArrayList<Thread>();
+
+  private static final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+
+  private static final List<Timer> timers = new ArrayList<Timer>();
+
+  private static final List<ThreadLocal<Object>> threadLocals = new ArrayList<ThreadLocal<Object>>();
+
+  private static ExecutorService containerPool;
+
+  private static int containerThreads;
+
+  private static final List<ObjectName> mBeans = new ArrayList<ObjectName>();
+
+  private static final List<NotificationListener> notificationListeners = new ArrayList<NotificationListener>();
+
+  private static final List<Thread> shutdownHooks = new ArrayList<Thread>();
+
+  private static final List<String> securityProviders = new ArrayList<String>();
+
+  private static final List<Driver> jdbcDrivers = new ArrayList<Driver>();
+
+  private final Map<String, Object> config;
+
+  private final String id = Integer.toHexString(System.identityHashCode(SyntheticLeakyApp.class));
+
+  public SyntheticLeakyApp(Map<String, Object> config) {
+    this.config = config;
+  }
+
+  private int getCount(LeakyAppGenerator.Dimension dimension) {
+    final Integer count = (Integer) config.get(dimension.name());
+    return (count != null) ? count : 0;
+  }
+
+  @Override
+  public void run() {
+    try {
+      for(int i = 0; i < getCount(LeakyAppGenerator.Dimension.CUSTOM_THREADS); i++) {
+        final Thread thread = new AppThread(PREFIX + id + "-thread-" + i);
+        thread.start();
+        threads.add(thread);
+      }
+
+      if(getCount(LeakyAppGenerator.Dimension.EXECUTOR_WORKERS) > 0) {
+        final ThreadPoolExecutor executor =
+            (ThreadPoolExecutor) Executors.newFixedThreadPool(getCount(LeakyAppGenerator.Dimension.EXECUTOR_WORKERS));
+        executor.prestartAllCoreThreads();
+        executors.add(executor);
+      }
+
+      for(int i = 0; i < getCount(LeakyAppGenerator.Dimension.TIMERS); i++) {
+        final Timer timer = new Timer(PREFIX + id + "-timer-" + i, true);
+        timer.schedule(new AppTimerTask(), TimeUnit.HOURS.toMillis(1));
+        timers.add(timer);
+      }
+
+      containerPool = (ExecutorService) config.get(CONTAINER_POOL);
+      containerThreads = (containerPool != null) ? ((ThreadPoolExecutor) containerPool).getCorePoolSize() : 0;
+      setThreadLocals(getCount(LeakyAppGenerator.Dimension.THREAD_LOCALS), false);
+      setThreadLocals(getCount(LeakyAppGenerator.Dimension.REFERENCE_THREAD_LOCALS), true);
+
+      final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      for(int i = 0; i < getCount(LeakyAppGenerator.Dimension.MBEANS); i++) {
+        final ObjectName name = new ObjectName("se.jiderhamn.leakyapp:type=App,app=" + id + ",id=" + i);
+        mBeanServer.registerMBean(new App(i), name);
+        mBeans.add(name);
+      }
+
+      for(int i = 0; i < getCount(LeakyAppGenerator.Dimension.NOTIFICATION_LISTENERS); i++) {
+        final NotificationListener listener = new AppNotificationListener();
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+        notificationListeners.add(listener);
+      }
+
+      for(int i = 0; i < getCount(LeakyAppGenerator.Dimension.SHUTDOWN_HOOKS); i++) {
+        final Thread hook = new AppShutdownHook(PREFIX + id + "-hook-" + i);
+        Runtime.getRuntime().addShutdownHook(hook);
+        shutdownHooks.add(hook);
+      }
+
+      for(int i = 0; i < getCount(LeakyAppGenerator.Dimension.SECURITY_PROVIDERS); i++) {
+        final Provider provider = new AppProvider(PREFIX + id + "-provider-" + i);
+        Security.addProvider(provider);
+        securityProviders.add(provider.getName());
+      }
+
+      for(int i = 0; i < getCount(LeakyAppGenerator.Dimension.JDBC_DRIVERS); i++) {
+        final Driver driver = new AppDriver();
+        DriverManager.registerDriver(driver);
+        jdbcDrivers.add(driver);
+      }
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Set {@code entries} {@link ThreadLocal} entries, spread evenly across the threads of the {@link #containerPool},
+   * with values of an application type, optionally wrapped in {@link WeakReference}s or {@link SoftReference}s
+   */
+  private void setThreadLocals(int entries, final boolean references) throws Exception {
+    if(entries == 0)
+      return;
+    if(containerPool == null)
+      throw new IllegalStateException("No " + CONTAINER_POOL + " configured");
+
+    final List<ThreadLocal<Object>> keys = new ArrayList<ThreadLocal<Object>>();
+    for(int i = 0; i < (entries + containerThreads - 1) / containerThreads; i++) {
+      final ThreadLocal<Object> threadLocal = (i % 2 == 0) ? new ThreadLocal<Object>() : new AppThreadLocal();
+      keys.add(threadLocal);
+      threadLocals.add(threadLocal);
+    }
+    runInEachContainerThread(new Runnable() {
+      @Override
+      public void run() {
+        for(int i = 0; i < keys.size(); i++) {
+          final Object value = new AppValue();
+          keys.get(i).set(! references ? value :
+              (i % 2 == 0) ? new WeakReference<Object>(value) : new SoftReference<Object>(value));
+        }
+      }
+    });
+  }
+
+  /** Run the task once in each of the threads of the {@link #containerPool} */
+  private static void runInEachContainerThread(final Runnable task) throws Exception {
+    final CountDownLatch allStarted = new CountDownLatch(containerThreads);
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    for(int i = 0; i < containerThreads; i++) {
+      futures.add(containerPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          allStarted.countDown();
+          allStarted.await(); // Make sure each thread gets exactly one task
+          task.run();
+          return null;
+        }
+      }));
+    }
+    for(Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  /** Undo everything done by {@link SyntheticLeakyApp}, the way a well-behaved application would when undeployed */
+  public static class Undeploy implements Runnable {
+    @Override
+    public void run() {
+      try {
+        for(Thread thread : threads) {
+          thread.interrupt();
+          thread.join();
+        }
+        threads.clear();
+
+        for(ExecutorService executor : executors) {
+          executor.shutdownNow();
+          executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        executors.clear();
+
+        for(Timer timer : timers) {
+          timer.cancel();
+        }
+        timers.clear();
+
+        if(! threadLocals.isEmpty()) {
+          runInEachContainerThread(new Runnable() {
+            @Override
+            public void run() {
+              for(ThreadLocal<Object> threadLocal : threadLocals) {
+                threadLocal.remove();
+              }
+            }
+          });
+          threadLocals.clear();
+        }
+        containerPool = null;
+
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name : mBeans) {
+          mBeanServer.unregisterMBean(name);
+        }
+        mBeans.clear();
+
+        for(NotificationListener listener : notificationListeners) {
+          ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+        }
+        notificationListeners.clear();
+
+        for(Thread hook : shutdownHooks) {
+          Runtime.getRuntime().removeShutdownHook(hook);
+        }
+        shutdownHooks.clear();
+
+        for(String provider : securityProviders) {
+          Security.removeProvider(provider);
+        }
+        securityProviders.clear();
+
+        for(Driver driver : jdbcDrivers) {
+          DriverManager.deregisterDriver(driver);
+        }
+        jdbcDrivers.clear();
+      }
+      catch (RuntimeException e) {
+        throw e;
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** Custom {@link Thread} subclass that runs until interrupted */
+  public static class AppThread extends Thread {
+
+    public AppThread(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        Thread.sleep(Long.MAX_VALUE);
+      }
+      catch (InterruptedException e) {
+        // Exit
+      }
+    }
+  }
+
+  public static class AppTimerTask extends TimerTask {
+    @Override
+    public void run() {
+    }
+  }
+
+  /** Custom {@link ThreadLocal} subclass */
+  public static class AppThreadLocal extends ThreadLocal<Object> {
+  }
+
+  /** Value of {@link ThreadLocal}s */
+  public static class AppValue {
+  }
+
+  public interface AppMBean {
+    int getId();
+  }
+
+  public static class App implements AppMBean {
+
+    private final int id;
+
+    public App(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public int getId() {
+      return id;
+    }
+  }
+
+  public static class AppNotificationListener implements NotificationListener {
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+    }
+  }
+
+  public static class AppShutdownHook extends Thread {
+
+    public AppShutdownHook(String name) {
+      super(name);
+    }
+
+    @Override
+    public void run() {
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  public static class AppProvider extends Provider {
+    public AppProvider(String name) {
+      super(name, 1.0, "Synthetic leaky application provider");
+    }
+  }
+
+  public static class AppDriver implements Driver {
+    @Override
+    public Connection connect(String url, Properties info) {
+      return null;
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+      return false;
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    /** Added in Java 7 */
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package se.jiderhamn;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import se.jiderhamn.classloader.RedefiningClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link HeapDumpAnalyzer}
+ * @author Mattias Jiderhamn
+ */
+public class HeapDumpAnalyzerTest {
+
+  /** Static field causing leak */
+  private static List<Object> leak;
+
+  private File heapDump;
+
+  @After
+  public void tearDown() {
+    leak = null;
+    if(heapDump != null)
+      heapDump.delete();
+  }
+
+  @Test
+  public void pathToZombie() throws Exception {
+    leak();
+    final String path = new HeapDumpAnalyzer(dumpHeap()).findPathToZombie("zombie");
+    assertTrue(path, path.contains(".(static) leak -> java.util.ArrayList"));
+    assertTrue(path, path.endsWith("[1] -> " + RedefiningClassLoader.class.getName() +
+        path.substring(path.lastIndexOf('@'))));
+  }
+
+  @Test
+  public void noSuchZombie() throws Exception {
+    leak();
+    final String path = new HeapDumpAnalyzer(dumpHeap()).findPathToZombie("foo");
+    assertTrue(path, path.startsWith("No zombie RedefiningClassLoader named 'foo'"));
+  }
+
+  @Test
+  public void maxVisited() throws Exception {
+    leak();
+    final HeapDumpAnalyzer analyzer = new HeapDumpAnalyzer(dumpHeap());
+    analyzer.setMaxVisited(1);
+    final String path = analyzer.findPathToZombie(null);
+    assertTrue(path, path.startsWith("No path to GC root found within"));
+  }
+
+  @Test
+  public void retainedSize() throws Exception {
+    final RedefiningClassLoader zombie = leak();
+    Class.forName(Retained.class.getName(), true, zombie); // Initialize in zombie classloader
+    final HeapDumpAnalyzer.RetainedSize retainedSize =
+        new HeapDumpAnalyzer(dumpHeap()).computeRetainedSizeOfZombie("zombie");
+    assertNull(retainedSize.getProblem());
+    assertTrue(retainedSize.toString(), retainedSize.getRetainedBytes() > Retained.SIZE);
+    final Map.Entry<String, Long> largest = retainedSize.getBreakdown().entrySet().iterator().next();
+    assertEquals("class " + Retained.class.getName() + " (statics)", largest.getKey());
+    assertTrue(retainedSize.toString(), largest.getValue() > Retained.SIZE);
+  }
+
+  /** Create two zombie classloaders, one of which is referenced from a static field */
+  private static RedefiningClassLoader leak() {
+    final RedefiningClassLoader zombie = new RedefiningClassLoader(HeapDumpAnalyzerTest.class.getClassLoader(), "zombie");
+    zombie.markAsZombie();
+    final RedefiningClassLoader other = new RedefiningClassLoader(HeapDumpAnalyzerTest.class.getClassLoader(), "other");
+    other.markAsZombie();
+    leak = new ArrayList<Object>();
+    leak.add(other);
+    leak.add(zombie);
+    return zombie;
+  }
+
+  private File dumpHeap() throws Exception {
+    heapDump = File.createTempFile(getClass().getSimpleName(), HeapDumper.HEAP_DUMP_EXTENSION);
+    heapDump.delete();
+    HeapDumper.dumpHeap(heapDump, true);
+    return heapDump;
+  }
+
+  /** Class with static field that will be retained by the zombie classloader */
+  public static class Retained {
+    
+    static final int SIZE = 1024 * 1024;
+
+    @SuppressWarnings("unused")
+    private static final byte[] data = new byte[SIZE];
+  }
+}
@@ -0,0 +1,102 @@
+package se.jiderhamn.classloader;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.classloader.test.CustomClass;
+import org.apache.bcel.classfile.JavaClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ClassBytesCache} and its use by {@link RedefiningClassLoader}
+ * @author Mattias Jiderhamn
+ */
+public class ClassBytesCacheTest {
+
+  @Test
+  public void cached() throws Exception {
+    final ClassBytesCache cache = new ClassBytesCache(ClassBytesCache.MAX_BYTES_DEFAULT);
+    final byte[] bytes = cache.getBytes(getClassFile(CustomClass.class));
+    assertSame(bytes, cache.getBytes(getClassFile(CustomClass.class)));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(bytes.length, cache.getSize());
+  }
+
+  @Test
+  public void evicted() throws Exception {
+    final ClassBytesCache cache = new ClassBytesCache(1);
+    final byte[] bytes = cache.getBytes(getClassFile(CustomClass.class));
+    assertNotSame(bytes, cache.getBytes(getClassFile(CustomClass.class)));
+    assertEquals(0, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void redefinedFromCache() throws Exception {
+    final ClassLoader parent = ClassBytesCacheTest.class.getClassLoader();
+    final Class<?> first = new RedefiningClassLoader(parent, "first").loadClass(CustomClass.class.getName());
+    final long hits = ClassBytesCache.getDefault().getHits();
+    final Class<?> second = new RedefiningClassLoader(parent, "second").loadClass(CustomClass.class.getName());
+    assertTrue(ClassBytesCache.getDefault().getHits() > hits);
+    assertNotSame(CustomClass.class, first);
+    assertNotSame(first, second);
+    assertEquals(CustomClass.class.getName(), second.getName());
+  }
+
+  @Test
+  public void modified() throws Exception {
+    final List<String> modified = new ArrayList<String>();
+    final RedefiningClassLoader classLoader = new RedefiningClassLoader(ClassBytesCacheTest.class.getClassLoader()) {
+      @Override
+      protected JavaClass modifyClass(JavaClass clazz) {
+        modified.add(clazz.getClassName());
+        return clazz;
+      }
+    };
+    final Class<?> clazz = classLoader.loadClass(CustomClass.class.getName());
+    assertSame(classLoader, clazz.getClassLoader());
+    assertEquals(1, modified.size());
+    assertEquals(CustomClass.class.getName(), modified.get(0));
+  }
+
+  @Test
+  public void parallel() throws Exception {
+    final RedefiningClassLoader classLoader = new RedefiningClassLoader(ClassBytesCacheTest.class.getClassLoader());
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Class<?>>> futures = new ArrayList<Future<Class<?>>>();
+      for(int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<Class<?>>() {
+          @Override
+          public Class<?> call() throws Exception {
+            return classLoader.loadClass(CustomClass.class.getName());
+          }
+        }));
+      }
+      final Class<?> clazz = futures.get(0).get();
+      assertSame(classLoader, clazz.getClassLoader());
+      for(Future<Class<?>> future : futures) {
+        assertSame(clazz, future.get());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  private static URL getClassFile(Class<?> clazz) {
+    return clazz.getClassLoader().getResource(clazz.getName().replace('.', '/') + ".class");
+  }
+}
@@ -0,0 +1,35 @@
+package se.jiderhamn.classloader.leak;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link GcTrigger}
+ * @author Mattias Jiderhamn
+ */
+public class GcTriggerTest {
+
+  @Test
+  public void awaitGc() {
+    final WeakReference<Object> weak = new WeakReference<Object>(new Object());
+    final GcTrigger.Result result = GcTrigger.awaitGc(10 * 1000);
+    assertTrue(result.toString(), result.isCompleted());
+    assertTrue(result.toString(), result.getRequests() >= 1);
+    assertTrue(result.toString(), result.getCycles() >= 1);
+    assertFalse(result.isExplicitGcDisabled());
+    assertNull(weak.get());
+    assertTrue(GcTrigger.getStatistics(), GcTrigger.getStatistics().startsWith("GC awaited "));
+  }
+
+  @Test
+  public void timeout() {
+    final GcTrigger.Result result = GcTrigger.awaitGc(0);
+    assertFalse(result.toString(), result.isCompleted());
+    assertTrue(result.toString(), result.toString().contains("NOT completed"));
+  }
+}
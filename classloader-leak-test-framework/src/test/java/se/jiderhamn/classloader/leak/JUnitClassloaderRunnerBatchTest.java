@@ -0,0 +1,75 @@
+package se.jiderhamn.classloader.leak;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runner.notification.Failure;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test cases for {@link JUnitClassloaderRunner} in batch mode
+ * @author Mattias Jiderhamn
+ */
+public class JUnitClassloaderRunnerBatchTest {
+  
+  @After
+  public void tearDown() {
+    System.clearProperty(JUnitClassloaderRunner.BATCH_SYSTEM_PROPERTY);
+  }
+
+  @Test
+  public void batch() {
+    System.setProperty(JUnitClassloaderRunner.BATCH_SYSTEM_PROPERTY, "true");
+    final Result result = JUnitCore.runClasses(Batched.class);
+    assertEquals(5, result.getRunCount());
+    final Set<String> failed = new TreeSet<String>();
+    for(Failure failure : result.getFailures())
+      failed.add(failure.getDescription().getMethodName());
+    assertEquals(new TreeSet<String>(Arrays.asList("failing", "leaking", "notLeaking")), failed);
+  }
+
+  /** Tests run in batch; not run by themselves since nested */
+  @RunWith(JUnitClassloaderRunner.class)
+  public static class Batched {
+    
+    private static final ThreadLocal<Value> threadLocal = new ThreadLocal<Value>();
+    
+    @Test
+    @Leaks(false)
+    public void nonLeaking() {
+    }
+
+    @Test
+    public void expectedLeak() {
+      threadLocal.set(new Value());
+    }
+
+    @Test
+    @Leaks(false)
+    public void leaking() {
+      threadLocal.set(new Value());
+    }
+
+    @Test
+    @Leaks(false)
+    public void failing() {
+      throw new IllegalStateException("Expected");
+    }
+
+    @Test
+    public void notLeaking() { // Expected to leak by default
+    }
+
+    /** Custom value class, that will prevent garbage collection */
+    private static class Value {
+      
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package se.jiderhamn.classloader.leak;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.security.Provider;
+import java.security.Security;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import se.jiderhamn.classloader.RedefiningClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LeakyAppGenerator}
+ * @author Mattias Jiderhamn
+ */
+public class LeakyAppGeneratorTest {
+
+  private final LeakyAppGenerator generator = new LeakyAppGenerator();
+
+  @After
+  public void tearDown() {
+    generator.close();
+  }
+
+  @Test
+  public void generateAndUndeploy() throws Exception {
+    for(LeakyAppGenerator.Dimension dimension : LeakyAppGenerator.Dimension.values()) {
+      generator.setCount(dimension, 2);
+    }
+    generator.setContainerThreads(2);
+
+    final int threadsBefore = Thread.activeCount();
+    RedefiningClassLoader classLoader = generator.generate("leaky-app");
+    assertNotSame(LeakyAppGenerator.class.getClassLoader(),
+        classLoader.loadClass(SyntheticLeakyApp.class.getName()).getClassLoader());
+
+    // 2 threads + 2 executor workers + 2 timers + 2 container threads
+    assertTrue(Thread.activeCount() >= threadsBefore + 8);
+    assertEquals(2, ManagementFactory.getPlatformMBeanServer()
+        .queryNames(new ObjectName("se.jiderhamn.leakyapp:*"), null).size());
+    assertEquals(2, countAppProviders(classLoader));
+
+    generator.undeploy(classLoader);
+    assertEquals(0, ManagementFactory.getPlatformMBeanServer()
+        .queryNames(new ObjectName("se.jiderhamn.leakyapp:*"), null).size());
+    assertEquals(0, countAppProviders(classLoader));
+
+    final WeakReference<ClassLoader> weak = new WeakReference<ClassLoader>(classLoader);
+    classLoader = null;
+    JUnitClassloaderRunner.forceGc(3);
+    assertNull("Classloader should have been garbage collected after undeploy", weak.get());
+  }
+
+  @Test
+  public void leakWithoutUndeploy() throws Exception {
+    generator.setCount(LeakyAppGenerator.Dimension.THREAD_LOCALS, 4);
+    generator.setContainerThreads(2);
+    RedefiningClassLoader classLoader = generator.generate("leaky-app");
+    final WeakReference<ClassLoader> weak = new WeakReference<ClassLoader>(classLoader);
+    classLoader = null;
+    JUnitClassloaderRunner.forceGc(3);
+    assertTrue("Classloader should be leaked by ThreadLocals of container threads", weak.get() != null);
+  }
+
+  private static int countAppProviders(ClassLoader classLoader) {
+    int count = 0;
+    for(Provider provider : Security.getProviders()) {
+      if(provider.getClass().getClassLoader() == classLoader)
+        count++;
+    }
+    return count;
+  }
+}
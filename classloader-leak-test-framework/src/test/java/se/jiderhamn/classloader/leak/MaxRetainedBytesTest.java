@@ -0,0 +1,34 @@
+package se.jiderhamn.classloader.leak;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link Leaks#maxRetainedBytes()}
+ * @author Mattias Jiderhamn
+ */
+@RunWith(JUnitClassloaderRunner.class)
+public class MaxRetainedBytesTest {
+
+  private static final ThreadLocal<Value> threadLocal = new ThreadLocal<Value>();
+
+  /** Retained by the leaked classloader, via the class */
+  private static final byte[] DATA = new byte[1024 * 1024];
+
+  @Test
+  @Leaks(maxRetainedBytes = 10 * 1024 * 1024)
+  public void withinLimit() {
+    threadLocal.set(new Value());
+  }
+
+  @Test(expected = AssertionError.class)
+  @Leaks(maxRetainedBytes = 1024 * 1024)
+  public void exceedingLimit() {
+    threadLocal.set(new Value());
+  }
+
+  /** Custom value class, that will prevent garbage collection */
+  private static class Value {
+    
+  }
+}
@@ -0,0 +1,125 @@
+package se.jiderhamn.classloader.leak;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link RedeploySoak}
+ * @author Mattias Jiderhamn
+ */
+public class RedeploySoakTest {
+
+  private static final String PROPERTY_PREFIX = RedeploySoakTest.class.getName() + ".";
+
+  @After
+  public void tearDown() {
+    for(Iterator<Object> it = System.getProperties().keySet().iterator(); it.hasNext(); ) {
+      if(String.valueOf(it.next()).startsWith(PROPERTY_PREFIX))
+        it.remove();
+    }
+  }
+
+  @Test
+  public void leakPrevented() throws Exception {
+    final RedeploySoak soak = new RedeploySoak(Workload.class, CleanUp.class);
+    soak.setCycles(30);
+    soak.setWarmupCycles(5);
+    soak.setMaxMetaspaceGrowthPerCycle(4096); // Few warmup cycles
+    soak.setMaxLatencyGrowth(Double.MAX_VALUE); // Too few cycles for a stable p99
+    final RedeploySoak.Result result = soak.run();
+    assertEquals(30, result.getCycles().size());
+    assertEquals(0, result.getCycles().get(29).getLiveClassLoaders());
+    assertTrue(result.toString(), result.toString().contains("Cleanup latency: p50 "));
+    result.verify();
+  }
+
+  @Test
+  public void leakDetected() throws Exception {
+    final RedeploySoak soak = new RedeploySoak(Workload.class, null);
+    soak.setCycles(30);
+    soak.setWarmupCycles(5);
+    final RedeploySoak.Result result = soak.run();
+    assertEquals(30, result.getCycles().get(29).getLiveClassLoaders());
+    final List<String> violations = result.getViolations();
+    assertTrue(violations.toString(), violations.get(0).startsWith("30 classloaders still alive"));
+    assertTrue(violations.toString(), result.getMetaspaceGrowthPerCycle() > 0);
+  }
+
+  @Test
+  public void latencyGrowthDetected() throws Exception {
+    final RedeploySoak soak = new RedeploySoak(Workload.class, SlowingCleanUp.class);
+    soak.setCycles(12);
+    soak.setWarmupCycles(2);
+    soak.setMaxMetaspaceGrowthPerCycle(Long.MAX_VALUE);
+    final List<String> violations = soak.run().getViolations();
+    assertEquals(violations.toString(), 1, violations.size());
+    assertTrue(violations.toString(), violations.get(0).startsWith("p99 cleanup latency grew from "));
+  }
+
+  @Test
+  public void classLoadingNotTimed() throws Exception {
+    final RedeploySoak soak = new RedeploySoak(Workload.class, SlowLoadingCleanUp.class);
+    soak.setCycles(4);
+    soak.setWarmupCycles(1);
+    final RedeploySoak.Result result = soak.run();
+    assertTrue(result.toString(), result.getCleanUpNanosPercentile(100) < SlowLoadingCleanUp.LOAD_MS * 1000 * 1000);
+  }
+
+  /** Leaks the classloader by storing an instance of itself as a system property */
+  public static class Workload implements Runnable {
+    @Override
+    public void run() {
+      System.getProperties().put(PROPERTY_PREFIX + System.identityHashCode(this), this);
+    }
+  }
+
+  /** Removes the system property set by {@link Workload} */
+  public static class CleanUp implements Runnable {
+    @Override
+    public void run() {
+      for(Iterator<Object> it = System.getProperties().values().iterator(); it.hasNext(); ) {
+        final Object value = it.next();
+        if(value != null && value.getClass().getClassLoader() == Thread.currentThread().getContextClassLoader())
+          it.remove();
+      }
+    }
+  }
+
+  /** {@link CleanUp} that is slow to load */
+  public static class SlowLoadingCleanUp extends CleanUp {
+    
+    static final long LOAD_MS = 200;
+    
+    static {
+      try {
+        Thread.sleep(LOAD_MS);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** Runs {@link CleanUp} and sleeps the square of the no of invocations, in milliseconds */
+  public static class SlowingCleanUp implements Runnable {
+    @Override
+    public void run() {
+      new CleanUp().run();
+      final String key = PROPERTY_PREFIX + "invocations";
+      final int invocations = Integer.parseInt(System.getProperty(key, "0")) + 1;
+      System.setProperty(key, Integer.toString(invocations));
+      try {
+        Thread.sleep(invocations * invocations);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}